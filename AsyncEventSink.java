@@ -0,0 +1,195 @@
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AsyncEventSink hands events to another sink on a background thread
+ *
+ * Publishing threads claim a slot in a fixed ring buffer with one atomic
+ * increment and store the event there; they never wait for the output.
+ * A single worker thread drains the ring in order and flushes the
+ * downstream sink once per batch instead of once per event, so slow or
+ * synchronized output (such as a console) stays off the operation path.
+ * When the ring is full, publishers wait for the worker to make room:
+ * events are never dropped.
+ *
+ * Stop publishing before calling close(); events published after close()
+ * go straight to the downstream sink on the caller's thread. The same
+ * happens if the worker is stopped by an Error from the downstream sink,
+ * so publishers never wait on a dead worker; events it left in the ring
+ * are lost.
+ */
+public class AsyncEventSink implements EventSink, Closeable {
+    private static final int DEFAULT_CAPACITY = 8_192;
+    // Flush at least this often while events keep arriving
+    private static final int MAX_BATCH = 1_024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final EventSink downstream;
+    private final AtomicReferenceArray<LibraryEvent> slots;
+    private final int mask;
+    // Next sequence number a publisher will claim
+    private final AtomicLong claimed = new AtomicLong();
+    // Events below this sequence have been handed downstream
+    private volatile long consumed;
+    // Events below this sequence have been handed downstream and flushed
+    private volatile long flushed;
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+    private final Thread worker;
+
+    /**
+     * Constructor to create a sink with the default ring size
+     * @param downstream Sink the worker delivers events to
+     */
+    public AsyncEventSink(EventSink downstream) {
+        this(downstream, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor to create a sink
+     * @param downstream Sink the worker delivers events to
+     * @param capacity Ring size, rounded up to a power of two
+     */
+    public AsyncEventSink(EventSink downstream, int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.downstream = downstream;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.worker = new Thread(this::drain, "library-events");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void publish(LibraryEvent event) {
+        if (closed) {
+            downstream.publish(event);
+            return;
+        }
+        long sequence = claimed.getAndIncrement();
+        // Wait for the worker to free the slot if the ring has wrapped around
+        while (sequence - consumed > mask) {
+            if (!worker.isAlive()) {
+                downstream.publish(event);
+                return;
+            }
+            LockSupport.unpark(worker);
+            LockSupport.parkNanos(10_000);
+        }
+        slots.set((int) sequence & mask, event);
+        if (sleeping) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return downstream.isEnabled();
+    }
+
+    /**
+     * Wait until every event published so far has been delivered and flushed
+     */
+    @Override
+    public void flush() {
+        long target = claimed.get();
+        while (flushed < target && worker.isAlive()) {
+            LockSupport.unpark(worker);
+            LockSupport.parkNanos(100_000);
+        }
+        if (!worker.isAlive()) {
+            // Events published since the worker stopped went out unflushed
+            downstream.flush();
+        }
+    }
+
+    /**
+     * Get the number of events waiting for the worker
+     * @return Events published but not yet delivered
+     */
+    public long getBacklog() {
+        return Math.max(0, claimed.get() - consumed);
+    }
+
+    /**
+     * Deliver the remaining events and stop the worker
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(worker);
+        boolean interrupted = false;
+        while (worker.isAlive()) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        try {
+            drainUntilClosed();
+        } finally {
+            // Later events go straight downstream, whether the worker finished or died
+            closed = true;
+        }
+    }
+
+    private void drainUntilClosed() {
+        long next = 0;
+        int batch = 0;
+        while (true) {
+            int slot = (int) next & mask;
+            LibraryEvent event = slots.get(slot);
+            if (event != null) {
+                slots.lazySet(slot, null);
+                try {
+                    downstream.publish(event);
+                } catch (RuntimeException e) {
+                    // A failing sink must not stop delivery of later events
+                }
+                consumed = ++next;
+                if (++batch >= MAX_BATCH) {
+                    batch = flushDownstream(next);
+                }
+                continue;
+            }
+            if (batch > 0) {
+                batch = flushDownstream(next);
+            }
+            // A claimed slot is filled a moment after the claim; finish only when none is pending
+            if (closed && claimed.get() == next) {
+                return;
+            }
+            sleeping = true;
+            if (slots.get(slot) == null) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+
+    private int flushDownstream(long through) {
+        try {
+            downstream.flush();
+        } catch (RuntimeException e) {
+            // Output errors have nowhere to go; keep delivering
+        }
+        flushed = through;
+        return 0;
+    }
+}
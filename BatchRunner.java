@@ -0,0 +1,357 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * BatchRunner executes a stream of library commands without the menu
+ *
+ * Each input line is one command, with tab-separated fields. The command
+ * can be given by name or by its menu number:
+ *
+ *   ADD_BOOK       (1)  title, author, isbn[, copies]
+ *   REMOVE_BOOK    (2)  isbn
+ *   LIST_BOOKS     (3)
+ *   LIST_AVAILABLE (4)
+ *   ADD_MEMBER     (5)  name, memberId
+ *   REMOVE_MEMBER  (6)  memberId
+ *   LIST_MEMBERS   (7)
+ *   BORROW         (8)  isbn, memberId
+ *   RETURN         (9)  isbn, memberId
+ *   STATS          (10)
+ *
+ * Blank lines and lines starting with # are skipped. Every command writes
+ * one result line "[line] OK|FAIL|ERROR [details]", preceded by "[line] ROW
+ * [fields]" lines for listings; all fields are tab-separated. The details
+ * of a FAIL are the LibraryResult code, such as BOOK_NOT_FOUND. A reader
+ * thread parses ahead of execution, and results are written through a
+ * buffered Writer.
+ */
+public class BatchRunner {
+    private static final int BATCH_SIZE = 1_024;
+    private static final int QUEUED_BATCHES = 64;
+
+    /**
+     * Commands in menu order; the ordinal + 1 is the menu number
+     */
+    enum Op {
+        ADD_BOOK(3, 4), REMOVE_BOOK(1), LIST_BOOKS(0), LIST_AVAILABLE(0), ADD_MEMBER(2),
+        REMOVE_MEMBER(1), LIST_MEMBERS(0), BORROW(2), RETURN(2), STATS(0);
+
+        private final int arity;
+        private final int maxArity;
+
+        Op(int arity) {
+            this(arity, arity);
+        }
+
+        Op(int arity, int maxArity) {
+            this.arity = arity;
+            this.maxArity = maxArity;
+        }
+    }
+
+    /**
+     * One parsed input line
+     */
+    private static final class Command {
+        private final long line;
+        private final Op op;
+        private final String[] args;
+        private final String error;
+
+        Command(long line, Op op, String[] args, String error) {
+            this.line = line;
+            this.op = op;
+            this.args = args;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Outcome counts of a run
+     */
+    public static final class Summary {
+        private long commands;
+        private long failed;
+
+        public long getCommands() {
+            return commands;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+    }
+
+    private static final List<Command> END = new ArrayList<>();
+
+    private final Library library;
+
+    /**
+     * Constructor to create a runner
+     * @param library Library the commands operate on
+     */
+    public BatchRunner(Library library) {
+        this.library = library;
+    }
+
+    /**
+     * Run every command in the input
+     * Library events are switched off while the batch runs.
+     * @param in Command stream
+     * @param out Where result lines are written (flushed at the end)
+     * @return Counts of commands run and failed
+     * @throws IOException if reading or writing fails
+     */
+    public Summary run(Reader in, Writer out) throws IOException {
+        BlockingQueue<List<Command>> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        IOException[] readError = new IOException[1];
+        Thread parser = new Thread(() -> parseAll(in, queue, readError), "batch-parser");
+        parser.setDaemon(true);
+        parser.start();
+
+        Summary summary = new Summary();
+        EventSink events = library.getEventSink();
+        library.setEventSink(EventSink.NONE);
+        try {
+            StringBuilder line = new StringBuilder(256);
+            while (true) {
+                List<Command> batch = take(queue);
+                if (batch == END) {
+                    break;
+                }
+                for (Command command : batch) {
+                    summary.commands++;
+                    if (!execute(command, out, line)) {
+                        summary.failed++;
+                    }
+                }
+            }
+        } finally {
+            library.setEventSink(events);
+            out.flush();
+        }
+        if (readError[0] != null) {
+            throw readError[0];
+        }
+        return summary;
+    }
+
+    // Parsing (reader thread)
+
+    private void parseAll(Reader in, BlockingQueue<List<Command>> queue, IOException[] readError) {
+        try {
+            BufferedReader reader = new BufferedReader(in, 1 << 16);
+            List<Command> batch = new ArrayList<>(BATCH_SIZE);
+            long lineNumber = 0;
+            String text;
+            while ((text = reader.readLine()) != null) {
+                lineNumber++;
+                Command command = parse(lineNumber, text);
+                if (command == null) {
+                    continue;
+                }
+                batch.add(command);
+                if (batch.size() == BATCH_SIZE) {
+                    queue.put(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                queue.put(batch);
+            }
+        } catch (IOException e) {
+            readError[0] = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Parse one line
+     * @return Command, or null for blank and comment lines
+     */
+    private static Command parse(long lineNumber, String text) {
+        if (text.isEmpty() || text.charAt(0) == '#' || text.trim().isEmpty()) {
+            return null;
+        }
+        String[] fields = text.split("\t", -1);
+        Op op = opFor(fields[0].trim());
+        if (op == null) {
+            return new Command(lineNumber, null, null, "Unknown command " + fields[0].trim());
+        }
+        int given = fields.length - 1;
+        if (given < op.arity || given > op.maxArity) {
+            String expected = op.arity == op.maxArity ? Integer.toString(op.arity) : op.arity + "-" + op.maxArity;
+            return new Command(lineNumber, op, null,
+                    op + " takes " + expected + " argument(s) but got " + given);
+        }
+        String[] args = new String[given];
+        System.arraycopy(fields, 1, args, 0, args.length);
+        return new Command(lineNumber, op, args, null);
+    }
+
+    private static Op opFor(String name) {
+        if (!name.isEmpty() && Character.isDigit(name.charAt(0))) {
+            try {
+                int number = Integer.parseInt(name);
+                Op[] ops = Op.values();
+                return number >= 1 && number <= ops.length ? ops[number - 1] : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        try {
+            return Op.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Execution (calling thread)
+
+    /**
+     * Run one command and write its result
+     * @return true if the command succeeded
+     */
+    private boolean execute(Command command, Writer out, StringBuilder line) throws IOException {
+        if (command.error != null) {
+            result(out, line, command.line, "ERROR", command.error);
+            return false;
+        }
+        String[] a = command.args;
+        LibraryResult outcome;
+        switch (command.op) {
+            case ADD_BOOK:
+                if (a.length == 3) {
+                    outcome = library.addBook(a[0], a[1], a[2]);
+                    break;
+                }
+                try {
+                    outcome = library.addBook(a[0], a[1], a[2], Integer.parseInt(a[3].trim()));
+                } catch (NumberFormatException e) {
+                    result(out, line, command.line, "ERROR", "Number of copies must be a whole number");
+                    return false;
+                }
+                break;
+            case REMOVE_BOOK:
+                outcome = library.removeBook(a[0]);
+                break;
+            case ADD_MEMBER:
+                outcome = library.addMember(a[0], a[1]);
+                break;
+            case REMOVE_MEMBER:
+                outcome = library.removeMember(a[0]);
+                break;
+            case BORROW:
+                outcome = library.borrowBook(a[0], a[1]);
+                break;
+            case RETURN:
+                outcome = library.returnBook(a[0], a[1]);
+                break;
+            case LIST_BOOKS:
+            case LIST_AVAILABLE:
+                long rows = 0;
+                for (Book book : library.allBooks()) {
+                    if (command.op == Op.LIST_BOOKS || book.isAvailable()) {
+                        row(out, line, command.line, book.getIsbn(), book.getTitle(), book.getAuthor(),
+                                book.isAvailable() ? "available" : "borrowed");
+                        rows++;
+                    }
+                }
+                result(out, line, command.line, "OK", Long.toString(rows));
+                return true;
+            case LIST_MEMBERS:
+                long[] count = new long[1];
+                IOException[] error = new IOException[1];
+                library.forEachMember(member -> {
+                    if (error[0] != null) {
+                        return;
+                    }
+                    List<String> loans = library.loanIsbns(member);
+                    try {
+                        row(out, line, command.line, member.getMemberId(), member.getName(),
+                                Integer.toString(loans.size()), String.join(",", loans));
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                    count[0]++;
+                });
+                if (error[0] != null) {
+                    throw error[0];
+                }
+                result(out, line, command.line, "OK", Long.toString(count[0]));
+                return true;
+            case STATS:
+                LibraryStats.Snapshot stats = library.getStatistics();
+                result(out, line, command.line, "OK", "titles=" + stats.getTotalTitles()
+                        + "\tbooks=" + stats.getTotalBooks()
+                        + "\tavailable=" + stats.getAvailableBooks()
+                        + "\tborrowed=" + stats.getBorrowedBooks()
+                        + "\tmembers=" + stats.getTotalMembers());
+                return true;
+            default:
+                throw new IllegalStateException("Unhandled command " + command.op);
+        }
+        if (outcome.isOk()) {
+            result(out, line, command.line, "OK", null);
+        } else {
+            result(out, line, command.line, "FAIL", outcome.name());
+        }
+        return outcome.isOk();
+    }
+
+    private static void row(Writer out, StringBuilder line, long lineNumber, String... fields) throws IOException {
+        line.setLength(0);
+        line.append(lineNumber).append("\tROW");
+        for (String field : fields) {
+            line.append('\t');
+            appendClean(line, field);
+        }
+        line.append('\n');
+        out.append(line);
+    }
+
+    private static void result(Writer out, StringBuilder line, long lineNumber, String status,
+                               String detail) throws IOException {
+        line.setLength(0);
+        line.append(lineNumber).append('\t').append(status);
+        if (detail != null) {
+            line.append('\t').append(detail);
+        }
+        line.append('\n');
+        out.append(line);
+    }
+
+    // Tabs and line breaks inside a value would break the output format
+    private static void appendClean(StringBuilder line, String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            line.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+        }
+    }
+
+    private static List<Command> take(BlockingQueue<List<Command>> queue) throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch interrupted", e);
+        }
+    }
+}
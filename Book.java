@@ -1,12 +1,58 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
  * Book class represents a book in the library
  * Contains book information: title, author, ISBN, and availability status
+ *
+ * A book is a title that may have several physical copies, numbered from 1
+ * and identified by barcodes of the form [ISBN].[copy]. Which copies are on
+ * the shelf is kept as a bitmap: copies 1-64 in a single long and any
+ * further copies in an AtomicLongArray that most titles never need. Copies
+ * are claimed and released with compare-and-set on the bitmap, and a
+ * running count makes the number of available copies a single read. A
+ * claim takes a copy off the count before clearing its bit, so the count
+ * stays between zero and the copies actually on the shelf.
+ *
+ * To keep a large catalog small, the ISBN is packed into a long by Isbn
+ * when it fits, the author is shared with every other book by the same
+ * author through the owning library's SymbolTable, and the title is kept
+ * as UTF-8 bytes.
+ * getIsbn() and getTitle() build a new String on each call.
  */
 public class Book {
-    private String title;
+    private static final VarHandle SHELF;
+    private static final VarHandle AVAILABLE_COPIES;
+    
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            SHELF = lookup.findVarHandle(Book.class, "shelf", long.class);
+            AVAILABLE_COPIES = lookup.findVarHandle(Book.class, "availableCopies", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    
+    // UTF-8 bytes, without a String object around them
+    private byte[] title;
     private String author;
-    private String isbn;
-    private boolean isAvailable;
+    // Packed by Isbn.pack(), or Isbn.NONE when the ISBN is in isbnText instead
+    private long isbn;
+    private String isbnText;
+    private volatile int copyCount;
+    // Bit i set when copy i + 1 is on the shelf
+    private volatile long shelf;
+    // Copies 65 and up, 64 per element; null until a title has that many
+    private volatile AtomicLongArray moreShelf;
+    private volatile int availableCopies;
+    // Position in the owning library's CatalogSnapshot, 0 while not listed;
+    // only written under the library's snapshot lock
+    private long listingPosition;
+    // Document number in the owning library's BookIndex, -1 while not indexed
+    private int indexDoc = -1;
     
     /**
      * Constructor to create a new book
@@ -15,19 +61,34 @@ public class Book {
      * @param isbn Book ISBN number
      */
     public Book(String title, String author, String isbn) {
-        this.title = title;
+        this(title, author, isbn, 1);
+    }
+    
+    /**
+     * Constructor to create a new book with several copies
+     * @param title Book title
+     * @param author Book author
+     * @param isbn Book ISBN number
+     * @param copies Number of copies, at least 1
+     */
+    public Book(String title, String author, String isbn, int copies) {
+        if (copies < 1) {
+            throw new IllegalArgumentException("A book needs at least one copy");
+        }
+        this.title = encode(title);
         this.author = author;
-        this.isbn = isbn;
-        this.isAvailable = true; // New books are available by default
+        this.isbn = Isbn.pack(isbn);
+        this.isbnText = this.isbn != Isbn.NONE ? null : isbn;
+        appendCopies(copies); // New copies are available by default
     }
     
     // Getters and Setters
     public String getTitle() {
-        return title;
+        return title == null ? null : new String(title, StandardCharsets.UTF_8);
     }
     
     public void setTitle(String title) {
-        this.title = title;
+        this.title = encode(title);
     }
     
     public String getAuthor() {
@@ -38,20 +99,302 @@ public class Book {
         this.author = author;
     }
     
+    /**
+     * Replace the author with the equal String other books already share
+     * Call before the book is shared with other threads.
+     * @param authors Symbol table of the library the book is joining
+     */
+    void shareAuthor(SymbolTable authors) {
+        this.author = authors.intern(author);
+    }
+    
     public String getIsbn() {
-        return isbn;
+        return isbn != Isbn.NONE ? Isbn.format(isbn) : isbnText;
     }
     
     public void setIsbn(String isbn) {
-        this.isbn = isbn;
+        this.isbn = Isbn.pack(isbn);
+        this.isbnText = this.isbn != Isbn.NONE ? null : isbn;
+    }
+    
+    /**
+     * Get the ISBN as packed by Isbn.pack()
+     * @return Packed ISBN, or Isbn.NONE if it does not pack
+     */
+    public long getPackedIsbn() {
+        return isbn;
     }
     
+    /**
+     * Copy the ISBN into a char array without creating a String
+     * @param withHyphens false for the form Library.normalizeIsbn() gives
+     * @param dst Array with room for 25 more characters
+     * @param at Index to copy to
+     * @return Number of characters copied, or -1 if the ISBN is not packed
+     */
+    int getIsbnChars(boolean withHyphens, char[] dst, int at) {
+        return isbn != Isbn.NONE ? Isbn.getChars(isbn, withHyphens, dst, at) : -1;
+    }
+    
+    /**
+     * Get the title as stored, for writers that copy it without decoding
+     * @return UTF-8 bytes of the title, not to be modified, or null if the
+     *         book has no title or keeps it elsewhere
+     */
+    byte[] getTitleBytes() {
+        return title;
+    }
+    
+    /**
+     * Get the ISBN as the library indexes it, without building it twice
+     * @return Same as Library.normalizeIsbn(getIsbn())
+     */
+    String getIsbnKey() {
+        long packed = getPackedIsbn();
+        return packed != Isbn.NONE ? Isbn.digits(packed) : Library.normalizeIsbn(getIsbn());
+    }
+    
+    /**
+     * Check if at least one copy is on the shelf
+     * @return true if a copy can be borrowed
+     */
     public boolean isAvailable() {
-        return isAvailable;
+        return getAvailableCopies() > 0;
+    }
+    
+    /**
+     * Put every copy on the shelf, or mark every copy as borrowed
+     * @param available true to make all copies available
+     */
+    public synchronized void setAvailable(boolean available) {
+        int copies = copyCount;
+        shelf = available ? wordBits(copies) : 0L;
+        AtomicLongArray more = moreShelf;
+        if (more != null) {
+            for (int i = 0; i < more.length(); i++) {
+                more.set(i, available ? wordBits(copies - 64 * (i + 1)) : 0L);
+            }
+        }
+        availableCopies = available ? copies : 0;
+    }
+    
+    /**
+     * Get the number of copies of this title
+     * @return Copy count
+     */
+    public int getCopyCount() {
+        return copyCount;
+    }
+    
+    /**
+     * Get the number of copies on the shelf without scanning the bitmap
+     * @return Available copy count
+     */
+    public int getAvailableCopies() {
+        return availableCopies;
     }
     
-    public void setAvailable(boolean available) {
-        isAvailable = available;
+    long getListingPosition() {
+        return listingPosition;
+    }
+    
+    void setListingPosition(long listingPosition) {
+        this.listingPosition = listingPosition;
+    }
+    
+    int getIndexDoc() {
+        return indexDoc;
+    }
+    
+    void setIndexDoc(int indexDoc) {
+        this.indexDoc = indexDoc;
+    }
+    
+    /**
+     * Check whether one copy is on the shelf
+     * @param copy Copy number, starting at 1
+     * @return true if that copy is available
+     */
+    public boolean isCopyAvailable(int copy) {
+        if (copy < 1 || copy > copyCount) {
+            return false;
+        }
+        int bit = copy - 1;
+        long word = bit < 64 ? shelf : moreShelf.get((bit >>> 6) - 1);
+        return (word & (1L << (bit & 63))) != 0;
+    }
+    
+    /**
+     * Get the barcode of one copy
+     * @param copy Copy number, starting at 1
+     * @return Barcode such as "9780441172719.2"
+     */
+    public String getBarcode(int copy) {
+        return getIsbnKey() + "." + copy;
+    }
+    
+    /**
+     * Take any available copy off the shelf
+     * Lock-free: concurrent callers never receive the same copy.
+     * @return Number of the claimed copy, or 0 if none was available
+     */
+    public int claimCopy() {
+        if (!reserveCopy()) {
+            return 0;
+        }
+        // The reservation guarantees a set bit for this caller, though another claim may take the one seen first
+        while (true) {
+            long word = shelf;
+            if (word != 0) {
+                long bit = Long.lowestOneBit(word);
+                if (SHELF.compareAndSet(this, word, word & ~bit)) {
+                    return Long.numberOfTrailingZeros(bit) + 1;
+                }
+                continue;
+            }
+            AtomicLongArray more = moreShelf;
+            for (int i = 0; more != null && i < more.length(); i++) {
+                long extra = more.get(i);
+                if (extra == 0) {
+                    continue;
+                }
+                long bit = Long.lowestOneBit(extra);
+                if (more.compareAndSet(i, extra, extra & ~bit)) {
+                    return 64 * (i + 1) + Long.numberOfTrailingZeros(bit) + 1;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+    
+    /**
+     * Take a specific copy off the shelf
+     * @param copy Copy number, starting at 1
+     * @return true if the copy was available and is now claimed
+     */
+    public boolean claimCopy(int copy) {
+        if (copy < 1 || copy > copyCount || !isCopyAvailable(copy) || !reserveCopy()) {
+            return false;
+        }
+        if (updateCopy(copy, false)) {
+            return true;
+        }
+        // Someone else took this copy; give the reservation back
+        AVAILABLE_COPIES.getAndAdd(this, 1);
+        return false;
+    }
+    
+    /**
+     * Take one copy off the count, ahead of clearing its bit
+     * Releases set their bit before counting the copy back in, so a
+     * reserved copy always has a bit on the shelf for it.
+     * @return false if no copy was left to reserve
+     */
+    private boolean reserveCopy() {
+        while (true) {
+            int available = availableCopies;
+            if (available <= 0) {
+                return false;
+            }
+            if (AVAILABLE_COPIES.compareAndSet(this, available, available - 1)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Put a borrowed copy back on the shelf
+     * @param copy Copy number, starting at 1
+     * @return true if the copy was out and is now available
+     */
+    public boolean releaseCopy(int copy) {
+        if (copy < 1 || copy > copyCount || !updateCopy(copy, true)) {
+            return false;
+        }
+        AVAILABLE_COPIES.getAndAdd(this, 1);
+        return true;
+    }
+    
+    /**
+     * Add new copies, all available, numbered after the existing ones
+     * Must not run at the same time as claims and releases of this title;
+     * Library holds the title's lock for all of them.
+     * @param count Number of copies to add
+     */
+    public synchronized void addCopies(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Copy count must be positive");
+        }
+        appendCopies(count);
+    }
+    
+    private void appendCopies(int count) {
+        int from = copyCount;
+        int to = from + count;
+        if (to < from) {
+            throw new IllegalArgumentException("Too many copies");
+        }
+        if (to > 64) {
+            int words = (to - 1) / 64;
+            AtomicLongArray more = moreShelf;
+            if (more == null || more.length() < words) {
+                AtomicLongArray grown = new AtomicLongArray(words);
+                for (int i = 0; more != null && i < more.length(); i++) {
+                    grown.set(i, more.get(i));
+                }
+                moreShelf = grown;
+            }
+        }
+        for (int copy = from + 1; copy <= to; copy++) {
+            updateCopy(copy, true);
+        }
+        copyCount = to;
+        AVAILABLE_COPIES.getAndAdd(this, count);
+    }
+    
+    /**
+     * Set or clear one copy's shelf bit
+     * @return true if the bit changed
+     */
+    private boolean updateCopy(int copy, boolean onShelf) {
+        int bit = copy - 1;
+        long mask = 1L << (bit & 63);
+        if (bit < 64) {
+            while (true) {
+                long word = shelf;
+                long updated = onShelf ? word | mask : word & ~mask;
+                if (updated == word) {
+                    return false;
+                }
+                if (SHELF.compareAndSet(this, word, updated)) {
+                    return true;
+                }
+            }
+        }
+        AtomicLongArray more = moreShelf;
+        int index = (bit >>> 6) - 1;
+        while (true) {
+            long word = more.get(index);
+            long updated = onShelf ? word | mask : word & ~mask;
+            if (updated == word) {
+                return false;
+            }
+            if (more.compareAndSet(index, word, updated)) {
+                return true;
+            }
+        }
+    }
+    
+    private static byte[] encode(String text) {
+        return text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    // Bits for the first min(copies, 64) copies of a word
+    private static long wordBits(int copies) {
+        if (copies <= 0) {
+            return 0L;
+        }
+        return copies >= 64 ? -1L : (1L << copies) - 1;
     }
     
     /**
@@ -60,9 +403,12 @@ public class Book {
      */
     @Override
     public String toString() {
-        String status = isAvailable ? "Available" : "Borrowed";
+        String status = isAvailable() ? "Available" : "Borrowed";
+        if (getCopyCount() > 1) {
+            status += " (" + getAvailableCopies() + " of " + getCopyCount() + " copies)";
+        }
         return String.format("Title: %s | Author: %s | ISBN: %s | Status: %s", 
-                            title, author, isbn, status);
+                            getTitle(), getAuthor(), getIsbn(), status);
     }
     
     /**
@@ -73,9 +419,31 @@ public class Book {
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
-        if (obj == null || getClass() != obj.getClass()) return false;
-        Book book = (Book) obj;
-        return isbn != null ? isbn.equals(book.isbn) : book.isbn == null;
+        if (!(obj instanceof Book)) return false;
+        // Go through the getters so catalog-backed views match heap books;
+        // packing is exact, so equal packed ISBNs mean equal text
+        Book other = (Book) obj;
+        long packed = getPackedIsbn();
+        if (packed != Isbn.NONE || other.getPackedIsbn() != Isbn.NONE) {
+            return packed == other.getPackedIsbn();
+        }
+        String isbn = getIsbn();
+        return isbn != null ? isbn.equals(other.getIsbn()) : other.getIsbn() == null;
+    }
+    
+    /**
+     * Hash code consistent with equals(), so books can be used as map keys
+     * Do not change the ISBN of a book while it is a key in a map.
+     * @return Hash of the ISBN
+     */
+    @Override
+    public int hashCode() {
+        long packed = getPackedIsbn();
+        if (packed != Isbn.NONE) {
+            return Long.hashCode(packed);
+        }
+        String isbn = getIsbn();
+        return isbn == null ? 0 : isbn.hashCode();
     }
 }
 
@@ -0,0 +1,369 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * BookIndex keeps books sorted by author and by title, with a bitmap of
+ * which books have a copy on the shelf
+ *
+ * Each book gets a small document number, reused after the book is
+ * removed, and bit n of the availability bitmap is set while book n has a
+ * copy available. Authors and titles are kept in TreeMaps as lower-case,
+ * accent-free words separated by single spaces, each mapping to the sorted
+ * document numbers of its books, so exact, prefix and range lookups cost
+ * O(log n) plus the books found. "Available" queries test each candidate's
+ * bit instead of loading the book, which intersects the two sets without
+ * touching books that are out.
+ *
+ * The maps are guarded by a read-write lock and change only when books
+ * are added or removed. The bitmap is split into fixed pages that never
+ * move, so updating a bit after a borrow or return is one compare-and-set
+ * and takes no lock. The caller serializes changes to any one book.
+ */
+public class BookIndex {
+    // 4096 books per bitmap page
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_WORDS = 1 << (PAGE_BITS - 6);
+
+    /**
+     * Sorted document numbers of the books under one key
+     */
+    private static final class DocList {
+        private int[] docs;
+        private int size;
+
+        DocList() {
+            docs = new int[1];
+        }
+
+        DocList(int[] docs, int size) {
+            this.docs = docs;
+            this.size = size;
+        }
+
+        void add(int doc) {
+            int index = -Arrays.binarySearch(docs, 0, size, doc) - 1;
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            System.arraycopy(docs, index, docs, index + 1, size - index);
+            docs[index] = doc;
+            size++;
+        }
+
+        void remove(int doc) {
+            int index = Arrays.binarySearch(docs, 0, size, doc);
+            if (index >= 0) {
+                System.arraycopy(docs, index + 1, docs, index, size - index - 1);
+                size--;
+            }
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<String, DocList> authors = new TreeMap<>();
+    private final TreeMap<String, DocList> titles = new TreeMap<>();
+    private Book[] docs = new Book[1024];
+    // Normalized keys by document, so removal does not normalize again
+    private String[] authorKeys = new String[1024];
+    private String[] titleKeys = new String[1024];
+    // Numbers of removed books, handed out again before new ones
+    private int[] freeDocs = new int[16];
+    private int freeCount;
+    private int nextDoc;
+    private volatile AtomicLongArray[] available = new AtomicLongArray[0];
+
+    /**
+     * Index a book and record whether it is available
+     * @param book Book to index; ignored if it is already indexed
+     */
+    public void add(Book book) {
+        add(book, normalize(book.getTitle()), normalize(book.getAuthor()));
+    }
+
+    /**
+     * Index a book whose keys were already worked out
+     * @param book Book to index; ignored if it is already indexed
+     * @param title Title as returned by normalize()
+     * @param author Author as returned by normalize()
+     */
+    void add(Book book, String title, String author) {
+        lock.writeLock().lock();
+        try {
+            if (book.getIndexDoc() >= 0) {
+                return;
+            }
+            int doc = freeCount > 0 ? freeDocs[--freeCount] : nextDoc++;
+            if (doc == docs.length) {
+                docs = Arrays.copyOf(docs, doc * 2);
+                authorKeys = Arrays.copyOf(authorKeys, doc * 2);
+                titleKeys = Arrays.copyOf(titleKeys, doc * 2);
+            }
+            AtomicLongArray[] pages = available;
+            if (doc >>> PAGE_BITS == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length + 1);
+                pages[pages.length - 1] = new AtomicLongArray(PAGE_WORDS);
+                available = pages;
+            }
+            docs[doc] = book;
+            authorKeys[doc] = addKey(authors, author, doc);
+            titleKeys[doc] = addKey(titles, title, doc);
+            book.setIndexDoc(doc);
+            setBit(doc, book.isAvailable());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fill an empty index in one step from keys worked out in advance
+     * Used to load a catalog image: book i gets document number i, and the
+     * sorted orders come with the image, so no key is normalized or
+     * compared. Call before the index is shared.
+     * @param books Books by document number
+     * @param titleNames Normalized title of each book
+     * @param titleOrder Document numbers ordered by normalized title, then number
+     * @param authorNames Distinct normalized authors, in ascending order
+     * @param bookAuthors Index into authorNames of each book's author
+     */
+    void restore(Book[] books, String[] titleNames, int[] titleOrder, String[] authorNames, int[] bookAuthors) {
+        lock.writeLock().lock();
+        try {
+            if (nextDoc > 0 || freeCount > 0) {
+                throw new IllegalStateException("Book index is not empty");
+            }
+            int count = books.length;
+            int capacity = Math.max(docs.length, count);
+            docs = Arrays.copyOf(books, capacity);
+            titleKeys = Arrays.copyOf(titleNames, capacity);
+            authorKeys = new String[capacity];
+            AtomicLongArray[] pages = new AtomicLongArray[(count >>> PAGE_BITS) + 1];
+            for (int i = 0; i < pages.length; i++) {
+                pages[i] = new AtomicLongArray(PAGE_WORDS);
+            }
+            available = pages;
+
+            // Bucket the books by author; walking them in order keeps each list sorted
+            int[] starts = new int[authorNames.length + 1];
+            for (int doc = 0; doc < count; doc++) {
+                starts[bookAuthors[doc] + 1]++;
+            }
+            for (int a = 0; a < authorNames.length; a++) {
+                starts[a + 1] += starts[a];
+            }
+            int[][] byAuthor = new int[authorNames.length][];
+            for (int a = 0; a < authorNames.length; a++) {
+                byAuthor[a] = new int[starts[a + 1] - starts[a]];
+            }
+            int[] filled = new int[authorNames.length];
+            for (int doc = 0; doc < count; doc++) {
+                int a = bookAuthors[doc];
+                byAuthor[a][filled[a]++] = doc;
+                authorKeys[doc] = authorNames[a];
+                books[doc].setIndexDoc(doc);
+                setBit(doc, books[doc].isAvailable());
+            }
+            // Both key lists come out sorted, so the trees are built in one pass
+            String[] sortedAuthors = new String[authorNames.length];
+            DocList[] authorLists = new DocList[authorNames.length];
+            int authorCount = 0;
+            for (int a = 0; a < authorNames.length; a++) {
+                if (byAuthor[a].length > 0) {
+                    sortedAuthors[authorCount] = authorNames[a];
+                    authorLists[authorCount++] = new DocList(byAuthor[a], byAuthor[a].length);
+                }
+            }
+            authors.putAll(new CatalogImage.SortedEntries<>(Arrays.copyOf(sortedAuthors, authorCount),
+                    Arrays.copyOf(authorLists, authorCount)));
+            String[] sortedTitles = new String[count];
+            DocList[] titleLists = new DocList[count];
+            int titleCount = 0;
+            for (int i = 0; i < count;) {
+                String key = titleNames[titleOrder[i]];
+                int end = i + 1;
+                while (end < count && titleNames[titleOrder[end]].equals(key)) {
+                    end++;
+                }
+                sortedTitles[titleCount] = key;
+                titleLists[titleCount++] = new DocList(Arrays.copyOfRange(titleOrder, i, end), end - i);
+                i = end;
+            }
+            titles.putAll(new CatalogImage.SortedEntries<>(Arrays.copyOf(sortedTitles, titleCount),
+                    Arrays.copyOf(titleLists, titleCount)));
+            nextDoc = count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a book from the index
+     * @param book Book to remove; ignored if it is not indexed
+     */
+    public void remove(Book book) {
+        lock.writeLock().lock();
+        try {
+            int doc = book.getIndexDoc();
+            if (doc < 0 || docs[doc] != book) {
+                return;
+            }
+            removeKey(authors, authorKeys[doc], doc);
+            removeKey(titles, titleKeys[doc], doc);
+            setBit(doc, false);
+            docs[doc] = null;
+            authorKeys[doc] = null;
+            titleKeys[doc] = null;
+            book.setIndexDoc(-1);
+            if (freeCount == freeDocs.length) {
+                freeDocs = Arrays.copyOf(freeDocs, freeCount * 2);
+            }
+            freeDocs[freeCount++] = doc;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Record whether a book has a copy on the shelf
+     * Call after every change to the book's copies, with the book's lock held.
+     * @param book Book whose copies changed; ignored if it is not indexed
+     */
+    public void updateAvailability(Book book) {
+        int doc = book.getIndexDoc();
+        if (doc >= 0) {
+            setBit(doc, book.isAvailable());
+        }
+    }
+
+    /**
+     * Find the books by an author
+     * @param author Author name; case, accents and punctuation are ignored
+     * @param availableOnly true to find only books with a copy on the shelf
+     * @param limit Maximum number of results
+     * @return Matching books
+     */
+    public List<Book> byAuthor(String author, boolean availableOnly, int limit) {
+        String key = normalize(author);
+        return collect(authors, key, key, true, availableOnly, limit);
+    }
+
+    /**
+     * Find the books whose title starts with a prefix
+     * @param prefix Start of the title; case, accents and punctuation are ignored
+     * @param availableOnly true to find only books with a copy on the shelf
+     * @param limit Maximum number of results
+     * @return Matching books, by title
+     */
+    public List<Book> byTitlePrefix(String prefix, boolean availableOnly, int limit) {
+        String from = normalize(prefix);
+        return collect(titles, from, from + Character.MAX_VALUE, false, availableOnly, limit);
+    }
+
+    /**
+     * Find the books whose title sorts between two bounds
+     * @param from Lowest title, inclusive
+     * @param to Highest title, exclusive
+     * @param availableOnly true to find only books with a copy on the shelf
+     * @param limit Maximum number of results
+     * @return Matching books, by title
+     */
+    public List<Book> byTitleRange(String from, String to, boolean availableOnly, int limit) {
+        return collect(titles, normalize(from), normalize(to), false, availableOnly, limit);
+    }
+
+    /**
+     * Count the indexed books with a copy on the shelf
+     * @return Number of set bits in the availability bitmap
+     */
+    public int availableCount() {
+        int count = 0;
+        for (AtomicLongArray page : available) {
+            for (int i = 0; i < PAGE_WORDS; i++) {
+                count += Long.bitCount(page.get(i));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Turn text into an index key: lower-case, accent-free words separated by single spaces
+     * @param text Author or title (may be null)
+     * @return Normalized key
+     */
+    static String normalize(String text) {
+        return String.join(" ", SearchIndex.tokenize(text));
+    }
+
+    private List<Book> collect(TreeMap<String, DocList> index, String from, String to, boolean toInclusive,
+            boolean availableOnly, int limit) {
+        List<Book> found = new ArrayList<>();
+        if (limit <= 0 || from.compareTo(to) > 0) {
+            return found;
+        }
+        lock.readLock().lock();
+        try {
+            AtomicLongArray[] pages = available;
+            NavigableMap<String, DocList> range = index.subMap(from, true, to, toInclusive);
+            for (DocList list : range.values()) {
+                for (int i = 0; i < list.size; i++) {
+                    int doc = list.docs[i];
+                    if (availableOnly && !testBit(pages, doc)) {
+                        continue;
+                    }
+                    found.add(docs[doc]);
+                    if (found.size() >= limit) {
+                        return found;
+                    }
+                }
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Returns the index's own copy of the key, so every book by one author shares one String
+    private static String addKey(TreeMap<String, DocList> index, String key, int doc) {
+        Map.Entry<String, DocList> entry = index.ceilingEntry(key);
+        if (entry != null && entry.getKey().equals(key)) {
+            entry.getValue().add(doc);
+            return entry.getKey();
+        }
+        DocList list = new DocList();
+        list.add(doc);
+        index.put(key, list);
+        return key;
+    }
+
+    private static void removeKey(TreeMap<String, DocList> index, String key, int doc) {
+        DocList list = index.get(key);
+        if (list != null) {
+            list.remove(doc);
+            if (list.size == 0) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private void setBit(int doc, boolean value) {
+        AtomicLongArray page = available[doc >>> PAGE_BITS];
+        int word = (doc >>> 6) & (PAGE_WORDS - 1);
+        long mask = 1L << doc;
+        long bits;
+        do {
+            bits = page.get(word);
+            if (((bits & mask) != 0) == value) {
+                return;
+            }
+        } while (!page.compareAndSet(word, bits, bits ^ mask));
+    }
+
+    private static boolean testBit(AtomicLongArray[] pages, int doc) {
+        return (pages[doc >>> PAGE_BITS].get((doc >>> 6) & (PAGE_WORDS - 1)) & (1L << doc)) != 0;
+    }
+}
@@ -0,0 +1,323 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * BulkLoader streams books or members from delimited text files into a Library
+ *
+ * The input is read in chunks of lines. Worker threads split, trim and
+ * validate each chunk with the same rules addBook uses, and tokenize and
+ * normalize each book for the indexes, while the calling thread inserts
+ * finished chunks in file order (so the first of several rows with one
+ * ISBN wins). Only a fixed number of chunks are in flight at
+ * once, so memory stays bounded whatever the file size. Problems are
+ * written to an error report, one line per rejected row, instead of the
+ * console.
+ *
+ * Book files have the columns title, author, isbn and optionally copies
+ * (1 when absent); member files have
+ * name, memberId. Fields may be quoted with double quotes ("" inside
+ * quotes is a literal quote). A first line naming the columns is skipped.
+ */
+public class BulkLoader {
+    private static final int DEFAULT_CHUNK_LINES = 8_192;
+    private static final int MAX_REPORTED_ERRORS = 1_000_000;
+
+    /**
+     * Outcome of an import
+     */
+    public static final class Report {
+        private long rows;
+        private long imported;
+        private long rejected;
+        private long elapsedNanos;
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            return String.format("Rows: %d | Imported: %d | Rejected: %d | %.1f s (%.0f rows/s)",
+                    rows, imported, rejected, seconds, seconds > 0 ? rows / seconds : 0);
+        }
+    }
+
+    /**
+     * One chunk of lines after parsing and validation
+     */
+    private static final class Chunk {
+        private final List<Object> records = new ArrayList<>();
+        private final List<Long> lineNumbers = new ArrayList<>();
+        private final List<String> errors = new ArrayList<>();
+    }
+
+    private final Library library;
+    private final int threads;
+    private final int chunkLines;
+    private final char delimiter;
+
+    /**
+     * Constructor using comma-separated input and one worker per CPU
+     * @param library Library to load into
+     */
+    public BulkLoader(Library library) {
+        this(library, ',', Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_LINES);
+    }
+
+    /**
+     * Constructor to create a loader
+     * @param library Library to load into
+     * @param delimiter Field separator, such as ',' or '\t'
+     * @param threads Number of parsing threads
+     * @param chunkLines Lines handed to a worker at a time
+     */
+    public BulkLoader(Library library, char delimiter, int threads, int chunkLines) {
+        this.library = library;
+        this.delimiter = delimiter;
+        this.threads = Math.max(1, threads);
+        this.chunkLines = Math.max(1, chunkLines);
+    }
+
+    /**
+     * Import books from title, author, isbn rows
+     * @param in Input text
+     * @param errors Where to write one line per rejected row
+     * @return Import summary
+     * @throws IOException if reading the input or writing the report fails
+     */
+    public Report importBooks(Reader in, Writer errors) throws IOException {
+        return load(in, errors, true);
+    }
+
+    /**
+     * Import members from name, memberId rows
+     * @param in Input text
+     * @param errors Where to write one line per rejected row
+     * @return Import summary
+     * @throws IOException if reading the input or writing the report fails
+     */
+    public Report importMembers(Reader in, Writer errors) throws IOException {
+        return load(in, errors, false);
+    }
+
+    private Report load(Reader in, Writer errors, boolean books) throws IOException {
+        Report report = new Report();
+        long start = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "bulk-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Chunks submitted but not yet inserted, oldest first
+        ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        try {
+            BufferedReader reader = new BufferedReader(in, 1 << 16);
+            long lineNumber = 0;
+            List<String> lines = new ArrayList<>(chunkLines);
+            long firstLine = 1;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber == 1 && isHeader(line, books)) {
+                    firstLine = 2;
+                    continue;
+                }
+                lines.add(line);
+                if (lines.size() == chunkLines) {
+                    submit(workers, inFlight, lines, firstLine, books);
+                    firstLine = lineNumber + 1;
+                    lines = new ArrayList<>(chunkLines);
+                    // Bound memory: wait for the oldest chunk before reading further
+                    if (inFlight.size() >= threads * 2) {
+                        apply(inFlight.poll(), report, errors, books);
+                    }
+                }
+            }
+            if (!lines.isEmpty()) {
+                submit(workers, inFlight, lines, firstLine, books);
+            }
+            while (!inFlight.isEmpty()) {
+                apply(inFlight.poll(), report, errors, books);
+            }
+        } finally {
+            workers.shutdownNow();
+            errors.flush();
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        return report;
+    }
+
+    private void submit(ExecutorService workers, ArrayDeque<Future<Chunk>> inFlight,
+                        List<String> lines, long firstLine, boolean books) {
+        inFlight.add(workers.submit(() -> parse(lines, firstLine, books)));
+    }
+
+    /**
+     * Split, trim, validate and prepare one chunk. Runs on a worker thread.
+     */
+    private Chunk parse(List<String> lines, long firstLine, boolean books) {
+        Chunk chunk = new Chunk();
+        List<String> fields = new ArrayList<>(4);
+        for (int i = 0; i < lines.size(); i++) {
+            long lineNumber = firstLine + i;
+            String line = lines.get(i);
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String error = split(line, fields);
+            if (error == null) {
+                error = books ? validateBook(fields) : validateMember(fields);
+            }
+            if (error != null) {
+                chunk.errors.add("line " + lineNumber + ": " + error);
+                continue;
+            }
+            if (books) {
+                int copies = fields.size() > 3 ? Integer.parseInt(fields.get(3).trim()) : 1;
+                chunk.records.add(new Library.PreparedBook(new Book(fields.get(0).trim(), fields.get(1).trim(),
+                        fields.get(2).trim(), copies)));
+            } else {
+                chunk.records.add(new Member(fields.get(0).trim(), fields.get(1).trim()));
+            }
+            chunk.lineNumbers.add(lineNumber);
+        }
+        return chunk;
+    }
+
+    /**
+     * Insert a parsed chunk and report its problems. Runs on the caller's thread.
+     */
+    @SuppressWarnings("unchecked")
+    private void apply(Future<Chunk> pending, Report report, Writer errors, boolean books) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed", e.getCause());
+        }
+
+        boolean[] added = books
+                ? library.importBooks((List<Library.PreparedBook>) (List<?>) chunk.records)
+                : library.importMembers((List<Member>) (List<?>) chunk.records);
+        // Parse errors come first in the report for each chunk, then duplicates
+        for (String error : chunk.errors) {
+            writeError(report, errors, error);
+        }
+        for (int i = 0; i < added.length; i++) {
+            if (added[i]) {
+                report.imported++;
+            } else {
+                Object record = chunk.records.get(i);
+                String error = books
+                        ? "Book with ISBN " + ((Library.PreparedBook) record).getBook().getIsbn() + " already exists!"
+                        : "Member with ID " + ((Member) record).getMemberId() + " already exists!";
+                writeError(report, errors, "line " + chunk.lineNumbers.get(i) + ": " + error);
+            }
+        }
+        report.rows += chunk.records.size() + chunk.errors.size();
+    }
+
+    private void writeError(Report report, Writer errors, String message) throws IOException {
+        report.rejected++;
+        if (report.rejected <= MAX_REPORTED_ERRORS) {
+            errors.write(message);
+            errors.write(System.lineSeparator());
+        }
+    }
+
+    private static String validateBook(List<String> fields) {
+        if (fields.size() != 3 && fields.size() != 4) {
+            return "Expected 3 or 4 fields (title, author, isbn, copies) but found " + fields.size();
+        }
+        String error = Library.validateBook(fields.get(0), fields.get(1), fields.get(2));
+        if (error == null && fields.size() == 4) {
+            try {
+                error = Library.validateCopies(Integer.parseInt(fields.get(3).trim()));
+            } catch (NumberFormatException e) {
+                error = "Number of copies must be a whole number!";
+            }
+        }
+        return error;
+    }
+
+    private static String validateMember(List<String> fields) {
+        if (fields.size() != 2) {
+            return "Expected 2 fields (name, memberId) but found " + fields.size();
+        }
+        return Library.validateMember(fields.get(0), fields.get(1));
+    }
+
+    private boolean isHeader(String line, boolean books) {
+        List<String> fields = new ArrayList<>(4);
+        if (split(line, fields) != null || fields.isEmpty()) {
+            return false;
+        }
+        String first = fields.get(0).trim();
+        return first.equalsIgnoreCase(books ? "title" : "name");
+    }
+
+    /**
+     * Split a line into fields, honouring double quotes
+     * @param line Line to split
+     * @param fields Receives the fields (cleared first)
+     * @return Error message, or null on success
+     */
+    private String split(String line, List<String> fields) {
+        fields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"' && field.toString().trim().isEmpty()) {
+                field.setLength(0);
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return "Unterminated quoted field";
+        }
+        fields.add(field.toString());
+        return null;
+    }
+}
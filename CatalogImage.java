@@ -0,0 +1,503 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * CatalogImage is the body of a LibraryStore snapshot: books, members,
+ * loans and holds, together with the indexes built over the books
+ *
+ * Books are stored in listing order with their normalized titles, the
+ * order of the books by title, a dictionary of authors sorted by
+ * normalized name, and the search index's words with their postings.
+ * Loading an image then needs no tokenizing, sorting or per-book checks:
+ * the file is read in one go, its checksum verified once, and the books
+ * and indexes are installed whole with Library.restore(). Only loans and
+ * holds go through the normal operations.
+ *
+ * Strings are UTF-8 with a variable-length size in front; counts and
+ * small numbers are variable-length too. An image is held in a byte array
+ * while it is read, so it must stay under 2 GB (some 20 million titles).
+ */
+class CatalogImage {
+    private final Book[] books;
+    private final String[] titleKeys;
+    private final int[] titleOrder;
+    private final String[] authorKeys;
+    private final int[] bookAuthors;
+    private final String[] terms;
+    private final int[][] termDocs;
+    private final int[][] termFreqs;
+    private final Member[] members;
+    // ISBN, member ID, copy, due time and renewals of each loan
+    private final List<String[]> loans;
+    // ISBN, member ID, priority and expiry of each hold, in serving order
+    private final List<String[]> holds;
+
+    private CatalogImage(Book[] books, String[] titleKeys, int[] titleOrder, String[] authorKeys,
+            int[] bookAuthors, String[] terms, int[][] termDocs, int[][] termFreqs, Member[] members,
+            List<String[]> loans, List<String[]> holds) {
+        this.books = books;
+        this.titleKeys = titleKeys;
+        this.titleOrder = titleOrder;
+        this.authorKeys = authorKeys;
+        this.bookAuthors = bookAuthors;
+        this.terms = terms;
+        this.termDocs = termDocs;
+        this.termFreqs = termFreqs;
+        this.members = members;
+        this.loans = loans;
+        this.holds = holds;
+    }
+
+    Book[] getBooks() {
+        return books;
+    }
+
+    String[] getTitleKeys() {
+        return titleKeys;
+    }
+
+    int[] getTitleOrder() {
+        return titleOrder;
+    }
+
+    String[] getAuthorKeys() {
+        return authorKeys;
+    }
+
+    int[] getBookAuthors() {
+        return bookAuthors;
+    }
+
+    String[] getTerms() {
+        return terms;
+    }
+
+    int[][] getTermDocs() {
+        return termDocs;
+    }
+
+    int[][] getTermFreqs() {
+        return termFreqs;
+    }
+
+    Member[] getMembers() {
+        return members;
+    }
+
+    List<String[]> getLoans() {
+        return loans;
+    }
+
+    List<String[]> getHolds() {
+        return holds;
+    }
+
+    /**
+     * Write an image of a library's state
+     * The indexes are worked out here from the books, so the caller only
+     * needs to copy the fields while the library is paused.
+     * @param out Stream to write to
+     * @param bookRows Title, author, ISBN and copy count of each book, in listing order
+     * @param memberRows Name, ID, fines, loan limit, then ISBN, copy, due time and renewals of each loan
+     * @param holdRows ISBN, member ID, priority and expiry of each hold, in serving order
+     * @throws IOException if the stream cannot be written
+     */
+    static void write(DataOutputStream out, List<String[]> bookRows, List<String[]> memberRows,
+            List<String[]> holdRows) throws IOException {
+        int count = bookRows.size();
+
+        // Authors as entered, each pointing at its normalized name
+        Map<String, Integer> authorIds = new HashMap<>();
+        List<String> authors = new ArrayList<>();
+        int[] bookAuthor = new int[count];
+        for (int i = 0; i < count; i++) {
+            String author = bookRows.get(i)[1];
+            Integer id = authorIds.get(author);
+            if (id == null) {
+                id = authors.size();
+                authorIds.put(author, id);
+                authors.add(author);
+            }
+            bookAuthor[i] = id;
+        }
+        TreeMap<String, Integer> keyIndex = new TreeMap<>();
+        String[] authorKey = new String[authors.size()];
+        for (int a = 0; a < authorKey.length; a++) {
+            authorKey[a] = BookIndex.normalize(authors.get(a));
+            keyIndex.put(authorKey[a], 0);
+        }
+        writeVarInt(out, keyIndex.size());
+        int next = 0;
+        for (Map.Entry<String, Integer> key : keyIndex.entrySet()) {
+            key.setValue(next++);
+            writeString(out, key.getKey());
+        }
+        writeVarInt(out, authors.size());
+        for (int a = 0; a < authorKey.length; a++) {
+            writeString(out, authors.get(a));
+            writeVarInt(out, keyIndex.get(authorKey[a]));
+        }
+
+        // Books, and the postings of every word in their titles and authors
+        String[] titleKey = new String[count];
+        Map<String, Postings> postings = new HashMap<>();
+        writeVarInt(out, count);
+        for (int i = 0; i < count; i++) {
+            String[] row = bookRows.get(i);
+            titleKey[i] = BookIndex.normalize(row[0]);
+            writeString(out, row[0]);
+            writeString(out, titleKey[i]);
+            writeString(out, row[2]);
+            writeVarInt(out, bookAuthor[i]);
+            writeVarInt(out, Integer.parseInt(row[3]));
+            for (Map.Entry<String, Integer> term : SearchIndex.termFrequencies(row[0], row[1]).entrySet()) {
+                postings.computeIfAbsent(term.getKey(), t -> new Postings()).add(i, term.getValue());
+            }
+        }
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int byKey = titleKey[a].compareTo(titleKey[b]);
+            return byKey != 0 ? byKey : Integer.compare(a, b);
+        });
+        for (int doc : order) {
+            writeVarInt(out, doc);
+        }
+        String[] words = postings.keySet().toArray(new String[0]);
+        Arrays.sort(words);
+        writeVarInt(out, words.length);
+        for (String word : words) {
+            Postings list = postings.get(word);
+            writeString(out, word);
+            writeVarInt(out, list.size);
+            int previous = 0;
+            for (int i = 0; i < list.size; i++) {
+                writeVarInt(out, list.docs[i] - previous);
+                writeVarInt(out, list.freqs[i]);
+                previous = list.docs[i];
+            }
+        }
+
+        writeVarInt(out, memberRows.size());
+        for (String[] member : memberRows) {
+            writeNullableString(out, member[0]);
+            writeNullableString(out, member[1]);
+            out.writeLong(Long.parseLong(member[2]));
+            out.writeInt(Integer.parseInt(member[3]));
+            writeVarInt(out, (member.length - 4) / 4);
+            for (int i = 4; i < member.length; i += 4) {
+                writeString(out, member[i]);
+                writeVarInt(out, Integer.parseInt(member[i + 1]));
+                out.writeLong(Long.parseLong(member[i + 2]));
+                writeVarInt(out, Integer.parseInt(member[i + 3]));
+            }
+        }
+        writeVarInt(out, holdRows.size());
+        for (String[] hold : holdRows) {
+            writeString(out, hold[0]);
+            writeString(out, hold[1]);
+            out.writeInt(Integer.parseInt(hold[2]));
+            out.writeLong(Long.parseLong(hold[3]));
+        }
+    }
+
+    /**
+     * Decode an image
+     * The caller has verified the checksum, so the fields are not checked again.
+     * @param data Snapshot file contents
+     * @param from Offset of the image within data
+     * @param to End of the image within data
+     * @return Decoded image, ready for Library.restore()
+     * @throws IOException if the image ends early
+     */
+    static CatalogImage read(byte[] data, int from, int to) throws IOException {
+        Input in = new Input(data, from, to);
+        try {
+            String[] authorKeys = new String[in.readVarInt()];
+            for (int k = 0; k < authorKeys.length; k++) {
+                authorKeys[k] = in.readString();
+            }
+            String[] authors = new String[in.readVarInt()];
+            int[] authorKeyOf = new int[authors.length];
+            for (int a = 0; a < authors.length; a++) {
+                authors[a] = in.readString();
+                authorKeyOf[a] = in.readVarInt();
+            }
+
+            int count = in.readVarInt();
+            Book[] books = new Book[count];
+            String[] titleKeys = new String[count];
+            int[] bookAuthors = new int[count];
+            for (int i = 0; i < count; i++) {
+                String title = in.readString();
+                titleKeys[i] = in.readString();
+                String isbn = in.readString();
+                int author = in.readVarInt();
+                books[i] = new Book(title, authors[author], isbn, in.readVarInt());
+                bookAuthors[i] = authorKeyOf[author];
+            }
+            int[] titleOrder = new int[count];
+            for (int i = 0; i < count; i++) {
+                titleOrder[i] = in.readVarInt();
+            }
+            String[] terms = new String[in.readVarInt()];
+            int[][] termDocs = new int[terms.length][];
+            int[][] termFreqs = new int[terms.length][];
+            for (int t = 0; t < terms.length; t++) {
+                terms[t] = in.readString();
+                int size = in.readVarInt();
+                int[] docs = new int[size];
+                int[] freqs = new int[size];
+                int doc = 0;
+                for (int i = 0; i < size; i++) {
+                    doc += in.readVarInt();
+                    docs[i] = doc;
+                    freqs[i] = in.readVarInt();
+                }
+                termDocs[t] = docs;
+                termFreqs[t] = freqs;
+            }
+
+            Member[] members = new Member[in.readVarInt()];
+            List<String[]> loans = new ArrayList<>();
+            for (int m = 0; m < members.length; m++) {
+                Member member = new Member(in.readNullableString(), in.readNullableString());
+                member.chargeFine(in.readLong());
+                member.setLoanLimit(in.readInt());
+                int borrowed = in.readVarInt();
+                for (int j = 0; j < borrowed; j++) {
+                    String isbn = in.readString();
+                    int copy = in.readVarInt();
+                    long dueAt = in.readLong();
+                    loans.add(new String[] {isbn, member.getMemberId(), Integer.toString(copy),
+                            Long.toString(dueAt), Integer.toString(in.readVarInt())});
+                }
+                members[m] = member;
+            }
+            List<String[]> holds = new ArrayList<>();
+            int holdCount = in.readVarInt();
+            for (int i = 0; i < holdCount; i++) {
+                holds.add(new String[] {in.readString(), in.readString(), Integer.toString(in.readInt()),
+                        Long.toString(in.readLong())});
+            }
+            if (in.position != to) {
+                throw new IOException("Catalog image has " + (to - in.position) + " unread bytes");
+            }
+            return new CatalogImage(books, titleKeys, titleOrder, authorKeys, bookAuthors, terms, termDocs,
+                    termFreqs, members, loans, holds);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Catalog image ends early");
+        }
+    }
+
+    // Encoding helpers
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    // Size plus one, or 0 for null
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /**
+     * Growing (document, frequency) lists for one word while writing
+     */
+    private static final class Postings {
+        private int[] docs = new int[2];
+        private int[] freqs = new int[2];
+        private int size;
+
+        void add(int doc, int freq) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size] = freq;
+            size++;
+        }
+    }
+
+    /**
+     * Decoder over the bytes of an image
+     */
+    private static final class Input {
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        Input(byte[] data, int from, int to) {
+            this.data = data;
+            this.position = from;
+            this.end = to;
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = data[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        int readInt() {
+            int value = (data[position] & 0xFF) << 24 | (data[position + 1] & 0xFF) << 16
+                    | (data[position + 2] & 0xFF) << 8 | data[position + 3] & 0xFF;
+            position += 4;
+            return value;
+        }
+
+        long readLong() {
+            long high = readInt();
+            return high << 32 | readInt() & 0xFFFFFFFFL;
+        }
+
+        String readString() throws IOException {
+            return decode(readVarInt());
+        }
+
+        String readNullableString() throws IOException {
+            int size = readVarInt();
+            return size == 0 ? null : decode(size - 1);
+        }
+
+        private String decode(int size) throws IOException {
+            if (size > end - position) {
+                throw new IOException("Catalog image ends early");
+            }
+            String value = new String(data, position, size, StandardCharsets.UTF_8);
+            position += size;
+            return value;
+        }
+    }
+
+    /**
+     * Read-only view of keys already in ascending order, with their values
+     * Handing one to putAll() of an empty TreeMap makes the map build its
+     * tree in one linear pass instead of inserting and comparing key by key.
+     * Only what putAll() uses is supported.
+     */
+    static final class SortedEntries<V> extends AbstractMap<String, V> implements SortedMap<String, V> {
+        private final String[] keys;
+        private final V[] values;
+
+        /**
+         * @param keys Distinct keys in ascending natural order
+         * @param values Value of each key
+         */
+        SortedEntries(String[] keys, V[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+
+        @Override
+        public Comparator<? super String> comparator() {
+            return null;
+        }
+
+        @Override
+        public String firstKey() {
+            if (keys.length == 0) {
+                throw new NoSuchElementException();
+            }
+            return keys[0];
+        }
+
+        @Override
+        public String lastKey() {
+            if (keys.length == 0) {
+                throw new NoSuchElementException();
+            }
+            return keys[keys.length - 1];
+        }
+
+        @Override
+        public SortedMap<String, V> subMap(String fromKey, String toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<String, V> headMap(String toKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SortedMap<String, V> tailMap(String fromKey) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Set<Map.Entry<String, V>> entrySet() {
+            return new AbstractSet<Map.Entry<String, V>>() {
+                @Override
+                public int size() {
+                    return keys.length;
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, V>> iterator() {
+                    return new Iterator<Map.Entry<String, V>>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < keys.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, V> next() {
+                            if (next == keys.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Map.Entry<String, V> entry = new SimpleImmutableEntry<>(keys[next], values[next]);
+                            next++;
+                            return entry;
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
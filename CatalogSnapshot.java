@@ -0,0 +1,326 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * CatalogSnapshot is one immutable version of a library's book list, in
+ * the order the books were added
+ *
+ * Books sit in a persistent radix trie indexed by position, 32 slots per
+ * node, with the newest slots kept in a separate tail array the way
+ * Clojure's vectors do it. Adding a book copies only the tail, and once in
+ * 32 additions the trie's right edge; removing one copies the path down to
+ * it and leaves a hole. Everything else is shared with the previous
+ * version, so publishing a new version after a change costs O(log n) and
+ * a reader holding an older version keeps a complete, consistent list for
+ * as long as it likes. Subtrees whose books have all been removed are
+ * dropped, so iteration skips them in one step.
+ *
+ * Positions start at 1 and are never reused: a position names the same
+ * book in every version that has it, which makes a position a stable
+ * cursor for paging. Safe to share between threads.
+ */
+public final class CatalogSnapshot implements Iterable<Book> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    static final CatalogSnapshot EMPTY = new CatalogSnapshot(new Object[WIDTH], BITS, new Object[0], 0, 0, 0);
+
+    // Interior nodes hold child arrays, the lowest level holds books
+    private final Object[] root;
+    private final int shift;
+    // Slots from tailOffset() up to count - 1
+    private final Object[] tail;
+    // Slots ever used; the next book goes in slot count, at position count + 1
+    private final long count;
+    private final int size;
+    private final long version;
+
+    private CatalogSnapshot(Object[] root, int shift, Object[] tail, long count, int size, long version) {
+        this.root = root;
+        this.shift = shift;
+        this.tail = tail;
+        this.count = count;
+        this.size = size;
+        this.version = version;
+    }
+
+    /**
+     * Make a version holding the given books at positions 1 to n
+     * Leaves are filled straight from the array and the levels above them
+     * built once, rather than copying the right edge for every book.
+     * @param books Books in position order
+     * @return Version as if the books had been added one by one to EMPTY
+     */
+    static CatalogSnapshot of(Book[] books) {
+        int count = books.length;
+        if (count == 0) {
+            return EMPTY;
+        }
+        int tailStart = count <= WIDTH ? 0 : ((count - 1) >>> BITS) << BITS;
+        Object[] level = new Object[tailStart >>> BITS];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = Arrays.copyOfRange(books, i << BITS, (i + 1) << BITS, Object[].class);
+        }
+        int shift = BITS;
+        while (level.length > (1L << shift)) {
+            shift += BITS;
+        }
+        for (int built = BITS; built < shift; built += BITS) {
+            Object[] parents = new Object[(level.length + MASK) >>> BITS];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = Arrays.copyOf(Arrays.copyOfRange(level, i << BITS,
+                        Math.min(level.length, (i + 1) << BITS)), WIDTH);
+            }
+            level = parents;
+        }
+        Object[] tail = Arrays.copyOfRange(books, tailStart, count, Object[].class);
+        return new CatalogSnapshot(Arrays.copyOf(level, WIDTH), shift, tail, count, count, count);
+    }
+
+    /**
+     * Get the number of books in this version
+     * @return Book count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the version number, one higher for every change published
+     * @return Version number, 0 for an empty list
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the position the next book added will have
+     * @return Next position
+     */
+    long nextPosition() {
+        return count + 1;
+    }
+
+    /**
+     * Find the book at a position
+     * @param position Position, starting at 1
+     * @return Book, or null if the position is empty or unused
+     */
+    public Book get(long position) {
+        long slot = position - 1;
+        if (slot < 0 || slot >= count) {
+            return null;
+        }
+        if (slot >= tailOffset()) {
+            return (Book) tail[(int) (slot - tailOffset())];
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(int) ((slot >>> level) & MASK)];
+            if (node == null) {
+                return null;
+            }
+        }
+        return (Book) node[(int) (slot & MASK)];
+    }
+
+    /**
+     * Make the next version, with a book added at the end
+     * @param book Book to add
+     * @return New version; the book is at position nextPosition() of this one
+     */
+    CatalogSnapshot plus(Book book) {
+        if (count - tailOffset() < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = book;
+            return new CatalogSnapshot(root, shift, newTail, count + 1, size + 1, version + 1);
+        }
+        // The tail is full: it becomes a leaf of the trie, growing a level if the trie is full too
+        Object[] newRoot;
+        int newShift = shift;
+        if ((count >>> BITS) > (1L << shift)) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new CatalogSnapshot(newRoot, newShift, new Object[] {book}, count + 1, size + 1, version + 1);
+    }
+
+    /**
+     * Make the next version, with the book at a position removed
+     * @param position Position of the book
+     * @return New version, or this one if the position is empty
+     */
+    CatalogSnapshot minus(long position) {
+        if (get(position) == null) {
+            return this;
+        }
+        long slot = position - 1;
+        if (slot >= tailOffset()) {
+            Object[] newTail = tail.clone();
+            newTail[(int) (slot - tailOffset())] = null;
+            return new CatalogSnapshot(root, shift, newTail, count, size - 1, version + 1);
+        }
+        Object[] newRoot = removeFrom(shift, root, slot);
+        return new CatalogSnapshot(newRoot == null ? new Object[WIDTH] : newRoot, shift, tail, count, size - 1,
+                version + 1);
+    }
+
+    /**
+     * Iterate the books in position order
+     * @return Iterator over this version
+     */
+    @Override
+    public Iterator<Book> iterator() {
+        Rows rows = rows(0);
+        return new Iterator<Book>() {
+            private boolean ready;
+            private boolean more;
+
+            @Override
+            public boolean hasNext() {
+                if (!ready) {
+                    more = rows.next();
+                    ready = true;
+                }
+                return more;
+            }
+
+            @Override
+            public Book next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ready = false;
+                return rows.book();
+            }
+        };
+    }
+
+    /**
+     * Walk the books after a position, in position order
+     * Finding the start costs O(log n), however far in it is.
+     * @param after Position to start after, 0 for the beginning
+     * @return Cursor before the first book after the position
+     */
+    public Rows rows(long after) {
+        return new Rows(Math.max(0, after));
+    }
+
+    /**
+     * Cursor over the books of one version
+     */
+    public final class Rows {
+        // Next slot to look at, and the leaf holding it
+        private long slot;
+        private Object[] leaf;
+        private long leafStart = -1;
+        private Book book;
+        private long position;
+
+        private Rows(long after) {
+            this.slot = after;
+        }
+
+        /**
+         * Move to the next book
+         * @return false if there are no more books
+         */
+        public boolean next() {
+            while (slot < count) {
+                if (leafStart < 0 || slot >= leafStart + WIDTH) {
+                    if (!findLeaf()) {
+                        continue;
+                    }
+                }
+                Object entry = leaf[(int) (slot - leafStart)];
+                slot++;
+                if (entry != null) {
+                    book = (Book) entry;
+                    position = slot;
+                    return true;
+                }
+            }
+            book = null;
+            return false;
+        }
+
+        public Book book() {
+            return book;
+        }
+
+        /**
+         * Get the position of the current book
+         * @return Position, usable as the start of a later rows() call
+         */
+        public long position() {
+            return position;
+        }
+
+        // Point leaf at the node holding slot, or skip slot past an empty subtree
+        private boolean findLeaf() {
+            long tailStart = tailOffset();
+            if (slot >= tailStart) {
+                leaf = tail;
+                leafStart = tailStart;
+                return true;
+            }
+            Object[] node = root;
+            for (int level = shift; level > 0; level -= BITS) {
+                Object child = node[(int) ((slot >>> level) & MASK)];
+                if (child == null) {
+                    slot = ((slot >>> level) + 1) << level;
+                    leafStart = -1;
+                    return false;
+                }
+                node = (Object[]) child;
+            }
+            leaf = node;
+            leafStart = slot & ~(long) MASK;
+            return true;
+        }
+    }
+
+    private long tailOffset() {
+        return count < WIDTH ? 0 : ((count - 1) >>> BITS) << BITS;
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Object[] leaf) {
+        int index = (int) (((count - 1) >>> level) & MASK);
+        Object[] copy = parent == null ? new Object[WIDTH] : parent.clone();
+        if (level == BITS) {
+            copy[index] = leaf;
+        } else {
+            Object[] child = (Object[]) copy[index];
+            copy[index] = child == null ? newPath(level - BITS, leaf) : pushTail(level - BITS, child, leaf);
+        }
+        return copy;
+    }
+
+    private static Object[] newPath(int level, Object[] leaf) {
+        if (level == 0) {
+            return leaf;
+        }
+        Object[] node = new Object[WIDTH];
+        node[0] = newPath(level - BITS, leaf);
+        return node;
+    }
+
+    // Copy the path to slot with the slot cleared; null if the node ends up empty
+    private static Object[] removeFrom(int level, Object[] node, long slot) {
+        int index = (int) ((slot >>> level) & MASK);
+        Object[] copy = node.clone();
+        copy[index] = level == 0 ? null : removeFrom(level - BITS, (Object[]) node[index], slot);
+        for (Object entry : copy) {
+            if (entry != null) {
+                return copy;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CirculationDesk takes borrows and returns from kiosks and book drops and
+ * applies them to a Library in batches
+ *
+ * Requests wait in a queue bounded by a count of requests, whether they
+ * come one at a time or as whole book drops. The desk's worker thread takes
+ * whatever has queued up, about maxBatch requests at a time, and hands it
+ * to Library.circulate(), which runs the requests of each book lock stripe
+ * under one acquisition and syncs the log once per batch. The futures of a
+ * batch then complete together. Under light load batches are small and a
+ * request goes through at once; under heavy load they grow, and more
+ * requests share each lock acquisition and disk flush.
+ *
+ * When the queue is full, submitting blocks until the worker catches up,
+ * so a rush at semester start slows the kiosks down instead of filling the
+ * heap. Futures are completed on the worker thread: dependent stages added
+ * without an executor run there too and hold up the desk, so keep them
+ * short or use the Async variants. If applying a batch throws an Error,
+ * the batch's futures fail with it and the desk closes itself: requests
+ * still queued fail, and so does anything submitted later, so no caller
+ * is left waiting on a dead worker. Safe to share between threads.
+ */
+public class CirculationDesk implements Closeable {
+    public static final int DEFAULT_CAPACITY = 8_192;
+    public static final int DEFAULT_BATCH = 512;
+    // How often an idle worker checks whether the desk was closed
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * One borrow or return
+     */
+    public static final class Request {
+        private final String isbn;
+        private final String memberId;
+        private final boolean returning;
+
+        private Request(String isbn, String memberId, boolean returning) {
+            this.isbn = Objects.requireNonNull(isbn, "isbn");
+            this.memberId = Objects.requireNonNull(memberId, "memberId");
+            this.returning = returning;
+        }
+
+        /**
+         * Make a request to lend any available copy of a book
+         * @param isbn ISBN of the book
+         * @param memberId ID of the member borrowing it
+         * @return Borrow request
+         */
+        public static Request borrow(String isbn, String memberId) {
+            return new Request(isbn, memberId, false);
+        }
+
+        /**
+         * Make a request to take a book back
+         * @param isbn ISBN of the book
+         * @param memberId ID of the member returning it
+         * @return Return request
+         */
+        public static Request returnBook(String isbn, String memberId) {
+            return new Request(isbn, memberId, true);
+        }
+
+        public String getIsbn() {
+            return isbn;
+        }
+
+        public String getMemberId() {
+            return memberId;
+        }
+
+        public boolean isReturn() {
+            return returning;
+        }
+
+        @Override
+        public String toString() {
+            return (returning ? "RETURN " : "BORROW ") + isbn + " " + memberId;
+        }
+    }
+
+    /**
+     * Requests queued together by one caller, and the futures of their results
+     */
+    private static final class Pending {
+        final List<Request> requests;
+        final List<CompletableFuture<LibraryResult>> futures;
+
+        Pending(List<Request> requests) {
+            this.requests = requests;
+            this.futures = new ArrayList<>(requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                futures.add(new CompletableFuture<>());
+            }
+        }
+
+        void fail(Throwable cause) {
+            for (CompletableFuture<LibraryResult> future : futures) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private final Library library;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    // One permit per request that may still be queued or applied
+    private final Semaphore room;
+    private final int capacity;
+    private final int maxBatch;
+    private final Thread worker;
+    private volatile boolean closed;
+    // The Error that stopped the worker, if one did
+    private volatile Throwable failure;
+    // Written by the worker only
+    private volatile long batchCount;
+    private volatile long requestCount;
+
+    /**
+     * Constructor with the default queue and batch sizes
+     * @param library Library to apply the requests to
+     */
+    public CirculationDesk(Library library) {
+        this(library, DEFAULT_CAPACITY, DEFAULT_BATCH);
+    }
+
+    /**
+     * Constructor to open a desk and start its worker
+     * @param library Library to apply the requests to
+     * @param capacity Most requests waiting before submitting blocks
+     * @param maxBatch Requests applied in one batch; a batch may run over by
+     *                 part of one caller's submission
+     */
+    public CirculationDesk(Library library, int capacity, int maxBatch) {
+        if (capacity < 1 || maxBatch < 1) {
+            throw new IllegalArgumentException("Queue capacity and batch size must be at least 1");
+        }
+        this.library = library;
+        this.room = new Semaphore(capacity);
+        this.capacity = capacity;
+        this.maxBatch = maxBatch;
+        this.worker = new Thread(this::run, "library-desk");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Borrow a book
+     * @param isbn ISBN of the book
+     * @param memberId ID of the member borrowing it
+     * @return Result, once the batch holding the request has been applied
+     */
+    public CompletableFuture<LibraryResult> borrowBook(String isbn, String memberId) {
+        return submit(Request.borrow(isbn, memberId));
+    }
+
+    /**
+     * Return a book
+     * @param isbn ISBN of the book
+     * @param memberId ID of the member returning it
+     * @return Result, once the batch holding the request has been applied
+     */
+    public CompletableFuture<LibraryResult> returnBook(String isbn, String memberId) {
+        return submit(Request.returnBook(isbn, memberId));
+    }
+
+    /**
+     * Queue a request, waiting for room if the queue is full
+     * @param request Borrow or return
+     * @return Result, once the batch holding the request has been applied
+     * @throws IllegalStateException if the desk is closed
+     */
+    public CompletableFuture<LibraryResult> submit(Request request) {
+        return submitAll(Collections.singletonList(request)).get(0);
+    }
+
+    /**
+     * Queue a batch of requests, in order, waiting for room if the queue is full
+     * The requests go in as a few queue entries rather than one each, so
+     * handing a whole book drop to the desk costs little more than one
+     * request. They may be split across batches or share them with requests
+     * from other callers. If the calling thread is interrupted while it
+     * waits, the requests not yet queued are dropped and their futures fail
+     * with the InterruptedException.
+     * @param requests Borrows and returns
+     * @return Future result of each request, in the same order
+     * @throws IllegalStateException if the desk is closed
+     */
+    public List<CompletableFuture<LibraryResult>> submitAll(List<Request> requests) {
+        for (Request request : requests) {
+            Objects.requireNonNull(request, "request");
+        }
+        if (closed) {
+            throw new IllegalStateException("Circulation desk is closed", failure);
+        }
+        List<CompletableFuture<LibraryResult>> futures = new ArrayList<>(requests.size());
+        // A part never needs more room than the whole queue has
+        int partSize = Math.min(capacity, maxBatch);
+        boolean interrupted = false;
+        for (int from = 0; from < requests.size(); from += partSize) {
+            Pending pending = new Pending(new ArrayList<>(
+                    requests.subList(from, Math.min(requests.size(), from + partSize))));
+            futures.addAll(pending.futures);
+            if (interrupted) {
+                pending.fail(new InterruptedException());
+                continue;
+            }
+            try {
+                room.acquire(pending.requests.size());
+            } catch (InterruptedException e) {
+                interrupted = true;
+                pending.fail(e);
+                continue;
+            }
+            queue.add(pending);
+            // The desk may have closed while these requests were going in;
+            // whoever takes them off the queue first either applies or fails them
+            if (closed && queue.remove(pending)) {
+                room.release(pending.requests.size());
+                pending.fail(new IllegalStateException("Circulation desk is closed", failure));
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return futures;
+    }
+
+    /**
+     * Get the number of requests waiting or being applied
+     * @return Queued request count
+     */
+    public int getQueuedCount() {
+        return capacity - room.availablePermits();
+    }
+
+    /**
+     * Get the number of batches applied so far
+     * @return Batch count
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Get the number of requests applied so far
+     * @return Request count; divided by getBatchCount(), the mean batch size
+     */
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Stop taking requests, apply those already queued and stop the worker
+     * Requests that race with closing may fail with an IllegalStateException.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        boolean interrupted = false;
+        while (worker.isAlive()) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        failQueued();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void failQueued() {
+        List<Pending> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (Pending pending : left) {
+            room.release(pending.requests.size());
+            pending.fail(new IllegalStateException("Circulation desk is closed", failure));
+        }
+    }
+
+    private void run() {
+        try {
+            takeBatches();
+        } catch (Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            // Normally nothing is left; after an Error, fail whatever was queued
+            closed = true;
+            failQueued();
+        }
+    }
+
+    private void takeBatches() {
+        List<Pending> batch = new ArrayList<>();
+        List<Request> requests = new ArrayList<>(maxBatch);
+        while (true) {
+            Pending next;
+            try {
+                next = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                next = null;
+            }
+            if (next == null) {
+                if (closed && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            // Take whatever else is already waiting, up to a full batch
+            while (next != null) {
+                batch.add(next);
+                requests.addAll(next.requests);
+                next = requests.size() < maxBatch ? queue.poll() : null;
+            }
+            try {
+                apply(batch, requests);
+            } finally {
+                room.release(requests.size());
+                batch.clear();
+                requests.clear();
+            }
+        }
+    }
+
+    private void apply(List<Pending> batch, List<Request> requests) {
+        List<LibraryResult> results;
+        try {
+            results = library.circulate(requests);
+        } catch (RuntimeException | Error e) {
+            for (Pending pending : batch) {
+                pending.fail(e);
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            return;
+        }
+        batchCount++;
+        requestCount += requests.size();
+        // Last to first: a caller joining its futures in order is woken once,
+        // when all of them are done, instead of once per future
+        int i = requests.size();
+        for (int p = batch.size() - 1; p >= 0; p--) {
+            List<CompletableFuture<LibraryResult>> futures = batch.get(p).futures;
+            for (int f = futures.size() - 1; f >= 0; f--) {
+                futures.get(f).complete(results.get(--i));
+            }
+        }
+    }
+}
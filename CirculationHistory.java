@@ -0,0 +1,979 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * CirculationHistory remembers every loan and return, for reports such as
+ * the most borrowed titles of each month or the loans of each member in a
+ * year
+ *
+ * Events go to the open chunk of their calendar month (UTC) as
+ * variable-length records: the time as a delta from the previous event,
+ * then the book and the member as numbers from two dictionaries, so an
+ * event usually takes 6 to 9 bytes. A chunk is sealed after CHUNK_EVENTS
+ * events. Compaction merges the sealed chunks of a month into one segment
+ * and counts the loans of each book and member in it; once a later month
+ * has started, the month's open chunk is sealed and compacted as well.
+ * Reports add up those counts for compacted segments and decode the rest,
+ * one fork-join task per segment.
+ *
+ * A history opened on a directory writes sealed chunks and compacted
+ * segments there from a background thread, and the rest on close().
+ * Events not yet written are lost if the process dies. Safe to share
+ * between threads; recording takes one short lock.
+ */
+public class CirculationHistory implements Closeable {
+    static final int CHUNK_EVENTS = 1 << 16;
+    // The open month is compacted once it has this many sealed chunks
+    private static final int COMPACT_CHUNKS = 16;
+    private static final int BORROW = 0;
+    private static final int RETURN = 1;
+    private static final int SEGMENT_MAGIC = 0x4C4D5348; // "LMSH"
+    private static final int SEGMENT_VERSION = 1;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".hist";
+    private static final String DICTIONARY_FILE = "dictionary.hist";
+    private static final long MAINTAIN_SECONDS = 30;
+
+    /**
+     * Number of loans of one book
+     */
+    public static final class BookCount {
+        private final String isbn;
+        private final String title;
+        private final int loans;
+
+        BookCount(String isbn, String title, int loans) {
+            this.isbn = isbn;
+            this.title = title;
+            this.loans = loans;
+        }
+
+        public String getIsbn() {
+            return isbn;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public int getLoans() {
+            return loans;
+        }
+
+        @Override
+        public String toString() {
+            return title + " (ISBN: " + isbn + ") - " + loans + (loans == 1 ? " loan" : " loans");
+        }
+    }
+
+    /**
+     * Events of one month that are still being appended to
+     */
+    private static final class Chunk {
+        private byte[] data;
+        private int length;
+        private int count;
+        private long firstTime;
+        private long lastTime;
+
+        Chunk(int capacity) {
+            data = new byte[Math.max(64, capacity)];
+        }
+
+        void append(long time, int bookAndKind, int member) {
+            if (data.length - length < 20) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            long delta = count == 0 ? time : time - lastTime;
+            writeVarLong((delta << 1) ^ (delta >> 63));
+            writeVarLong(bookAndKind);
+            writeVarLong(member);
+            if (count == 0) {
+                firstTime = time;
+            }
+            lastTime = time;
+            count++;
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                data[length++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        Segment seal(long seq, int month, long[] replaces, int[] bookLoans, int[] memberLoans) {
+            return new Segment(seq, month, Arrays.copyOf(data, length), count, firstTime, lastTime, replaces,
+                    bookLoans, memberLoans);
+        }
+
+        // The events so far, for a report; bytes below length never change
+        Segment view(int month) {
+            return new Segment(0, month, data, count, firstTime, lastTime, new long[0], null, null);
+        }
+
+        int length() {
+            return length;
+        }
+    }
+
+    /**
+     * Sealed events of one month
+     */
+    private static final class Segment {
+        private final long seq;
+        private final int month;
+        private final byte[] data;
+        private final int count;
+        private final long firstTime;
+        private final long lastTime;
+        // Segments merged into this one by compaction
+        private final long[] replaces;
+        // Loans by book and by member as sorted (id, count) pairs; null before compaction
+        private final int[] bookLoans;
+        private final int[] memberLoans;
+        private volatile boolean persisted;
+
+        Segment(long seq, int month, byte[] data, int count, long firstTime, long lastTime, long[] replaces,
+                int[] bookLoans, int[] memberLoans) {
+            this.seq = seq;
+            this.month = month;
+            this.data = data;
+            this.count = count;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.replaces = replaces;
+            this.bookLoans = bookLoans;
+            this.memberLoans = memberLoans;
+        }
+
+        boolean isCompacted() {
+            return bookLoans != null;
+        }
+
+        /**
+         * Add this segment's loans to a count per book or per member
+         */
+        void addLoans(int[] counts, boolean byMember) {
+            int[] pairs = byMember ? memberLoans : bookLoans;
+            if (pairs != null) {
+                for (int i = 0; i < pairs.length; i += 2) {
+                    counts[pairs[i]] += pairs[i + 1];
+                }
+                return;
+            }
+            Events events = new Events(this);
+            while (events.next()) {
+                if (events.kind == BORROW) {
+                    counts[byMember ? events.member : events.book]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decoder for the events of a segment, oldest first
+     */
+    private static final class Events {
+        private final byte[] data;
+        private final int count;
+        private int read;
+        private int position;
+        long time;
+        int kind;
+        int book;
+        int member;
+
+        Events(Segment segment) {
+            this.data = segment.data;
+            this.count = segment.count;
+        }
+
+        boolean next() {
+            if (read == count) {
+                return false;
+            }
+            long zigzag = readVarLong();
+            time += (zigzag >>> 1) ^ -(zigzag & 1);
+            int bookAndKind = (int) readVarLong();
+            kind = bookAndKind & 1;
+            book = bookAndKind >>> 1;
+            member = (int) readVarLong();
+            read++;
+            return true;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Months by year * 12 + month - 1, with their segments and open chunk
+     */
+    private static final class Month {
+        private final int key;
+        // Replaced whole, so a report can take it without copying
+        private Segment[] segments = new Segment[0];
+        private Chunk open;
+
+        Month(int key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Counts the loans of a run of segments, splitting it between workers
+     */
+    private static final class CountTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final Segment[] segments;
+        private final int from;
+        private final int to;
+        private final int size;
+        private final boolean byMember;
+
+        CountTask(Segment[] segments, int from, int to, int size, boolean byMember) {
+            this.segments = segments;
+            this.from = from;
+            this.to = to;
+            this.size = size;
+            this.byMember = byMember;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= 1) {
+                int[] counts = new int[size];
+                if (to > from) {
+                    segments[from].addLoans(counts, byMember);
+                }
+                return counts;
+            }
+            int middle = (from + to) >>> 1;
+            CountTask left = new CountTask(segments, from, middle, size, byMember);
+            left.fork();
+            int[] counts = new CountTask(segments, middle, to, size, byMember).compute();
+            int[] other = left.join();
+            for (int i = 0; i < size; i++) {
+                counts[i] += other[i];
+            }
+            return counts;
+        }
+    }
+
+    // Guards the months, the counters below and additions to the dictionaries
+    private final Object lock = new Object();
+    // Looked up without the lock, so recording holds it only to append
+    private final Map<String, Integer> bookIds = new ConcurrentHashMap<>();
+    private String[] isbns = new String[1024];
+    private String[] titles = new String[1024];
+    private int bookCount;
+    private final Map<String, Integer> memberIds = new ConcurrentHashMap<>();
+    private String[] members = new String[1024];
+    private int memberCount;
+    private final TreeMap<Integer, Month> months = new TreeMap<>();
+    private long nextSeq = 1;
+    private long eventCount;
+    private long latestTime = Long.MIN_VALUE;
+    // Bounds of the month last recorded into, so most events skip the calendar
+    private int cachedMonth;
+    private long cachedStart = 1;
+    private long cachedEnd;
+
+    // Directory the history is kept in, or null for one kept in memory only
+    private final Path directory;
+    private final ScheduledExecutorService maintainer;
+    // Dictionary entries already in the dictionary file; maintenance only
+    private int savedBooks;
+    private int savedMembers;
+
+    /**
+     * Constructor to create an empty history kept in memory only
+     * Nothing is compacted until compact() is called.
+     */
+    public CirculationHistory() {
+        this(null);
+    }
+
+    private CirculationHistory(Path directory) {
+        this.directory = directory;
+        if (directory == null) {
+            this.maintainer = null;
+            return;
+        }
+        this.maintainer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "library-history");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintainer.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("Warning: circulation history not saved: " + e.getMessage());
+            }
+        }, MAINTAIN_SECONDS, MAINTAIN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Load the history kept in a directory and keep recording into it
+     * @param directory History directory (created if missing)
+     * @return History holding the saved events
+     * @throws IOException if the directory cannot be read or a segment is damaged
+     */
+    public static CirculationHistory open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        CirculationHistory history = new CirculationHistory(directory);
+        try {
+            history.load();
+        } catch (IOException e) {
+            history.maintainer.shutdownNow();
+            throw e;
+        }
+        return history;
+    }
+
+    /**
+     * Record that a member borrowed a book
+     * @param isbn ISBN of the book
+     * @param title Title of the book, shown in reports
+     * @param memberId ID of the member
+     * @param time Time of the loan in milliseconds
+     */
+    public void recordBorrow(String isbn, String title, String memberId, long time) {
+        record(BORROW, isbn, title, memberId, time);
+    }
+
+    /**
+     * Record that a member returned a book
+     * @param isbn ISBN of the book
+     * @param title Title of the book, shown in reports
+     * @param memberId ID of the member
+     * @param time Time of the return in milliseconds
+     */
+    public void recordReturn(String isbn, String title, String memberId, long time) {
+        record(RETURN, isbn, title, memberId, time);
+    }
+
+    private void record(int kind, String isbn, String title, String memberId, long time) {
+        int book = bookId(isbn, title);
+        int member = memberId(memberId);
+        synchronized (lock) {
+            int key = monthOf(time);
+            Month month = months.get(key);
+            if (month == null) {
+                month = new Month(key);
+                months.put(key, month);
+            }
+            if (month.open == null) {
+                month.open = new Chunk(1024);
+            }
+            month.open.append(time, book << 1 | kind, member);
+            eventCount++;
+            latestTime = Math.max(latestTime, time);
+            if (month.open.count == CHUNK_EVENTS) {
+                seal(month);
+            }
+        }
+    }
+
+    /**
+     * Get the number of events recorded
+     * @return Loans and returns
+     */
+    public long getEventCount() {
+        synchronized (lock) {
+            return eventCount;
+        }
+    }
+
+    /**
+     * Get the size of the encoded events
+     * @return Bytes used by the events, not counting the dictionaries
+     */
+    public long getByteCount() {
+        synchronized (lock) {
+            long bytes = 0;
+            for (Month month : months.values()) {
+                for (Segment segment : month.segments) {
+                    bytes += segment.data.length;
+                }
+                if (month.open != null) {
+                    bytes += month.open.length();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Find the most borrowed books of a month
+     * @param month Calendar month, in UTC
+     * @param limit Maximum number of books
+     * @return Books with their loan counts, most borrowed first
+     */
+    public List<BookCount> topBorrowed(YearMonth month, int limit) {
+        return topBorrowedByMonth(month, month, limit).getOrDefault(month, new ArrayList<>());
+    }
+
+    /**
+     * Find the most borrowed books of every month of a year
+     * Months are counted in parallel, and within a month each segment.
+     * @param year Calendar year, in UTC
+     * @param limit Maximum number of books per month
+     * @return Books with their loan counts by month, for the months with loans
+     */
+    public Map<YearMonth, List<BookCount>> topBorrowedByMonth(int year, int limit) {
+        return topBorrowedByMonth(YearMonth.of(year, 1), YearMonth.of(year, 12), limit);
+    }
+
+    private Map<YearMonth, List<BookCount>> topBorrowedByMonth(YearMonth from, YearMonth to, int limit) {
+        List<Segment[]> byMonth = new ArrayList<>();
+        String[] isbnNames;
+        String[] titleNames;
+        int size;
+        synchronized (lock) {
+            for (Month month : months.subMap(key(from), true, key(to), true).values()) {
+                byMonth.add(segmentsOf(month));
+            }
+            isbnNames = isbns;
+            titleNames = titles;
+            size = bookCount;
+        }
+        List<CountTask> tasks = new ArrayList<>();
+        for (Segment[] segments : byMonth) {
+            tasks.add(new CountTask(segments, 0, segments.length, size, false));
+        }
+        ForkJoinPool.commonPool().invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                ForkJoinTask.invokeAll(tasks);
+                return null;
+            }
+        });
+        Map<YearMonth, List<BookCount>> result = new LinkedHashMap<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            int[] counts = tasks.get(i).join();
+            List<BookCount> top = new ArrayList<>();
+            for (int book : top(counts, limit)) {
+                top.add(new BookCount(isbnNames[book], titleNames[book], counts[book]));
+            }
+            if (!top.isEmpty()) {
+                result.put(yearMonth(byMonth.get(i)[0].month), top);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Count the loans of each member in a year
+     * @param year Calendar year, in UTC
+     * @return Loans by member ID, for the members with loans
+     */
+    public Map<String, Integer> loansPerMember(int year) {
+        List<Segment> all = new ArrayList<>();
+        String[] memberNames;
+        int size;
+        synchronized (lock) {
+            for (Month month : months.subMap(key(YearMonth.of(year, 1)), true,
+                    key(YearMonth.of(year, 12)), true).values()) {
+                all.addAll(Arrays.asList(segmentsOf(month)));
+            }
+            memberNames = members;
+            size = memberCount;
+        }
+        Segment[] segments = all.toArray(new Segment[0]);
+        int[] counts = ForkJoinPool.commonPool().invoke(new CountTask(segments, 0, segments.length, size, true));
+        Map<String, Integer> result = new HashMap<>();
+        for (int member = 0; member < size; member++) {
+            if (counts[member] > 0) {
+                result.put(memberNames[member], counts[member]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Pass every recorded loan to a callback, oldest month first
+     * Loans recorded while this runs may be left out.
+     * @param action Called with the ISBN and the member ID of each loan
+     */
+    public void forEachBorrow(BiConsumer<String, String> action) {
+        List<Segment> all = new ArrayList<>();
+        String[] isbnNames;
+        String[] memberNames;
+        synchronized (lock) {
+            for (Month month : months.values()) {
+                all.addAll(Arrays.asList(segmentsOf(month)));
+            }
+            isbnNames = isbns;
+            memberNames = members;
+        }
+        for (Segment segment : all) {
+            Events events = new Events(segment);
+            while (events.next()) {
+                if (events.kind == BORROW) {
+                    action.accept(isbnNames[events.book], memberNames[events.member]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Seal finished months, save what is not saved yet, and merge each
+     * month's sealed chunks into one segment
+     * Runs every 30 seconds on its own for a history opened on a directory.
+     * @throws IOException if the history cannot be saved
+     */
+    public synchronized void compact() throws IOException {
+        List<Month> toCompact = new ArrayList<>();
+        synchronized (lock) {
+            int current = latestTime == Long.MIN_VALUE ? Integer.MIN_VALUE : monthOf(latestTime);
+            for (Month month : months.values()) {
+                if (month.open != null && month.key < current) {
+                    seal(month);
+                }
+                int raw = 0;
+                for (Segment segment : month.segments) {
+                    raw += segment.isCompacted() ? 0 : 1;
+                }
+                if (month.key < current ? raw > 0 || month.segments.length > 1 : raw >= COMPACT_CHUNKS) {
+                    toCompact.add(month);
+                }
+            }
+        }
+        save();
+        for (Month month : toCompact) {
+            compact(month);
+        }
+    }
+
+    /**
+     * Seal every open chunk, save everything and stop the background thread
+     * @throws IOException if the history cannot be saved
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (maintainer != null) {
+            maintainer.shutdownNow();
+        }
+        synchronized (lock) {
+            for (Month month : months.values()) {
+                if (month.open != null) {
+                    seal(month);
+                }
+            }
+        }
+        save();
+    }
+
+    // Recording helpers
+
+    private int bookId(String isbn, String title) {
+        Integer id = bookIds.get(isbn);
+        if (id != null) {
+            return id;
+        }
+        synchronized (lock) {
+            id = bookIds.get(isbn);
+            if (id != null) {
+                return id;
+            }
+            if (bookCount == isbns.length) {
+                isbns = Arrays.copyOf(isbns, bookCount * 2);
+                titles = Arrays.copyOf(titles, bookCount * 2);
+            }
+            isbns[bookCount] = isbn;
+            titles[bookCount] = title;
+            bookIds.put(isbn, bookCount);
+            return bookCount++;
+        }
+    }
+
+    private int memberId(String memberId) {
+        Integer id = memberIds.get(memberId);
+        if (id != null) {
+            return id;
+        }
+        synchronized (lock) {
+            id = memberIds.get(memberId);
+            if (id != null) {
+                return id;
+            }
+            if (memberCount == members.length) {
+                members = Arrays.copyOf(members, memberCount * 2);
+            }
+            members[memberCount] = memberId;
+            memberIds.put(memberId, memberCount);
+            return memberCount++;
+        }
+    }
+
+    // Call with the lock held
+    private int monthOf(long time) {
+        if (time < cachedStart || time >= cachedEnd) {
+            YearMonth month = YearMonth.from(Instant.ofEpochMilli(time).atOffset(ZoneOffset.UTC));
+            cachedMonth = key(month);
+            cachedStart = month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+            cachedEnd = month.plusMonths(1).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+        }
+        return cachedMonth;
+    }
+
+    // Call with the lock held
+    private void seal(Month month) {
+        Segment segment = month.open.seal(nextSeq++, month.key, new long[0], null, null);
+        month.open = null;
+        month.segments = append(month.segments, segment);
+    }
+
+    private static Segment[] segmentsOf(Month month) {
+        return month.open == null ? month.segments : append(month.segments, month.open.view(month.key));
+    }
+
+    private static Segment[] append(Segment[] segments, Segment segment) {
+        Segment[] longer = Arrays.copyOf(segments, segments.length + 1);
+        longer[segments.length] = segment;
+        return longer;
+    }
+
+    private static int key(YearMonth month) {
+        return month.getYear() * 12 + month.getMonthValue() - 1;
+    }
+
+    private static YearMonth yearMonth(int key) {
+        return YearMonth.of(Math.floorDiv(key, 12), Math.floorMod(key, 12) + 1);
+    }
+
+    /**
+     * Pick the ids with the highest counts
+     * @return Ids with a count above 0, highest count first
+     */
+    private static int[] top(int[] counts, int limit) {
+        if (limit <= 0) {
+            return new int[0];
+        }
+        PriorityQueue<Integer> best = new PriorityQueue<>(limit + 1,
+                (a, b) -> counts[a] != counts[b] ? Integer.compare(counts[a], counts[b]) : Integer.compare(b, a));
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] > 0 && (best.size() < limit || counts[id] > counts[best.peek()])) {
+                best.add(id);
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        int[] ids = new int[best.size()];
+        for (int i = ids.length - 1; i >= 0; i--) {
+            ids[i] = best.poll();
+        }
+        return ids;
+    }
+
+    // Compaction and files; called from compact() and close() only
+
+    /**
+     * Merge the sealed segments of a month into one segment with loan counts
+     */
+    private void compact(Month month) throws IOException {
+        Segment[] merged;
+        int books;
+        int memberIdCount;
+        long seq;
+        synchronized (lock) {
+            merged = month.segments;
+            books = bookCount;
+            memberIdCount = memberCount;
+            seq = nextSeq++;
+        }
+        int bytes = 0;
+        long[] replaces = new long[merged.length];
+        for (int i = 0; i < merged.length; i++) {
+            bytes += merged[i].data.length;
+            replaces[i] = merged[i].seq;
+        }
+        Chunk out = new Chunk(bytes);
+        int[] byBook = new int[books];
+        int[] byMember = new int[memberIdCount];
+        for (Segment segment : merged) {
+            Events events = new Events(segment);
+            while (events.next()) {
+                out.append(events.time, events.book << 1 | events.kind, events.member);
+                if (events.kind == BORROW) {
+                    byBook[events.book]++;
+                    byMember[events.member]++;
+                }
+            }
+        }
+        Segment compacted = out.seal(seq, month.key, replaces, pairs(byBook), pairs(byMember));
+        if (directory != null) {
+            saveDictionary();
+            writeSegment(compacted);
+        }
+        compacted.persisted = true;
+        synchronized (lock) {
+            // Chunks sealed meanwhile follow the merged ones
+            Segment[] now = month.segments;
+            Segment[] replaced = new Segment[now.length - merged.length + 1];
+            replaced[0] = compacted;
+            System.arraycopy(now, merged.length, replaced, 1, now.length - merged.length);
+            month.segments = replaced;
+        }
+        if (directory != null) {
+            for (Segment segment : merged) {
+                Files.deleteIfExists(directory.resolve(segmentName(segment.seq)));
+            }
+        }
+    }
+
+    private static int[] pairs(int[] counts) {
+        int nonZero = 0;
+        for (int count : counts) {
+            nonZero += count > 0 ? 1 : 0;
+        }
+        int[] pairs = new int[nonZero * 2];
+        int i = 0;
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] > 0) {
+                pairs[i++] = id;
+                pairs[i++] = counts[id];
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Write the new dictionary entries and every sealed segment not yet written
+     */
+    private void save() throws IOException {
+        List<Segment> unsaved = new ArrayList<>();
+        synchronized (lock) {
+            for (Month month : months.values()) {
+                for (Segment segment : month.segments) {
+                    if (!segment.persisted) {
+                        unsaved.add(segment);
+                    }
+                }
+            }
+        }
+        if (directory == null) {
+            return;
+        }
+        saveDictionary();
+        for (Segment segment : unsaved) {
+            writeSegment(segment);
+            segment.persisted = true;
+        }
+    }
+
+    private void saveDictionary() throws IOException {
+        String[] isbnNames;
+        String[] titleNames;
+        String[] memberNames;
+        int books;
+        int memberIdCount;
+        synchronized (lock) {
+            isbnNames = isbns;
+            titleNames = titles;
+            memberNames = members;
+            books = bookCount;
+            memberIdCount = memberCount;
+        }
+        if (books == savedBooks && memberIdCount == savedMembers) {
+            return;
+        }
+        try (FileOutputStream file = new FileOutputStream(directory.resolve(DICTIONARY_FILE).toFile(), true)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            for (int i = savedBooks; i < books; i++) {
+                out.writeByte('B');
+                out.writeUTF(isbnNames[i]);
+                out.writeUTF(titleNames[i]);
+            }
+            for (int i = savedMembers; i < memberIdCount; i++) {
+                out.writeByte('M');
+                out.writeUTF(memberNames[i]);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        savedBooks = books;
+        savedMembers = memberIdCount;
+    }
+
+    private void writeSegment(Segment segment) throws IOException {
+        Path target = directory.resolve(segmentName(segment.seq));
+        Path temp = directory.resolve(segmentName(segment.seq) + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(SEGMENT_VERSION);
+            out.writeLong(segment.seq);
+            out.writeInt(segment.month);
+            out.writeBoolean(segment.isCompacted());
+            out.writeInt(segment.replaces.length);
+            for (long replaced : segment.replaces) {
+                out.writeLong(replaced);
+            }
+            out.writeInt(segment.count);
+            out.writeLong(segment.firstTime);
+            out.writeLong(segment.lastTime);
+            out.writeInt(segment.data.length);
+            out.write(segment.data);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read the dictionary and the segments written by an earlier run
+     */
+    private void load() throws IOException {
+        Path dictionary = directory.resolve(DICTIONARY_FILE);
+        if (Files.exists(dictionary)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(dictionary), 1 << 16))) {
+                while (true) {
+                    int type = in.read();
+                    if (type == 'B') {
+                        String isbn = in.readUTF();
+                        bookId(isbn, in.readUTF());
+                    } else if (type == 'M') {
+                        memberId(in.readUTF());
+                    } else {
+                        break;
+                    }
+                }
+            } catch (EOFException e) {
+                // A save cut short; the segments never refer to the missing entries
+            }
+            // Rewrite the dictionary so new entries do not follow a torn one
+            savedBooks = 0;
+            savedMembers = 0;
+            Files.delete(dictionary);
+            saveDictionary();
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        Set<Long> replaced = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                Segment segment = readSegment(file);
+                segments.add(segment);
+                for (long seq : segment.replaces) {
+                    replaced.add(seq);
+                }
+            }
+        }
+        segments.sort((a, b) -> Long.compare(a.seq, b.seq));
+        for (Segment segment : segments) {
+            nextSeq = Math.max(nextSeq, segment.seq + 1);
+            if (replaced.contains(segment.seq)) {
+                // Compacted before the last run stopped, but not yet deleted
+                Files.deleteIfExists(directory.resolve(segmentName(segment.seq)));
+                continue;
+            }
+            Month month = months.get(segment.month);
+            if (month == null) {
+                month = new Month(segment.month);
+                months.put(segment.month, month);
+            }
+            month.segments = append(month.segments, segment);
+            eventCount += segment.count;
+            latestTime = Math.max(latestTime, segment.lastTime);
+        }
+    }
+
+    private Segment readSegment(Path file) throws IOException {
+        try (CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16), new CRC32())) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SEGMENT_MAGIC) {
+                throw new IOException("Not a circulation history segment: " + file);
+            }
+            int version = in.readInt();
+            if (version != SEGMENT_VERSION) {
+                throw new IOException("Unsupported history segment version " + version + ": " + file);
+            }
+            long seq = in.readLong();
+            int month = in.readInt();
+            boolean compacted = in.readBoolean();
+            long[] replaces = new long[in.readInt()];
+            for (int i = 0; i < replaces.length; i++) {
+                replaces[i] = in.readLong();
+            }
+            int count = in.readInt();
+            long firstTime = in.readLong();
+            long lastTime = in.readLong();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("History segment checksum mismatch: " + file);
+            }
+            Segment segment = new Segment(seq, month, data, count, firstTime, lastTime, replaces, null, null);
+            if (compacted) {
+                // Loan counts are not saved; count them again
+                int[] byBook = new int[bookCount];
+                int[] byMember = new int[memberCount];
+                segment.addLoans(byBook, false);
+                segment.addLoans(byMember, true);
+                segment = new Segment(seq, month, data, count, firstTime, lastTime, replaces, pairs(byBook),
+                        pairs(byMember));
+            }
+            segment.persisted = true;
+            return segment;
+        }
+    }
+
+    private static String segmentName(long seq) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX);
+    }
+}
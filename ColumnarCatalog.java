@@ -0,0 +1,593 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ColumnarCatalog is a read-mostly book catalog stored in a memory-mapped file
+ *
+ * Each field is its own column: ISBN keys (sorted, for binary search),
+ * ISBNs as entered, titles, and dictionary-encoded authors (an int per row
+ * pointing into a table of distinct author names). Availability and
+ * removal are packed bitsets, one bit per row. Opening a catalog only maps
+ * the columns, and Book objects are created on demand as views over a row,
+ * so heap use does not grow with the number of titles.
+ *
+ * The file is mapped copy-on-write: borrowing, returning and removing
+ * catalog books flips bits in memory but never changes the file. Loans of
+ * catalog books are saved with their members in LibraryStore snapshots,
+ * and removals are listed there by ISBN (see removedKeys()), so both
+ * outlive the log records that made them.
+ */
+public class ColumnarCatalog implements Closeable {
+    private static final int MAGIC = 0x4C4D5343; // "LMSC"
+    private static final int VERSION = 1;
+
+    // Column order in the section table
+    private static final int KEY_OFFSETS = 0;
+    private static final int KEY_BYTES = 1;
+    private static final int ISBN_OFFSETS = 2;
+    private static final int ISBN_BYTES = 3;
+    private static final int TITLE_OFFSETS = 4;
+    private static final int TITLE_BYTES = 5;
+    private static final int AUTHOR_IDS = 6;
+    private static final int DICT_OFFSETS = 7;
+    private static final int DICT_BYTES = 8;
+    private static final int AVAILABLE_BITS = 9;
+    private static final int DELETED_BITS = 10;
+    private static final int SECTIONS = 11;
+    private static final int HEADER_SIZE = 16 + SECTIONS * 16;
+
+    // Atomic access to the bitset words inside the mapped buffers
+    private static final VarHandle WORDS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final FileChannel channel;
+    private final int rows;
+    private final ByteBuffer[] columns = new ByteBuffer[SECTIONS];
+    private final AtomicInteger liveCount;
+    private final AtomicInteger availableCount;
+
+    /**
+     * Book backed by one catalog row
+     * Fields are decoded from the mapped columns on every call, and
+     * availability reads and writes go straight to the bitset. Each row
+     * is a single copy.
+     */
+    private final class CatalogBook extends Book {
+        private final int row;
+
+        CatalogBook(int row) {
+            super(null, null, null);
+            this.row = row;
+        }
+
+        ColumnarCatalog owner() {
+            return ColumnarCatalog.this;
+        }
+
+        @Override
+        public String getTitle() {
+            return string(TITLE_OFFSETS, TITLE_BYTES, row);
+        }
+
+        @Override
+        public String getAuthor() {
+            return string(DICT_OFFSETS, DICT_BYTES, columns[AUTHOR_IDS].getInt(row * 4));
+        }
+
+        @Override
+        public String getIsbn() {
+            return string(ISBN_OFFSETS, ISBN_BYTES, row);
+        }
+
+        @Override
+        public long getPackedIsbn() {
+            return Isbn.pack(getIsbn());
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return testBit(AVAILABLE_BITS, row);
+        }
+
+        @Override
+        public void setAvailable(boolean available) {
+            if (updateBit(AVAILABLE_BITS, row, available)) {
+                availableCount.addAndGet(available ? 1 : -1);
+            }
+        }
+
+        @Override
+        public int getCopyCount() {
+            return 1;
+        }
+
+        @Override
+        public int getAvailableCopies() {
+            return isAvailable() ? 1 : 0;
+        }
+
+        @Override
+        public boolean isCopyAvailable(int copy) {
+            return copy == 1 && isAvailable();
+        }
+
+        @Override
+        public int claimCopy() {
+            return claimCopy(1) ? 1 : 0;
+        }
+
+        @Override
+        public boolean claimCopy(int copy) {
+            if (copy != 1 || !updateBit(AVAILABLE_BITS, row, false)) {
+                return false;
+            }
+            availableCount.decrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean releaseCopy(int copy) {
+            if (copy != 1 || !updateBit(AVAILABLE_BITS, row, true)) {
+                return false;
+            }
+            availableCount.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void addCopies(int count) {
+            throw new UnsupportedOperationException("Catalog books have a single copy");
+        }
+
+        @Override
+        public void setTitle(String title) {
+            throw new UnsupportedOperationException("Catalog books are read-only");
+        }
+
+        @Override
+        public void setAuthor(String author) {
+            throw new UnsupportedOperationException("Catalog books are read-only");
+        }
+
+        @Override
+        public void setIsbn(String isbn) {
+            throw new UnsupportedOperationException("Catalog books are read-only");
+        }
+    }
+
+    private ColumnarCatalog(FileChannel channel, int rows, long[] offsets, long[] lengths) throws IOException {
+        this.channel = channel;
+        this.rows = rows;
+        for (int i = 0; i < SECTIONS; i++) {
+            FileChannel.MapMode mode = i == AVAILABLE_BITS || i == DELETED_BITS
+                    ? FileChannel.MapMode.PRIVATE : FileChannel.MapMode.READ_ONLY;
+            columns[i] = channel.map(mode, offsets[i], lengths[i]);
+        }
+        int live = rows - cardinality(DELETED_BITS);
+        this.liveCount = new AtomicInteger(live);
+        this.availableCount = new AtomicInteger(cardinality(AVAILABLE_BITS));
+    }
+
+    /**
+     * Open a catalog file
+     * Only the header is read; the columns are mapped and paged in on use.
+     * @param file Catalog file written by write()
+     * @return Opened catalog
+     * @throws IOException if the file cannot be read or is not a catalog
+     */
+    public static ColumnarCatalog open(Path file) throws IOException {
+        // Copy-on-write mappings need a writable channel, though the file is never modified
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading until the header is complete
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a library catalog: " + file);
+            }
+            int rows = header.getInt();
+            header.getInt(); // author count, informational
+            long[] offsets = new long[SECTIONS];
+            long[] lengths = new long[SECTIONS];
+            for (int i = 0; i < SECTIONS; i++) {
+                offsets[i] = header.getLong();
+                lengths[i] = header.getLong();
+            }
+            return new ColumnarCatalog(channel, rows, offsets, lengths);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the number of books in the catalog that have not been removed
+     * @return Live row count
+     */
+    public int size() {
+        return liveCount.get();
+    }
+
+    /**
+     * Get the number of catalog books currently available
+     * @return Available row count
+     */
+    public int availableCount() {
+        return availableCount.get();
+    }
+
+    /**
+     * Find a book by its normalized ISBN key
+     * @param key ISBN as returned by Library.normalizeIsbn
+     * @return Book view, or null if the catalog has no such (live) book
+     */
+    public Book find(String key) {
+        int row = findRow(key);
+        return row < 0 ? null : new CatalogBook(row);
+    }
+
+    /**
+     * Mark a catalog book as removed
+     * @param key Normalized ISBN key
+     * @return true if a live book was removed
+     */
+    public boolean remove(String key) {
+        int row = findRow(key);
+        if (row < 0 || !updateBit(DELETED_BITS, row, true)) {
+            return false;
+        }
+        liveCount.decrementAndGet();
+        if (testBit(AVAILABLE_BITS, row) && updateBit(AVAILABLE_BITS, row, false)) {
+            availableCount.decrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Get the ISBN keys of the removed books
+     * The file is written with no removals and never records one, so these
+     * are the books removed since the catalog was opened.
+     * @return Normalized ISBNs, in ISBN order
+     */
+    public List<String> removedKeys() {
+        List<String> keys = new ArrayList<>();
+        for (int row = 0; row < rows; row++) {
+            if (testBit(DELETED_BITS, row)) {
+                keys.add(string(KEY_OFFSETS, KEY_BYTES, row));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Get the live books in ISBN order
+     * Views are created as the iteration reaches them.
+     * @return Iterable over catalog books
+     */
+    public Iterable<Book> books() {
+        return books(0);
+    }
+
+    /**
+     * Get the live books from a row onwards, in ISBN order
+     * @param fromRow First row to include, as returned by rowOf()
+     * @return Iterable over catalog books
+     */
+    public Iterable<Book> books(int fromRow) {
+        return () -> new Iterator<Book>() {
+            private int next = advance(Math.max(fromRow, 0));
+
+            @Override
+            public boolean hasNext() {
+                return next < rows;
+            }
+
+            @Override
+            public Book next() {
+                if (next >= rows) {
+                    throw new NoSuchElementException();
+                }
+                Book book = new CatalogBook(next);
+                next = advance(next + 1);
+                return book;
+            }
+
+            private int advance(int row) {
+                while (row < rows && testBit(DELETED_BITS, row)) {
+                    row++;
+                }
+                return row;
+            }
+        };
+    }
+
+    /**
+     * Get the row a catalog book is stored in
+     * @param book Book from this catalog
+     * @return Row number, or -1 if the book is not a view of this catalog
+     */
+    int rowOf(Book book) {
+        if (book instanceof CatalogBook && ((CatalogBook) book).owner() == this) {
+            return ((CatalogBook) book).row;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Write books to a new catalog file
+     * Books are sorted by normalized ISBN; later duplicates of a key are dropped.
+     * Each row stores one copy, available if any copy of the book is.
+     * @param file File to create (replaced if it exists)
+     * @param books Books to store
+     * @return Number of rows written
+     * @throws IOException if the file cannot be written
+     */
+    public static int write(Path file, Iterable<Book> books) throws IOException {
+        List<Book> sorted = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (Book book : books) {
+            sorted.add(book);
+        }
+        String[] sortKeys = new String[sorted.size()];
+        Integer[] order = new Integer[sorted.size()];
+        for (int i = 0; i < sortKeys.length; i++) {
+            sortKeys[i] = sorted.get(i).getIsbnKey();
+            order[i] = i;
+        }
+        // Stable sort, so the first book with a key is the one kept
+        Arrays.sort(order, (a, b) -> sortKeys[a].compareTo(sortKeys[b]));
+        List<Book> rowsToWrite = new ArrayList<>(sorted.size());
+        for (Integer index : order) {
+            String key = sortKeys[index];
+            if (keys.isEmpty() || !keys.get(keys.size() - 1).equals(key)) {
+                keys.add(key);
+                rowsToWrite.add(sorted.get(index));
+            }
+        }
+        int rows = rowsToWrite.size();
+
+        Map<String, Integer> authorIds = new HashMap<>();
+        List<String> authors = new ArrayList<>();
+        int[] authorColumn = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            String author = rowsToWrite.get(i).getAuthor();
+            Integer id = authorIds.get(author);
+            if (id == null) {
+                id = authors.size();
+                authorIds.put(author, id);
+                authors.add(author);
+            }
+            authorColumn[i] = id;
+        }
+
+        long[] offsets = new long[SECTIONS];
+        long[] lengths = new long[SECTIONS];
+        try (OutputStream stream = Files.newOutputStream(file)) {
+            PositionedOutput out = new PositionedOutput(new BufferedOutputStream(stream, 1 << 16));
+            out.pad(HEADER_SIZE);
+            writeStrings(out, keys, KEY_OFFSETS, KEY_BYTES, offsets, lengths);
+            List<String> column = new ArrayList<>(rows);
+            for (Book book : rowsToWrite) {
+                column.add(book.getIsbn());
+            }
+            writeStrings(out, column, ISBN_OFFSETS, ISBN_BYTES, offsets, lengths);
+            column.clear();
+            for (Book book : rowsToWrite) {
+                column.add(book.getTitle());
+            }
+            writeStrings(out, column, TITLE_OFFSETS, TITLE_BYTES, offsets, lengths);
+
+            out.align();
+            offsets[AUTHOR_IDS] = out.position;
+            for (int id : authorColumn) {
+                out.data.writeInt(id);
+            }
+            out.position += 4L * rows;
+            lengths[AUTHOR_IDS] = 4L * rows;
+            writeStrings(out, authors, DICT_OFFSETS, DICT_BYTES, offsets, lengths);
+
+            long[] available = new long[(rows + 63) >>> 6];
+            for (int i = 0; i < rows; i++) {
+                if (rowsToWrite.get(i).isAvailable()) {
+                    available[i >>> 6] |= 1L << (i & 63);
+                }
+            }
+            writeWords(out, available, AVAILABLE_BITS, offsets, lengths);
+            writeWords(out, new long[available.length], DELETED_BITS, offsets, lengths);
+            out.data.flush();
+        }
+
+        // Fill in the header now that the section positions are known
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(authors.size());
+        for (int i = 0; i < SECTIONS; i++) {
+            header.putLong(offsets[i]).putLong(lengths[i]);
+        }
+        header.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        return rows;
+    }
+
+    // Column access
+
+    private int findRow(String key) {
+        if (key == null) {
+            return -1;
+        }
+        byte[] target = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer offsets = columns[KEY_OFFSETS];
+        ByteBuffer bytes = columns[KEY_BYTES];
+        int low = 0;
+        int high = rows - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int start = offsets.getInt(mid * 4);
+            int end = offsets.getInt(mid * 4 + 4);
+            int cmp = compare(bytes, start, end, target);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return testBit(DELETED_BITS, mid) ? -1 : mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int compare(ByteBuffer bytes, int start, int end, byte[] target) {
+        int length = end - start;
+        int n = Math.min(length, target.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(bytes.get(start + i) & 0xFF, target[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, target.length);
+    }
+
+    private String string(int offsetColumn, int bytesColumn, int index) {
+        ByteBuffer offsets = columns[offsetColumn];
+        int start = offsets.getInt(index * 4);
+        int end = offsets.getInt(index * 4 + 4);
+        byte[] value = new byte[end - start];
+        columns[bytesColumn].get(start, value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private boolean testBit(int column, int row) {
+        long word = (long) WORDS.getVolatile(columns[column], (row >>> 6) * 8);
+        return (word & (1L << (row & 63))) != 0;
+    }
+
+    /**
+     * Set or clear a bit with a CAS loop, since neighbouring rows in the same
+     * word may be updated under different lock stripes
+     * @return true if the bit changed
+     */
+    private boolean updateBit(int column, int row, boolean value) {
+        ByteBuffer buffer = columns[column];
+        int index = (row >>> 6) * 8;
+        long mask = 1L << (row & 63);
+        while (true) {
+            long word = (long) WORDS.getVolatile(buffer, index);
+            long updated = value ? word | mask : word & ~mask;
+            if (updated == word) {
+                return false;
+            }
+            if (WORDS.compareAndSet(buffer, index, word, updated)) {
+                return true;
+            }
+        }
+    }
+
+    private int cardinality(int column) {
+        ByteBuffer buffer = columns[column];
+        int count = 0;
+        for (int i = 0; i + 8 <= buffer.capacity(); i += 8) {
+            count += Long.bitCount(buffer.getLong(i));
+        }
+        return count;
+    }
+
+    // Writing helpers
+
+    /**
+     * Output stream wrapper that tracks the file position for the section table
+     */
+    private static final class PositionedOutput {
+        private final DataOutputStream data;
+        private long position;
+
+        PositionedOutput(OutputStream out) {
+            this.data = new DataOutputStream(out);
+        }
+
+        void pad(int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                data.writeByte(0);
+            }
+            position += count;
+        }
+
+        // Bitset words are read atomically, which needs 8-byte alignment
+        void align() throws IOException {
+            pad((int) ((8 - (position & 7)) & 7));
+        }
+    }
+
+    private static void writeStrings(PositionedOutput out, List<String> values, int offsetColumn,
+                                     int bytesColumn, long[] offsets, long[] lengths) throws IOException {
+        byte[][] encoded = new byte[values.size()][];
+        long total = 0;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = values.get(i).getBytes(StandardCharsets.UTF_8);
+            total += encoded[i].length;
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException("Catalog column too large: " + total + " bytes");
+        }
+
+        out.align();
+        offsets[offsetColumn] = out.position;
+        int offset = 0;
+        out.data.writeInt(0);
+        for (byte[] value : encoded) {
+            offset += value.length;
+            out.data.writeInt(offset);
+        }
+        lengths[offsetColumn] = 4L * (encoded.length + 1);
+        out.position += lengths[offsetColumn];
+
+        offsets[bytesColumn] = out.position;
+        for (byte[] value : encoded) {
+            out.data.write(value);
+        }
+        lengths[bytesColumn] = total;
+        out.position += total;
+    }
+
+    private static void writeWords(PositionedOutput out, long[] words, int column,
+                                   long[] offsets, long[] lengths) throws IOException {
+        out.align();
+        offsets[column] = out.position;
+        for (long word : words) {
+            out.data.writeLong(word);
+        }
+        lengths[column] = 8L * words.length;
+        out.position += lengths[column];
+    }
+}
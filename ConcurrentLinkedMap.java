@@ -0,0 +1,177 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ConcurrentLinkedMap is a thread-safe map that iterates in insertion order
+ * Lookups go through a ConcurrentHashMap; every entry also carries a
+ * sequence number and is kept in a skip list ordered by it, so listings
+ * come out in the order entries were added. Iteration is weakly consistent:
+ * it never throws ConcurrentModificationException and may or may not show
+ * entries added or removed while it is running.
+ *
+ * Callers that need check-then-put to be atomic (such as Library) must
+ * serialize writers of the same key themselves.
+ */
+public class ConcurrentLinkedMap<K, V> extends AbstractMap<K, V> {
+    private final ConcurrentHashMap<K, Node<K, V>> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Node<K, V>> order = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextSequence = new AtomicLong();
+    
+    /**
+     * Map entry remembering its position in insertion order
+     */
+    private static final class Node<K, V> implements Map.Entry<K, V> {
+        private final K key;
+        private final long sequence;
+        private volatile V value;
+        
+        Node(K key, V value, long sequence) {
+            this.key = key;
+            this.value = value;
+            this.sequence = sequence;
+        }
+        
+        @Override
+        public K getKey() {
+            return key;
+        }
+        
+        @Override
+        public V getValue() {
+            return value;
+        }
+        
+        @Override
+        public V setValue(V value) {
+            V old = this.value;
+            this.value = value;
+            return old;
+        }
+    }
+    
+    @Override
+    public V get(Object key) {
+        Node<K, V> node = index.get(key);
+        return node == null ? null : node.value;
+    }
+    
+    @Override
+    public boolean containsKey(Object key) {
+        return index.containsKey(key);
+    }
+    
+    /**
+     * Add or replace an entry
+     * Replacing keeps the entry's original position in iteration order.
+     * @param key Entry key
+     * @param value Entry value
+     * @return Previous value, or null if the key was new
+     */
+    @Override
+    public V put(K key, V value) {
+        Node<K, V> existing = index.get(key);
+        if (existing != null) {
+            return existing.setValue(value);
+        }
+        Node<K, V> node = new Node<>(key, value, nextSequence.incrementAndGet());
+        existing = index.putIfAbsent(key, node);
+        if (existing != null) {
+            return existing.setValue(value);
+        }
+        order.put(node.sequence, node);
+        return null;
+    }
+    
+    @Override
+    public V remove(Object key) {
+        Node<K, V> node = index.remove(key);
+        if (node == null) {
+            return null;
+        }
+        order.remove(node.sequence);
+        return node.value;
+    }
+    
+    @Override
+    public int size() {
+        return index.size();
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+    
+    @Override
+    public void clear() {
+        index.clear();
+        order.clear();
+    }
+    
+    /**
+     * Iterate the entries added after a given position
+     * Positions come from position(); an entry removed since keeps its
+     * place, so resuming after it skips nothing.
+     * @param position Position to resume after, 0 for the start
+     * @return Iterator over later entries in insertion order
+     */
+    public Iterator<Map.Entry<K, V>> entriesAfter(long position) {
+        return iterator(order.tailMap(position, false).values().iterator());
+    }
+    
+    /**
+     * Get an entry's position in insertion order
+     * @param entry Entry returned by this map's iterators
+     * @return Position, increasing with insertion order
+     */
+    public static long position(Map.Entry<?, ?> entry) {
+        return ((Node<?, ?>) entry).sequence;
+    }
+    
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return ConcurrentLinkedMap.this.iterator(order.values().iterator());
+            }
+            
+            @Override
+            public int size() {
+                return ConcurrentLinkedMap.this.size();
+            }
+        };
+    }
+    
+    private Iterator<Map.Entry<K, V>> iterator(Iterator<Node<K, V>> nodes) {
+        return new Iterator<Map.Entry<K, V>>() {
+            private Node<K, V> last;
+            
+            @Override
+            public boolean hasNext() {
+                return nodes.hasNext();
+            }
+            
+            @Override
+            public Map.Entry<K, V> next() {
+                last = nodes.next();
+                return last;
+            }
+            
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                ConcurrentLinkedMap.this.remove(last.key);
+                last = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * ConsoleEventSink prints each event's message on its own line
+ * This is what the console menu shows after every operation. Behind an
+ * AsyncEventSink, create it without flushing each event: a whole batch
+ * then reaches the stream in one write.
+ */
+public class ConsoleEventSink implements EventSink {
+    private final Writer out;
+    private final boolean flushEachEvent;
+
+    /**
+     * Constructor to create a sink that prints each message immediately
+     * @param out Stream for messages
+     */
+    public ConsoleEventSink(PrintStream out) {
+        this(out, true);
+    }
+
+    /**
+     * Constructor to create a sink printing to a stream
+     * @param out Stream for messages
+     * @param flushEachEvent false to hold messages until flush()
+     */
+    public ConsoleEventSink(PrintStream out, boolean flushEachEvent) {
+        // Same charset as the stream's own println
+        this.out = new BufferedWriter(new OutputStreamWriter(out));
+        this.flushEachEvent = flushEachEvent;
+    }
+
+    @Override
+    public void publish(LibraryEvent event) {
+        try {
+            synchronized (out) {
+                out.write(event.getMessage());
+                out.write('\n');
+                if (flushEachEvent) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DueDateIndex files every active loan under the hour it is due
+ *
+ * Buckets are kept in time order, so the loans that are overdue are
+ * exactly the ones in the buckets before the current hour plus the late
+ * part of the current hour's bucket. Listing them costs O(overdue loans +
+ * one hour of loans), however many loans are out. Hour buckets rather
+ * than day buckets keep that last partial bucket small. Adding, moving
+ * and removing a loan touch only its own bucket. Safe to use from several
+ * threads.
+ */
+public class DueDateIndex {
+    static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long BUCKET_MILLIS = 60L * 60 * 1000;
+
+    private final ConcurrentSkipListMap<Long, Set<Loan>> buckets = new ConcurrentSkipListMap<>();
+    private final LongAdder size = new LongAdder();
+
+    /**
+     * Index a loan under its due hour
+     * @param loan Loan with a due time set
+     */
+    public void add(Loan loan) {
+        buckets.compute(loan.getDueAt() / BUCKET_MILLIS, (hour, bucket) -> {
+            Set<Loan> loans = bucket == null ? ConcurrentHashMap.newKeySet() : bucket;
+            loans.add(loan);
+            return loans;
+        });
+        size.increment();
+    }
+
+    /**
+     * Remove a loan that was indexed with the given due time
+     * @param loan Loan to remove
+     * @param dueAt Due time the loan was indexed under
+     * @return true if the loan was indexed
+     */
+    public boolean remove(Loan loan, long dueAt) {
+        boolean[] removed = new boolean[1];
+        // Empty buckets are dropped; an add racing with the drop retries on a new bucket
+        buckets.computeIfPresent(dueAt / BUCKET_MILLIS, (hour, bucket) -> {
+            removed[0] |= bucket.remove(loan);
+            return bucket.isEmpty() ? null : bucket;
+        });
+        if (removed[0]) {
+            size.decrement();
+        }
+        return removed[0];
+    }
+
+    /**
+     * Collect the loans that are overdue
+     * @param now Current time in milliseconds
+     * @return Overdue loans, longest overdue first
+     */
+    public List<Loan> overdue(long now) {
+        List<Loan> overdue = new ArrayList<>();
+        for (Set<Loan> bucket : buckets.headMap(now / BUCKET_MILLIS, true).values()) {
+            int start = overdue.size();
+            for (Loan loan : bucket) {
+                if (loan.isOverdue(now)) {
+                    overdue.add(loan);
+                }
+            }
+            // Buckets are unordered sets; order each hour's loans by due time
+            overdue.subList(start, overdue.size()).sort(Comparator.comparingLong(Loan::getDueAt));
+        }
+        return overdue;
+    }
+
+    /**
+     * Collect the loans due in a range of time
+     * @param from Start of the range in milliseconds, exclusive
+     * @param to End of the range in milliseconds, inclusive
+     * @return Loans whose due time is in the range
+     */
+    public List<Loan> dueBetween(long from, long to) {
+        List<Loan> due = new ArrayList<>();
+        for (Map.Entry<Long, Set<Loan>> entry
+                : buckets.subMap(from / BUCKET_MILLIS, true, to / BUCKET_MILLIS, true).entrySet()) {
+            for (Loan loan : entry.getValue()) {
+                long dueAt = loan.getDueAt();
+                if (dueAt > from && dueAt <= to) {
+                    due.add(loan);
+                }
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Get the number of indexed loans
+     * @return Loan count
+     */
+    public long size() {
+        return size.sum();
+    }
+}
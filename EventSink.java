@@ -0,0 +1,44 @@
+/**
+ * EventSink receives a LibraryEvent for every Library operation
+ *
+ * Events are published after the operation's locks are released, from
+ * whichever thread ran the operation, so a sink shared by a concurrent
+ * library must be thread-safe. The console menu prints them through a
+ * ConsoleEventSink; servers and batch jobs that report results themselves
+ * use NONE, and an AsyncEventSink keeps slow output off the calling threads.
+ */
+public interface EventSink {
+    /**
+     * Sink that drops every event; the library then skips building them
+     */
+    EventSink NONE = new EventSink() {
+        @Override
+        public void publish(LibraryEvent event) {
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    /**
+     * Receive one event
+     * @param event Event to handle
+     */
+    void publish(LibraryEvent event);
+
+    /**
+     * Check whether events are wanted at all
+     * @return false if publish() would ignore every event
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Push out any events held back for batching
+     */
+    default void flush() {
+    }
+}
@@ -0,0 +1,241 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HoldQueues keeps the members waiting for each book
+ *
+ * Every title with holds has its own queue, served highest priority first
+ * and first come, first served within a priority (all holds placed from
+ * the menu have priority 0). A queue is a sorted set plus a map by member,
+ * so placing, cancelling and taking the next hold are O(log n) in the
+ * length of that title's queue. Hold deadlines sit in a TimerWheel, so
+ * finding expired holds never scans the holds that are still waiting.
+ *
+ * Queue methods must be called with the title's lock held; Library uses
+ * its book lock stripes for this.
+ */
+public class HoldQueues {
+    private static final long TICK_MILLIS = 60_000;
+    private static final int WHEEL_SLOTS = 1_440;
+
+    private static final Comparator<Hold> ORDER = (a, b) -> {
+        if (a.priority != b.priority) {
+            return a.priority > b.priority ? -1 : 1;
+        }
+        return Long.compare(a.sequence, b.sequence);
+    };
+
+    /**
+     * One member waiting for one book
+     */
+    public static final class Hold {
+        private final String bookKey;
+        private final String memberKey;
+        private final String memberId;
+        private final int priority;
+        private final long sequence;
+        private final long expiresAt;
+
+        Hold(String bookKey, String memberKey, String memberId, int priority, long sequence, long expiresAt) {
+            this.bookKey = bookKey;
+            this.memberKey = memberKey;
+            this.memberId = memberId;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getBookKey() {
+            return bookKey;
+        }
+
+        public String getMemberId() {
+            return memberId;
+        }
+
+        String getMemberKey() {
+            return memberKey;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Get when the hold lapses if no copy has come back by then
+         * @return Expiry time in milliseconds since the epoch
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    /**
+     * The holds on one title
+     */
+    private static final class TitleQueue {
+        private final TreeSet<Hold> order = new TreeSet<>(ORDER);
+        private final Map<String, Hold> byMember = new HashMap<>();
+    }
+
+    private final Map<String, TitleQueue> queues = new ConcurrentHashMap<>();
+    private final Map<String, Integer> memberHolds = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder size = new LongAdder();
+    private final TimerWheel<Hold> expiry;
+
+    /**
+     * Constructor to create empty queues
+     * @param now Current time in milliseconds
+     */
+    public HoldQueues(long now) {
+        this.expiry = new TimerWheel<>(TICK_MILLIS, WHEEL_SLOTS, now);
+    }
+
+    /**
+     * Add a hold to the back of its priority in a title's queue
+     * @param bookKey Normalized ISBN
+     * @param memberKey Normalized member ID
+     * @param memberId Member ID as entered
+     * @param priority Higher priorities are served first
+     * @param expiresAt Expiry time in milliseconds
+     * @return The new hold, or null if the member already has one on this title
+     */
+    Hold add(String bookKey, String memberKey, String memberId, int priority, long expiresAt) {
+        TitleQueue queue = queues.computeIfAbsent(bookKey, k -> new TitleQueue());
+        if (queue.byMember.containsKey(memberKey)) {
+            return null;
+        }
+        Hold hold = new Hold(bookKey, memberKey, memberId, priority, sequence.incrementAndGet(), expiresAt);
+        queue.order.add(hold);
+        queue.byMember.put(memberKey, hold);
+        memberHolds.merge(memberKey, 1, Integer::sum);
+        size.increment();
+        expiry.schedule(hold, expiresAt);
+        return hold;
+    }
+
+    /**
+     * Find a member's hold on a title
+     * @return Hold, or null if there is none
+     */
+    Hold find(String bookKey, String memberKey) {
+        TitleQueue queue = queues.get(bookKey);
+        return queue == null ? null : queue.byMember.get(memberKey);
+    }
+
+    /**
+     * Get the hold that will be served next
+     * @return First hold in the title's queue, or null if nobody is waiting
+     */
+    Hold first(String bookKey) {
+        TitleQueue queue = queues.get(bookKey);
+        return queue == null || queue.order.isEmpty() ? null : queue.order.first();
+    }
+
+    /**
+     * Remove a hold if it is still in its queue
+     * @return true if the hold was removed
+     */
+    boolean remove(Hold hold) {
+        TitleQueue queue = queues.get(hold.bookKey);
+        if (queue == null || queue.byMember.get(hold.memberKey) != hold) {
+            return false;
+        }
+        queue.byMember.remove(hold.memberKey);
+        queue.order.remove(hold);
+        if (queue.order.isEmpty()) {
+            queues.remove(hold.bookKey);
+        }
+        memberHolds.computeIfPresent(hold.memberKey, (k, count) -> count == 1 ? null : count - 1);
+        size.decrement();
+        return true;
+    }
+
+    /**
+     * Remove every hold on a title
+     * @param bookKey Normalized ISBN
+     */
+    void removeAll(String bookKey) {
+        TitleQueue queue = queues.get(bookKey);
+        if (queue != null) {
+            for (Hold hold : new ArrayList<>(queue.order)) {
+                remove(hold);
+            }
+        }
+    }
+
+    /**
+     * Get the holds on a title in the order they will be served
+     * @return Copy of the queue
+     */
+    List<Hold> list(String bookKey) {
+        TitleQueue queue = queues.get(bookKey);
+        return queue == null ? new ArrayList<>() : new ArrayList<>(queue.order);
+    }
+
+    /**
+     * Get the number of members waiting for a title
+     * @return Queue length
+     */
+    int count(String bookKey) {
+        TitleQueue queue = queues.get(bookKey);
+        return queue == null ? 0 : queue.order.size();
+    }
+
+    /**
+     * Get the number of holds a member has on all titles
+     * Safe to call without the title locks.
+     * @param memberKey Normalized member ID
+     * @return Hold count
+     */
+    int memberHoldCount(String memberKey) {
+        Integer count = memberHolds.get(memberKey);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Get the number of holds on all titles
+     * Safe to call without the title locks.
+     * @return Hold count
+     */
+    long size() {
+        return size.sum();
+    }
+
+    /**
+     * Collect holds whose deadline has passed
+     * The holds are not removed; a hold that was cancelled or served
+     * since it was scheduled is still returned, so check with remove().
+     * Safe to call without the title locks.
+     * @param now Current time in milliseconds
+     * @return Holds that may have expired
+     */
+    List<Hold> due(long now) {
+        return expiry.advance(now);
+    }
+
+    /**
+     * Get the titles that have holds
+     * Safe to call without the title locks.
+     * @return Normalized ISBNs
+     */
+    List<String> titles() {
+        return new ArrayList<>(queues.keySet());
+    }
+
+    /**
+     * Get the length of one timer wheel tick
+     * @return Tick length in milliseconds
+     */
+    long getTickMillis() {
+        return expiry.getTickMillis();
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Isbn packs ISBNs into a long and checks their check digits
+ *
+ * An ISBN of up to 13 digits, written with or without single hyphens
+ * between the digits, packs into one long: the digit count, the digits as a
+ * number and a bit for each place a hyphen went. Unpacking gives back the
+ * text exactly as written, so a Book can keep its ISBN in 8 bytes instead of
+ * a String of 60 or so, and two packed ISBNs are equal when their longs are.
+ * Anything else, such as an ISBN-10 ending in X or text with spaces, does
+ * not pack and is kept as a String.
+ */
+public final class Isbn {
+    /**
+     * Returned by pack() for an ISBN that does not fit in a long
+     */
+    public static final long NONE = -1L;
+
+    private static final int MAX_DIGITS = 13;
+    // Bit i set for a hyphen after digit i + 1
+    private static final int HYPHEN_BITS = MAX_DIGITS - 1;
+    // 10^13 - 1 needs 44 bits
+    private static final int NUMBER_BITS = 44;
+    private static final long HYPHEN_MASK = (1L << HYPHEN_BITS) - 1;
+    private static final long NUMBER_MASK = (1L << NUMBER_BITS) - 1;
+
+    private Isbn() {
+    }
+
+    /**
+     * Pack an ISBN into a long
+     * @param isbn ISBN as entered, such as "978-0-441-17271-9"
+     * @return Packed ISBN, never negative, or NONE if it cannot be packed
+     */
+    public static long pack(String isbn) {
+        if (isbn == null || isbn.isEmpty() || isbn.length() > 2 * MAX_DIGITS - 1) {
+            return NONE;
+        }
+        long number = 0;
+        long hyphens = 0;
+        int digits = 0;
+        for (int i = 0; i < isbn.length(); i++) {
+            char c = isbn.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits == MAX_DIGITS) {
+                    return NONE;
+                }
+                number = number * 10 + (c - '0');
+                digits++;
+            } else if (c == '-' && digits > 0 && i + 1 < isbn.length() && isbn.charAt(i - 1) != '-') {
+                hyphens |= 1L << (digits - 1);
+            } else {
+                return NONE;
+            }
+        }
+        return (long) digits << (NUMBER_BITS + HYPHEN_BITS) | number << HYPHEN_BITS | hyphens;
+    }
+
+    /**
+     * Unpack an ISBN as it was written
+     * @param packed Value returned by pack()
+     * @return ISBN text, hyphens included
+     */
+    public static String format(long packed) {
+        return write(packed, true);
+    }
+
+    /**
+     * Unpack an ISBN without its hyphens
+     * @param packed Value returned by pack()
+     * @return Digits only, as Library.normalizeIsbn() would give for format(packed)
+     */
+    public static String digits(long packed) {
+        return write(packed, false);
+    }
+
+    /**
+     * Check that an ISBN-13 or ISBN-10 has the right check digit
+     * Hyphens and spaces are ignored.
+     * @param isbn ISBN as entered
+     * @return true if it has 13 digits, or 10 with a final X allowed, and
+     *         the last one matches the rest
+     */
+    public static boolean isValid(String isbn) {
+        String key = Library.normalizeIsbn(isbn);
+        if (key == null || (key.length() != 13 && key.length() != 10)) {
+            return false;
+        }
+        for (int i = 0; i < key.length() - 1; i++) {
+            if (key.charAt(i) < '0' || key.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return checkDigit(key.substring(0, key.length() - 1)) == key.charAt(key.length() - 1);
+    }
+
+    /**
+     * Work out the check digit of an ISBN
+     * @param digits First 12 digits of an ISBN-13, or first 9 of an ISBN-10
+     * @return Check digit; 'X' stands for 10 in an ISBN-10
+     * @throws IllegalArgumentException if digits is not 12 or 9 digits
+     */
+    public static char checkDigit(String digits) {
+        if (digits == null || (digits.length() != 12 && digits.length() != 9)) {
+            throw new IllegalArgumentException("Expected the first 12 or 9 digits of an ISBN");
+        }
+        int sum = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            int digit = digits.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Not a digit: " + digits.charAt(i));
+            }
+            // ISBN-13 weighs digits 1, 3, 1, 3, ...; ISBN-10 weighs them 10, 9, 8, ...
+            sum += digit * (digits.length() == 12 ? (i % 2 == 0 ? 1 : 3) : 10 - i);
+        }
+        if (digits.length() == 12) {
+            return (char) ('0' + (10 - sum % 10) % 10);
+        }
+        int check = (11 - sum % 11) % 11;
+        return check == 10 ? 'X' : (char) ('0' + check);
+    }
+
+    /**
+     * Copy an unpacked ISBN into a char array without creating a String
+     * @param packed Value returned by pack()
+     * @param withHyphens true to copy the hyphens too
+     * @param dst Array with room for 25 more characters
+     * @param at Index to copy to
+     * @return Number of characters copied
+     */
+    static int getChars(long packed, boolean withHyphens, char[] dst, int at) {
+        int digits = (int) (packed >>> (NUMBER_BITS + HYPHEN_BITS));
+        long number = packed >>> HYPHEN_BITS & NUMBER_MASK;
+        long hyphens = withHyphens ? packed & HYPHEN_MASK : 0L;
+        int length = digits + Long.bitCount(hyphens);
+        int end = at + length;
+        for (int d = digits; d > 0; d--) {
+            if ((hyphens & 1L << (d - 1)) != 0 && d < digits) {
+                dst[--end] = '-';
+            }
+            dst[--end] = (char) ('0' + number % 10);
+            number /= 10;
+        }
+        return length;
+    }
+
+    private static String write(long packed, boolean withHyphens) {
+        char[] text = new char[2 * MAX_DIGITS - 1];
+        return new String(text, 0, getChars(packed, withHyphens, text, 0));
+    }
+}
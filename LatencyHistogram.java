@@ -0,0 +1,180 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts durations in log-linear buckets, the way
+ * HdrHistogram does
+ *
+ * Durations below 64 ns get a bucket each. Above that, every power of two
+ * is split into 32 buckets, so a bucket is never more than about 3% wide
+ * and percentiles are accurate to that. Recording is one atomic increment:
+ * the buckets are striped over several arrays, chosen by thread, so
+ * threads recording at the same time rarely touch the same counter.
+ * Reading merges the stripes; a read that races with recording may miss
+ * the latest values but never sees a broken count.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Durations from 2^(MAX_SHIFT + SUB_BITS + 1) ns (about 137 s) up share the last bucket
+    private static final int MAX_SHIFT = 31;
+    static final int BUCKETS = (MAX_SHIFT + 2) * SUB_COUNT;
+    // Power of two at least twice the processor count, at most 16
+    static final int STRIPES = Math.min(16,
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) * 2);
+
+    // Threads take stripes in turn. Thread.hashCode() would be as cheap, but
+    // not once a thread has been waited on: that moves the hash off the fast path.
+    private static final AtomicInteger nextStripe = new AtomicInteger();
+    private static final ThreadLocal<Integer> threadStripe =
+            ThreadLocal.withInitial(() -> nextStripe.getAndIncrement() & (STRIPES - 1));
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    /**
+     * Constructor to create an empty histogram
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Pick the calling thread's stripe
+     * @return Stripe number below STRIPES
+     */
+    static int stripe() {
+        return threadStripe.get();
+    }
+
+    /**
+     * Record one duration
+     * @param nanos Duration in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+        stripes[stripe()].incrementAndGet(bucket(nanos));
+    }
+
+    /**
+     * Take a copy of the counts recorded so far
+     * @return Snapshot of the histogram
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return new Snapshot(counts);
+    }
+
+    /**
+     * Clear all counts
+     * Durations recorded while the reset runs may or may not survive it.
+     */
+    public void reset() {
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                stripe.set(i, 0);
+            }
+        }
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < 2 * SUB_COUNT) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+        if (shift > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        return (shift + 1) * SUB_COUNT + (int) (nanos >>> shift) - SUB_COUNT;
+    }
+
+    static long lowestValue(int bucket) {
+        if (bucket < 2 * SUB_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_COUNT - 1;
+        return (long) (bucket % SUB_COUNT + SUB_COUNT) << shift;
+    }
+
+    static long highestValue(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+    }
+
+    /**
+     * Counts of a histogram at one point in time
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Get the mean duration, taking each bucket at its midpoint
+         * @return Mean in nanoseconds, or 0 if nothing was recorded
+         */
+        public double getMean() {
+            if (count == 0) {
+                return 0;
+            }
+            double total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    long low = lowestValue(i);
+                    long high = i == BUCKETS - 1 ? low : highestValue(i);
+                    total += counts[i] * (low + (high - low) / 2.0);
+                }
+            }
+            return total / count;
+        }
+
+        /**
+         * Get the duration that a percentage of the recorded durations do not exceed
+         * @param percentile Percentage, from 0 to 100
+         * @return Upper end of the bucket holding that duration in nanoseconds, or 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i == BUCKETS - 1 ? lowestValue(i) : highestValue(i);
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         * Get the longest recorded duration
+         * @return Upper end of the highest non-empty bucket in nanoseconds, or 0 if nothing was recorded
+         */
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0) {
+                    return i == BUCKETS - 1 ? lowestValue(i) : highestValue(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -1,21 +1,307 @@
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 
 /**
  * Library class manages books and members
  * Handles all library operations: adding/removing books and members,
  * borrowing/returning books, and displaying information
+ *
+ * A library created in concurrent mode may be shared between threads:
+ * every add, remove, borrow and return runs under the lock stripe of the
+ * ISBN and/or member ID it touches, so operations on different books and
+ * members proceed in parallel. When both are needed the book stripe is
+ * always taken before the member stripe.
  */
 public class Library {
-    private List<Book> books;
-    private List<Member> members;
+    // Upper limit for copies added in one operation
+    static final int MAX_COPIES = 100_000;
+    // Longest title, author or member name, and longest ISBN or member ID;
+    // they keep every field well under the 64 KB a log record field can hold
+    static final int MAX_TEXT_LENGTH = 1_000;
+    static final int MAX_ID_LENGTH = 100;
+    // How long a hold waits for a copy before it lapses
+    static final long HOLD_EXPIRY_MILLIS = 30L * 24 * 60 * 60 * 1000;
+    // Loan period, renewal limit and overdue fines (in cents)
+    static final long LOAN_PERIOD_MILLIS = 14L * 24 * 60 * 60 * 1000;
+    static final int MAX_RENEWALS = 2;
+    static final long FINE_PER_DAY = 25;
+    static final long MAX_FINE = 1_000;
+    // How often a concurrent library sweeps for loans that came due
+    static final long DUE_SWEEP_MILLIS = 60L * 60 * 1000;
+    
+    // Primary-key indexes: books by normalized ISBN, members by member ID.
+    // Members keep insertion order for the display methods; books are
+    // listed from the catalog snapshot instead.
+    private Map<String, Book> books;
+    private Map<String, Member> members;
+    // Heap books in insertion order, replaced whole on every add and remove
+    // so listings can walk it without locks
+    private volatile CatalogSnapshot snapshot = CatalogSnapshot.EMPTY;
+    private final Object snapshotLock = new Object();
+    private final boolean concurrent;
+    private final LockStripes bookLocks;
+    private final LockStripes memberLocks;
+    private PrintStream out;
+    private volatile EventSink events;
+    private TransactionLog log;
+    // Optional memory-mapped catalog consulted after the in-heap index
+    private volatile ColumnarCatalog catalog;
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final BookIndex bookIndex = new BookIndex();
+    private final LibraryStats stats = new LibraryStats();
+    // One String per distinct author, shared by this library's books
+    private final SymbolTable authors = new SymbolTable();
+    private HoldQueues holds;
+    private volatile LongSupplier clock = System::currentTimeMillis;
+    // Set while a LibraryStore replays; holds are then only changed by logged records
+    private volatile boolean recovering;
+    // Loan limit for members without their own; Integer.MAX_VALUE for none
+    private volatile int defaultLoanLimit = Integer.MAX_VALUE;
+    private final DueDateIndex dueDates = new DueDateIndex();
+    // Loans due up to this time have been through the due date sweep
+    private long sweptThrough;
+    private volatile ScheduledExecutorService circulationTimer;
+    // Operation counts and latencies, or null when not measured
+    private volatile LibraryMetrics metrics;
+    // Loans and returns kept for reports, or null when not kept
+    private volatile CirculationHistory history;
+    // Co-borrowing model behind recommend(), or null when there is none
+    private volatile Recommender recommender;
+    // Snapshot being copied, or null; changes save their before-states in it
+    private volatile Cut cut;
     
     /**
      * Constructor to initialize the library
      */
     public Library() {
-        this.books = new ArrayList<>();
-        this.members = new ArrayList<>();
+        this(false);
+    }
+    
+    /**
+     * Constructor to initialize the library
+     * @param concurrent true to allow the library to be shared between threads
+     */
+    public Library(boolean concurrent) {
+        this.concurrent = concurrent;
+        if (concurrent) {
+            this.books = new ConcurrentHashMap<>();
+            this.members = new ConcurrentLinkedMap<>();
+        } else {
+            this.books = new HashMap<>();
+            this.members = new LinkedHashMap<>();
+        }
+        this.bookLocks = new LockStripes();
+        this.memberLocks = new LockStripes();
+        this.out = System.out;
+        this.events = new ConsoleEventSink(System.out);
+        this.holds = new HoldQueues(clock.getAsLong());
+        this.sweptThrough = clock.getAsLong();
+    }
+    
+    /**
+     * Set where listings are printed, and print operation messages there too
+     * This replaces the event sink; call setEventSink() afterwards to send
+     * operation events somewhere else.
+     * @param out Stream for listings and messages
+     */
+    public void setOutput(PrintStream out) {
+        this.out = out;
+        this.events = new ConsoleEventSink(out);
+    }
+    
+    /**
+     * Set where operation events are published
+     * Listings from the display methods still go to the output stream.
+     * @param events Sink for operation events, EventSink.NONE for none
+     */
+    public void setEventSink(EventSink events) {
+        this.events = events;
+    }
+    
+    public EventSink getEventSink() {
+        return events;
+    }
+    
+    /**
+     * Start or stop recording operation counts and latencies
+     * @param metrics Metrics to record into, or null to stop measuring
+     */
+    public void setMetrics(LibraryMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    public LibraryMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Start or stop recording loans and returns for circulation reports
+     * Changes replayed by a LibraryStore are not recorded again.
+     * @param history History to record into, or null to stop recording
+     */
+    public void setHistory(CirculationHistory history) {
+        this.history = history;
+    }
+    
+    public CirculationHistory getHistory() {
+        return history;
+    }
+    
+    /**
+     * Start or stop feeding loans to a recommender
+     * Like the history, changes replayed by a LibraryStore are not counted again.
+     * @param recommender Recommender to feed, or null to stop
+     */
+    public void setRecommender(Recommender recommender) {
+        this.recommender = recommender;
+    }
+    
+    public Recommender getRecommender() {
+        return recommender;
+    }
+    
+    /**
+     * Attach a write-ahead log that records every successful change
+     * Records are appended while the operation's locks are held, so the
+     * log order matches the order changes were applied in.
+     * @param log Log to append to, or null to stop logging
+     */
+    public void setTransactionLog(TransactionLog log) {
+        this.log = log;
+    }
+    
+    /**
+     * Set the clock used for hold expiry
+     * Call before any hold is placed; the hold queues restart at the new time.
+     * @param clock Current time in milliseconds
+     */
+    void setClock(LongSupplier clock) {
+        this.clock = clock;
+        this.holds = new HoldQueues(clock.getAsLong());
+        this.sweptThrough = clock.getAsLong();
+    }
+    
+    /**
+     * Mark the library as being recovered from a LibraryStore
+     * While recovering, returns and added copies do not serve holds and
+     * holds do not expire; the replayed log records do that instead.
+     * @param recovering true while replaying
+     */
+    void setRecovering(boolean recovering) {
+        this.recovering = recovering;
+    }
+    
+    /**
+     * Attach a memory-mapped catalog of additional books
+     * Catalog books can be looked up, borrowed, returned and removed like any
+     * other book; books added afterwards are kept on the heap. Attach the
+     * catalog before opening a LibraryStore so replayed changes can find them.
+     * @param catalog Catalog to attach, or null to detach
+     */
+    public void attachCatalog(ColumnarCatalog catalog) {
+        ColumnarCatalog previous = this.catalog;
+        if (previous != null) {
+            stats.booksRemoved(previous.size(), previous.size(), previous.availableCount());
+        }
+        if (catalog != null) {
+            stats.booksAdded(catalog.size(), catalog.size(), catalog.availableCount());
+        }
+        this.catalog = catalog;
+    }
+    
+    /**
+     * Get the number of books in the catalog
+     * @return Number of books
+     */
+    public int getBookCount() {
+        ColumnarCatalog mapped = catalog;
+        return books.size() + (mapped == null ? 0 : mapped.size());
+    }
+    
+    /**
+     * Get the number of distinct authors the library's books share
+     * @return Authors interned, including those whose books were all removed
+     */
+    int getAuthorCount() {
+        return authors.size();
+    }
+    
+    /**
+     * Get the number of registered members
+     * @return Number of members
+     */
+    public int getMemberCount() {
+        return members.size();
+    }
+    
+    /**
+     * Check whether this library may be shared between threads
+     * @return true if the library was created in concurrent mode
+     */
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+    
+    /**
+     * Normalize an ISBN for use as an index key.
+     * Surrounding whitespace, hyphens and inner spaces are dropped and a
+     * trailing check character 'x' is upper-cased, so "0-19-852663-x" and
+     * "019852663X" refer to the same book.
+     * @param isbn ISBN as entered
+     * @return normalized key, or null if isbn is null
+     */
+    static String normalizeIsbn(String isbn) {
+        if (isbn == null) {
+            return null;
+        }
+        int clean = 0;
+        while (clean < isbn.length() && isbn.charAt(clean) != '-' && isbn.charAt(clean) != 'x'
+                && !Character.isWhitespace(isbn.charAt(clean))) {
+            clean++;
+        }
+        if (clean == isbn.length()) {
+            return isbn; // Already a key, so no copy
+        }
+        StringBuilder key = new StringBuilder(isbn.length()).append(isbn, 0, clean);
+        for (int i = clean; i < isbn.length(); i++) {
+            char c = isbn.charAt(i);
+            if (c == '-' || Character.isWhitespace(c)) {
+                continue;
+            }
+            key.append(c == 'x' ? 'X' : c);
+        }
+        return key.toString();
+    }
+    
+    /**
+     * Normalize a member ID for use as an index key
+     * @param memberId Member ID as entered
+     * @return normalized key, or null if memberId is null
+     */
+    static String normalizeMemberId(String memberId) {
+        return memberId == null ? null : memberId.trim();
     }
     
     // Book Management Methods
@@ -25,21 +311,30 @@ public class Library {
      * @param title Book title
      * @param author Book author
      * @param isbn Book ISBN
-     * @return true if book was added successfully
+     * @return OK if the book was added, or why not
+     */
+    public LibraryResult addBook(String title, String author, String isbn) {
+        return addBook(title, author, isbn, 1);
+    }
+    
+    /**
+     * Add a new book with several copies to the library
+     * @param title Book title
+     * @param author Book author
+     * @param isbn Book ISBN
+     * @param copies Number of copies
+     * @return OK if the book was added, or why not
      */
-    public boolean addBook(String title, String author, String isbn) {
+    public LibraryResult addBook(String title, String author, String isbn, int copies) {
+        long start = startTimer(LibraryMetrics.Operation.ADD_BOOK);
         // Validate input
-        if (title == null || title.trim().isEmpty()) {
-            System.out.println("Error: Book title cannot be empty!");
-            return false;
-        }
-        if (author == null || author.trim().isEmpty()) {
-            System.out.println("Error: Author name cannot be empty!");
-            return false;
+        String error = validateBook(title, author, isbn);
+        if (error == null) {
+            error = validateCopies(copies);
         }
-        if (isbn == null || isbn.trim().isEmpty()) {
-            System.out.println("Error: ISBN cannot be empty!");
-            return false;
+        if (error != null) {
+            return timed(LibraryMetrics.Operation.ADD_BOOK, start,
+                    publish(LibraryResult.INVALID_INPUT, isbn, null, "Error: " + error));
         }
         
         // Normalize inputs
@@ -48,36 +343,275 @@ public class Library {
         isbn = isbn.trim();
         
         // Check if book with same ISBN already exists
-        for (Book book : books) {
-            if (book.getIsbn() != null && book.getIsbn().equals(isbn)) {
-                System.out.println("Error: Book with ISBN " + isbn + " already exists!");
-                return false;
+        long lsn = insertBook(new PreparedBook(new Book(title, author, isbn, copies)));
+        if (lsn < 0) {
+            return timed(LibraryMetrics.Operation.ADD_BOOK, start, publish(LibraryResult.DUPLICATE_BOOK, isbn,
+                    null, "Error: Book with ISBN " + isbn + " already exists!"));
+        }
+        awaitDurable(lsn);
+        return timed(LibraryMetrics.Operation.ADD_BOOK, start, publish(LibraryResult.OK, isbn, null,
+                "Book added successfully: " + title + (copies > 1 ? " (" + copies + " copies)" : "")));
+    }
+    
+    /**
+     * Add more copies of a book that is already in the library
+     * @param isbn ISBN of the book
+     * @param count Number of copies to add
+     * @return OK if the copies were added, or why not
+     */
+    public LibraryResult addCopies(String isbn, int count) {
+        long start = startTimer(LibraryMetrics.Operation.ADD_COPIES);
+        String error = validateCopies(count);
+        if (error != null) {
+            return timed(LibraryMetrics.Operation.ADD_COPIES, start,
+                    publish(LibraryResult.INVALID_INPUT, isbn, null, "Error: " + error));
+        }
+        String key = normalizeIsbn(isbn);
+        String message;
+        LibraryResult result;
+        long lsn = 0;
+        Lock lock = bookLocks.forKey(key);
+        lock.lock();
+        try {
+            Book book = lookupBook(key);
+            if (book == null) {
+                result = LibraryResult.BOOK_NOT_FOUND;
+                message = "Error: Book with ISBN " + isbn + " not found!";
+            } else if (book.getCopyCount() > Integer.MAX_VALUE - count) {
+                result = LibraryResult.INVALID_INPUT;
+                message = "Error: Too many copies.";
+            } else {
+                try {
+                    beforeCopiesChange(book);
+                    book.addCopies(count);
+                    stats.booksAdded(0, count, count);
+                    result = LibraryResult.OK;
+                    lsn = logChange(TransactionLog.ADD_COPIES, key, Integer.toString(count));
+                    StringBuilder notes = new StringBuilder();
+                    lsn = Math.max(lsn, serveHolds(book, notes));
+                    bookIndex.updateAvailability(book);
+                    message = "Added " + count + " copies of '" + book.getTitle() + "'. Total copies: "
+                            + book.getCopyCount() + notes;
+                } catch (UnsupportedOperationException e) {
+                    result = LibraryResult.INVALID_INPUT;
+                    message = "Error: " + e.getMessage();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(lsn);
+        return timed(LibraryMetrics.Operation.ADD_COPIES, start, publish(result, isbn, null, message));
+    }
+    
+    /**
+     * Check a number of copies to add
+     * @param copies Number of copies
+     * @return Error message, or null if the number is valid
+     */
+    static String validateCopies(int copies) {
+        if (copies < 1) {
+            return "Number of copies must be at least 1!";
+        }
+        if (copies > MAX_COPIES) {
+            return "At most " + MAX_COPIES + " copies can be added at once!";
+        }
+        return null;
+    }
+    
+    /**
+     * Check the fields of a new book
+     * @param title Book title
+     * @param author Book author
+     * @param isbn Book ISBN
+     * @return Error message, or null if the book is valid
+     */
+    static String validateBook(String title, String author, String isbn) {
+        if (title == null || title.trim().isEmpty()) {
+            return "Book title cannot be empty!";
+        }
+        if (author == null || author.trim().isEmpty()) {
+            return "Author name cannot be empty!";
+        }
+        if (isbn == null || isbn.trim().isEmpty()) {
+            return "ISBN cannot be empty!";
+        }
+        if (title.length() > MAX_TEXT_LENGTH) {
+            return "Book title cannot be longer than " + MAX_TEXT_LENGTH + " characters!";
+        }
+        if (author.length() > MAX_TEXT_LENGTH) {
+            return "Author name cannot be longer than " + MAX_TEXT_LENGTH + " characters!";
+        }
+        if (isbn.length() > MAX_ID_LENGTH) {
+            return "ISBN cannot be longer than " + MAX_ID_LENGTH + " characters!";
+        }
+        // The dot separates the ISBN from the copy number in a barcode
+        if (isbn.indexOf('.') >= 0) {
+            return "ISBN cannot contain '.'!";
+        }
+        return null;
+    }
+    
+    /**
+     * Add books that were already validated, trimmed and prepared, without printing
+     * Used by bulk loading: each book still gets the duplicate check, but
+     * the batch waits for the transaction log only once.
+     * @param batch Books to add
+     * @return For each book, true if added or false if its ISBN already existed
+     */
+    boolean[] importBooks(List<PreparedBook> batch) {
+        boolean[] added = new boolean[batch.size()];
+        long lastLsn = 0;
+        for (int i = 0; i < added.length; i++) {
+            long lsn = insertBook(batch.get(i));
+            added[i] = lsn >= 0;
+            lastLsn = Math.max(lastLsn, lsn);
+        }
+        awaitDurable(lastLsn);
+        return added;
+    }
+    
+    /**
+     * Load the books and members of a catalog image into an empty library
+     * The image was checked as a whole when it was read, so books and
+     * members are not validated or checked for duplicates one by one, the
+     * indexes are installed whole, and nothing is logged or published.
+     * Loans and holds are left to the caller. Call before the library is shared.
+     * @param image Decoded catalog image
+     */
+    void restore(CatalogImage image) {
+        if (!books.isEmpty() || !members.isEmpty()) {
+            throw new IllegalStateException("Only an empty library can be restored from an image");
+        }
+        Book[] rows = image.getBooks();
+        String[] keys = new String[rows.length];
+        long copies = 0;
+        long available = 0;
+        for (int i = 0; i < rows.length; i++) {
+            Book book = rows[i];
+            book.shareAuthor(authors);
+            keys[i] = book.getIsbnKey();
+            books.put(keys[i], book);
+            book.setListingPosition(i + 1);
+            copies += book.getCopyCount();
+            available += book.getAvailableCopies();
+        }
+        synchronized (snapshotLock) {
+            snapshot = CatalogSnapshot.of(rows);
+        }
+        searchIndex.restore(keys, rows, image.getTerms(), image.getTermDocs(), image.getTermFreqs());
+        bookIndex.restore(rows, image.getTitleKeys(), image.getTitleOrder(), image.getAuthorKeys(),
+                image.getBookAuthors());
+        stats.booksAdded(rows.length, copies, available);
+        for (Member member : image.getMembers()) {
+            members.put(normalizeMemberId(member.getMemberId()), member);
+            stats.memberAdded();
+        }
+    }
+    
+    /**
+     * Put back a loan saved in a catalog image
+     * Skips the checks, messages, log record and event of borrowBook(): the
+     * image was consistent when it was written. Call while recovering,
+     * before the library is shared.
+     * @param isbn ISBN of the book
+     * @param memberId ID of the member
+     * @param copy Copy number lent
+     * @param dueAt Due time in milliseconds
+     * @param renewals Times the loan had been renewed
+     */
+    void restoreLoan(String isbn, String memberId, int copy, long dueAt, int renewals) {
+        Book book = lookupBook(normalizeIsbn(isbn));
+        String memberKey = normalizeMemberId(memberId);
+        Member member = members.get(memberKey);
+        Loan loan = book == null || member == null ? null : member.borrowCopy(book, copy);
+        if (loan == null) {
+            throw new IllegalStateException("Cannot restore loan of " + isbn + " to " + memberId);
+        }
+        bookIndex.updateAvailability(book);
+        startLoan(loan, memberKey, dueAt);
+        loan.setRenewals(renewals);
+    }
+    
+    /**
+     * Insert a validated book unless its ISBN is taken
+     * @param prepared Book with trimmed fields and its index keys
+     * @return Log sequence number (0 if not logged), or -1 for a duplicate
+     */
+    private long insertBook(PreparedBook prepared) {
+        Book book = prepared.book;
+        String key = book.getIsbnKey();
+        Lock lock = bookLocks.forKey(key);
+        lock.lock();
+        try {
+            if (lookupBook(key) != null) {
+                return -1;
+            }
+            book.shareAuthor(authors);
+            books.put(key, book);
+            synchronized (snapshotLock) {
+                CatalogSnapshot current = snapshot;
+                book.setListingPosition(current.nextPosition());
+                snapshot = current.plus(book);
+            }
+            searchIndex.add(key, book, prepared.terms);
+            bookIndex.add(book, prepared.titleKey, prepared.authorKey);
+            stats.booksAdded(1, book.getCopyCount(), book.getAvailableCopies());
+            if (book.getCopyCount() == 1) {
+                return logChange(TransactionLog.ADD_BOOK, book.getTitle(), book.getAuthor(), book.getIsbn());
             }
+            return logChange(TransactionLog.ADD_BOOK, book.getTitle(), book.getAuthor(), book.getIsbn(),
+                    Integer.toString(book.getCopyCount()));
+        } finally {
+            lock.unlock();
         }
-        Book newBook = new Book(title, author, isbn);
-        books.add(newBook);
-        System.out.println("Book added successfully: " + title);
-        return true;
     }
     
     /**
      * Remove a book from the library
      * @param isbn ISBN of the book to remove
-     * @return true if book was removed successfully
+     * @return OK if the book was removed, or why not
      */
-    public boolean removeBook(String isbn) {
-        Book bookToRemove = findBookByIsbn(isbn);
-        if (bookToRemove != null) {
-            if (!bookToRemove.isAvailable()) {
-                System.out.println("Error: Cannot remove book. It is currently borrowed.");
-                return false;
+    public LibraryResult removeBook(String isbn) {
+        long start = startTimer(LibraryMetrics.Operation.REMOVE_BOOK);
+        String key = normalizeIsbn(isbn);
+        String message;
+        LibraryResult result;
+        long lsn = 0;
+        Lock lock = bookLocks.forKey(key);
+        lock.lock();
+        try {
+            Book bookToRemove = lookupBook(key);
+            if (bookToRemove == null) {
+                result = LibraryResult.BOOK_NOT_FOUND;
+                message = "Error: Book with ISBN " + isbn + " not found!";
+            } else if (bookToRemove.getAvailableCopies() < bookToRemove.getCopyCount()) {
+                result = LibraryResult.BOOK_BORROWED;
+                message = "Error: Cannot remove book. It is currently borrowed.";
+            } else {
+                if (books.remove(key) == null) {
+                    catalog.remove(key);
+                } else {
+                    synchronized (snapshotLock) {
+                        snapshot = snapshot.minus(bookToRemove.getListingPosition());
+                        bookToRemove.setListingPosition(0);
+                    }
+                }
+                searchIndex.remove(key);
+                bookIndex.remove(bookToRemove);
+                beforeHoldsChange(key);
+                // Only lapsed holds can remain while every copy is on the shelf
+                holds.removeAll(key);
+                stats.booksRemoved(1, bookToRemove.getCopyCount(), bookToRemove.getCopyCount());
+                result = LibraryResult.OK;
+                lsn = logChange(TransactionLog.REMOVE_BOOK, key);
+                message = "Book removed successfully: " + bookToRemove.getTitle();
             }
-            books.remove(bookToRemove);
-            System.out.println("Book removed successfully: " + bookToRemove.getTitle());
-            return true;
+        } finally {
+            lock.unlock();
         }
-        System.out.println("Error: Book with ISBN " + isbn + " not found!");
-        return false;
+        awaitDurable(lsn);
+        return timed(LibraryMetrics.Operation.REMOVE_BOOK, start, publish(result, isbn, null, message));
     }
     
     /**
@@ -86,50 +620,207 @@ public class Library {
      * @return Book object if found, null otherwise
      */
     public Book findBookByIsbn(String isbn) {
-        for (Book book : books) {
-            if (book.getIsbn().equals(isbn)) {
-                return book;
+        long start = startTimer(LibraryMetrics.Operation.FIND_BOOK);
+        Book book = lookupBook(normalizeIsbn(isbn));
+        record(LibraryMetrics.Operation.FIND_BOOK, start, book != null);
+        return book;
+    }
+    
+    /**
+     * Search book titles and authors
+     * Words match exactly, by prefix, or with one typo; results are ranked
+     * by relevance. Books in an attached ColumnarCatalog are not indexed.
+     * @param query Words to search for
+     * @param limit Maximum number of results
+     * @return Matching books, best match first
+     */
+    public List<Book> searchBooks(String query, int limit) {
+        long start = startTimer(LibraryMetrics.Operation.SEARCH_BOOKS);
+        List<Book> found = searchIndex.search(query, limit);
+        record(LibraryMetrics.Operation.SEARCH_BOOKS, start, !found.isEmpty());
+        return found;
+    }
+    
+    /**
+     * Find the books by an author
+     * Served from a sorted author index; with availableOnly the index's
+     * availability bitmap filters the books without a scan. Books in an
+     * attached ColumnarCatalog are not indexed.
+     * @param author Author name; case, accents and punctuation are ignored
+     * @param availableOnly true to find only books with a copy on the shelf
+     * @param limit Maximum number of results
+     * @return Matching books
+     */
+    public List<Book> findBooksByAuthor(String author, boolean availableOnly, int limit) {
+        return bookIndex.byAuthor(author, availableOnly, limit);
+    }
+    
+    /**
+     * Find the books whose title starts with a prefix
+     * Served from a sorted title index, like findBooksByAuthor().
+     * @param prefix Start of the title, e.g. "The"; case, accents and punctuation are ignored
+     * @param availableOnly true to find only books with a copy on the shelf
+     * @param limit Maximum number of results
+     * @return Matching books, by title
+     */
+    public List<Book> findBooksByTitlePrefix(String prefix, boolean availableOnly, int limit) {
+        return bookIndex.byTitlePrefix(prefix, availableOnly, limit);
+    }
+    
+    /**
+     * Find the books whose title sorts between two bounds
+     * Served from a sorted title index, like findBooksByAuthor().
+     * @param from Lowest title, inclusive
+     * @param to Highest title, exclusive
+     * @param availableOnly true to find only books with a copy on the shelf
+     * @param limit Maximum number of results
+     * @return Matching books, by title
+     */
+    public List<Book> findBooksByTitleRange(String from, String to, boolean availableOnly, int limit) {
+        return bookIndex.byTitleRange(from, to, availableOnly, limit);
+    }
+    
+    /**
+     * Find the books most often borrowed by members who borrowed a book
+     * Read from the recommender's precomputed lists, which follow new loans
+     * a few milliseconds behind; books since removed are left out.
+     * @param isbn ISBN of the book
+     * @param limit Maximum number of books
+     * @return Recommended books, best first; empty without a recommender
+     */
+    public List<Book> recommend(String isbn, int limit) {
+        List<Book> found = new ArrayList<>();
+        Recommender model = recommender;
+        Book book = model == null ? null : lookupBook(normalizeIsbn(isbn));
+        if (book == null) {
+            return found;
+        }
+        for (String other : model.recommend(book.getIsbn(), model.getMaxResults())) {
+            Book recommended = lookupBook(normalizeIsbn(other));
+            if (recommended != null && found.size() < limit) {
+                found.add(recommended);
             }
         }
-        return null;
+        return found;
     }
     
     /**
      * Display all books in the library
      */
     public void displayAllBooks() {
-        if (books.isEmpty()) {
-            System.out.println("No books in the library.");
+        if (getBookCount() == 0) {
+            out.println("No books in the library.");
             return;
         }
-        System.out.println("\n=== All Books in Library ===");
-        for (int i = 0; i < books.size(); i++) {
-            System.out.println((i + 1) + ". " + books.get(i));
-        }
-        System.out.println("Total books: " + books.size() + "\n");
+        out.println("\n=== All Books in Library ===");
+        int count = writeBooks(listing(), false, 0, Integer.MAX_VALUE);
+        out.println("Total books: " + count + "\n");
     }
     
     /**
      * Display only available books
      */
     public void displayAvailableBooks() {
-        List<Book> availableBooks = new ArrayList<>();
-        for (Book book : books) {
-            if (book.isAvailable()) {
-                availableBooks.add(book);
-            }
-        }
-        
-        if (availableBooks.isEmpty()) {
-            System.out.println("No available books in the library.");
+        if (stats.snapshot().getAvailableBooks() == 0) {
+            out.println("No available books in the library.");
             return;
         }
         
-        System.out.println("\n=== Available Books ===");
-        for (int i = 0; i < availableBooks.size(); i++) {
-            System.out.println((i + 1) + ". " + availableBooks.get(i));
+        out.println("\n=== Available Books ===");
+        int count = writeBooks(listing(), true, 0, Integer.MAX_VALUE);
+        out.println("Total available: " + count + "\n");
+    }
+    
+    /**
+     * Write one page of books, skipping the rows before it
+     * Rows are numbered from offset + 1 when the writer numbers rows.
+     * Skipping costs O(offset); use writeBooksAfter() to walk a long list.
+     * @param writer Destination; flushed before returning
+     * @param availableOnly true to list only books with a copy on the shelf
+     * @param offset Number of matching books to skip
+     * @param limit Most books to write
+     * @return Number of books written
+     */
+    public int writeBooks(ListingWriter writer, boolean availableOnly, long offset, int limit) {
+        int written = 0;
+        long skipped = 0;
+        for (Book book : allBooks()) {
+            if (written >= limit) {
+                break;
+            }
+            if (availableOnly && !book.isAvailable()) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            writer.writeBook(book);
+            written++;
+        }
+        writer.flush();
+        return written;
+    }
+    
+    /**
+     * Write the page of books that follows a cursor
+     * The cursor records where the previous page stopped, so each page
+     * costs O(log n + limit) however deep into the list it is. Books added
+     * or removed between pages do not shift later pages. Each page is read
+     * from one catalog snapshot without taking locks, so it never sees a
+     * book half added or removed; availability is read live.
+     * @param writer Destination; flushed before returning
+     * @param availableOnly true to list only books with a copy on the shelf
+     * @param cursor Cursor returned for the previous page, or null for the first page
+     * @param limit Most books to write
+     * @return Cursor for the next page, or null if there are no more books
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public String writeBooksAfter(ListingWriter writer, boolean availableOnly, String cursor, int limit) {
+        long heapAfter = 0;
+        int catalogRow = -1;
+        if (cursor != null && !cursor.isEmpty()) {
+            long position = cursorPosition(cursor);
+            if (cursor.charAt(0) == 'c') {
+                catalogRow = (int) Math.min(position, Integer.MAX_VALUE);
+            } else {
+                heapAfter = position;
+            }
+        }
+        String next = null;
+        int written = 0;
+        if (catalogRow < 0) {
+            CatalogSnapshot.Rows rows = snapshot.rows(heapAfter);
+            long position = heapAfter;
+            while (next == null && rows.next()) {
+                if (written >= limit) {
+                    next = "h" + position;
+                    break;
+                }
+                position = rows.position();
+                Book book = rows.book();
+                if (!availableOnly || book.isAvailable()) {
+                    writer.writeBook(book);
+                    written++;
+                }
+            }
+            catalogRow = 0;
         }
-        System.out.println("Total available: " + availableBooks.size() + "\n");
+        ColumnarCatalog mapped = catalog;
+        if (next == null && mapped != null) {
+            for (Book book : mapped.books(catalogRow)) {
+                if (written >= limit) {
+                    next = "c" + mapped.rowOf(book);
+                    break;
+                }
+                if (!availableOnly || book.isAvailable()) {
+                    writer.writeBook(book);
+                    written++;
+                }
+            }
+        }
+        writer.flush();
+        return next;
     }
     
     // Member Management Methods
@@ -138,40 +829,129 @@ public class Library {
      * Add a new member to the library
      * @param name Member's name
      * @param memberId Unique member ID
-     * @return true if member was added successfully
+     * @return OK if the member was added, or why not
      */
-    public boolean addMember(String name, String memberId) {
+    public LibraryResult addMember(String name, String memberId) {
+        long start = startTimer(LibraryMetrics.Operation.ADD_MEMBER);
+        // Replayed members were checked when they were added, possibly under older rules
+        String error = recovering ? null : validateMember(name, memberId);
+        if (error != null) {
+            return timed(LibraryMetrics.Operation.ADD_MEMBER, start,
+                    publish(LibraryResult.INVALID_INPUT, null, memberId, "Error: " + error));
+        }
         // Check if member with same ID already exists
-        for (Member member : members) {
-            if (member.getMemberId().equals(memberId)) {
-                System.out.println("Error: Member with ID " + memberId + " already exists!");
-                return false;
+        long lsn = insertMember(new Member(name, memberId));
+        if (lsn < 0) {
+            return timed(LibraryMetrics.Operation.ADD_MEMBER, start, publish(LibraryResult.DUPLICATE_MEMBER, null,
+                    memberId, "Error: Member with ID " + memberId + " already exists!"));
+        }
+        awaitDurable(lsn);
+        return timed(LibraryMetrics.Operation.ADD_MEMBER, start,
+                publish(LibraryResult.OK, null, memberId, "Member added successfully: " + name));
+    }
+    
+    /**
+     * Check the fields of a new member
+     * @param name Member's name
+     * @param memberId Member ID
+     * @return Error message, or null if the member is valid
+     */
+    static String validateMember(String name, String memberId) {
+        if (name == null || name.trim().isEmpty()) {
+            return "Member name cannot be empty!";
+        }
+        if (memberId == null || memberId.trim().isEmpty()) {
+            return "Member ID cannot be empty!";
+        }
+        if (name.length() > MAX_TEXT_LENGTH) {
+            return "Member name cannot be longer than " + MAX_TEXT_LENGTH + " characters!";
+        }
+        if (memberId.length() > MAX_ID_LENGTH) {
+            return "Member ID cannot be longer than " + MAX_ID_LENGTH + " characters!";
+        }
+        return null;
+    }
+    
+    /**
+     * Add members without printing
+     * @param batch Members to add
+     * @return For each member, true if added or false if its ID already existed
+     */
+    boolean[] importMembers(List<Member> batch) {
+        boolean[] added = new boolean[batch.size()];
+        long lastLsn = 0;
+        for (int i = 0; i < added.length; i++) {
+            long lsn = insertMember(batch.get(i));
+            added[i] = lsn >= 0;
+            lastLsn = Math.max(lastLsn, lsn);
+        }
+        awaitDurable(lastLsn);
+        return added;
+    }
+    
+    /**
+     * Insert a member unless the ID is taken
+     * @param member New member
+     * @return Log sequence number (0 if not logged), or -1 for a duplicate
+     */
+    private long insertMember(Member member) {
+        String key = normalizeMemberId(member.getMemberId());
+        Lock lock = memberLocks.forKey(key);
+        lock.lock();
+        try {
+            if (members.containsKey(key)) {
+                return -1;
+            }
+            members.put(key, member);
+            Cut current = cut;
+            if (current != null) {
+                // Not part of the state being copied
+                current.members.put(member, Cut.ADDED);
             }
+            stats.memberAdded();
+            return logChange(TransactionLog.ADD_MEMBER, member.getName(), member.getMemberId());
+        } finally {
+            lock.unlock();
         }
-        Member newMember = new Member(name, memberId);
-        members.add(newMember);
-        System.out.println("Member added successfully: " + name);
-        return true;
     }
     
     /**
      * Remove a member from the library
      * @param memberId ID of the member to remove
-     * @return true if member was removed successfully
+     * @return OK if the member was removed, or why not
      */
-    public boolean removeMember(String memberId) {
-        Member memberToRemove = findMemberById(memberId);
-        if (memberToRemove != null) {
-            if (!memberToRemove.getBorrowedBooks().isEmpty()) {
-                System.out.println("Error: Cannot remove member. They have borrowed books.");
-                return false;
+    public LibraryResult removeMember(String memberId) {
+        long start = startTimer(LibraryMetrics.Operation.REMOVE_MEMBER);
+        String key = normalizeMemberId(memberId);
+        String message;
+        LibraryResult result;
+        long lsn = 0;
+        Lock lock = memberLocks.forKey(key);
+        lock.lock();
+        try {
+            Member memberToRemove = members.get(key);
+            if (memberToRemove == null) {
+                result = LibraryResult.MEMBER_NOT_FOUND;
+                message = "Error: Member with ID " + memberId + " not found!";
+            } else if (!memberToRemove.getLoans().isEmpty()) {
+                result = LibraryResult.MEMBER_HAS_LOANS;
+                message = "Error: Cannot remove member. They have borrowed books.";
+            } else if (holds.memberHoldCount(key) > 0) {
+                result = LibraryResult.MEMBER_HAS_HOLDS;
+                message = "Error: Cannot remove member. They have holds waiting.";
+            } else {
+                beforeMemberChange(memberToRemove);
+                members.remove(key);
+                stats.memberRemoved(key);
+                result = LibraryResult.OK;
+                lsn = logChange(TransactionLog.REMOVE_MEMBER, key);
+                message = "Member removed successfully: " + memberToRemove.getName();
             }
-            members.remove(memberToRemove);
-            System.out.println("Member removed successfully: " + memberToRemove.getName());
-            return true;
+        } finally {
+            lock.unlock();
         }
-        System.out.println("Error: Member with ID " + memberId + " not found!");
-        return false;
+        awaitDurable(lsn);
+        return timed(LibraryMetrics.Operation.REMOVE_MEMBER, start, publish(result, null, memberId, message));
     }
     
     /**
@@ -180,12 +960,10 @@ public class Library {
      * @return Member object if found, null otherwise
      */
     public Member findMemberById(String memberId) {
-        for (Member member : members) {
-            if (member.getMemberId().equals(memberId)) {
-                return member;
-            }
-        }
-        return null;
+        long start = startTimer(LibraryMetrics.Operation.FIND_MEMBER);
+        Member member = members.get(normalizeMemberId(memberId));
+        record(LibraryMetrics.Operation.FIND_MEMBER, start, member != null);
+        return member;
     }
     
     /**
@@ -193,99 +971,1560 @@ public class Library {
      */
     public void displayAllMembers() {
         if (members.isEmpty()) {
-            System.out.println("No members registered in the library.");
+            out.println("No members registered in the library.");
             return;
         }
-        System.out.println("\n=== All Library Members ===");
-        for (int i = 0; i < members.size(); i++) {
-            System.out.println((i + 1) + ". " + members.get(i));
-        }
-        System.out.println("Total members: " + members.size() + "\n");
+        out.println("\n=== All Library Members ===");
+        writeMembers(listing(), 0, Integer.MAX_VALUE);
+        out.println("Total members: " + members.size() + "\n");
     }
     
-    // Book Borrowing/Returning Methods
-    
     /**
-     * Borrow a book to a member
-     * @param isbn ISBN of the book to borrow
-     * @param memberId ID of the member borrowing the book
-     * @return true if book was borrowed successfully
+     * Write one page of members with their loans, skipping the rows before it
+     * Rows are numbered from offset + 1 when the writer numbers rows.
+     * Skipping costs O(offset); use writeMembersAfter() to walk a long list.
+     * @param writer Destination; flushed before returning
+     * @param offset Number of members to skip
+     * @param limit Most members to write
+     * @return Number of members written
      */
-    public boolean borrowBook(String isbn, String memberId) {
-        Book book = findBookByIsbn(isbn);
-        Member member = findMemberById(memberId);
-        
-        if (book == null) {
-            System.out.println("Error: Book with ISBN " + isbn + " not found!");
-            return false;
-        }
-        
-        if (member == null) {
-            System.out.println("Error: Member with ID " + memberId + " not found!");
-            return false;
-        }
-        
-        if (!book.isAvailable()) {
-            System.out.println("Error: Book is not available. It is currently borrowed.");
-            return false;
+    public int writeMembers(ListingWriter writer, long offset, int limit) {
+        int written = 0;
+        long skipped = 0;
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            if (written >= limit) {
+                break;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            writeMember(writer, entry.getKey(), entry.getValue());
+            written++;
         }
-        
-        member.borrowBook(book);
-        System.out.println("Book '" + book.getTitle() + "' borrowed successfully by " + member.getName());
-        return true;
+        writer.flush();
+        return written;
     }
     
     /**
-     * Return a book from a member
-     * @param isbn ISBN of the book to return
-     * @param memberId ID of the member returning the book
-     * @return true if book was returned successfully
+     * Write the page of members that follows a cursor
+     * Each page costs O(limit) in concurrent mode, where members added or
+     * removed between pages do not shift later pages. In single-threaded
+     * mode the cursor counts members, so a removal shifts the next page by one.
+     * @param writer Destination; flushed before returning
+     * @param cursor Cursor returned for the previous page, or null for the first page
+     * @param limit Most members to write
+     * @return Cursor for the next page, or null if there are no more members
+     * @throws IllegalArgumentException if the cursor is malformed
      */
-    public boolean returnBook(String isbn, String memberId) {
-        Book book = findBookByIsbn(isbn);
-        Member member = findMemberById(memberId);
-        
-        if (book == null) {
-            System.out.println("Error: Book with ISBN " + isbn + " not found!");
-            return false;
+    public String writeMembersAfter(ListingWriter writer, String cursor, int limit) {
+        long position = 0;
+        if (cursor != null && !cursor.isEmpty()) {
+            if (cursor.charAt(0) != 'h') {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            position = cursorPosition(cursor);
         }
-        
-        if (member == null) {
-            System.out.println("Error: Member with ID " + memberId + " not found!");
-            return false;
+        String next = null;
+        int written = 0;
+        Iterator<Map.Entry<String, Member>> entries = entriesAfter(members, position);
+        while (entries.hasNext()) {
+            if (written >= limit) {
+                next = "h" + position;
+                break;
+            }
+            Map.Entry<String, Member> entry = entries.next();
+            position = concurrent ? ConcurrentLinkedMap.position(entry) : position + 1;
+            writeMember(writer, entry.getKey(), entry.getValue());
+            written++;
         }
-        
-        if (member.returnBook(book)) {
-            System.out.println("Book '" + book.getTitle() + "' returned successfully by " + member.getName());
-            return true;
-        } else {
-            System.out.println("Error: Member " + member.getName() + " has not borrowed this book.");
-            return false;
+        writer.flush();
+        return next;
+    }
+    
+    // The loans may be changing under another desk's borrow. The row is
+    // copied into the writer's buffer under the lock; the buffer reaches
+    // the stream only when it fills.
+    private void writeMember(ListingWriter writer, String memberKey, Member member) {
+        Lock lock = memberLocks.forKey(memberKey);
+        lock.lock();
+        try {
+            writer.writeMember(member);
+        } finally {
+            lock.unlock();
         }
     }
     
     /**
-     * Get statistics about the library
+     * Create a numbered text writer over the output stream
      */
-    public void displayStatistics() {
-        int totalBooks = books.size();
-        int availableBooks = 0;
-        int borrowedBooks = 0;
-        
-        for (Book book : books) {
-            if (book.isAvailable()) {
-                availableBooks++;
-            } else {
-                borrowedBooks++;
-            }
+    private ListingWriter listing() {
+        // Same charset as the PrintStream's own println
+        ListingWriter writer = new ListingWriter(new OutputStreamWriter(out), ListingWriter.Format.TEXT);
+        writer.setNumbering(1);
+        return writer;
+    }
+    
+    /**
+     * Iterate a primary-key index from a cursor position
+     * Concurrent indexes seek straight to the position; the single-threaded
+     * LinkedHashMap has no positions, so the entries before it are skipped.
+     */
+    @SuppressWarnings("unchecked")
+    private <V> Iterator<Map.Entry<String, V>> entriesAfter(Map<String, V> index, long position) {
+        if (index instanceof ConcurrentLinkedMap) {
+            return ((ConcurrentLinkedMap<String, V>) index).entriesAfter(position);
+        }
+        Iterator<Map.Entry<String, V>> entries = index.entrySet().iterator();
+        for (long i = 0; i < position && entries.hasNext(); i++) {
+            entries.next();
+        }
+        return entries;
+    }
+    
+    /**
+     * Parse the position out of a listing cursor: "h" or "c" and a number
+     */
+    private static long cursorPosition(String cursor) {
+        char part = cursor.charAt(0);
+        if ((part == 'h' || part == 'c') && cursor.length() > 1 && cursor.length() <= 19) {
+            long position = 0;
+            for (int i = 1; i < cursor.length(); i++) {
+                char c = cursor.charAt(i);
+                if (c < '0' || c > '9') {
+                    position = -1;
+                    break;
+                }
+                position = position * 10 + (c - '0');
+            }
+            if (position >= 0) {
+                return position;
+            }
+        }
+        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+    }
+    
+    // Book Borrowing/Returning Methods
+    
+    /**
+     * Borrow a book to a member
+     * Any available copy is lent; a member can hold one copy of each book.
+     * @param isbn ISBN of the book to borrow
+     * @param memberId ID of the member borrowing the book
+     * @return OK if the book was borrowed, or why not
+     */
+    public LibraryResult borrowBook(String isbn, String memberId) {
+        return borrowBook(isbn, memberId, 0);
+    }
+    
+    /**
+     * Borrow a specific copy of a book to a member
+     * @param barcode Copy barcode, [ISBN].[copy number]
+     * @param memberId ID of the member borrowing the copy
+     * @return OK if the copy was borrowed, or why not
+     */
+    public LibraryResult borrowCopy(String barcode, String memberId) {
+        long start = startTimer(LibraryMetrics.Operation.BORROW_BOOK);
+        int dot = barcode == null ? -1 : barcode.lastIndexOf('.');
+        int copy = 0;
+        if (dot > 0) {
+            try {
+                copy = Integer.parseInt(barcode.substring(dot + 1).trim());
+            } catch (NumberFormatException e) {
+                copy = 0;
+            }
+        }
+        if (copy < 1) {
+            return timed(LibraryMetrics.Operation.BORROW_BOOK, start, publish(LibraryResult.INVALID_INPUT, barcode,
+                    memberId, "Error: Invalid copy barcode " + barcode));
+        }
+        return borrowBook(barcode.substring(0, dot), memberId, copy);
+    }
+    
+    /**
+     * Borrow a book, optionally a specific copy
+     * @param isbn ISBN of the book to borrow
+     * @param memberId ID of the member borrowing the book
+     * @param copy Copy number, or 0 for any available copy
+     * @return OK if the book was borrowed, or why not
+     */
+    LibraryResult borrowBook(String isbn, String memberId, int copy) {
+        return borrowBook(isbn, memberId, copy, 0);
+    }
+    
+    /**
+     * Borrow a book with a given due time
+     * @param isbn ISBN of the book to borrow
+     * @param memberId ID of the member borrowing the book
+     * @param copy Copy number, or 0 for any available copy
+     * @param dueAt Due time in milliseconds, or 0 for one loan period from now
+     * @return OK if the book was borrowed, or why not
+     */
+    LibraryResult borrowBook(String isbn, String memberId, int copy, long dueAt) {
+        long start = startTimer(LibraryMetrics.Operation.BORROW_BOOK);
+        Outcome outcome = checkOut(isbn, memberId, copy, dueAt);
+        awaitDurable(outcome.lsn);
+        if (outcome.result.isOk()) {
+            startCirculationTimer();
+        }
+        return timed(LibraryMetrics.Operation.BORROW_BOOK, start,
+                publish(outcome.result, isbn, memberId, outcome.message));
+    }
+    
+    /**
+     * Lend a book under its book and member locks
+     * Leaves waiting for the log and publishing to the caller.
+     */
+    private Outcome checkOut(String isbn, String memberId, int copy, long dueAt) {
+        String bookKey = normalizeIsbn(isbn);
+        String memberKey = normalizeMemberId(memberId);
+        String message;
+        LibraryResult result;
+        long lsn = 0;
+        
+        // Availability check and checkout must happen as one step
+        Lock bookLock = bookLocks.forKey(bookKey);
+        Lock memberLock = memberLocks.forKey(memberKey);
+        bookLock.lock();
+        memberLock.lock();
+        try {
+            Book book = lookupBook(bookKey);
+            Member member = members.get(memberKey);
+            beforeMemberChange(member);
+            Loan loan = null;
+            if (book == null) {
+                result = LibraryResult.BOOK_NOT_FOUND;
+                message = "Error: Book with ISBN " + isbn + " not found!";
+            } else if (member == null) {
+                result = LibraryResult.MEMBER_NOT_FOUND;
+                message = "Error: Member with ID " + memberId + " not found!";
+            } else if (member.getLoan(book) != null) {
+                result = LibraryResult.ALREADY_BORROWED;
+                message = "Error: Member " + member.getName() + " has already borrowed this book.";
+            } else if (atLoanLimit(member)) {
+                result = LibraryResult.LOAN_LIMIT_REACHED;
+                message = "Error: Member " + member.getName() + " has reached the loan limit ("
+                        + loanLimit(member) + ").";
+            } else if (copy > book.getCopyCount()) {
+                result = LibraryResult.COPY_NOT_FOUND;
+                message = "Error: Copy " + book.getBarcode(copy) + " not found!";
+            } else if ((loan = copy > 0 ? member.borrowCopy(book, copy) : member.borrowBook(book)) == null) {
+                result = LibraryResult.NOT_AVAILABLE;
+                if (copy > 0) {
+                    message = "Error: Copy " + book.getBarcode(copy) + " is currently borrowed.";
+                } else if (book.getCopyCount() > 1) {
+                    message = "Error: Book is not available. All " + book.getCopyCount()
+                            + " copies are currently borrowed.";
+                } else {
+                    message = "Error: Book is not available. It is currently borrowed.";
+                }
+            } else {
+                bookIndex.updateAvailability(book);
+                startLoan(loan, memberKey, dueAt);
+                result = LibraryResult.OK;
+                if (logging()) {
+                    lsn = logChange(TransactionLog.BORROW, bookKey, memberKey, Integer.toString(loan.getCopy()),
+                            Long.toString(loan.getDueAt()));
+                }
+                // Build the message only if an event will carry it
+                message = !events.isEnabled() ? null : "Book '" + book.getTitle() + "' borrowed successfully by "
+                        + member.getName() + (book.getCopyCount() > 1 ? " (copy " + loan.getBarcode() + ")" : "")
+                        + ". Due back " + formatDate(loan.getDueAt());
+            }
+        } finally {
+            memberLock.unlock();
+            bookLock.unlock();
+        }
+        return new Outcome(result, message, lsn);
+    }
+    
+    /**
+     * Return a book from a member
+     * @param isbn ISBN of the book to return
+     * @param memberId ID of the member returning the book
+     * @return OK if the book was returned, or why not
+     */
+    public LibraryResult returnBook(String isbn, String memberId) {
+        return returnBook(isbn, memberId, -1);
+    }
+    
+    /**
+     * Return a book, charging a given fine
+     * @param isbn ISBN of the book to return
+     * @param memberId ID of the member returning the book
+     * @param fine Fine in cents, or -1 to charge for the days overdue now
+     * @return OK if the book was returned, or why not
+     */
+    LibraryResult returnBook(String isbn, String memberId, long fine) {
+        long start = startTimer(LibraryMetrics.Operation.RETURN_BOOK);
+        Outcome outcome = checkIn(isbn, memberId, fine);
+        awaitDurable(outcome.lsn);
+        return timed(LibraryMetrics.Operation.RETURN_BOOK, start,
+                publish(outcome.result, isbn, memberId, outcome.message));
+    }
+    
+    /**
+     * Take a book back and serve its holds under its book lock
+     * Leaves waiting for the log and publishing to the caller.
+     */
+    private Outcome checkIn(String isbn, String memberId, long fine) {
+        String bookKey = normalizeIsbn(isbn);
+        String memberKey = normalizeMemberId(memberId);
+        String message;
+        LibraryResult result;
+        long lsn = 0;
+        
+        Lock bookLock = bookLocks.forKey(bookKey);
+        Lock memberLock = memberLocks.forKey(memberKey);
+        bookLock.lock();
+        try {
+            Book book = lookupBook(bookKey);
+            memberLock.lock();
+            try {
+                Member member = members.get(memberKey);
+                Loan loan = member == null || book == null ? null : member.getLoan(book);
+                if (book == null) {
+                    result = LibraryResult.BOOK_NOT_FOUND;
+                    message = "Error: Book with ISBN " + isbn + " not found!";
+                } else if (member == null) {
+                    result = LibraryResult.MEMBER_NOT_FOUND;
+                    message = "Error: Member with ID " + memberId + " not found!";
+                } else if (loan != null) {
+                    long now = clock.getAsLong();
+                    if (fine < 0) {
+                        fine = fineFor(loan, now);
+                    }
+                    dueDates.remove(loan, loan.getDueAt());
+                    beforeMemberChange(member);
+                    member.returnBook(book);
+                    member.chargeFine(fine);
+                    CirculationHistory circulation = history;
+                    if (circulation != null && !recovering) {
+                        circulation.recordReturn(book.getIsbn(), book.getTitle(), member.getMemberId(), now);
+                    }
+                    stats.loanEnded(memberKey);
+                    result = LibraryResult.OK;
+                    if (logging()) {
+                        lsn = logChange(TransactionLog.RETURN, bookKey, memberKey, Long.toString(fine));
+                    }
+                    message = !events.isEnabled() ? null
+                            : "Book '" + book.getTitle() + "' returned successfully by " + member.getName();
+                    if (message != null && fine > 0) {
+                        message += ". " + formatDays(loan.getDaysOverdue(now)) + " overdue, fine charged: "
+                                + formatMoney(fine);
+                    }
+                } else {
+                    result = LibraryResult.NOT_BORROWED;
+                    message = "Error: Member " + member.getName() + " has not borrowed this book.";
+                }
+            } finally {
+                memberLock.unlock();
+            }
+            // The returned copy goes straight to the next member waiting for it.
+            // The returning member's lock is released first: at most one member
+            // stripe is ever held, so two returns cannot deadlock on each other.
+            if (result.isOk()) {
+                StringBuilder notes = new StringBuilder();
+                lsn = Math.max(lsn, serveHolds(book, notes));
+                bookIndex.updateAvailability(book);
+                if (message != null) {
+                    message += notes;
+                }
+            }
+        } finally {
+            bookLock.unlock();
+        }
+        return new Outcome(result, message, lsn);
+    }
+    
+    /**
+     * Borrow and return a batch of books in one pass
+     * The requests are grouped by the lock stripe of their book, and each
+     * group runs with that stripe held from its first request to its last,
+     * in batch order within the group. The log is synced once for the whole
+     * batch and only then are the results published, so a kiosk or book drop
+     * waits for the disk once per batch instead of once per book. Borrows
+     * lend any available copy with the normal loan period, and returns
+     * charge the fine for the days overdue, as borrowBook() and returnBook() do.
+     * @param batch Borrows and returns to apply
+     * @return Result of each request, in batch order
+     */
+    public List<LibraryResult> circulate(List<CirculationDesk.Request> batch) {
+        int count = batch.size();
+        long[] starts = new long[count];
+        int[] stripes = new int[count];
+        // Counting sort of the requests by stripe keeps batch order within a stripe
+        int[] groupStarts = new int[bookLocks.size() + 1];
+        for (int i = 0; i < count; i++) {
+            CirculationDesk.Request request = batch.get(i);
+            starts[i] = startTimer(operationOf(request));
+            stripes[i] = bookLocks.indexOf(normalizeIsbn(request.getIsbn()));
+            groupStarts[stripes[i] + 1]++;
+        }
+        for (int stripe = 0; stripe < bookLocks.size(); stripe++) {
+            groupStarts[stripe + 1] += groupStarts[stripe];
+        }
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[groupStarts[stripes[i]]++] = i;
+        }
+        
+        Outcome[] outcomes = new Outcome[count];
+        long lsn = 0;
+        for (int next = 0; next < count;) {
+            int stripe = stripes[order[next]];
+            // Each request takes the stripe again, which only counts up the hold
+            Lock bookLock = bookLocks.get(stripe);
+            bookLock.lock();
+            try {
+                for (; next < count && stripes[order[next]] == stripe; next++) {
+                    CirculationDesk.Request request = batch.get(order[next]);
+                    Outcome outcome = request.isReturn()
+                            ? checkIn(request.getIsbn(), request.getMemberId(), -1)
+                            : checkOut(request.getIsbn(), request.getMemberId(), 0, 0);
+                    outcomes[order[next]] = outcome;
+                    lsn = Math.max(lsn, outcome.lsn);
+                }
+            } finally {
+                bookLock.unlock();
+            }
+        }
+        awaitDurable(lsn);
+        
+        LibraryResult[] results = new LibraryResult[count];
+        for (int i = 0; i < count; i++) {
+            CirculationDesk.Request request = batch.get(i);
+            if (!request.isReturn() && outcomes[i].result.isOk()) {
+                startCirculationTimer();
+            }
+            results[i] = timed(operationOf(request), starts[i],
+                    publish(outcomes[i].result, request.getIsbn(), request.getMemberId(), outcomes[i].message));
+        }
+        return Arrays.asList(results);
+    }
+    
+    private static LibraryMetrics.Operation operationOf(CirculationDesk.Request request) {
+        return request.isReturn() ? LibraryMetrics.Operation.RETURN_BOOK : LibraryMetrics.Operation.BORROW_BOOK;
+    }
+    
+    // Loan Limits
+    
+    /**
+     * Set the loan limit for members who have none of their own
+     * Not saved by a LibraryStore; set it each time the library is created.
+     * @param limit Most books a member may have out at once
+     */
+    public void setDefaultLoanLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Loan limit must be at least 1");
+        }
+        this.defaultLoanLimit = limit;
+    }
+    
+    /**
+     * Set how many books a member may have out at once
+     * Takes effect for the next borrow; books already out are not recalled.
+     * @param memberId ID of the member
+     * @param limit Most books the member may have out, or 0 for the library default
+     * @return OK if the limit was set, or why not
+     */
+    public LibraryResult setLoanLimit(String memberId, int limit) {
+        if (limit < 0) {
+            return publish(LibraryResult.INVALID_INPUT, null, memberId, "Error: Loan limit cannot be negative!");
+        }
+        String memberKey = normalizeMemberId(memberId);
+        String message;
+        LibraryResult result;
+        long lsn = 0;
+        Lock lock = memberLocks.forKey(memberKey);
+        lock.lock();
+        try {
+            Member member = members.get(memberKey);
+            if (member == null) {
+                result = LibraryResult.MEMBER_NOT_FOUND;
+                message = "Error: Member with ID " + memberId + " not found!";
+            } else {
+                beforeMemberChange(member);
+                member.setLoanLimit(limit);
+                result = LibraryResult.OK;
+                lsn = logChange(TransactionLog.SET_LOAN_LIMIT, memberKey, Integer.toString(limit));
+                message = limit == 0 ? "Loan limit for " + member.getName() + " reset to the library default."
+                        : "Loan limit for " + member.getName() + " set to " + limit + " books.";
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(lsn);
+        return publish(result, null, memberId, message);
+    }
+    
+    /**
+     * Get the most books a member may have out at once
+     * @param member Member to check
+     * @return The member's own limit, or the library default
+     */
+    public int loanLimit(Member member) {
+        int own = member.getLoanLimit();
+        return own > 0 ? own : defaultLoanLimit;
+    }
+    
+    /**
+     * Check whether a member may not borrow another book
+     * Call with the member's lock held so the check and the loan are one step.
+     * Replayed loans were checked when they happened and are never refused.
+     */
+    private boolean atLoanLimit(Member member) {
+        return !recovering && member.getLoanCount() >= loanLimit(member);
+    }
+    
+    // Hold Methods
+    
+    /**
+     * Place a hold on a book that has no copy available
+     * The member gets the next copy returned, after anyone who placed a hold
+     * earlier. The hold lapses if no copy comes back within 30 days.
+     * @param isbn ISBN of the book
+     * @param memberId ID of the member waiting
+     * @return OK if the hold was placed, or why not
+     */
+    public LibraryResult placeHold(String isbn, String memberId) {
+        return placeHold(isbn, memberId, 0);
+    }
+    
+    /**
+     * Place a hold on a book with a priority
+     * @param isbn ISBN of the book
+     * @param memberId ID of the member waiting
+     * @param priority Holds with a higher priority are served first
+     * @return OK if the hold was placed, or why not
+     */
+    public LibraryResult placeHold(String isbn, String memberId, int priority) {
+        if (!concurrent) {
+            expireHolds();
         }
+        return placeHold(isbn, memberId, priority, clock.getAsLong() + HOLD_EXPIRY_MILLIS);
+    }
+    
+    /**
+     * Place a hold with a given expiry time
+     * @param isbn ISBN of the book
+     * @param memberId ID of the member waiting
+     * @param priority Holds with a higher priority are served first
+     * @param expiresAt Expiry time in milliseconds
+     * @return OK if the hold was placed, or why not
+     */
+    LibraryResult placeHold(String isbn, String memberId, int priority, long expiresAt) {
+        long start = startTimer(LibraryMetrics.Operation.PLACE_HOLD);
+        String bookKey = normalizeIsbn(isbn);
+        String memberKey = normalizeMemberId(memberId);
+        String message;
+        LibraryResult result;
+        long lsn = 0;
+        
+        Lock bookLock = bookLocks.forKey(bookKey);
+        Lock memberLock = memberLocks.forKey(memberKey);
+        bookLock.lock();
+        memberLock.lock();
+        try {
+            Book book = lookupBook(bookKey);
+            Member member = members.get(memberKey);
+            beforeHoldsChange(bookKey);
+            HoldQueues.Hold hold;
+            if (book == null) {
+                result = LibraryResult.BOOK_NOT_FOUND;
+                message = "Error: Book with ISBN " + isbn + " not found!";
+            } else if (member == null) {
+                result = LibraryResult.MEMBER_NOT_FOUND;
+                message = "Error: Member with ID " + memberId + " not found!";
+            } else if (member.getLoan(book) != null) {
+                result = LibraryResult.ALREADY_BORROWED;
+                message = "Error: Member " + member.getName() + " has already borrowed this book.";
+            } else if (book.isAvailable() && !recovering) {
+                result = LibraryResult.AVAILABLE;
+                message = "Error: Book is available. Borrow it instead.";
+            } else if ((hold = holds.add(bookKey, memberKey, member.getMemberId(), priority, expiresAt)) == null) {
+                result = LibraryResult.ALREADY_ON_HOLD;
+                message = "Error: Member " + member.getName() + " already has a hold on this book.";
+            } else {
+                result = LibraryResult.OK;
+                lsn = logChange(TransactionLog.PLACE_HOLD, bookKey, memberKey, Integer.toString(priority),
+                        Long.toString(hold.getExpiresAt()));
+                message = "Hold placed on '" + book.getTitle() + "' for " + member.getName()
+                        + ". Members waiting: " + holds.count(bookKey);
+            }
+        } finally {
+            memberLock.unlock();
+            bookLock.unlock();
+        }
+        awaitDurable(lsn);
+        if (result.isOk()) {
+            startCirculationTimer();
+        }
+        return timed(LibraryMetrics.Operation.PLACE_HOLD, start, publish(result, isbn, memberId, message));
+    }
+    
+    /**
+     * Cancel a member's hold on a book
+     * @param isbn ISBN of the book
+     * @param memberId ID of the member
+     * @return OK if the hold was cancelled, or why not
+     */
+    public LibraryResult cancelHold(String isbn, String memberId) {
+        long start = startTimer(LibraryMetrics.Operation.CANCEL_HOLD);
+        String bookKey = normalizeIsbn(isbn);
+        String memberKey = normalizeMemberId(memberId);
+        String message;
+        LibraryResult result;
+        long lsn = 0;
         
-        System.out.println("\n=== Library Statistics ===");
-        System.out.println("Total Books: " + totalBooks);
-        System.out.println("Available Books: " + availableBooks);
-        System.out.println("Borrowed Books: " + borrowedBooks);
-        System.out.println("Total Members: " + members.size());
-        System.out.println();
+        Lock bookLock = bookLocks.forKey(bookKey);
+        bookLock.lock();
+        try {
+            beforeHoldsChange(bookKey);
+            HoldQueues.Hold hold = holds.find(bookKey, memberKey);
+            if (hold == null || !holds.remove(hold)) {
+                result = LibraryResult.NO_HOLD;
+                message = "Error: Member " + memberId + " has no hold on ISBN " + isbn + ".";
+            } else {
+                result = LibraryResult.OK;
+                lsn = logChange(TransactionLog.CANCEL_HOLD, bookKey, memberKey);
+                message = "Hold cancelled for member " + hold.getMemberId() + ".";
+            }
+        } finally {
+            bookLock.unlock();
+        }
+        awaitDurable(lsn);
+        return timed(LibraryMetrics.Operation.CANCEL_HOLD, start, publish(result, isbn, memberId, message));
+    }
+    
+    /**
+     * Get the members waiting for a book, in the order they will be served
+     * @param isbn ISBN of the book
+     * @return Holds on the book
+     */
+    public List<HoldQueues.Hold> getHolds(String isbn) {
+        String bookKey = normalizeIsbn(isbn);
+        Lock lock = bookLocks.forKey(bookKey);
+        lock.lock();
+        try {
+            return holds.list(bookKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Get the number of members waiting for a book
+     * @param isbn ISBN of the book
+     * @return Queue length
+     */
+    public int getHoldCount(String isbn) {
+        String bookKey = normalizeIsbn(isbn);
+        Lock lock = bookLocks.forKey(bookKey);
+        lock.lock();
+        try {
+            return holds.count(bookKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Drop holds that have waited past their expiry time
+     * Runs on a background timer once holds exist in a concurrent library;
+     * a single-threaded library calls it before placing a hold.
+     * @return Number of holds dropped
+     */
+    public int expireHolds() {
+        if (recovering) {
+            return 0;
+        }
+        long now = clock.getAsLong();
+        int expired = 0;
+        long lsn = 0;
+        for (HoldQueues.Hold hold : holds.due(now)) {
+            Lock lock = bookLocks.forKey(hold.getBookKey());
+            lock.lock();
+            try {
+                beforeHoldsChange(hold.getBookKey());
+                // Skip holds that were cancelled or served since they were scheduled
+                if (holds.remove(hold)) {
+                    expired++;
+                    lsn = logChange(TransactionLog.CANCEL_HOLD, hold.getBookKey(), hold.getMemberId());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        awaitDurable(lsn);
+        return expired;
+    }
+    
+    /**
+     * Lend copies on the shelf to the members waiting for them
+     * Must be called with the book's lock held and no member lock held;
+     * each waiting member's lock is taken in turn.
+     * @param book Book that may have copies available
+     * @param notes Receives a line for each member served
+     * @return Log sequence number of the last record written, or 0
+     */
+    private long serveHolds(Book book, StringBuilder notes) {
+        if (recovering) {
+            return 0;
+        }
+        String bookKey = book.getIsbnKey();
+        long now = clock.getAsLong();
+        long lsn = 0;
+        HoldQueues.Hold hold;
+        while (book.isAvailable() && (hold = holds.first(bookKey)) != null) {
+            beforeHoldsChange(bookKey);
+            holds.remove(hold);
+            Lock memberLock = memberLocks.forKey(hold.getMemberKey());
+            memberLock.lock();
+            try {
+                Member member = members.get(hold.getMemberKey());
+                Loan loan = null;
+                boolean atLimit = member != null && atLoanLimit(member);
+                if (hold.getExpiresAt() > now && member != null && !atLimit) {
+                    beforeMemberChange(member);
+                    loan = member.borrowBook(book);
+                }
+                if (loan == null) {
+                    // The hold lapsed before the timer got to it, or cannot be served
+                    lsn = logChange(TransactionLog.CANCEL_HOLD, book.getIsbn(), hold.getMemberId());
+                    if (atLimit) {
+                        notes.append("\nHold of ").append(member.getName())
+                                .append(" cancelled: loan limit reached");
+                    }
+                } else {
+                    startLoan(loan, hold.getMemberKey(), 0);
+                    lsn = logChange(TransactionLog.FILL_HOLD, book.getIsbn(), hold.getMemberId(),
+                            Integer.toString(loan.getCopy()), Long.toString(loan.getDueAt()));
+                    notes.append("\nCopy ").append(loan.getBarcode()).append(" lent to waiting member ")
+                            .append(member.getName());
+                }
+            } finally {
+                memberLock.unlock();
+            }
+        }
+        return lsn;
+    }
+    
+    // Loan Due Dates
+    
+    /**
+     * Renew a member's loan for another loan period from today
+     * Not possible while other members are waiting for the book, after
+     * MAX_RENEWALS renewals, or once the loan is overdue. runDueDateSweep()
+     * applies the same rules, so an overdue loan is never renewed.
+     * @param isbn ISBN of the borrowed book
+     * @param memberId ID of the member
+     * @return OK if the loan was renewed, or why not
+     */
+    public LibraryResult renewBook(String isbn, String memberId) {
+        return renewBook(isbn, memberId, 0);
+    }
+    
+    /**
+     * Renew a loan to a given due time
+     * @param isbn ISBN of the borrowed book
+     * @param memberId ID of the member
+     * @param dueAt New due time in milliseconds, or 0 for one loan period from now
+     * @return OK if the loan was renewed, or why not
+     */
+    LibraryResult renewBook(String isbn, String memberId, long dueAt) {
+        long start = startTimer(LibraryMetrics.Operation.RENEW_BOOK);
+        String bookKey = normalizeIsbn(isbn);
+        String memberKey = normalizeMemberId(memberId);
+        String message;
+        LibraryResult result;
+        long lsn = 0;
+        
+        Lock bookLock = bookLocks.forKey(bookKey);
+        Lock memberLock = memberLocks.forKey(memberKey);
+        bookLock.lock();
+        memberLock.lock();
+        try {
+            Book book = lookupBook(bookKey);
+            Member member = members.get(memberKey);
+            Loan loan = member == null || book == null ? null : member.getLoan(book);
+            long now = clock.getAsLong();
+            if (book == null) {
+                result = LibraryResult.BOOK_NOT_FOUND;
+                message = "Error: Book with ISBN " + isbn + " not found!";
+            } else if (member == null) {
+                result = LibraryResult.MEMBER_NOT_FOUND;
+                message = "Error: Member with ID " + memberId + " not found!";
+            } else if (loan == null) {
+                result = LibraryResult.NOT_BORROWED;
+                message = "Error: Member " + member.getName() + " has not borrowed this book.";
+            } else if (recovering) {
+                // Replayed renewals were checked when they happened
+                lsn = renew(loan, dueAt);
+                result = LibraryResult.OK;
+                message = null;
+            } else if (holds.count(bookKey) > 0) {
+                result = LibraryResult.HOLDS_WAITING;
+                message = "Error: Cannot renew. Other members are waiting for this book.";
+            } else if (loan.getRenewals() >= MAX_RENEWALS) {
+                result = LibraryResult.RENEWAL_LIMIT_REACHED;
+                message = "Error: Cannot renew. The loan has already been renewed " + MAX_RENEWALS + " times.";
+            } else if (loan.isOverdue(now)) {
+                result = LibraryResult.OVERDUE;
+                message = "Error: Cannot renew. The book is overdue; please return it.";
+            } else {
+                lsn = renew(loan, dueAt > 0 ? dueAt : now + LOAN_PERIOD_MILLIS);
+                result = LibraryResult.OK;
+                message = "Loan of '" + book.getTitle() + "' renewed for " + member.getName()
+                        + ". Due back " + formatDate(loan.getDueAt());
+            }
+        } finally {
+            memberLock.unlock();
+            bookLock.unlock();
+        }
+        awaitDurable(lsn);
+        return timed(LibraryMetrics.Operation.RENEW_BOOK, start, publish(result, isbn, memberId, message));
+    }
+    
+    /**
+     * Get the loans that are past their due time
+     * @return Overdue loans, longest overdue first
+     */
+    public List<Loan> getOverdueLoans() {
+        return dueDates.overdue(clock.getAsLong());
+    }
+    
+    /**
+     * Get the fine a loan would be charged if it were returned now
+     * @param loan Active loan
+     * @return Fine in cents
+     */
+    public long getFine(Loan loan) {
+        return fineFor(loan, clock.getAsLong());
+    }
+    
+    /**
+     * Display all overdue loans with their fines so far
+     */
+    public void displayOverdueLoans() {
+        long now = clock.getAsLong();
+        List<Loan> overdue = dueDates.overdue(now);
+        if (overdue.isEmpty()) {
+            out.println("No loans are overdue.");
+            return;
+        }
+        out.println("\n=== Overdue Loans ===");
+        long fines = 0;
+        int i = 0;
+        for (Loan loan : overdue) {
+            long fine = fineFor(loan, now);
+            fines += fine;
+            Member member = loan.getMember();
+            out.println((++i) + ". " + loan + " | Member: " + member.getName() + " (" + member.getMemberId()
+                    + ") | Due: " + formatDate(loan.getDueAt()) + " | " + formatDays(loan.getDaysOverdue(now))
+                    + " overdue | Fine: " + formatMoney(fine));
+        }
+        out.println("Total overdue: " + overdue.size() + " | Fines so far: " + formatMoney(fines) + "\n");
+    }
+    
+    /**
+     * Renew loans that come due before the next sweep, where possible
+     * A loan is renewed for another period from its due date when nobody
+     * is waiting for the book and it has renewals left, as renewBook()
+     * would; otherwise it becomes overdue and its fine grows each day until
+     * it is returned. Loans that are already overdue, because a sweep ran
+     * late, are not renewed either. Only loans due between the previous
+     * sweep's horizon and this one's are looked at, found through the due
+     * date index, so a sweep costs O(loans coming due).
+     * @return Number of loans renewed
+     */
+    public synchronized int runDueDateSweep() {
+        if (recovering) {
+            return 0;
+        }
+        long now = clock.getAsLong();
+        long from = Math.max(sweptThrough, now);
+        // Look two periods ahead, so a timer tick that runs a little late still comes first
+        long to = now + 2 * DUE_SWEEP_MILLIS;
+        if (from >= to) {
+            return 0;
+        }
+        int renewed = 0;
+        long lsn = 0;
+        for (Loan loan : dueDates.dueBetween(from, to)) {
+            Book book = loan.getBook();
+            String bookKey = book.getIsbnKey();
+            Member member = loan.getMember();
+            Lock bookLock = bookLocks.forKey(bookKey);
+            Lock memberLock = memberLocks.forKey(normalizeMemberId(member.getMemberId()));
+            bookLock.lock();
+            memberLock.lock();
+            try {
+                // The loan may have been returned or renewed since it was collected
+                if (member.getLoan(book) == loan && !loan.isOverdue(clock.getAsLong())
+                        && loan.getRenewals() < MAX_RENEWALS && holds.count(bookKey) == 0) {
+                    lsn = renew(loan, loan.getDueAt() + LOAN_PERIOD_MILLIS);
+                    renewed++;
+                }
+            } finally {
+                memberLock.unlock();
+                bookLock.unlock();
+            }
+        }
+        sweptThrough = to;
+        awaitDurable(lsn);
+        return renewed;
+    }
+    
+    /**
+     * Set a new loan's due time, index it and record it in the history and recommender
+     * Call with the member's lock held.
+     * @param loan New loan
+     * @param memberKey Normalized ID of the borrower
+     * @param dueAt Due time in milliseconds, or 0 for one loan period from now
+     */
+    private void startLoan(Loan loan, String memberKey, long dueAt) {
+        loan.setDueAt(dueAt > 0 ? dueAt : clock.getAsLong() + LOAN_PERIOD_MILLIS);
+        dueDates.add(loan);
+        stats.loanStarted(loan.getBook().getAuthor(), memberKey);
+        CirculationHistory circulation = history;
+        if (circulation != null && !recovering) {
+            circulation.recordBorrow(loan.getBook().getIsbn(), loan.getBook().getTitle(),
+                    loan.getMember().getMemberId(), clock.getAsLong());
+        }
+        Recommender model = recommender;
+        if (model != null && !recovering) {
+            model.recordBorrow(loan.getBook().getIsbn(), loan.getMember().getMemberId());
+        }
+    }
+    
+    /**
+     * Move a loan to a new due time and log the renewal
+     * Call with the book's and member's locks held.
+     * @return Log sequence number of the record, or 0 if not logged
+     */
+    private long renew(Loan loan, long dueAt) {
+        dueDates.remove(loan, loan.getDueAt());
+        beforeMemberChange(loan.getMember());
+        loan.renew(dueAt);
+        dueDates.add(loan);
+        if (!logging()) {
+            return 0;
+        }
+        return logChange(TransactionLog.RENEW, loan.getBook().getIsbnKey(),
+                normalizeMemberId(loan.getMember().getMemberId()), Long.toString(dueAt));
+    }
+    
+    /**
+     * Work out the fine for a loan: a daily rate, capped per loan
+     */
+    private static long fineFor(Loan loan, long now) {
+        return Math.min(MAX_FINE, loan.getDaysOverdue(now) * FINE_PER_DAY);
+    }
+    
+    static String formatDate(long millis) {
+        return LocalDate.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()).toString();
+    }
+    
+    private static String formatDays(long days) {
+        return days + (days == 1 ? " day" : " days");
+    }
+    
+    static String formatMoney(long cents) {
+        return String.format("%d.%02d", cents / 100, cents % 100);
+    }
+    
+    /**
+     * Start the background timer of a concurrent library
+     * It expires holds every minute and sweeps for due loans every hour.
+     * A single-threaded library has no timer thread, since its maps must
+     * not be touched from a second thread; it expires holds when holds are
+     * placed, and its owner calls runDueDateSweep() between commands.
+     */
+    private void startCirculationTimer() {
+        if (!concurrent || circulationTimer != null || recovering) {
+            return;
+        }
+        synchronized (dueDates) {
+            if (circulationTimer == null) {
+                circulationTimer = newCirculationTimer();
+            }
+        }
+    }
+    
+    private ScheduledExecutorService newCirculationTimer() {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "library-circulation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tick = holds.getTickMillis();
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                expireHolds();
+            } catch (RuntimeException e) {
+                System.err.println("Warning: hold expiry failed: " + e.getMessage());
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                runDueDateSweep();
+            } catch (RuntimeException e) {
+                System.err.println("Warning: due date sweep failed: " + e.getMessage());
+            }
+        }, DUE_SWEEP_MILLIS, DUE_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+        return timer;
+    }
+    
+    /**
+     * Get how often holds are checked for expiry
+     * For callers that run expireHolds() on their own schedule.
+     * @return Interval in milliseconds
+     */
+    long getHoldTickMillis() {
+        return holds.getTickMillis();
+    }
+    
+    /**
+     * Get the current counts of books, members and loans
+     * The counters are maintained as operations happen, so this is
+     * constant time and safe to call while other threads make changes.
+     * @return Statistics snapshot
+     */
+    public LibraryStats.Snapshot getStatistics() {
+        return stats.snapshot();
+    }
+    
+    /**
+     * Get the number of times books by an author have been borrowed
+     * @param author Author name
+     * @return Loan count
+     */
+    public long getAuthorLoanCount(String author) {
+        return stats.getAuthorLoanCount(author == null ? null : author.trim());
+    }
+    
+    /**
+     * Get the number of books a member currently has on loan
+     * @param memberId Member ID
+     * @return Active loan count
+     */
+    public long getMemberLoanCount(String memberId) {
+        return stats.getMemberLoanCount(normalizeMemberId(memberId));
+    }
+    
+    /**
+     * Get statistics about the library
+     */
+    public void displayStatistics() {
+        LibraryStats.Snapshot snapshot = stats.snapshot();
+        
+        out.println("\n=== Library Statistics ===");
+        out.println("Total Titles: " + snapshot.getTotalTitles());
+        out.println("Total Books: " + snapshot.getTotalBooks());
+        out.println("Available Books: " + snapshot.getAvailableBooks());
+        out.println("Borrowed Books: " + snapshot.getBorrowedBooks());
+        out.println("Total Members: " + snapshot.getTotalMembers());
+        out.println();
+    }
+    
+    /**
+     * Display operation counts and latencies
+     */
+    public void displayMetrics() {
+        LibraryMetrics current = metrics;
+        if (current == null) {
+            out.println("Metrics are switched off.");
+            return;
+        }
+        out.println();
+        out.print(current.dump());
+        out.println();
+    }
+    
+    // Persistence Support
+    
+    /**
+     * Append a change to the transaction log, if one is attached
+     * Must be called while the locks of the changed book/member are held.
+     * Log stored keys and values rather than what the caller passed in:
+     * those were bounded by validateBook() and validateMember(), so every
+     * field fits a record.
+     * @param op Operation code from TransactionLog
+     * @param fields Operation arguments
+     * @return Log sequence number of the record, or 0 if not logged
+     */
+    private long logChange(byte op, String... fields) {
+        TransactionLog current = log;
+        return current == null ? 0 : current.append(op, fields);
+    }
+    
+    /**
+     * Check whether changes are logged, before building the fields of a hot-path record
+     * @return true if a transaction log is attached
+     */
+    private boolean logging() {
+        return log != null;
+    }
+    
+    /**
+     * Wait until a logged change is durable
+     * Called after locks are released so other desks are not held up by fsync.
+     * @param lsn Sequence number returned by logChange
+     */
+    private void awaitDurable(long lsn) {
+        TransactionLog current = log;
+        if (lsn > 0 && current != null) {
+            current.sync(lsn);
+        }
+    }
+    
+    /**
+     * Report the outcome of an operation to the event sink
+     * Call after releasing the operation's locks: the sink may be slow.
+     * @param result How the operation ended
+     * @param isbn ISBN as given, or null
+     * @param memberId Member ID as given, or null
+     * @param message Text for the console, or null for nothing to report
+     * @return The result, for returning straight from the operation
+     */
+    private LibraryResult publish(LibraryResult result, String isbn, String memberId, String message) {
+        EventSink sink = events;
+        if (message != null && sink.isEnabled()) {
+            sink.publish(new LibraryEvent(result, isbn, memberId, message));
+        }
+        return result;
+    }
+    
+    /**
+     * Count a measured operation that is starting
+     * @param operation Operation
+     * @return Start time if the call is timed, 0 if not or if metrics are switched off
+     */
+    private long startTimer(LibraryMetrics.Operation operation) {
+        LibraryMetrics current = metrics;
+        return current == null ? 0 : current.start(operation);
+    }
+    
+    /**
+     * Record the end of a measured operation in the metrics
+     * @param operation Operation that finished
+     * @param start Value of startTimer() when it started
+     * @param ok false if the operation failed or found nothing
+     */
+    private void record(LibraryMetrics.Operation operation, long start, boolean ok) {
+        LibraryMetrics current = metrics;
+        if (current != null) {
+            current.finish(operation, start, ok);
+        }
+    }
+    
+    /**
+     * Record a measured operation that returns a result
+     * @param operation Operation that finished
+     * @param start Value of startTimer() when it started
+     * @param result How the operation ended
+     * @return The result, for returning straight from the operation
+     */
+    private LibraryResult timed(LibraryMetrics.Operation operation, long start, LibraryResult result) {
+        record(operation, start, result.isOk());
+        return result;
+    }
+    
+    /**
+     * Run an action while every book and member stripe is locked
+     * No add, remove, borrow or return can be in progress while the action
+     * runs, so it sees a consistent state. Used to start snapshot cuts.
+     * @param action Action to run
+     * @return Result of the action
+     */
+    <T> T withAllLocks(Supplier<T> action) {
+        // Book stripes before member stripes, the same order borrow uses
+        for (int i = 0; i < bookLocks.size(); i++) {
+            bookLocks.get(i).lock();
+        }
+        for (int i = 0; i < memberLocks.size(); i++) {
+            memberLocks.get(i).lock();
+        }
+        try {
+            return action.get();
+        } finally {
+            for (int i = memberLocks.size() - 1; i >= 0; i--) {
+                memberLocks.get(i).unlock();
+            }
+            for (int i = bookLocks.size() - 1; i >= 0; i--) {
+                bookLocks.get(i).unlock();
+            }
+        }
+    }
+    
+    /**
+     * Find a book by normalized key in the heap index, then the catalog
+     * @param key Normalized ISBN
+     * @return Book, or null if neither has it
+     */
+    private Book lookupBook(String key) {
+        Book book = books.get(key);
+        if (book == null) {
+            ColumnarCatalog mapped = catalog;
+            if (mapped != null) {
+                book = mapped.find(key);
+            }
+        }
+        return book;
+    }
+    
+    /**
+     * Get the current snapshot of the heap books
+     * The snapshot never changes, so it can be read at leisure from any
+     * thread while books are added and removed. Books in an attached
+     * ColumnarCatalog are not included.
+     * @return Heap books in insertion order
+     */
+    public CatalogSnapshot getCatalogSnapshot() {
+        return snapshot;
+    }
+    
+    /**
+     * Get every book: heap books in insertion order, then catalog books
+     * @return Iterable over all books
+     */
+    Iterable<Book> allBooks() {
+        CatalogSnapshot heap = snapshot;
+        ColumnarCatalog mapped = catalog;
+        if (mapped == null) {
+            return heap;
+        }
+        return () -> new Iterator<Book>() {
+            private Iterator<Book> current = heap.iterator();
+            private boolean inCatalog;
+            
+            @Override
+            public boolean hasNext() {
+                if (!current.hasNext() && !inCatalog) {
+                    current = mapped.books().iterator();
+                    inCatalog = true;
+                }
+                return current.hasNext();
+            }
+            
+            @Override
+            public Book next() {
+                hasNext();
+                return current.next();
+            }
+        };
+    }
+    
+    /**
+     * Get the books removed from the attached catalog
+     * The catalog file never records removals, so snapshots keep these.
+     * Call with every book stripe locked so no removal happens during the copy.
+     * @return Normalized ISBNs, empty if no catalog is attached
+     */
+    List<String> removedCatalogKeys() {
+        ColumnarCatalog mapped = catalog;
+        return mapped == null ? new ArrayList<>() : mapped.removedKeys();
+    }
+    
+    /**
+     * Remove a catalog book again from a snapshot's list of removals
+     * Skips the checks, messages, log record and event of removeBook(). Call
+     * while recovering, after attaching the catalog the list was taken from.
+     * @param key Normalized ISBN
+     */
+    void restoreCatalogRemoval(String key) {
+        ColumnarCatalog mapped = catalog;
+        Book book = mapped == null ? null : mapped.find(key);
+        if (book != null) {
+            int available = book.getAvailableCopies();
+            mapped.remove(key);
+            stats.booksRemoved(1, 1, available);
+        }
+    }
+    
+    /**
+     * Visit every member in insertion order
+     * @param visitor Callback for each member
+     */
+    void forEachMember(Consumer<Member> visitor) {
+        for (Member member : members.values()) {
+            visitor.accept(member);
+        }
+    }
+    
+    /**
+     * Start a cut: note the state as of the last logged change
+     * Every stripe is locked only while the log position, the heap books and
+     * the removed catalog books are noted. Finish with copyCut() and endCut().
+     * @param lastLsn Gives the sequence number of the last logged change
+     * @return The new cut
+     */
+    Cut beginCut(LongSupplier lastLsn) {
+        return withAllLocks(() -> {
+            Cut started = new Cut(lastLsn.getAsLong(), snapshot, removedCatalogKeys());
+            cut = started;
+            return started;
+        });
+    }
+    
+    /**
+     * Visit the state of the library as it was when a cut began
+     * A concurrent library keeps taking changes meanwhile: each book,
+     * member and title is locked only while it is copied. A single-threaded
+     * library's maps cannot be walked while its owner changes them, so it is
+     * copied with every stripe locked.
+     * @param cut Cut from beginCut()
+     * @param bookVisitor Receives each heap book and its copy count, in insertion order
+     * @param memberVisitor Receives each member's state
+     * @param holdVisitor Receives each title's normalized ISBN and its holds in serving order
+     */
+    void copyCut(Cut cut, ObjIntConsumer<Book> bookVisitor, Consumer<MemberState> memberVisitor,
+            BiConsumer<String, List<HoldQueues.Hold>> holdVisitor) {
+        if (concurrent) {
+            walkCut(cut, bookVisitor, memberVisitor, holdVisitor);
+        } else {
+            withAllLocks(() -> {
+                walkCut(cut, bookVisitor, memberVisitor, holdVisitor);
+                return null;
+            });
+        }
+    }
+    
+    /**
+     * Stop saving states for a cut
+     * @param finished Cut from beginCut()
+     */
+    void endCut(Cut finished) {
+        if (cut == finished) {
+            cut = null;
+        }
+    }
+    
+    private void walkCut(Cut cut, ObjIntConsumer<Book> bookVisitor, Consumer<MemberState> memberVisitor,
+            BiConsumer<String, List<HoldQueues.Hold>> holdVisitor) {
+        for (Book book : cut.books) {
+            int copies;
+            Lock lock = bookLocks.forKey(book.getIsbnKey());
+            lock.lock();
+            try {
+                Integer saved = cut.copies.get(book);
+                copies = saved != null ? saved : book.getCopyCount();
+            } finally {
+                lock.unlock();
+            }
+            bookVisitor.accept(book, copies);
+        }
+        
+        for (Member member : members.values()) {
+            MemberState state;
+            Lock lock = memberLocks.forKey(normalizeMemberId(member.getMemberId()));
+            lock.lock();
+            try {
+                MemberState saved = cut.members.put(member, Cut.WALKED);
+                state = saved == null ? new MemberState(member) : saved == Cut.ADDED ? null : saved;
+            } finally {
+                lock.unlock();
+            }
+            if (state != null) {
+                memberVisitor.accept(state);
+            }
+        }
+        // Members removed after the cut, before the walk got to them
+        List<MemberState> removed = new ArrayList<>();
+        synchronized (cut.members) {
+            for (MemberState state : cut.members.values()) {
+                if (state != Cut.WALKED && state != Cut.ADDED) {
+                    removed.add(state);
+                }
+            }
+        }
+        removed.forEach(memberVisitor);
+        
+        for (String title : holds.titles()) {
+            List<HoldQueues.Hold> queue;
+            Lock lock = bookLocks.forKey(title);
+            lock.lock();
+            try {
+                List<HoldQueues.Hold> saved = cut.holds.put(title, Cut.WALKED_HOLDS);
+                queue = saved == null ? holds.list(title) : saved;
+            } finally {
+                lock.unlock();
+            }
+            if (!queue.isEmpty()) {
+                holdVisitor.accept(title, queue);
+            }
+        }
+        // Queues emptied after the cut, before the walk got to them
+        for (Map.Entry<String, List<HoldQueues.Hold>> entry : cut.holds.entrySet()) {
+            if (entry.getValue() != Cut.WALKED_HOLDS && !entry.getValue().isEmpty()) {
+                holdVisitor.accept(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Save a member's state for a cut in progress before changing it
+     * Call with the member's lock held.
+     */
+    private void beforeMemberChange(Member member) {
+        Cut current = cut;
+        if (current != null && member != null) {
+            current.members.computeIfAbsent(member, MemberState::new);
+        }
+    }
+    
+    /**
+     * Save a book's copy count for a cut in progress before changing it
+     * Call with the book's lock held.
+     */
+    private void beforeCopiesChange(Book book) {
+        Cut current = cut;
+        if (current != null) {
+            current.copies.computeIfAbsent(book, Book::getCopyCount);
+        }
+    }
+    
+    /**
+     * Save a title's holds for a cut in progress before changing them
+     * Call with the book's lock held.
+     */
+    private void beforeHoldsChange(String bookKey) {
+        Cut current = cut;
+        if (current != null) {
+            current.holds.computeIfAbsent(bookKey, holds::list);
+        }
+    }
+    
+    /**
+     * Copy the ISBNs a member has on loan
+     * Taken under the member's lock so a concurrent borrow cannot disturb it.
+     * @param member Member to inspect
+     * @return ISBNs of borrowed books, oldest loan first
+     */
+    List<String> loanIsbns(Member member) {
+        Lock lock = memberLocks.forKey(normalizeMemberId(member.getMemberId()));
+        lock.lock();
+        try {
+            String[] isbns = new String[member.getLoanCount()];
+            int i = 0;
+            for (Loan loan : member.getLoans()) {
+                isbns[i++] = loan.getBook().getIsbn();
+            }
+            return Arrays.asList(isbns);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * A new book with the words and keys it is indexed under
+     * Preparing a book takes no locks, so bulk loading prepares on its
+     * worker threads and only the inserts run one after another.
+     */
+    static final class PreparedBook {
+        final Book book;
+        final Map<String, Integer> terms;
+        final String titleKey;
+        final String authorKey;
+        
+        PreparedBook(Book book) {
+            this.book = book;
+            this.terms = SearchIndex.termFrequencies(book.getTitle(), book.getAuthor());
+            this.titleKey = BookIndex.normalize(book.getTitle());
+            this.authorKey = BookIndex.normalize(book.getAuthor());
+        }
+        
+        Book getBook() {
+            return book;
+        }
+    }
+    
+    /**
+     * The state of the library as of one log sequence number, copied while
+     * changes go on
+     * From the start of the cut, the first change to a member, a book's copy
+     * count or a title's holds saves how it was at the cut, under the lock
+     * the change holds anyway. The walk in copyCut() takes saved states over
+     * live ones and marks what it has copied, so later changes need not save
+     * anything. Books added after the cut are not in its catalog snapshot,
+     * and members added after it are marked so the walk skips them.
+     */
+    static final class Cut {
+        private static final MemberState WALKED = new MemberState();
+        private static final MemberState ADDED = new MemberState();
+        private static final List<HoldQueues.Hold> WALKED_HOLDS = new ArrayList<>();
+        
+        final long lsn;
+        final CatalogSnapshot books;
+        final List<String> catalogRemovals;
+        // Keyed by identity: a book or member removed and added again is a different one
+        private final Map<Book, Integer> copies = Collections.synchronizedMap(new IdentityHashMap<>());
+        private final Map<Member, MemberState> members = Collections.synchronizedMap(new IdentityHashMap<>());
+        private final Map<String, List<HoldQueues.Hold>> holds = new ConcurrentHashMap<>();
+        
+        Cut(long lsn, CatalogSnapshot books, List<String> catalogRemovals) {
+            this.lsn = lsn;
+            this.books = books;
+            this.catalogRemovals = catalogRemovals;
+        }
+    }
+    
+    /**
+     * A member's fines, loan limit and loans as they were at a cut
+     */
+    static final class MemberState {
+        final Member member;
+        final long fineBalance;
+        final int loanLimit;
+        final Book[] loanBooks;
+        final int[] loanCopies;
+        final long[] loanDueAt;
+        final int[] loanRenewals;
+        
+        private MemberState() {
+            this.member = null;
+            this.fineBalance = 0;
+            this.loanLimit = 0;
+            this.loanBooks = new Book[0];
+            this.loanCopies = new int[0];
+            this.loanDueAt = new long[0];
+            this.loanRenewals = new int[0];
+        }
+        
+        MemberState(Member member) {
+            this.member = member;
+            this.fineBalance = member.getFineBalance();
+            this.loanLimit = member.getLoanLimit();
+            int count = member.getLoanCount();
+            this.loanBooks = new Book[count];
+            this.loanCopies = new int[count];
+            this.loanDueAt = new long[count];
+            this.loanRenewals = new int[count];
+            int i = 0;
+            for (Loan loan : member.getLoans()) {
+                loanBooks[i] = loan.getBook();
+                loanCopies[i] = loan.getCopy();
+                loanDueAt[i] = loan.getDueAt();
+                loanRenewals[i] = loan.getRenewals();
+                i++;
+            }
+        }
+    }
+    
+    /**
+     * What a borrow or return did, before it is published
+     */
+    private static final class Outcome {
+        final LibraryResult result;
+        final String message;
+        // Log sequence number to wait for, or 0 if nothing was logged
+        final long lsn;
+        
+        Outcome(LibraryResult result, String message, long lsn) {
+            this.result = result;
+            this.message = message;
+            this.lsn = lsn;
+        }
     }
 }
-
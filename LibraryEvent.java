@@ -0,0 +1,46 @@
+/**
+ * LibraryEvent reports one Library operation to an EventSink
+ * The result code is for programs; the message is the text the console
+ * menu prints, such as "Book added successfully: Dune".
+ */
+public final class LibraryEvent {
+    private final LibraryResult result;
+    private final String isbn;
+    private final String memberId;
+    private final String message;
+
+    /**
+     * Constructor to create an event
+     * @param result How the operation ended
+     * @param isbn ISBN the operation was about, or null
+     * @param memberId Member the operation was about, or null
+     * @param message Human-readable description
+     */
+    public LibraryEvent(LibraryResult result, String isbn, String memberId, String message) {
+        this.result = result;
+        this.isbn = isbn;
+        this.memberId = memberId;
+        this.message = message;
+    }
+
+    public LibraryResult getResult() {
+        return result;
+    }
+
+    public String getIsbn() {
+        return isbn;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return message;
+    }
+}
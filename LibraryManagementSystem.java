@@ -1,23 +1,139 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Year;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import javax.management.JMException;
 
 public class LibraryManagementSystem {
+    private static final String DEFAULT_DATA_DIR = "library-data";
+    private static final int DEFAULT_PORT = 8080;
+    private static final int SEARCH_RESULTS = 10;
+    private static final int BROWSE_RESULTS = 50;
+    private static final String METRICS_MBEAN_NAME = "library:type=Metrics";
+    private static final String HISTORY_DIR = "history";
+    private static final int REPORT_TITLES = 5;
+    private static final int RECOMMENDATIONS = 5;
+    
     private static Library library;
+    private static LibraryStore store;
+    private static CirculationHistory history;
+    private static Recommender recommender;
     private static Scanner scanner;
     
     public static void main(String[] args) {
-        library = new Library();
-        scanner = new Scanner(System.in);
+        // Command line: [dataDir] [--import-books file] [--import-members file]
+        //               [--batch file|-] [--serve [port]] [--no-metrics] [--write-image]
+        String dataDir = DEFAULT_DATA_DIR;
+        String bookFile = null;
+        String memberFile = null;
+        String batchFile = null;
+        int port = -1;
+        boolean metrics = true;
+        boolean writeImage = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--import-books") && i + 1 < args.length) {
+                bookFile = args[++i];
+            } else if (args[i].equals("--import-members") && i + 1 < args.length) {
+                memberFile = args[++i];
+            } else if (args[i].equals("--batch") && i + 1 < args.length) {
+                batchFile = args[++i];
+            } else if (args[i].equals("--serve")) {
+                port = DEFAULT_PORT;
+                if (i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                    port = Integer.parseInt(args[++i]);
+                }
+            } else if (args[i].equals("--no-metrics")) {
+                metrics = false;
+            } else if (args[i].equals("--write-image")) {
+                writeImage = true;
+            } else {
+                dataDir = args[i];
+            }
+        }
         
-        System.out.println("========================================");
-        System.out.println("   Library Management System");
-        System.out.println("========================================\n");
+        // The HTTP server handles requests on many threads at once
+        library = new Library(port >= 0);
         
-        // Add some sample data for demonstration
-        initializeSampleData();
+        // Batch mode writes machine-readable results to stdout, so it gets no banner
+        if (batchFile == null) {
+            System.out.println("========================================");
+            System.out.println("   Library Management System");
+            System.out.println("========================================\n");
+        }
+        
+        // Restore saved state. Batch mode lets the log reach disk in the
+        // background instead of waiting on every command; it is flushed on exit.
+        try {
+            store = LibraryStore.open(Paths.get(dataDir), library, batchFile == null);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not open data directory " + dataDir
+                    + ". Changes will not be saved. (" + e.getMessage() + ")");
+        }
+        
+        // Regenerate the catalog image from the snapshot and log, then exit
+        if (writeImage) {
+            runWriteImage(dataDir);
+            return;
+        }
+        
+        if (store != null) {
+            openHistory(dataDir);
+        }
+        startRecommender();
+        
+        // Measure from here on, so replaying the log does not count
+        if (metrics) {
+            startMetrics();
+        }
+        
+        if (batchFile != null) {
+            runBatch(batchFile);
+            closeStore();
+            return;
+        }
+        
+        if (port >= 0) {
+            runServer(port);
+            return;
+        }
+        
+        // Bulk import mode: load the files and exit without showing the menu
+        if (bookFile != null || memberFile != null) {
+            if (memberFile != null) {
+                runImport(memberFile, false);
+            }
+            if (bookFile != null) {
+                runImport(bookFile, true);
+            }
+            closeStore();
+            return;
+        }
+        
+        scanner = new Scanner(System.in);
+        
+        // Add some sample data for demonstration on first start
+        if (library.getBookCount() == 0 && library.getMemberCount() == 0) {
+            initializeSampleData();
+        } else {
+            System.out.println("Loaded " + library.getBookCount() + " books and "
+                    + library.getMemberCount() + " members from " + dataDir + "\n");
+        }
         
         boolean running = true;
         
         while (running) {
+            // A console-only library has no timer thread to renew loans coming due
+            library.runDueDateSweep();
             displayMenu();
             int choice = getChoice();
             
@@ -52,6 +168,39 @@ public class LibraryManagementSystem {
                 case 10:
                     displayStatistics();
                     break;
+                case 11:
+                    searchBooks();
+                    break;
+                case 12:
+                    addCopies();
+                    break;
+                case 13:
+                    placeHold();
+                    break;
+                case 14:
+                    cancelHold();
+                    break;
+                case 15:
+                    renewBook();
+                    break;
+                case 16:
+                    displayOverdueLoans();
+                    break;
+                case 17:
+                    setLoanLimit();
+                    break;
+                case 18:
+                    displayMetrics();
+                    break;
+                case 19:
+                    browseBooks();
+                    break;
+                case 20:
+                    displayCirculationReport();
+                    break;
+                case 21:
+                    recommendBooks();
+                    break;
                 case 0:
                     running = false;
                     System.out.println("Thank you for using Library Management System. Goodbye!");
@@ -67,6 +216,156 @@ public class LibraryManagementSystem {
         }
         
         scanner.close();
+        closeStore();
+    }
+    
+    /**
+     * Import a delimited file of books or members
+     * Rejected rows are listed in a report file next to the input.
+     * @param file Input file (.tsv files are tab-separated, others comma-separated)
+     * @param books true for books, false for members
+     */
+    private static void runImport(String file, boolean books) {
+        String reportFile = file + ".errors";
+        char delimiter = file.endsWith(".tsv") ? '\t' : ',';
+        BulkLoader loader = new BulkLoader(library, delimiter,
+                Runtime.getRuntime().availableProcessors(), 8_192);
+        System.out.println("Importing " + (books ? "books" : "members") + " from " + file + "...");
+        try (Reader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+             Writer errors = new OutputStreamWriter(Files.newOutputStream(Paths.get(reportFile)),
+                     StandardCharsets.UTF_8)) {
+            BulkLoader.Report report = books ? loader.importBooks(in, errors) : loader.importMembers(in, errors);
+            System.out.println(report);
+            if (report.getRejected() > 0) {
+                System.out.println("Rejected rows are listed in " + reportFile);
+            }
+        } catch (IOException e) {
+            System.out.println("Error: Import of " + file + " failed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Write a fresh catalog image of the recovered state and close the store
+     * Later starts load the image instead of replaying the log.
+     * @param dataDir Data directory the store was opened on
+     */
+    private static void runWriteImage(String dataDir) {
+        if (store == null) {
+            System.out.println("Error: No catalog image written, " + dataDir + " could not be opened.");
+            return;
+        }
+        System.out.println("Writing catalog image of " + library.getBookCount() + " books and "
+                + library.getMemberCount() + " members to " + dataDir + "...");
+        long start = System.nanoTime();
+        try {
+            store.close();
+            System.out.printf("Catalog image written in %.1f s%n", (System.nanoTime() - start) / 1e9);
+        } catch (IOException e) {
+            System.out.println("Error: Could not write catalog image: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Run a command file without the menu
+     * @param file Command file, or "-" for standard input
+     */
+    private static void runBatch(String file) {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        try (Reader in = file.equals("-")
+                ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            BatchRunner.Summary summary = new BatchRunner(library).run(in, out);
+            System.err.println("Batch complete: " + summary.getCommands() + " commands, "
+                    + summary.getFailed() + " failed");
+        } catch (IOException e) {
+            System.err.println("Error: Batch run failed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Serve the library over HTTP until the process is stopped
+     * @param port TCP port to listen on
+     */
+    private static void runServer(int port) {
+        LibraryServer server;
+        try {
+            server = new LibraryServer(library, port);
+        } catch (IOException e) {
+            System.out.println("Error: Could not listen on port " + port + ": " + e.getMessage());
+            closeStore();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            closeStore();
+        }, "library-shutdown"));
+        server.start();
+        System.out.println("Serving " + library.getBookCount() + " books and " + library.getMemberCount()
+                + " members on http://localhost:" + server.getPort() + "/ (Ctrl+C to stop)");
+    }
+    
+    /**
+     * Record operation metrics and publish them over JMX
+     */
+    private static void startMetrics() {
+        LibraryMetrics metrics = new LibraryMetrics();
+        library.setMetrics(metrics);
+        try {
+            metrics.registerMBean(METRICS_MBEAN_NAME);
+        } catch (JMException e) {
+            System.err.println("Warning: Could not register metrics with JMX: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Keep the loan history next to the library's data
+     * @param dataDir Data directory
+     */
+    private static void openHistory(String dataDir) {
+        try {
+            history = CirculationHistory.open(Paths.get(dataDir, HISTORY_DIR));
+            library.setHistory(history);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not open circulation history. Loans will not be recorded. ("
+                    + e.getMessage() + ")");
+        }
+    }
+    
+    /**
+     * Recommend books from co-borrowing, starting from the loans in the history
+     */
+    private static void startRecommender() {
+        recommender = new Recommender();
+        if (history != null) {
+            recommender.learn(history);
+        }
+        library.setRecommender(recommender);
+    }
+    
+    /**
+     * Save a final snapshot and close the data store
+     */
+    private static void closeStore() {
+        if (recommender != null) {
+            library.setRecommender(null);
+            recommender.close();
+        }
+        if (history != null) {
+            library.setHistory(null);
+            try {
+                history.close();
+            } catch (IOException e) {
+                System.out.println("Warning: Could not save circulation history: " + e.getMessage());
+            }
+        }
+        if (store == null) {
+            return;
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.out.println("Warning: Could not save library state: " + e.getMessage());
+        }
     }
     
     /**
@@ -84,6 +383,17 @@ public class LibraryManagementSystem {
         System.out.println("8.  Borrow Book");
         System.out.println("9.  Return Book");
         System.out.println("10. Display Statistics");
+        System.out.println("11. Search Books");
+        System.out.println("12. Add Copies of a Book");
+        System.out.println("13. Place Hold");
+        System.out.println("14. Cancel Hold");
+        System.out.println("15. Renew Book");
+        System.out.println("16. Display Overdue Loans");
+        System.out.println("17. Set Member Loan Limit");
+        System.out.println("18. Display Metrics");
+        System.out.println("19. Browse Books by Author or Title");
+        System.out.println("20. Circulation Report");
+        System.out.println("21. Recommend Books");
         System.out.println("0.  Exit");
         System.out.println("================================");
         System.out.print("Enter your choice: ");
@@ -120,6 +430,9 @@ public class LibraryManagementSystem {
             System.out.println("Error: All fields are required!");
             return;
         }
+        if (!Isbn.isValid(isbn)) {
+            System.out.println("Warning: " + isbn + " is not a valid ISBN-13 or ISBN-10; adding it as entered.");
+        }
         
         library.addBook(title, author, isbn);
     }
@@ -201,7 +514,7 @@ public class LibraryManagementSystem {
      */
     private static void borrowBook() {
         System.out.println("\n--- Borrow Book ---");
-        System.out.print("Enter ISBN of the book: ");
+        System.out.print("Enter ISBN of the book (or ISBN.copy for a specific copy): ");
         String isbn = scanner.nextLine().trim();
         
         System.out.print("Enter member ID: ");
@@ -212,7 +525,12 @@ public class LibraryManagementSystem {
             return;
         }
         
-        library.borrowBook(isbn, memberId);
+        // ISBNs never contain a dot, copy barcodes always do
+        if (isbn.indexOf('.') >= 0) {
+            library.borrowCopy(isbn, memberId);
+        } else {
+            library.borrowBook(isbn, memberId);
+        }
     }
     
     /**
@@ -234,6 +552,116 @@ public class LibraryManagementSystem {
         library.returnBook(isbn, memberId);
     }
     
+    /**
+     * Add copies of an existing book
+     */
+    private static void addCopies() {
+        System.out.println("\n--- Add Copies ---");
+        System.out.print("Enter ISBN of the book: ");
+        String isbn = scanner.nextLine().trim();
+        
+        System.out.print("Enter number of copies to add: ");
+        String count = scanner.nextLine().trim();
+        
+        if (isbn.isEmpty() || count.isEmpty()) {
+            System.out.println("Error: Both ISBN and number of copies are required!");
+            return;
+        }
+        
+        try {
+            library.addCopies(isbn, Integer.parseInt(count));
+        } catch (NumberFormatException e) {
+            System.out.println("Error: Number of copies must be a whole number!");
+        }
+    }
+    
+    /**
+     * Place a hold on a book that is out on loan
+     */
+    private static void placeHold() {
+        System.out.println("\n--- Place Hold ---");
+        System.out.print("Enter ISBN of the book: ");
+        String isbn = scanner.nextLine().trim();
+        
+        System.out.print("Enter member ID: ");
+        String memberId = scanner.nextLine().trim();
+        
+        if (isbn.isEmpty() || memberId.isEmpty()) {
+            System.out.println("Error: Both ISBN and Member ID are required!");
+            return;
+        }
+        
+        library.placeHold(isbn, memberId);
+    }
+    
+    /**
+     * Cancel a member's hold on a book
+     */
+    private static void cancelHold() {
+        System.out.println("\n--- Cancel Hold ---");
+        System.out.print("Enter ISBN of the book: ");
+        String isbn = scanner.nextLine().trim();
+        
+        System.out.print("Enter member ID: ");
+        String memberId = scanner.nextLine().trim();
+        
+        if (isbn.isEmpty() || memberId.isEmpty()) {
+            System.out.println("Error: Both ISBN and Member ID are required!");
+            return;
+        }
+        
+        library.cancelHold(isbn, memberId);
+    }
+    
+    /**
+     * Renew a member's loan
+     */
+    private static void renewBook() {
+        System.out.println("\n--- Renew Book ---");
+        System.out.print("Enter ISBN of the book: ");
+        String isbn = scanner.nextLine().trim();
+        
+        System.out.print("Enter member ID: ");
+        String memberId = scanner.nextLine().trim();
+        
+        if (isbn.isEmpty() || memberId.isEmpty()) {
+            System.out.println("Error: Both ISBN and Member ID are required!");
+            return;
+        }
+        
+        library.renewBook(isbn, memberId);
+    }
+    
+    /**
+     * Display loans that are past their due date
+     */
+    private static void displayOverdueLoans() {
+        library.displayOverdueLoans();
+    }
+    
+    /**
+     * Set how many books a member may have out at once
+     */
+    private static void setLoanLimit() {
+        System.out.println("\n--- Set Member Loan Limit ---");
+        System.out.print("Enter member ID: ");
+        String memberId = scanner.nextLine().trim();
+        
+        System.out.print("Enter loan limit (0 for the library default): ");
+        String limit = scanner.nextLine().trim();
+        
+        if (memberId.isEmpty() || limit.isEmpty()) {
+            System.out.println("Error: Both Member ID and loan limit are required!");
+            return;
+        }
+        
+        try {
+            library.setLoanLimit(memberId, Integer.parseInt(limit));
+        } catch (NumberFormatException e) {
+            System.out.println("Error: Loan limit must be a whole number!");
+        }
+    }
+    
     /**
      * Display library statistics
      */
@@ -241,6 +669,134 @@ public class LibraryManagementSystem {
         library.displayStatistics();
     }
     
+    /**
+     * Display operation counts and latencies
+     */
+    private static void displayMetrics() {
+        library.displayMetrics();
+    }
+    
+    /**
+     * Search books by title or author
+     */
+    private static void searchBooks() {
+        System.out.println("\n--- Search Books ---");
+        System.out.print("Enter title or author words: ");
+        String query = scanner.nextLine().trim();
+        
+        if (query.isEmpty()) {
+            System.out.println("Error: Search text is required!");
+            return;
+        }
+        
+        List<Book> results = library.searchBooks(query, SEARCH_RESULTS);
+        if (results.isEmpty()) {
+            System.out.println("No books match \"" + query + "\".");
+            return;
+        }
+        System.out.println("\n=== Search Results ===");
+        for (int i = 0; i < results.size(); i++) {
+            System.out.println((i + 1) + ". " + results.get(i));
+        }
+    }
+    
+    /**
+     * List the books by an author, or with titles starting with some text
+     */
+    private static void browseBooks() {
+        System.out.println("\n--- Browse Books ---");
+        System.out.print("Enter author (leave blank to browse by title): ");
+        String author = scanner.nextLine().trim();
+        String prefix = "";
+        if (author.isEmpty()) {
+            System.out.print("Enter start of title: ");
+            prefix = scanner.nextLine().trim();
+            if (prefix.isEmpty()) {
+                System.out.println("Error: Author or title is required!");
+                return;
+            }
+        }
+        System.out.print("Available books only? (y/n): ");
+        boolean availableOnly = scanner.nextLine().trim().equalsIgnoreCase("y");
+        
+        List<Book> results = author.isEmpty()
+                ? library.findBooksByTitlePrefix(prefix, availableOnly, BROWSE_RESULTS)
+                : library.findBooksByAuthor(author, availableOnly, BROWSE_RESULTS);
+        if (results.isEmpty()) {
+            System.out.println(author.isEmpty() ? "No titles start with \"" + prefix + "\"."
+                    : "No books by \"" + author + "\".");
+            return;
+        }
+        System.out.println("\n=== " + (author.isEmpty() ? "Titles Starting with \"" + prefix + "\""
+                : "Books by " + author) + " ===");
+        for (int i = 0; i < results.size(); i++) {
+            System.out.println((i + 1) + ". " + results.get(i));
+        }
+    }
+    
+    /**
+     * Display the most borrowed titles of each month of a year
+     */
+    private static void displayCirculationReport() {
+        System.out.println("\n--- Circulation Report ---");
+        if (history == null) {
+            System.out.println("Error: Circulation history is not being kept.");
+            return;
+        }
+        System.out.print("Enter year (leave blank for this year): ");
+        String input = scanner.nextLine().trim();
+        int year;
+        try {
+            year = input.isEmpty() ? Year.now().getValue() : Integer.parseInt(input);
+        } catch (NumberFormatException e) {
+            System.out.println("Error: Year must be a number!");
+            return;
+        }
+        
+        Map<YearMonth, List<CirculationHistory.BookCount>> months = history.topBorrowedByMonth(year, REPORT_TITLES);
+        if (months.isEmpty()) {
+            System.out.println("No loans recorded in " + year + ".");
+            return;
+        }
+        System.out.println("\n=== Most Borrowed Titles, " + year + " ===");
+        for (Map.Entry<YearMonth, List<CirculationHistory.BookCount>> month : months.entrySet()) {
+            System.out.println(month.getKey() + ":");
+            List<CirculationHistory.BookCount> top = month.getValue();
+            for (int i = 0; i < top.size(); i++) {
+                System.out.println("  " + (i + 1) + ". " + top.get(i));
+            }
+        }
+        Map<String, Integer> loans = history.loansPerMember(year);
+        long total = 0;
+        for (int count : loans.values()) {
+            total += count;
+        }
+        System.out.println("Total loans: " + total + ", members borrowing: " + loans.size() + "\n");
+    }
+    
+    /**
+     * List the books most often borrowed by members who borrowed a book
+     */
+    private static void recommendBooks() {
+        System.out.println("\n--- Recommend Books ---");
+        System.out.print("Enter ISBN: ");
+        String isbn = scanner.nextLine().trim();
+        Book book = library.findBookByIsbn(isbn);
+        if (book == null) {
+            System.out.println("Error: Book with ISBN " + isbn + " not found!");
+            return;
+        }
+        List<Book> results = library.recommend(isbn, RECOMMENDATIONS);
+        if (results.isEmpty()) {
+            System.out.println("No recommendations for '" + book.getTitle() + "' yet.");
+            return;
+        }
+        System.out.println("\n=== Members Who Borrowed '" + book.getTitle() + "' Also Borrowed ===");
+        for (int i = 0; i < results.size(); i++) {
+            System.out.println((i + 1) + ". " + results.get(i));
+        }
+    }
+    
     /**
      * Initialize sample data for demonstration
      */
@@ -248,7 +804,7 @@ public class LibraryManagementSystem {
         // Add sample books
         library.addBook("The Great Gatsby", "F. Scott Fitzgerald", "978-0-7432-7356-5");
         library.addBook("To Kill a Mockingbird", "Harper Lee", "978-0-06-112008-4");
-        library.addBook("1984", "George Orwell", "978-0-452-28423-4");
+        library.addBook("1984", "George Orwell", "978-0-452-28423-4", 3);
         library.addBook("Pride and Prejudice", "Jane Austen", "978-0-14-143951-8");
         library.addBook("The Catcher in the Rye", "J.D. Salinger", "978-0-316-76948-0");
         
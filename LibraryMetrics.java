@@ -0,0 +1,280 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * LibraryMetrics counts the calls of each Library operation and records
+ * how long they took
+ *
+ * A Library records into its metrics only while they are attached with
+ * Library.setMetrics(); without them an operation pays one null check.
+ * With them every call is counted with one striped atomic increment, but
+ * only one call in every sampleEvery is timed: reading the clock twice
+ * costs more than the rest of the bookkeeping together, 40 to 80 ns
+ * depending on the machine. Sampled latencies give the same percentiles
+ * on a busy library; use a sampleEvery of 1 to catch every outlier.
+ * Latencies are measured from the call to the return, so they include
+ * waiting for locks, for the log to reach disk and for the event sink.
+ * Safe to use from several threads.
+ */
+public class LibraryMetrics implements LibraryMetricsMXBean {
+    /**
+     * Instrumented operations, named after the Library methods
+     */
+    public enum Operation {
+        ADD_BOOK("addBook"),
+        ADD_COPIES("addCopies"),
+        REMOVE_BOOK("removeBook"),
+        FIND_BOOK("findBookByIsbn"),
+        SEARCH_BOOKS("searchBooks"),
+        ADD_MEMBER("addMember"),
+        REMOVE_MEMBER("removeMember"),
+        FIND_MEMBER("findMemberById"),
+        BORROW_BOOK("borrowBook"),
+        RETURN_BOOK("returnBook"),
+        RENEW_BOOK("renewBook"),
+        PLACE_HOLD("placeHold"),
+        CANCEL_HOLD("cancelHold");
+
+        private final String methodName;
+
+        Operation(String methodName) {
+            this.methodName = methodName;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+    }
+
+    static final int DEFAULT_SAMPLE_EVERY = 8;
+    private static final Operation[] OPERATIONS = Operation.values();
+    // Call counters of one stripe fill whole cache lines of their own
+    private static final int STRIPE_LENGTH = (OPERATIONS.length + 7) & ~7;
+
+    private final AtomicLongArray calls = new AtomicLongArray(LatencyHistogram.STRIPES * STRIPE_LENGTH);
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder[] failures = new LongAdder[OPERATIONS.length];
+    private final int sampleMask;
+
+    /**
+     * Constructor to create empty metrics that time one call in eight
+     */
+    public LibraryMetrics() {
+        this(DEFAULT_SAMPLE_EVERY);
+    }
+
+    /**
+     * Constructor to create empty metrics
+     * @param sampleEvery Time one call in this many, rounded up to a power of two; 1 times every call
+     */
+    public LibraryMetrics(int sampleEvery) {
+        if (sampleEvery < 1 || sampleEvery > 1 << 30) {
+            throw new IllegalArgumentException("Sample rate must be between 1 and 2^30: " + sampleEvery);
+        }
+        this.sampleMask = Integer.highestOneBit(sampleEvery * 2 - 1) - 1;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            failures[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Count a call that is starting
+     * @param operation Operation being called
+     * @return System.nanoTime() if this call is to be timed, 0 otherwise
+     */
+    public long start(Operation operation) {
+        int slot = LatencyHistogram.stripe() * STRIPE_LENGTH + operation.ordinal();
+        // The first call is always timed, so rare operations get a latency too
+        return (calls.incrementAndGet(slot) & sampleMask) == (1 & sampleMask) ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the end of a call counted by start()
+     * @param operation Operation that was called
+     * @param start Value start() returned
+     * @param ok false if the call failed or found nothing
+     */
+    public void finish(Operation operation, long start, boolean ok) {
+        if (start != 0) {
+            latencies[operation.ordinal()].record(System.nanoTime() - start);
+        }
+        if (!ok) {
+            failures[operation.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Get the number of calls of an operation
+     * @param operation Operation
+     * @return Calls counted so far
+     */
+    public long getCount(Operation operation) {
+        long count = 0;
+        for (int slot = operation.ordinal(); slot < calls.length(); slot += STRIPE_LENGTH) {
+            count += calls.get(slot);
+        }
+        return count;
+    }
+
+    /**
+     * Get the latencies recorded for an operation
+     * @param operation Operation
+     * @return Snapshot of its latency histogram, holding the timed calls only
+     */
+    public LatencyHistogram.Snapshot getLatency(Operation operation) {
+        return latencies[operation.ordinal()].snapshot();
+    }
+
+    /**
+     * Get the number of calls of an operation that failed or found nothing
+     * @param operation Operation
+     * @return Failed calls
+     */
+    public long getFailures(Operation operation) {
+        return failures[operation.ordinal()].sum();
+    }
+
+    @Override
+    public List<OperationStats> getOperations() {
+        List<OperationStats> stats = new ArrayList<>(OPERATIONS.length);
+        for (Operation operation : OPERATIONS) {
+            stats.add(new OperationStats(operation.getMethodName(), getCount(operation), getFailures(operation),
+                    getLatency(operation)));
+        }
+        return stats;
+    }
+
+    @Override
+    public String getReport() {
+        return dump();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            latencies[i].reset();
+            failures[i].reset();
+        }
+        for (int slot = 0; slot < calls.length(); slot++) {
+            calls.set(slot, 0);
+        }
+    }
+
+    /**
+     * Format the metrics as a plain-text table, one row per operation that was called
+     * @return Metrics table
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder("=== Operation Metrics ===\n");
+        sb.append(String.format("%-15s %10s %8s %9s %9s %9s %9s %9s %9s%n",
+                "Operation", "Count", "Failed", "Mean", "p50", "p90", "p99", "p99.9", "Max"));
+        boolean any = false;
+        for (OperationStats row : getOperations()) {
+            if (row.getCount() == 0) {
+                continue;
+            }
+            any = true;
+            sb.append(String.format("%-15s %10d %8d %9s %9s %9s %9s %9s %9s%n",
+                    row.getOperation(), row.getCount(), row.getFailures(),
+                    formatNanos(row.getMeanNanos()), formatNanos(row.getP50Nanos()),
+                    formatNanos(row.getP90Nanos()), formatNanos(row.getP99Nanos()),
+                    formatNanos(row.getP999Nanos()), formatNanos(row.getMaxNanos())));
+        }
+        if (!any) {
+            sb.append("No operations recorded yet.\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Register these metrics with the platform MBean server
+     * @param name Object name, e.g. "library:type=Metrics"
+     * @return Registered name
+     * @throws JMException if the name is malformed or already registered
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    private static String formatNanos(double nanos) {
+        if (nanos < 1_000) {
+            return String.format("%.0fns", nanos);
+        } else if (nanos < 1_000_000) {
+            return String.format("%.1fus", nanos / 1e3);
+        } else if (nanos < 1_000_000_000) {
+            return String.format("%.1fms", nanos / 1e6);
+        }
+        return String.format("%.1fs", nanos / 1e9);
+    }
+
+    /**
+     * Counts and latency percentiles of one operation
+     */
+    public static class OperationStats {
+        private final String operation;
+        private final long count;
+        private final long failures;
+        private final double meanNanos;
+        private final long p50Nanos;
+        private final long p90Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+        private final long maxNanos;
+
+        OperationStats(String operation, long count, long failures, LatencyHistogram.Snapshot latency) {
+            this.operation = operation;
+            this.count = count;
+            this.failures = failures;
+            this.meanNanos = latency.getMean();
+            this.p50Nanos = latency.getValueAtPercentile(50);
+            this.p90Nanos = latency.getValueAtPercentile(90);
+            this.p99Nanos = latency.getValueAtPercentile(99);
+            this.p999Nanos = latency.getValueAtPercentile(99.9);
+            this.maxNanos = latency.getMax();
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public double getMeanNanos() {
+            return meanNanos;
+        }
+
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        public long getP90Nanos() {
+            return p90Nanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        public long getP999Nanos() {
+            return p999Nanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+import java.util.List;
+
+/**
+ * Management interface of LibraryMetrics, as seen over JMX
+ * Each operation shows up as one row of the Operations attribute.
+ */
+public interface LibraryMetricsMXBean {
+    /**
+     * Get counts and latency percentiles of every operation
+     * @return One entry per operation
+     */
+    List<LibraryMetrics.OperationStats> getOperations();
+
+    /**
+     * Get the plain-text metrics table
+     * @return Same text as LibraryMetrics.dump()
+     */
+    String getReport();
+
+    /**
+     * Clear all counts and latencies
+     */
+    void reset();
+}
@@ -0,0 +1,43 @@
+/**
+ * LibraryResult says how a Library operation ended
+ *
+ * OK is the only success; every other code names the reason an operation
+ * was refused, so callers can react without parsing the message text.
+ */
+public enum LibraryResult {
+    OK,
+    /** Missing or malformed input, such as an empty title or a bad barcode */
+    INVALID_INPUT,
+    BOOK_NOT_FOUND,
+    MEMBER_NOT_FOUND,
+    COPY_NOT_FOUND,
+    DUPLICATE_BOOK,
+    DUPLICATE_MEMBER,
+    /** The book has copies out on loan */
+    BOOK_BORROWED,
+    /** The member has books out on loan */
+    MEMBER_HAS_LOANS,
+    /** The member is waiting for books */
+    MEMBER_HAS_HOLDS,
+    /** No copy, or not the requested copy, is on the shelf */
+    NOT_AVAILABLE,
+    /** A copy is on the shelf, so a hold is not needed */
+    AVAILABLE,
+    ALREADY_BORROWED,
+    NOT_BORROWED,
+    LOAN_LIMIT_REACHED,
+    ALREADY_ON_HOLD,
+    NO_HOLD,
+    /** A renewal was refused because other members are waiting */
+    HOLDS_WAITING,
+    RENEWAL_LIMIT_REACHED,
+    OVERDUE;
+
+    /**
+     * Check whether the operation succeeded
+     * @return true for OK
+     */
+    public boolean isOk() {
+        return this == OK;
+    }
+}
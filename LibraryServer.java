@@ -0,0 +1,1039 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Year;
+import java.time.YearMonth;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LibraryServer exposes a Library as a small HTTP/JSON service
+ *
+ *   GET    /books?limit=n&cursor=c       page of books (or offset=n; available=true for the shelf)
+ *   GET    /books/{isbn}                 book details
+ *   POST   /books                        add a book (title, author, isbn, optional copies)
+ *   DELETE /books/{isbn}                 remove a book
+ *   POST   /books/{isbn}/copies          add copies of a book (count)
+ *   POST   /books/{isbn}/borrow          borrow a book (memberId, optional copy)
+ *   POST   /books/{isbn}/return          return a book (memberId)
+ *   POST   /books/{isbn}/renew           renew a loan (memberId)
+ *   GET    /books/{isbn}/holds           members waiting, in serving order
+ *   POST   /books/{isbn}/holds           place a hold (memberId, optional priority)
+ *   DELETE /books/{isbn}/holds/{id}      cancel a hold
+ *   GET    /books/{isbn}/recommendations members who borrowed it also borrowed (limit=n)
+ *   GET    /members?limit=n&cursor=c     page of members with loans (or offset=n)
+ *   GET    /members/{id}                 member details and loans
+ *   POST   /members                      add a member (name, memberId)
+ *   DELETE /members/{id}                 remove a member
+ *   POST   /members/{id}/limit           set a member's loan limit (limit, 0 for the default)
+ *   GET    /search?q=words&limit=n       ranked title/author search
+ *   GET    /browse?author=a|title=t      books by an author, or titles starting with t
+ *                                        (available=true for books on the shelf, limit=n)
+ *   GET    /overdue                      overdue loans with fines so far
+ *   GET    /stats                        statistics counters
+ *   GET    /metrics                      operation counts and latency percentiles
+ *   GET    /history?year=y&limit=n       most borrowed titles of each month, loans per member
+ *
+ * Parameters can be given in the query string, as a form body or as a
+ * flat JSON object. Responses are JSON with an exact Content-Length, so
+ * HTTP/1.1 clients keep their connections open between requests; pages
+ * of books and members are streamed with chunked encoding instead and
+ * end with the cursor for the next page ("next", null on the last).
+ * Refused operations carry the LibraryResult as "code" next to "error". Each
+ * request runs on its own virtual thread when the JVM has them (Java 21
+ * and later) and on a fixed worker pool otherwise. The library should be
+ * created in concurrent mode.
+ */
+public class LibraryServer {
+    private static final int DEFAULT_SEARCH_LIMIT = 10;
+    private static final int MAX_SEARCH_LIMIT = 100;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int DEFAULT_PAGE_LIMIT = 100;
+    private static final int MAX_PAGE_LIMIT = 10_000;
+
+    private final Library library;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // Event sink the library had before start(), restored by stop()
+    private EventSink consoleEvents = EventSink.NONE;
+
+    /**
+     * Constructor to create a server; call start() to begin accepting requests
+     * @param library Library to serve
+     * @param port TCP port, or 0 to pick a free one
+     * @throws IOException if the port cannot be bound
+     */
+    public LibraryServer(Library library, int port) throws IOException {
+        this.library = library;
+        // Small JSON responses would otherwise sit in Nagle's buffer waiting
+        // for the client's delayed ACK (about 40 ms per request)
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        this.executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/books", exchange -> serve(exchange, this::handleBooks));
+        server.createContext("/members", exchange -> serve(exchange, this::handleMembers));
+        server.createContext("/search", exchange -> serve(exchange, this::handleSearch));
+        server.createContext("/browse", exchange -> serve(exchange, this::handleBrowse));
+        server.createContext("/stats", exchange -> serve(exchange, this::handleStats));
+        server.createContext("/overdue", exchange -> serve(exchange, this::handleOverdue));
+        server.createContext("/metrics", exchange -> serve(exchange, this::handleMetrics));
+        server.createContext("/history", exchange -> serve(exchange, this::handleHistory));
+    }
+
+    /**
+     * Start accepting requests
+     * Library events are switched off while serving; responses carry the results.
+     */
+    public void start() {
+        consoleEvents = library.getEventSink();
+        library.setEventSink(EventSink.NONE);
+        server.start();
+    }
+
+    /**
+     * Stop accepting requests and wait briefly for those in progress
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        library.setEventSink(consoleEvents);
+    }
+
+    /**
+     * Get the port the server is listening on
+     * @return Bound port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Use a virtual thread per request when available (Java 21+), otherwise
+     * a fixed pool large enough to cover requests waiting on log commits
+     */
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            int threads = Math.max(16, Runtime.getRuntime().availableProcessors() * 8);
+            return Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "library-http");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Handles one endpoint
+     */
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * Run a handler, turning malformed requests into 400 responses
+     */
+    private static void serve(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            handler.handle(exchange);
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, error(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Handlers
+
+    private void handleBooks(HttpExchange exchange) throws IOException {
+        String[] path = pathAfter(exchange, "/books");
+        String method = exchange.getRequestMethod();
+        if (path.length == 0) {
+            if (method.equals("GET")) {
+                listBooks(exchange);
+                return;
+            }
+            if (!method.equals("POST")) {
+                send(exchange, 405, error("Use GET to list books or POST to add one"));
+                return;
+            }
+            Map<String, String> params = params(exchange);
+            String title = params.get("title");
+            String author = params.get("author");
+            String isbn = params.get("isbn");
+            int copies = intParam(params, "copies", 1);
+            String problem = Library.validateBook(title, author, isbn);
+            if (problem == null) {
+                problem = Library.validateCopies(copies);
+            }
+            if (problem != null) {
+                send(exchange, 400, error(problem));
+                return;
+            }
+            LibraryResult result = library.addBook(title, author, isbn, copies);
+            if (result.isOk()) {
+                sendBook(exchange, 201, isbn);
+            } else {
+                fail(exchange, result, isbn, null);
+            }
+        } else if (path.length == 1) {
+            String isbn = path[0];
+            if (method.equals("GET")) {
+                Book found = library.findBookByIsbn(isbn);
+                if (found == null) {
+                    send(exchange, 404, error("Book with ISBN " + isbn + " not found!"));
+                } else {
+                    send(exchange, 200, book(new StringBuilder(), found).toString());
+                }
+            } else if (method.equals("DELETE")) {
+                respond(exchange, library.removeBook(isbn), isbn, null);
+            } else {
+                send(exchange, 405, error("Use GET or DELETE on a book"));
+            }
+        } else if (path.length == 2 && path[1].equals("copies")) {
+            if (!method.equals("POST")) {
+                send(exchange, 405, error("Use POST to add copies"));
+                return;
+            }
+            int count = intParam(params(exchange), "count", 0);
+            String problem = Library.validateCopies(count);
+            if (problem != null) {
+                send(exchange, 400, error(problem));
+                return;
+            }
+            LibraryResult result = library.addCopies(path[0], count);
+            if (result.isOk()) {
+                sendBook(exchange, 200, path[0]);
+            } else if (result == LibraryResult.INVALID_INPUT) {
+                send(exchange, 409, error(result, "Copies cannot be added to this book"));
+            } else {
+                fail(exchange, result, path[0], null);
+            }
+        } else if (path.length == 2 && (path[1].equals("borrow") || path[1].equals("return"))) {
+            if (!method.equals("POST")) {
+                send(exchange, 405, error("Use POST to " + path[1] + " a book"));
+                return;
+            }
+            Map<String, String> params = params(exchange);
+            String memberId = params.get("memberId");
+            if (memberId == null || memberId.trim().isEmpty()) {
+                send(exchange, 400, error("Member ID cannot be empty!"));
+                return;
+            }
+            int copy = intParam(params, "copy", 0);
+            LibraryResult result;
+            if (path[1].equals("return")) {
+                result = library.returnBook(path[0], memberId);
+            } else if (copy > 0) {
+                result = library.borrowCopy(path[0] + "." + copy, memberId);
+            } else {
+                result = library.borrowBook(path[0], memberId);
+            }
+            respond(exchange, result, path[0], memberId);
+        } else if (path.length == 2 && path[1].equals("renew")) {
+            if (!method.equals("POST")) {
+                send(exchange, 405, error("Use POST to renew a loan"));
+                return;
+            }
+            String memberId = params(exchange).get("memberId");
+            if (memberId == null || memberId.trim().isEmpty()) {
+                send(exchange, 400, error("Member ID cannot be empty!"));
+            } else {
+                respond(exchange, library.renewBook(path[0], memberId), path[0], memberId);
+            }
+        } else if (path.length >= 2 && path[1].equals("holds")) {
+            handleHolds(exchange, path);
+        } else if (path.length == 2 && path[1].equals("recommendations")) {
+            handleRecommendations(exchange, path[0]);
+        } else {
+            send(exchange, 404, error("Unknown path"));
+        }
+    }
+
+    private void handleHolds(HttpExchange exchange, String[] path) throws IOException {
+        String isbn = path[0];
+        String method = exchange.getRequestMethod();
+        if (path.length == 3) {
+            if (!method.equals("DELETE")) {
+                send(exchange, 405, error("Use DELETE to cancel a hold"));
+            } else {
+                respond(exchange, library.cancelHold(isbn, path[2]), isbn, path[2]);
+            }
+        } else if (path.length != 2) {
+            send(exchange, 404, error("Unknown path"));
+        } else if (method.equals("GET")) {
+            if (library.findBookByIsbn(isbn) == null) {
+                send(exchange, 404, error("Book with ISBN " + isbn + " not found!"));
+                return;
+            }
+            List<HoldQueues.Hold> holds = library.getHolds(isbn);
+            StringBuilder json = new StringBuilder(32 + holds.size() * 64);
+            json.append("{\"count\":").append(holds.size()).append(",\"holds\":[");
+            for (int i = 0; i < holds.size(); i++) {
+                HoldQueues.Hold hold = holds.get(i);
+                json.append(i > 0 ? ",{\"memberId\":" : "{\"memberId\":");
+                quote(json, hold.getMemberId());
+                json.append(",\"priority\":").append(hold.getPriority())
+                        .append(",\"expiresAt\":").append(hold.getExpiresAt()).append('}');
+            }
+            send(exchange, 200, json.append("]}").toString());
+        } else if (method.equals("POST")) {
+            Map<String, String> params = params(exchange);
+            String memberId = params.get("memberId");
+            if (memberId == null || memberId.trim().isEmpty()) {
+                send(exchange, 400, error("Member ID cannot be empty!"));
+                return;
+            }
+            LibraryResult result = library.placeHold(isbn, memberId, intParam(params, "priority", 0));
+            if (result.isOk()) {
+                send(exchange, 201, "{\"ok\":true,\"waiting\":" + library.getHoldCount(isbn) + "}");
+            } else {
+                fail(exchange, result, isbn, memberId);
+            }
+        } else {
+            send(exchange, 405, error("Use GET or POST on holds"));
+        }
+    }
+
+    private void handleRecommendations(HttpExchange exchange, String isbn) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            send(exchange, 405, error("Use GET for recommendations"));
+            return;
+        }
+        if (library.findBookByIsbn(isbn) == null) {
+            send(exchange, 404, error("Book with ISBN " + isbn + " not found!"));
+            return;
+        }
+        Map<String, String> params = params(exchange);
+        int limit = DEFAULT_SEARCH_LIMIT;
+        if (params.containsKey("limit")) {
+            try {
+                limit = Math.max(1, Math.min(MAX_SEARCH_LIMIT, Integer.parseInt(params.get("limit"))));
+            } catch (NumberFormatException e) {
+                send(exchange, 400, error("limit must be a number"));
+                return;
+            }
+        }
+        List<Book> results = library.recommend(isbn, limit);
+        StringBuilder json = new StringBuilder(64 + results.size() * 96);
+        json.append("{\"count\":").append(results.size()).append(",\"books\":[");
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            book(json, results.get(i));
+        }
+        json.append("]}");
+        send(exchange, 200, json.toString());
+    }
+
+    private void handleMembers(HttpExchange exchange) throws IOException {
+        String[] path = pathAfter(exchange, "/members");
+        String method = exchange.getRequestMethod();
+        if (path.length == 0) {
+            if (method.equals("GET")) {
+                listMembers(exchange);
+                return;
+            }
+            if (!method.equals("POST")) {
+                send(exchange, 405, error("Use GET to list members or POST to add one"));
+                return;
+            }
+            Map<String, String> params = params(exchange);
+            String name = params.get("name");
+            String memberId = params.get("memberId");
+            String problem = Library.validateMember(name, memberId);
+            if (problem != null) {
+                send(exchange, 400, error(problem));
+            } else {
+                LibraryResult result = library.addMember(name, memberId);
+                if (result.isOk()) {
+                    send(exchange, 201, member(library.findMemberById(memberId)));
+                } else {
+                    fail(exchange, result, null, memberId);
+                }
+            }
+        } else if (path.length == 1) {
+            String memberId = path[0];
+            if (method.equals("GET")) {
+                Member found = library.findMemberById(memberId);
+                if (found == null) {
+                    send(exchange, 404, error("Member with ID " + memberId + " not found!"));
+                } else {
+                    send(exchange, 200, member(found));
+                }
+            } else if (method.equals("DELETE")) {
+                respond(exchange, library.removeMember(memberId), null, memberId);
+            } else {
+                send(exchange, 405, error("Use GET or DELETE on a member"));
+            }
+        } else if (path.length == 2 && path[1].equals("limit")) {
+            if (!method.equals("POST")) {
+                send(exchange, 405, error("Use POST to set a loan limit"));
+                return;
+            }
+            int limit = intParam(params(exchange), "limit", -1);
+            if (limit < 0) {
+                send(exchange, 400, error("limit must be a whole number, 0 for the library default"));
+            } else {
+                respond(exchange, library.setLoanLimit(path[0], limit), null, path[0]);
+            }
+        } else {
+            send(exchange, 404, error("Unknown path"));
+        }
+    }
+
+    private void listBooks(HttpExchange exchange) throws IOException {
+        Map<String, String> params = params(exchange);
+        int limit = pageLimit(params);
+        boolean availableOnly = "true".equals(params.get("available"));
+        String cursor = params.get("cursor");
+        int offset = intParam(params, "offset", 0);
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        // Not try-with-resources: closing would send a 200 for a bad cursor
+        ListingWriter writer = startListing(exchange, "books");
+        String next = null;
+        if (offset > 0) {
+            library.writeBooks(writer, availableOnly, offset, limit);
+        } else {
+            next = library.writeBooksAfter(writer, availableOnly, cursor, limit);
+        }
+        endListing(writer, next);
+    }
+
+    private void listMembers(HttpExchange exchange) throws IOException {
+        Map<String, String> params = params(exchange);
+        int limit = pageLimit(params);
+        String cursor = params.get("cursor");
+        int offset = intParam(params, "offset", 0);
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        ListingWriter writer = startListing(exchange, "members");
+        String next = null;
+        if (offset > 0) {
+            library.writeMembers(writer, offset, limit);
+        } else {
+            next = library.writeMembersAfter(writer, cursor, limit);
+        }
+        endListing(writer, next);
+    }
+
+    private static int pageLimit(Map<String, String> params) {
+        int limit = intParam(params, "limit", DEFAULT_PAGE_LIMIT);
+        if (limit < 1 || limit > MAX_PAGE_LIMIT) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE_LIMIT);
+        }
+        return limit;
+    }
+
+    /**
+     * Start a chunked 200 response and open the JSON array of rows
+     * A malformed cursor is found before the first row is written, so it
+     * still gets a 400: the headers go out with the first buffer flush.
+     */
+    private static ListingWriter startListing(HttpExchange exchange, String name) {
+        ListingWriter writer = new ListingWriter(new StreamedBody(exchange), ListingWriter.Format.JSON);
+        writer.append("{\"").append(name).append("\":[");
+        return writer;
+    }
+
+    private static void endListing(ListingWriter writer, String next) throws IOException {
+        writer.append("],\"next\":").appendJson(next).append('}');
+        writer.close();
+    }
+
+    /**
+     * Response body that sends the 200 headers on its first write, so a
+     * listing that fails validation can still answer with an error
+     */
+    private static final class StreamedBody extends OutputStream {
+        private final HttpExchange exchange;
+        private OutputStream body;
+
+        StreamedBody(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        private OutputStream body() throws IOException {
+            if (body == null) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                body = exchange.getResponseBody();
+            }
+            return body;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            body().write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            body().write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (body != null) {
+                body.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (body != null) {
+                body.close();
+            }
+        }
+    }
+
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            send(exchange, 405, error("Use GET to search"));
+            return;
+        }
+        Map<String, String> params = params(exchange);
+        String query = params.get("q");
+        if (query == null || query.trim().isEmpty()) {
+            send(exchange, 400, error("Search query cannot be empty!"));
+            return;
+        }
+        int limit = DEFAULT_SEARCH_LIMIT;
+        if (params.containsKey("limit")) {
+            try {
+                limit = Math.max(1, Math.min(MAX_SEARCH_LIMIT, Integer.parseInt(params.get("limit"))));
+            } catch (NumberFormatException e) {
+                send(exchange, 400, error("limit must be a number"));
+                return;
+            }
+        }
+        List<Book> results = library.searchBooks(query, limit);
+        StringBuilder json = new StringBuilder(64 + results.size() * 96);
+        json.append("{\"count\":").append(results.size()).append(",\"books\":[");
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            book(json, results.get(i));
+        }
+        json.append("]}");
+        send(exchange, 200, json.toString());
+    }
+
+    private void handleBrowse(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            send(exchange, 405, error("Use GET to browse"));
+            return;
+        }
+        Map<String, String> params = params(exchange);
+        String author = params.get("author");
+        String title = params.get("title");
+        if ((author == null || author.trim().isEmpty()) == (title == null || title.trim().isEmpty())) {
+            send(exchange, 400, error("Give either author or title"));
+            return;
+        }
+        int limit = MAX_SEARCH_LIMIT;
+        if (params.containsKey("limit")) {
+            try {
+                limit = Math.max(1, Math.min(MAX_PAGE_LIMIT, Integer.parseInt(params.get("limit"))));
+            } catch (NumberFormatException e) {
+                send(exchange, 400, error("limit must be a number"));
+                return;
+            }
+        }
+        boolean availableOnly = "true".equals(params.get("available"));
+        List<Book> results = author != null && !author.trim().isEmpty()
+                ? library.findBooksByAuthor(author, availableOnly, limit)
+                : library.findBooksByTitlePrefix(title, availableOnly, limit);
+        StringBuilder json = new StringBuilder(64 + results.size() * 96);
+        json.append("{\"count\":").append(results.size()).append(",\"books\":[");
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            book(json, results.get(i));
+        }
+        json.append("]}");
+        send(exchange, 200, json.toString());
+    }
+
+    private void handleOverdue(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            send(exchange, 405, error("Use GET for overdue loans"));
+            return;
+        }
+        List<Loan> overdue = library.getOverdueLoans();
+        StringBuilder json = new StringBuilder(32 + overdue.size() * 96);
+        json.append("{\"count\":").append(overdue.size()).append(",\"loans\":[");
+        for (int i = 0; i < overdue.size(); i++) {
+            Loan loan = overdue.get(i);
+            json.append(i > 0 ? ",{\"barcode\":" : "{\"barcode\":");
+            quote(json, loan.getBarcode());
+            json.append(",\"memberId\":");
+            quote(json, loan.getMember().getMemberId());
+            json.append(",\"dueAt\":").append(loan.getDueAt())
+                    .append(",\"fine\":").append(library.getFine(loan)).append('}');
+        }
+        send(exchange, 200, json.append("]}").toString());
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            send(exchange, 405, error("Use GET for statistics"));
+            return;
+        }
+        LibraryStats.Snapshot stats = library.getStatistics();
+        send(exchange, 200, "{\"totalTitles\":" + stats.getTotalTitles()
+                + ",\"totalBooks\":" + stats.getTotalBooks()
+                + ",\"availableBooks\":" + stats.getAvailableBooks()
+                + ",\"borrowedBooks\":" + stats.getBorrowedBooks()
+                + ",\"totalMembers\":" + stats.getTotalMembers()
+                + ",\"totalLoans\":" + stats.getTotalLoans() + "}");
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            send(exchange, 405, error("Use GET for metrics"));
+            return;
+        }
+        LibraryMetrics metrics = library.getMetrics();
+        if (metrics == null) {
+            send(exchange, 200, "{\"enabled\":false,\"operations\":[]}");
+            return;
+        }
+        StringBuilder json = new StringBuilder("{\"enabled\":true,\"operations\":[");
+        boolean first = true;
+        for (LibraryMetrics.OperationStats row : metrics.getOperations()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"operation\":\"").append(row.getOperation())
+                    .append("\",\"count\":").append(row.getCount())
+                    .append(",\"failures\":").append(row.getFailures())
+                    .append(",\"meanNanos\":").append(Math.round(row.getMeanNanos()))
+                    .append(",\"p50Nanos\":").append(row.getP50Nanos())
+                    .append(",\"p90Nanos\":").append(row.getP90Nanos())
+                    .append(",\"p99Nanos\":").append(row.getP99Nanos())
+                    .append(",\"p999Nanos\":").append(row.getP999Nanos())
+                    .append(",\"maxNanos\":").append(row.getMaxNanos()).append('}');
+        }
+        send(exchange, 200, json.append("]}").toString());
+    }
+
+    private void handleHistory(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            send(exchange, 405, error("Use GET for circulation history"));
+            return;
+        }
+        CirculationHistory history = library.getHistory();
+        if (history == null) {
+            send(exchange, 404, error("Circulation history is not being kept"));
+            return;
+        }
+        Map<String, String> params = params(exchange);
+        int year;
+        int limit = DEFAULT_SEARCH_LIMIT;
+        try {
+            year = params.containsKey("year") ? Integer.parseInt(params.get("year")) : Year.now().getValue();
+            if (params.containsKey("limit")) {
+                limit = Math.max(1, Math.min(MAX_SEARCH_LIMIT, Integer.parseInt(params.get("limit"))));
+            }
+        } catch (NumberFormatException e) {
+            send(exchange, 400, error("year and limit must be numbers"));
+            return;
+        }
+        StringBuilder json = new StringBuilder(256).append("{\"year\":").append(year).append(",\"months\":[");
+        boolean first = true;
+        for (Map.Entry<YearMonth, List<CirculationHistory.BookCount>> month
+                : history.topBorrowedByMonth(year, limit).entrySet()) {
+            json.append(first ? "{\"month\":\"" : ",{\"month\":\"").append(month.getKey()).append("\",\"books\":[");
+            first = false;
+            List<CirculationHistory.BookCount> top = month.getValue();
+            for (int i = 0; i < top.size(); i++) {
+                json.append(i > 0 ? ",{\"isbn\":" : "{\"isbn\":");
+                quote(json, top.get(i).getIsbn());
+                json.append(",\"title\":");
+                quote(json, top.get(i).getTitle());
+                json.append(",\"loans\":").append(top.get(i).getLoans()).append('}');
+            }
+            json.append("]}");
+        }
+        json.append("],\"memberLoans\":{");
+        first = true;
+        for (Map.Entry<String, Integer> member : history.loansPerMember(year).entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            quote(json, member.getKey());
+            json.append(':').append(member.getValue());
+        }
+        send(exchange, 200, json.append("}}").toString());
+    }
+
+    /**
+     * Answer {"ok":true}, or the error for a refused operation
+     */
+    private void respond(HttpExchange exchange, LibraryResult result, String isbn, String memberId)
+            throws IOException {
+        if (result.isOk()) {
+            send(exchange, 200, "{\"ok\":true}");
+        } else {
+            fail(exchange, result, isbn, memberId);
+        }
+    }
+
+    /**
+     * Answer with a book that was just added to, or 404 if another request
+     * has removed it since
+     */
+    private void sendBook(HttpExchange exchange, int status, String isbn) throws IOException {
+        Book found = library.findBookByIsbn(isbn);
+        if (found == null) {
+            fail(exchange, LibraryResult.BOOK_NOT_FOUND, isbn, null);
+        } else {
+            send(exchange, status, book(new StringBuilder(), found).toString());
+        }
+    }
+
+    /**
+     * Answer a refused operation: 400 for bad input, 404 when what it was
+     * about does not exist, 409 when the library's state does not allow it
+     */
+    private void fail(HttpExchange exchange, LibraryResult result, String isbn, String memberId)
+            throws IOException {
+        int status;
+        switch (result) {
+            case INVALID_INPUT:
+                status = 400;
+                break;
+            case BOOK_NOT_FOUND:
+            case MEMBER_NOT_FOUND:
+            case COPY_NOT_FOUND:
+            case NO_HOLD:
+                status = 404;
+                break;
+            default:
+                status = 409;
+        }
+        send(exchange, status, error(result, problem(result, isbn, memberId)));
+    }
+
+    private String problem(LibraryResult result, String isbn, String memberId) {
+        switch (result) {
+            case INVALID_INPUT: return "Invalid request.";
+            case BOOK_NOT_FOUND: return "Book with ISBN " + isbn + " not found!";
+            case MEMBER_NOT_FOUND: return "Member with ID " + memberId + " not found!";
+            case COPY_NOT_FOUND: return "Copy not found!";
+            case DUPLICATE_BOOK: return "Book with ISBN " + isbn + " already exists!";
+            case DUPLICATE_MEMBER: return "Member with ID " + memberId + " already exists!";
+            case BOOK_BORROWED: return "Cannot remove book. It is currently borrowed.";
+            case MEMBER_HAS_LOANS: return "Cannot remove member. They have borrowed books.";
+            case MEMBER_HAS_HOLDS: return "Cannot remove member. They have holds waiting.";
+            case NOT_AVAILABLE: return "Book is not available. No copy is on the shelf.";
+            case AVAILABLE: return "Book is available. Borrow it instead.";
+            case ALREADY_BORROWED: return "Member " + memberId + " has already borrowed this book.";
+            case NOT_BORROWED: return "Member " + memberId + " has not borrowed this book.";
+            case LOAN_LIMIT_REACHED:
+                Member member = library.findMemberById(memberId);
+                return "Member " + memberId + " has reached the loan limit"
+                        + (member == null ? "." : " (" + library.loanLimit(member) + ").");
+            case ALREADY_ON_HOLD: return "Member " + memberId + " already has a hold on this book.";
+            case NO_HOLD: return "Member " + memberId + " has no hold on ISBN " + isbn + ".";
+            case HOLDS_WAITING: return "Cannot renew. Other members are waiting for this book.";
+            case RENEWAL_LIMIT_REACHED:
+                return "Cannot renew. The loan has already been renewed " + Library.MAX_RENEWALS + " times.";
+            case OVERDUE: return "Cannot renew. The book is overdue; please return it.";
+            default: return result.name();
+        }
+    }
+
+    // Request parsing
+
+    /**
+     * Read a whole-number parameter
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    private static int intParam(Map<String, String> params, String name, int defaultValue) {
+        String value = params.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    /**
+     * Get the decoded path segments after a context prefix
+     */
+    private static String[] pathAfter(HttpExchange exchange, String prefix) {
+        String rest = exchange.getRequestURI().getRawPath().substring(prefix.length());
+        int start = 0;
+        while (start < rest.length() && rest.charAt(start) == '/') {
+            start++;
+        }
+        int end = rest.length();
+        while (end > start && rest.charAt(end - 1) == '/') {
+            end--;
+        }
+        if (start == end) {
+            return new String[0];
+        }
+        String[] segments = rest.substring(start, end).split("/");
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = URLDecoder.decode(segments[i], StandardCharsets.UTF_8);
+        }
+        return segments;
+    }
+
+    /**
+     * Collect query string parameters plus any form or JSON body
+     * @throws IllegalArgumentException if the body is malformed or too large
+     */
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        String body = readBody(exchange);
+        if (!body.isEmpty()) {
+            String type = exchange.getRequestHeaders().getFirst("Content-Type");
+            if ((type != null && type.startsWith("application/json")) || body.trim().startsWith("{")) {
+                parseJsonObject(body, params);
+            } else {
+                parseForm(body, params);
+            }
+        }
+        return params;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (body.size() + read > MAX_BODY_BYTES) {
+                throw new IllegalArgumentException("Request body too large");
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Read a flat JSON object of string, number or boolean values
+     * Nested objects and arrays are not needed by any endpoint and are rejected.
+     */
+    private static void parseJsonObject(String json, Map<String, String> params) {
+        int[] pos = {skipSpace(json, 0)};
+        expect(json, pos, '{');
+        pos[0] = skipSpace(json, pos[0]);
+        if (pos[0] < json.length() && json.charAt(pos[0]) == '}') {
+            return;
+        }
+        while (true) {
+            pos[0] = skipSpace(json, pos[0]);
+            String name = jsonString(json, pos);
+            pos[0] = skipSpace(json, pos[0]);
+            expect(json, pos, ':');
+            pos[0] = skipSpace(json, pos[0]);
+            String value;
+            if (pos[0] < json.length() && json.charAt(pos[0]) == '"') {
+                value = jsonString(json, pos);
+            } else {
+                int start = pos[0];
+                while (pos[0] < json.length() && ",} \t\r\n".indexOf(json.charAt(pos[0])) < 0) {
+                    pos[0]++;
+                }
+                value = json.substring(start, pos[0]);
+                if (value.isEmpty()) {
+                    throw new IllegalArgumentException("Malformed JSON: missing value at position " + pos[0]);
+                }
+                if (value.startsWith("{") || value.startsWith("[")) {
+                    throw new IllegalArgumentException("Only flat JSON objects are supported");
+                }
+                if (value.equals("null")) {
+                    value = null;
+                }
+            }
+            params.put(name, value);
+            pos[0] = skipSpace(json, pos[0]);
+            if (pos[0] < json.length() && json.charAt(pos[0]) == ',') {
+                pos[0]++;
+                continue;
+            }
+            expect(json, pos, '}');
+            return;
+        }
+    }
+
+    private static String jsonString(String json, int[] pos) {
+        expect(json, pos, '"');
+        StringBuilder value = new StringBuilder();
+        while (pos[0] < json.length()) {
+            char c = json.charAt(pos[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (pos[0] >= json.length()) {
+                break;
+            }
+            char escaped = json.charAt(pos[0]++);
+            switch (escaped) {
+                case 'n': value.append('\n'); break;
+                case 't': value.append('\t'); break;
+                case 'r': value.append('\r'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'u':
+                    if (pos[0] + 4 > json.length()) {
+                        throw new IllegalArgumentException("Bad JSON escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Bad JSON escape", e);
+                    }
+                    pos[0] += 4;
+                    break;
+                default: value.append(escaped);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated JSON string");
+    }
+
+    private static void expect(String json, int[] pos, char c) {
+        if (pos[0] >= json.length() || json.charAt(pos[0]) != c) {
+            throw new IllegalArgumentException("Malformed JSON: expected '" + c + "' at position " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static int skipSpace(String json, int pos) {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    // Responses
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    private static String error(String message) {
+        StringBuilder json = new StringBuilder(message.length() + 24);
+        json.append("{\"ok\":false,\"error\":");
+        quote(json, message);
+        return json.append('}').toString();
+    }
+
+    private static String error(LibraryResult result, String message) {
+        StringBuilder json = new StringBuilder(message.length() + 48);
+        json.append("{\"ok\":false,\"code\":\"").append(result.name()).append("\",\"error\":");
+        quote(json, message);
+        return json.append('}').toString();
+    }
+
+    private static StringBuilder book(StringBuilder json, Book book) {
+        json.append("{\"isbn\":");
+        quote(json, book.getIsbn());
+        json.append(",\"title\":");
+        quote(json, book.getTitle());
+        json.append(",\"author\":");
+        quote(json, book.getAuthor());
+        return json.append(",\"available\":").append(book.isAvailable())
+                .append(",\"copies\":").append(book.getCopyCount())
+                .append(",\"availableCopies\":").append(book.getAvailableCopies()).append('}');
+    }
+
+    private String member(Member member) {
+        StringBuilder json = new StringBuilder(128);
+        json.append("{\"memberId\":");
+        quote(json, member.getMemberId());
+        json.append(",\"name\":");
+        quote(json, member.getName());
+        json.append(",\"loans\":[");
+        List<String> loans = library.loanIsbns(member);
+        for (int i = 0; i < loans.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            quote(json, loans.get(i));
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void quote(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LibraryStats keeps running counts of books, members and loans
+ *
+ * Book counts are of physical copies: a title with three copies adds three
+ * books, and each loan moves one copy from available to borrowed. Titles
+ * are counted separately.
+ * Library updates the counters as each add, remove, borrow and return
+ * happens, so reading them never requires walking the catalog. Counters
+ * are LongAdders, which stay cheap when many desks update them at once.
+ * A snapshot reads each counter once; while writes are in flight the
+ * values can be a moment apart from each other, but each one is exact.
+ */
+public class LibraryStats {
+    private final LongAdder totalTitles = new LongAdder();
+    private final LongAdder totalBooks = new LongAdder();
+    private final LongAdder availableBooks = new LongAdder();
+    private final LongAdder totalMembers = new LongAdder();
+    private final LongAdder totalLoans = new LongAdder();
+    // Loans ever made per author, and loans currently held per member
+    private final ConcurrentHashMap<String, LongAdder> authorLoans = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> memberLoans = new ConcurrentHashMap<>();
+
+    /**
+     * Point-in-time copy of the headline counters
+     */
+    public static final class Snapshot {
+        private final long totalTitles;
+        private final long totalBooks;
+        private final long availableBooks;
+        private final long totalMembers;
+        private final long totalLoans;
+
+        Snapshot(long totalTitles, long totalBooks, long availableBooks, long totalMembers, long totalLoans) {
+            this.totalTitles = totalTitles;
+            this.totalBooks = totalBooks;
+            this.availableBooks = availableBooks;
+            this.totalMembers = totalMembers;
+            this.totalLoans = totalLoans;
+        }
+
+        public long getTotalTitles() {
+            return totalTitles;
+        }
+
+        /**
+         * Get the number of copies of all titles
+         * @return Copy count
+         */
+        public long getTotalBooks() {
+            return totalBooks;
+        }
+
+        public long getAvailableBooks() {
+            return availableBooks;
+        }
+
+        public long getBorrowedBooks() {
+            return totalBooks - availableBooks;
+        }
+
+        public long getTotalMembers() {
+            return totalMembers;
+        }
+
+        /**
+         * Get the number of loans made since the library was loaded
+         * @return Cumulative loan count
+         */
+        public long getTotalLoans() {
+            return totalLoans;
+        }
+    }
+
+    /**
+     * Take a snapshot of the counters in constant time
+     * @return Current counts
+     */
+    public Snapshot snapshot() {
+        // Available is read first: adds bump total before available and
+        // removes drop available before total, so available never exceeds total
+        long available = availableBooks.sum();
+        long total = totalBooks.sum();
+        return new Snapshot(totalTitles.sum(), total, Math.min(available, total), totalMembers.sum(),
+                totalLoans.sum());
+    }
+
+    /**
+     * Get the number of times books by an author have been borrowed
+     * @param author Author name as stored on the book
+     * @return Loan count, 0 if none
+     */
+    public long getAuthorLoanCount(String author) {
+        LongAdder count = author == null ? null : authorLoans.get(author);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Get the number of books a member currently has on loan
+     * @param memberKey Normalized member ID
+     * @return Active loan count, 0 if none
+     */
+    public long getMemberLoanCount(String memberKey) {
+        LongAdder count = memberKey == null ? null : memberLoans.get(memberKey);
+        return count == null ? 0 : count.sum();
+    }
+
+    // Updates, called by Library while the affected book/member is locked
+
+    void booksAdded(long titles, long copies, long available) {
+        totalTitles.add(titles);
+        totalBooks.add(copies);
+        availableBooks.add(available);
+    }
+
+    void booksRemoved(long titles, long copies, long available) {
+        availableBooks.add(-available);
+        totalBooks.add(-copies);
+        totalTitles.add(-titles);
+    }
+
+    void memberAdded() {
+        totalMembers.increment();
+    }
+
+    void memberRemoved(String memberKey) {
+        memberLoans.remove(memberKey);
+        totalMembers.decrement();
+    }
+
+    void loanStarted(String author, String memberKey) {
+        availableBooks.decrement();
+        totalLoans.increment();
+        if (author != null) {
+            authorLoans.computeIfAbsent(author, a -> new LongAdder()).increment();
+        }
+        memberLoans.computeIfAbsent(memberKey, m -> new LongAdder()).increment();
+    }
+
+    void loanEnded(String memberKey) {
+        availableBooks.increment();
+        LongAdder count = memberLoans.get(memberKey);
+        if (count != null) {
+            count.decrement();
+        }
+    }
+}
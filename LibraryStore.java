@@ -0,0 +1,401 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * LibraryStore keeps a Library durable across restarts
+ *
+ * The data directory holds compacted snapshots (snapshot-[LSN].dat, the
+ * full state as of that log sequence number) and the TransactionLog
+ * segments written since. Opening the store loads the newest snapshot and
+ * replays only the log records after it. A background task cuts a new
+ * snapshot whenever the active log segment grows past a threshold, after
+ * which older snapshots and fully covered segments are deleted.
+ */
+public class LibraryStore implements Closeable {
+    private static final int SNAPSHOT_MAGIC = 0x4C4D5353; // "LMSS"
+    // Version 2 added copy counts and the copy number of each loan, version 3 holds,
+    // version 4 due dates, renewal counts and fine balances, version 5 loan limits,
+    // version 6 is a CatalogImage with the indexes, version 7 lists removed catalog books ahead of it
+    private static final int SNAPSHOT_VERSION = 7;
+    // First version written as a CatalogImage; older ones are replayed record by record
+    private static final int IMAGE_VERSION = 6;
+    // First version that lists removed catalog books
+    private static final int CATALOG_REMOVALS_VERSION = 7;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final long SNAPSHOT_THRESHOLD_BYTES = 64L * 1024 * 1024;
+    private static final long SNAPSHOT_CHECK_SECONDS = 30;
+
+    private final Path directory;
+    private final Library library;
+    private final TransactionLog log;
+    private final ScheduledExecutorService snapshotter;
+
+    private LibraryStore(Path directory, Library library, TransactionLog log) {
+        this.directory = directory;
+        this.library = library;
+        this.log = log;
+        this.snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "library-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(this::snapshotIfNeeded,
+                SNAPSHOT_CHECK_SECONDS, SNAPSHOT_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Recover a library from a data directory and start logging its changes
+     * The library should be empty; recovered books and members are added to it.
+     * @param directory Data directory (created if missing)
+     * @param library Library to load into
+     * @param syncCommits true to make every change wait until it is on disk
+     * @return Store attached to the library
+     * @throws IOException if the directory cannot be read or written
+     */
+    public static LibraryStore open(Path directory, Library library, boolean syncCommits) throws IOException {
+        Files.createDirectories(directory);
+
+        // Replayed operations publish the same events as live ones; keep them quiet
+        EventSink events = library.getEventSink();
+        library.setEventSink(EventSink.NONE);
+        library.setRecovering(true);
+        long lastLsn;
+        try {
+            Path snapshot = newestSnapshot(directory);
+            long snapshotLsn = snapshot == null ? 0 : loadSnapshot(snapshot, library);
+            lastLsn = TransactionLog.replay(directory, snapshotLsn, record -> apply(library, record));
+        } finally {
+            library.setRecovering(false);
+            library.setEventSink(events);
+        }
+
+        TransactionLog log = new TransactionLog(directory, lastLsn, syncCommits);
+        library.setTransactionLog(log);
+        return new LibraryStore(directory, library, log);
+    }
+
+    /**
+     * Write a compacted snapshot of the current state
+     * Changes are paused only while the log position is noted; the state as
+     * of that position is then copied while changes go on, and written out.
+     * Snapshots and log segments it supersedes are then deleted.
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void snapshot() throws IOException {
+        List<String[]> books = new ArrayList<>();
+        List<String[]> members = new ArrayList<>();
+        List<String[]> holds = new ArrayList<>();
+        Library.Cut cut = library.beginCut(log::getLastLsn);
+        try {
+            // Changes logged during the copy start the next segment
+            log.rotate();
+            library.copyCut(cut, (book, copies) -> books.add(bookRow(book, copies)),
+                    state -> members.add(memberRow(state)), (isbn, queue) -> {
+                        for (HoldQueues.Hold hold : queue) {
+                            holds.add(new String[] {isbn, hold.getMemberId(), Integer.toString(hold.getPriority()),
+                                    Long.toString(hold.getExpiresAt())});
+                        }
+                    });
+        } finally {
+            library.endCut(cut);
+        }
+        long lsn = cut.lsn;
+        // The mapped catalog file never changes, so its removals would go with the log segments
+        List<String> catalogRemovals = cut.catalogRemovals;
+
+        Path target = directory.resolve(snapshotName(lsn));
+        Path temp = directory.resolve(snapshotName(lsn) + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(lsn);
+            out.writeInt(catalogRemovals.size());
+            for (String key : catalogRemovals) {
+                out.writeUTF(key);
+            }
+            // Holds go in serving order, so reloading them keeps each queue's order
+            CatalogImage.write(out, books, members, holds);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (Path old : listSnapshots(directory)) {
+            if (!old.equals(target)) {
+                Files.delete(old);
+            }
+        }
+        log.deleteSegmentsThrough(lsn);
+    }
+
+    private static String[] bookRow(Book book, int copies) {
+        return new String[] {book.getTitle(), book.getAuthor(), book.getIsbn(), Integer.toString(copies)};
+    }
+
+    /**
+     * Name, ID, fines, loan limit, then ISBN, copy number, due time and renewals of each loan
+     */
+    private static String[] memberRow(Library.MemberState state) {
+        String[] row = new String[4 + 4 * state.loanBooks.length];
+        row[0] = state.member.getName();
+        row[1] = state.member.getMemberId();
+        row[2] = Long.toString(state.fineBalance);
+        row[3] = Integer.toString(state.loanLimit);
+        int at = 4;
+        for (int i = 0; i < state.loanBooks.length; i++) {
+            row[at++] = state.loanBooks[i].getIsbn();
+            row[at++] = Integer.toString(state.loanCopies[i]);
+            row[at++] = Long.toString(state.loanDueAt[i]);
+            row[at++] = Integer.toString(state.loanRenewals[i]);
+        }
+        return row;
+    }
+
+    /**
+     * Write a final snapshot and close the log
+     * @throws IOException if the snapshot or log cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        snapshotter.shutdownNow();
+        try {
+            snapshot();
+        } finally {
+            library.setTransactionLog(null);
+            log.close();
+        }
+    }
+
+    private void snapshotIfNeeded() {
+        try {
+            if (log.getSegmentBytes() >= SNAPSHOT_THRESHOLD_BYTES) {
+                snapshot();
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: snapshot failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Re-apply a logged change through the normal Library operations
+     */
+    private static void apply(Library library, TransactionLog.Record record) {
+        switch (record.getOp()) {
+            case TransactionLog.ADD_BOOK:
+                int copies = record.getFieldCount() > 3 ? Integer.parseInt(record.getField(3)) : 1;
+                library.addBook(record.getField(0), record.getField(1), record.getField(2), copies);
+                break;
+            case TransactionLog.ADD_COPIES:
+                library.addCopies(record.getField(0), Integer.parseInt(record.getField(1)));
+                break;
+            case TransactionLog.REMOVE_BOOK:
+                library.removeBook(record.getField(0));
+                break;
+            case TransactionLog.ADD_MEMBER:
+                library.addMember(record.getField(0), record.getField(1));
+                break;
+            case TransactionLog.REMOVE_MEMBER:
+                library.removeMember(record.getField(0));
+                break;
+            case TransactionLog.BORROW:
+                // Records written before copies and due dates existed name neither
+                int copy = record.getFieldCount() > 2 ? Integer.parseInt(record.getField(2)) : 0;
+                long dueAt = record.getFieldCount() > 3 ? Long.parseLong(record.getField(3)) : 0;
+                library.borrowBook(record.getField(0), record.getField(1), copy, dueAt);
+                break;
+            case TransactionLog.RETURN:
+                long fine = record.getFieldCount() > 2 ? Long.parseLong(record.getField(2)) : 0;
+                library.returnBook(record.getField(0), record.getField(1), fine);
+                break;
+            case TransactionLog.SET_LOAN_LIMIT:
+                library.setLoanLimit(record.getField(0), Integer.parseInt(record.getField(1)));
+                break;
+            case TransactionLog.RENEW:
+                library.renewBook(record.getField(0), record.getField(1), Long.parseLong(record.getField(2)));
+                break;
+            case TransactionLog.PLACE_HOLD:
+                library.placeHold(record.getField(0), record.getField(1), Integer.parseInt(record.getField(2)),
+                        Long.parseLong(record.getField(3)));
+                break;
+            case TransactionLog.CANCEL_HOLD:
+                library.cancelHold(record.getField(0), record.getField(1));
+                break;
+            case TransactionLog.FILL_HOLD:
+                library.cancelHold(record.getField(0), record.getField(1));
+                library.borrowBook(record.getField(0), record.getField(1), Integer.parseInt(record.getField(2)),
+                        record.getFieldCount() > 3 ? Long.parseLong(record.getField(3)) : 0);
+                break;
+            default:
+                throw new IllegalStateException("Unknown log operation " + record.getOp()
+                        + " at LSN " + record.getLsn());
+        }
+    }
+
+    /**
+     * Load a snapshot into the library
+     * A catalog image is read with one bulk read and checked with one
+     * checksum pass before anything is installed; older snapshots are
+     * replayed book by book. Removed catalog books are removed again from
+     * the catalog attached to the library.
+     * @return LSN the snapshot covers
+     */
+    private static long loadSnapshot(Path snapshot, Library library) throws IOException {
+        byte[] data = Files.readAllBytes(snapshot);
+        ByteBuffer header = ByteBuffer.wrap(data);
+        if (data.length < 24 || header.getInt(0) != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a library snapshot: " + snapshot);
+        }
+        if (header.getInt(4) < IMAGE_VERSION) {
+            return loadOldSnapshot(new ByteArrayInputStream(data), snapshot, library);
+        }
+        if (header.getInt(4) > SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported snapshot version " + header.getInt(4) + ": " + snapshot);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        if (header.getLong(data.length - 8) != crc.getValue()) {
+            throw new IOException("Snapshot checksum mismatch: " + snapshot);
+        }
+        int from = 16;
+        if (header.getInt(4) >= CATALOG_REMOVALS_VERSION) {
+            ByteArrayInputStream removals = new ByteArrayInputStream(data, from, data.length - 8 - from);
+            DataInputStream in = new DataInputStream(removals);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                library.restoreCatalogRemoval(in.readUTF());
+            }
+            from = data.length - 8 - removals.available();
+        }
+        CatalogImage image = CatalogImage.read(data, from, data.length - 8);
+        library.restore(image);
+        for (String[] loan : image.getLoans()) {
+            library.restoreLoan(loan[0], loan[1], Integer.parseInt(loan[2]), Long.parseLong(loan[3]),
+                    Integer.parseInt(loan[4]));
+        }
+        restoreHolds(library, image.getHolds());
+        return header.getLong(8);
+    }
+
+    /**
+     * Load a snapshot written before catalog images, one book and member at a time
+     * @return LSN the snapshot covers
+     */
+    private static long loadOldSnapshot(InputStream source, Path snapshot, Library library) throws IOException {
+        try (CheckedInputStream checked = new CheckedInputStream(source, new CRC32())) {
+            // DataInputStream reads no further ahead than each value it decodes
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a library snapshot: " + snapshot);
+            }
+            int version = in.readInt();
+            if (version < 1 || version > SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + snapshot);
+            }
+            long lsn = in.readLong();
+            int bookCount = in.readInt();
+            for (int i = 0; i < bookCount; i++) {
+                String title = in.readUTF();
+                String author = in.readUTF();
+                String isbn = in.readUTF();
+                library.addBook(title, author, isbn, version >= 2 ? in.readInt() : 1);
+            }
+            int memberCount = in.readInt();
+            List<String[]> loans = new ArrayList<>();
+            for (int i = 0; i < memberCount; i++) {
+                String name = readNullableUTF(in);
+                String memberId = readNullableUTF(in);
+                library.addMember(name, memberId);
+                if (version >= 4) {
+                    library.findMemberById(memberId).chargeFine(in.readLong());
+                }
+                if (version >= 5) {
+                    library.findMemberById(memberId).setLoanLimit(in.readInt());
+                }
+                int borrowed = in.readInt();
+                for (int j = 0; j < borrowed; j++) {
+                    String isbn = in.readUTF();
+                    int copy = version >= 2 ? in.readInt() : 0;
+                    long dueAt = version >= 4 ? in.readLong() : 0;
+                    int renewals = version >= 4 ? in.readInt() : 0;
+                    loans.add(new String[] {isbn, memberId, Integer.toString(copy), Long.toString(dueAt),
+                            Integer.toString(renewals)});
+                }
+            }
+            List<String[]> holds = new ArrayList<>();
+            int holdCount = version >= 3 ? in.readInt() : 0;
+            for (int i = 0; i < holdCount; i++) {
+                holds.add(new String[] {in.readUTF(), in.readUTF(), Integer.toString(in.readInt()),
+                        Long.toString(in.readLong())});
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("Snapshot checksum mismatch: " + snapshot);
+            }
+            for (String[] loan : loans) {
+                library.borrowBook(loan[0], loan[1], Integer.parseInt(loan[2]), Long.parseLong(loan[3]));
+                Member member = library.findMemberById(loan[1]);
+                member.getLoan(library.findBookByIsbn(loan[0])).setRenewals(Integer.parseInt(loan[4]));
+            }
+            restoreHolds(library, holds);
+            return lsn;
+        }
+    }
+
+    /**
+     * Queue the holds again, in the order saved
+     */
+    private static void restoreHolds(Library library, List<String[]> holds) {
+        for (String[] hold : holds) {
+            library.placeHold(hold[0], hold[1], Integer.parseInt(hold[2]), Long.parseLong(hold[3]));
+        }
+    }
+
+    private static Path newestSnapshot(Path directory) throws IOException {
+        List<Path> snapshots = listSnapshots(directory);
+        return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+    }
+
+    private static List<Path> listSnapshots(Path directory) throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+            for (Path file : files) {
+                snapshots.add(file);
+            }
+        }
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+
+    private static String snapshotName(long lsn) {
+        return String.format("%s%020d%s", SNAPSHOT_PREFIX, lsn, SNAPSHOT_SUFFIX);
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,415 @@
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ListingWriter streams book and member rows into a Writer
+ *
+ * Rows are copied field by field into one reusable char buffer, which is
+ * handed to the Writer only when it fills up. Nothing is formatted through
+ * String.format or an intermediate StringBuilder, so writing a row of a
+ * heap-resident book allocates nothing; a listing of millions of rows
+ * costs one buffer. TEXT rows look exactly like the console listings,
+ * JSON rows are objects separated by commas, ready to go inside an array.
+ *
+ * Not thread-safe; use one ListingWriter per listing.
+ */
+public class ListingWriter implements Flushable, Closeable {
+    /**
+     * Row layout
+     */
+    public enum Format {
+        TEXT, JSON
+    }
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Writer out;
+    private final Format format;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int size;
+    private long nextNumber;
+    private boolean firstRow = true;
+
+    /**
+     * Constructor to create a writer over a character stream
+     * @param out Destination
+     * @param format Row layout
+     */
+    public ListingWriter(Writer out, Format format) {
+        this.out = out;
+        this.format = format;
+    }
+
+    /**
+     * Constructor to create a writer over a byte stream, encoded as UTF-8
+     * @param out Destination
+     * @param format Row layout
+     */
+    public ListingWriter(OutputStream out, Format format) {
+        this(new OutputStreamWriter(out, StandardCharsets.UTF_8), format);
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Number the TEXT rows that follow, "1. ", "2. " and so on
+     * @param first Number of the next row, or 0 to stop numbering
+     */
+    public void setNumbering(long first) {
+        this.nextNumber = first;
+    }
+
+    /**
+     * Start a new JSON array of rows: the next row gets no leading comma
+     */
+    public void startRows() {
+        firstRow = true;
+    }
+
+    /**
+     * Write one book row
+     * @param book Book to write
+     */
+    public void writeBook(Book book) {
+        if (format == Format.JSON) {
+            beginJsonRow();
+            append("{\"isbn\":");
+            appendIsbn(book, true);
+            append(",\"title\":");
+            appendTitle(book, true);
+            append(",\"author\":").appendJson(book.getAuthor());
+            append(",\"available\":").append(book.isAvailable() ? "true" : "false");
+            append(",\"copies\":").append(book.getCopyCount());
+            append(",\"availableCopies\":").append(book.getAvailableCopies()).append('}');
+            return;
+        }
+        appendNumber();
+        append("Title: ");
+        appendTitle(book, false);
+        append(" | Author: ").append(book.getAuthor());
+        append(" | ISBN: ");
+        appendIsbn(book, false);
+        append(" | Status: ").append(book.isAvailable() ? "Available" : "Borrowed");
+        if (book.getCopyCount() > 1) {
+            append(" (").append(book.getAvailableCopies()).append(" of ").append(book.getCopyCount())
+                    .append(" copies)");
+        }
+        append('\n');
+    }
+
+    /**
+     * Write one member row with the member's loans
+     * Call with the member's lock held if other threads may be borrowing.
+     * @param member Member to write
+     */
+    public void writeMember(Member member) {
+        if (format == Format.JSON) {
+            beginJsonRow();
+            append("{\"memberId\":");
+            appendMemberId(member, true);
+            append(",\"name\":").appendJson(member.getName());
+            append(",\"loans\":[");
+            boolean first = true;
+            for (Loan loan : member.getLoans()) {
+                if (!first) {
+                    append(',');
+                }
+                first = false;
+                appendIsbn(loan.getBook(), true);
+            }
+            append("]}");
+            return;
+        }
+        appendNumber();
+        append("Member ID: ");
+        appendMemberId(member, false);
+        append(" | Name: ").append(member.getName());
+        append(" | Books Borrowed: ").append(member.getLoanCount());
+        long fines = member.getFineBalance();
+        if (fines > 0) {
+            append(" | Fines: ").append(fines / 100).append('.');
+            if (fines % 100 < 10) {
+                append('0');
+            }
+            append(fines % 100);
+        }
+        append('\n');
+        if (member.getLoanCount() > 0) {
+            append("  Borrowed Books:\n");
+            for (Loan loan : member.getLoans()) {
+                Book book = loan.getBook();
+                append("    - ");
+                appendTitle(book, false);
+                if (book.getCopyCount() > 1) {
+                    append(" [");
+                    appendBarcode(book, loan.getCopy());
+                    append(']');
+                }
+                append('\n');
+            }
+        }
+        append('\n');
+    }
+
+    /**
+     * Append text as is
+     * @param text Text, or "null" if null
+     * @return This writer
+     */
+    public ListingWriter append(String text) {
+        if (text == null) {
+            text = "null";
+        }
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            if (size == buffer.length) {
+                drain();
+            }
+            int count = Math.min(length - start, buffer.length - size);
+            text.getChars(start, start + count, buffer, size);
+            size += count;
+            start += count;
+        }
+        return this;
+    }
+
+    /**
+     * Append one character
+     * @param c Character
+     * @return This writer
+     */
+    public ListingWriter append(char c) {
+        if (size == buffer.length) {
+            drain();
+        }
+        buffer[size++] = c;
+        return this;
+    }
+
+    /**
+     * Append a number in decimal without creating a String
+     * @param value Number
+     * @return This writer
+     */
+    public ListingWriter append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        if (buffer.length - size < 20) {
+            drain();
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    /**
+     * Append a JSON string literal, quoted and escaped
+     * @param text Text, or null for a JSON null
+     * @return This writer
+     */
+    public ListingWriter appendJson(String text) {
+        if (text == null) {
+            return append("null");
+        }
+        append('"');
+        for (int i = 0; i < text.length(); i++) {
+            appendJsonChar(text.charAt(i));
+        }
+        return append('"');
+    }
+
+    private void appendJsonChar(char c) {
+        switch (c) {
+            case '"': append("\\\""); break;
+            case '\\': append("\\\\"); break;
+            case '\n': append("\\n"); break;
+            case '\r': append("\\r"); break;
+            case '\t': append("\\t"); break;
+            default:
+                if (c < 0x20) {
+                    append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                } else {
+                    append(c);
+                }
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Write buffered rows through to the destination
+     */
+    @Override
+    public void flush() {
+        drain();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Flush and close the destination
+     */
+    @Override
+    public void close() throws IOException {
+        drain();
+        out.close();
+    }
+
+    private void appendNumber() {
+        if (nextNumber > 0) {
+            append(nextNumber++).append(". ");
+        }
+    }
+
+    private void beginJsonRow() {
+        if (!firstRow) {
+            append(',');
+        }
+        firstRow = false;
+    }
+
+    // Books keep their ISBN packed, their title as UTF-8 and members their ID
+    // packed; these copy them into the buffer without building Strings, and
+    // fall back to the getters for whatever is not kept that way
+
+    private void appendIsbn(Book book, boolean json) {
+        if (buffer.length - size < 27) {
+            drain();
+        }
+        int at = json ? size + 1 : size;
+        int length = book.getIsbnChars(true, buffer, at);
+        if (length < 0) {
+            String isbn = book.getIsbn();
+            if (json) {
+                appendJson(isbn);
+            } else {
+                append(isbn);
+            }
+        } else {
+            closeCopied(at, length, json);
+        }
+    }
+
+    private void appendTitle(Book book, boolean json) {
+        byte[] utf8 = book.getTitleBytes();
+        int bits = utf8 == null ? -1 : 0;
+        for (int i = 0; utf8 != null && i < utf8.length; i++) {
+            bits |= utf8[i];
+        }
+        // Plain ASCII when no byte has its top bit set
+        if (bits < 0) {
+            String title = book.getTitle();
+            if (json) {
+                appendJson(title);
+            } else {
+                append(title);
+            }
+            return;
+        }
+        if (json) {
+            append('"');
+            for (byte b : utf8) {
+                appendJsonChar((char) b);
+            }
+            append('"');
+            return;
+        }
+        int start = 0;
+        while (start < utf8.length) {
+            if (size == buffer.length) {
+                drain();
+            }
+            int count = Math.min(utf8.length - start, buffer.length - size);
+            for (int i = 0; i < count; i++) {
+                buffer[size + i] = (char) utf8[start + i];
+            }
+            size += count;
+            start += count;
+        }
+    }
+
+    private void appendMemberId(Member member, boolean json) {
+        if (buffer.length - size < 12) {
+            drain();
+        }
+        int at = json ? size + 1 : size;
+        int length = member.getMemberIdChars(buffer, at);
+        if (length < 0) {
+            String id = member.getMemberId();
+            if (json) {
+                appendJson(id);
+            } else {
+                append(id);
+            }
+        } else {
+            closeCopied(at, length, json);
+        }
+    }
+
+    // Packed ISBNs and member IDs never need escaping, just quotes around them
+    private void closeCopied(int at, int length, boolean json) {
+        if (json) {
+            buffer[size] = '"';
+            buffer[at + length] = '"';
+            length += 2;
+        }
+        size += length;
+    }
+
+    // Same text as Book.getBarcode(), without building the normalized ISBN
+    private void appendBarcode(Book book, int copy) {
+        if (buffer.length - size < 25) {
+            drain();
+        }
+        int length = book.getIsbnChars(false, buffer, size);
+        if (length >= 0) {
+            size += length;
+            append('.').append(copy);
+            return;
+        }
+        String isbn = book.getIsbn();
+        for (int i = 0; i < isbn.length(); i++) {
+            char c = isbn.charAt(i);
+            if (c != '-' && !Character.isWhitespace(c)) {
+                append(c == 'x' ? 'X' : c);
+            }
+        }
+        append('.').append(copy);
+    }
+
+    private void drain() {
+        if (size == 0) {
+            return;
+        }
+        try {
+            out.write(buffer, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Loan class records which copy of a book a member has borrowed,
+ * and when it is due back
+ */
+public class Loan {
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final Member member;
+    private final Book book;
+    private final int copy;
+    // Read without locks by overdue listings; changed under the member's lock
+    private volatile long dueAt;
+    private volatile int renewals;
+
+    /**
+     * Constructor to create a new loan
+     * @param member Member who borrowed the book
+     * @param book Book that was borrowed
+     * @param copy Copy number, starting at 1
+     */
+    public Loan(Member member, Book book, int copy) {
+        this.member = member;
+        this.book = book;
+        this.copy = copy;
+    }
+
+    // Getters
+    public Member getMember() {
+        return member;
+    }
+
+    public Book getBook() {
+        return book;
+    }
+
+    public int getCopy() {
+        return copy;
+    }
+
+    public String getBarcode() {
+        return book.getBarcode(copy);
+    }
+
+    /**
+     * Get when the copy is due back
+     * @return Due time in milliseconds since the epoch, or 0 if none was set
+     */
+    public long getDueAt() {
+        return dueAt;
+    }
+
+    void setDueAt(long dueAt) {
+        this.dueAt = dueAt;
+    }
+
+    public int getRenewals() {
+        return renewals;
+    }
+
+    void setRenewals(int renewals) {
+        this.renewals = renewals;
+    }
+
+    /**
+     * Extend the loan
+     * @param newDueAt New due time in milliseconds
+     */
+    void renew(long newDueAt) {
+        this.dueAt = newDueAt;
+        this.renewals++;
+    }
+
+    /**
+     * Check whether the copy is past its due time
+     * @param now Current time in milliseconds
+     * @return true if overdue
+     */
+    public boolean isOverdue(long now) {
+        return dueAt > 0 && now > dueAt;
+    }
+
+    /**
+     * Get the number of started days the copy is overdue
+     * @param now Current time in milliseconds
+     * @return Days overdue, 0 if not overdue
+     */
+    public long getDaysOverdue(long now) {
+        return isOverdue(now) ? (now - dueAt + DAY_MILLIS - 1) / DAY_MILLIS : 0;
+    }
+
+    /**
+     * Display loan information
+     * @return String representation of the loan
+     */
+    @Override
+    public String toString() {
+        return book.getTitle() + " [" + getBarcode() + "]";
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockStripes hands out one of a fixed set of locks for a key
+ * Keys that hash to the same stripe share a lock, so the number of locks
+ * stays constant no matter how many books or members the library holds.
+ */
+public class LockStripes {
+    private static final int DEFAULT_STRIPES = 256;
+    
+    private final ReentrantLock[] locks;
+    private final int mask;
+    
+    /**
+     * Constructor using the default number of stripes
+     */
+    public LockStripes() {
+        this(DEFAULT_STRIPES);
+    }
+    
+    /**
+     * Constructor to create a set of lock stripes
+     * @param stripes Minimum number of stripes (rounded up to a power of two)
+     */
+    public LockStripes(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+    
+    /**
+     * Get the stripe index a key maps to
+     * @param key Index key (may be null)
+     * @return Stripe index between 0 and size() - 1
+     */
+    public int indexOf(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        int h = key.hashCode();
+        // Spread the high bits so keys differing only there don't collide
+        h ^= (h >>> 16);
+        return h & mask;
+    }
+    
+    /**
+     * Get the lock guarding a key
+     * @param key Index key (may be null)
+     * @return Lock for the key's stripe
+     */
+    public Lock forKey(Object key) {
+        return locks[indexOf(key)];
+    }
+    
+    /**
+     * Get the lock for a stripe index
+     * @param index Stripe index
+     * @return Lock for that stripe
+     */
+    public Lock get(int index) {
+        return locks[index];
+    }
+    
+    /**
+     * Get the number of stripes
+     * @return Number of locks
+     */
+    public int size() {
+        return locks.length;
+    }
+}
@@ -1,11 +1,35 @@
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-
+/**
+ * Member class represents a library member and the books they have out
+ *
+ * Member IDs of up to 10 letters, digits, '-' and '_' are kept packed in a
+ * long, six bits a character; longer or unusual IDs are kept as text.
+ */
 public class Member {
+    // Characters a packed member ID may use, by their 6-bit code
+    private static final String ID_ALPHABET =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz-_";
+    private static final int MAX_PACKED_ID = 10;
+    // Returned by packId() for an ID kept as text
+    static final long NO_PACKED_ID = -1L;
+    
     private String name;
-    private String memberId;
-    private List<Book> borrowedBooks;
+    // Length in the top four bits, then a 6-bit code per character;
+    // NO_PACKED_ID when the ID is in memberIdText instead
+    private long memberId;
+    private String memberIdText;
+    // Loans by book, oldest first: membership and removal are constant time
+    private final Map<Book, Loan> loans;
+    // Unpaid fines in cents
+    private long fineBalance;
+    // Most books the member may have out at once, 0 for the library's default
+    private int loanLimit;
     
     /**
      * Constructor to create a new member
@@ -14,8 +38,8 @@ public class Member {
      */
     public Member(String name, String memberId) {
         this.name = name;
-        this.memberId = memberId;
-        this.borrowedBooks = new ArrayList<>();
+        setMemberId(memberId);
+        this.loans = new LinkedHashMap<>();
     }
     
     // Getters and Setters
@@ -28,37 +52,145 @@ public class Member {
     }
     
     public String getMemberId() {
-        return memberId;
+        if (memberId == NO_PACKED_ID) {
+            return memberIdText;
+        }
+        char[] id = new char[MAX_PACKED_ID];
+        return new String(id, 0, getMemberIdChars(id, 0));
     }
     
     public void setMemberId(String memberId) {
-        this.memberId = memberId;
+        this.memberId = packId(memberId);
+        this.memberIdText = this.memberId != NO_PACKED_ID ? null : memberId;
+    }
+    
+    /**
+     * Copy the member ID into a char array without creating a String
+     * @param dst Array with room for 10 more characters
+     * @param at Index to copy to
+     * @return Number of characters copied, or -1 if the ID is not packed
+     */
+    int getMemberIdChars(char[] dst, int at) {
+        if (memberId == NO_PACKED_ID) {
+            return -1;
+        }
+        int length = (int) (memberId >>> 60);
+        for (int i = 0; i < length; i++) {
+            dst[at + i] = ID_ALPHABET.charAt((int) (memberId >>> (6 * i)) & 63);
+        }
+        return length;
     }
     
+    /**
+     * Pack a member ID into a long
+     * @param id Member ID
+     * @return Packed ID, or NO_PACKED_ID if it is empty, too long or uses other characters
+     */
+    static long packId(String id) {
+        if (id == null || id.isEmpty() || id.length() > MAX_PACKED_ID) {
+            return NO_PACKED_ID;
+        }
+        long packed = (long) id.length() << 60;
+        for (int i = 0; i < id.length(); i++) {
+            int code = ID_ALPHABET.indexOf(id.charAt(i));
+            if (code < 0) {
+                return NO_PACKED_ID;
+            }
+            packed |= (long) code << (6 * i);
+        }
+        return packed;
+    }
+    
+    /**
+     * Get the books the member has borrowed
+     * @return New list of borrowed books, oldest loan first
+     */
     public List<Book> getBorrowedBooks() {
-        return borrowedBooks;
+        return new ArrayList<>(loans.keySet());
+    }
+    
+    /**
+     * Get the member's loans
+     * @return Read-only view of the loans, oldest first
+     */
+    public Collection<Loan> getLoans() {
+        return Collections.unmodifiableCollection(loans.values());
+    }
+    
+    public int getLoanCount() {
+        return loans.size();
+    }
+    
+    public int getLoanLimit() {
+        return loanLimit;
+    }
+    
+    public void setLoanLimit(int loanLimit) {
+        this.loanLimit = loanLimit;
+    }
+    
+    public long getFineBalance() {
+        return fineBalance;
+    }
+    
+    /**
+     * Add to the member's unpaid fines
+     * @param cents Amount in cents
+     */
+    public void chargeFine(long cents) {
+        fineBalance += cents;
     }
     
     /**
-     * Add a book to the member's borrowed books list
+     * Find the member's loan of a book
+     * @param book Book to look for
+     * @return Loan, or null if the member has not borrowed the book
+     */
+    public Loan getLoan(Book book) {
+        return book == null ? null : loans.get(book);
+    }
+    
+    /**
+     * Borrow any available copy of a book
      * @param book Book to borrow
+     * @return The new loan, or null if no copy was available or the member already has one
      */
-    public void borrowBook(Book book) {
-        if (book != null && book.isAvailable()) {
-            borrowedBooks.add(book);
-            book.setAvailable(false);
+    public Loan borrowBook(Book book) {
+        if (book == null || loans.containsKey(book)) {
+            return null;
         }
+        int copy = book.claimCopy();
+        return copy == 0 ? null : addLoan(book, copy);
     }
     
     /**
-     * Remove a book from the member's borrowed books list
+     * Borrow a specific copy of a book
+     * @param book Book to borrow
+     * @param copy Copy number, starting at 1
+     * @return The new loan, or null if that copy was not available or the member already has one
+     */
+    public Loan borrowCopy(Book book, int copy) {
+        if (book == null || loans.containsKey(book) || !book.claimCopy(copy)) {
+            return null;
+        }
+        return addLoan(book, copy);
+    }
+    
+    private Loan addLoan(Book book, int copy) {
+        Loan loan = new Loan(this, book, copy);
+        loans.put(book, loan);
+        return loan;
+    }
+    
+    /**
+     * Return the member's copy of a book
      * @param book Book to return
      * @return true if book was successfully returned
      */
     public boolean returnBook(Book book) {
-        if (book != null && borrowedBooks.contains(book)) {
-            borrowedBooks.remove(book);
-            book.setAvailable(true);
+        Loan loan = book == null ? null : loans.remove(book);
+        if (loan != null) {
+            book.releaseCopy(loan.getCopy());
             return true;
         }
         return false;
@@ -71,12 +203,21 @@ public class Member {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Member ID: %s | Name: %s | Books Borrowed: %d\n", 
-                               memberId, name, borrowedBooks.size()));
-        if (!borrowedBooks.isEmpty()) {
+        sb.append(String.format("Member ID: %s | Name: %s | Books Borrowed: %d", 
+                               getMemberId(), name, loans.size()));
+        if (fineBalance > 0) {
+            sb.append(String.format(" | Fines: %d.%02d", fineBalance / 100, fineBalance % 100));
+        }
+        sb.append("\n");
+        if (!loans.isEmpty()) {
             sb.append("  Borrowed Books:\n");
-            for (Book book : borrowedBooks) {
-                sb.append("    - ").append(book.getTitle()).append("\n");
+            for (Loan loan : loans.values()) {
+                Book book = loan.getBook();
+                sb.append("    - ").append(book.getTitle());
+                if (book.getCopyCount() > 1) {
+                    sb.append(" [").append(loan.getBarcode()).append("]");
+                }
+                sb.append("\n");
             }
         }
         return sb.toString();
@@ -92,7 +233,23 @@ public class Member {
         if (this == obj) return true;
         if (obj == null || getClass() != obj.getClass()) return false;
         Member member = (Member) obj;
-        return memberId != null ? memberId.equals(member.memberId) : member.memberId == null;
+        // Packing is exact, so equal packed IDs mean equal text
+        if (memberId != NO_PACKED_ID || member.memberId != NO_PACKED_ID) {
+            return memberId == member.memberId;
+        }
+        return memberIdText != null ? memberIdText.equals(member.memberIdText) : member.memberIdText == null;
+    }
+    
+    /**
+     * Hash code consistent with equals()
+     * @return Hash of the member ID
+     */
+    @Override
+    public int hashCode() {
+        if (memberId != NO_PACKED_ID) {
+            return Long.hashCode(memberId);
+        }
+        return memberIdText == null ? 0 : memberIdText.hashCode();
     }
 }
 
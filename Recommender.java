@@ -0,0 +1,399 @@
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Recommender suggests titles from co-borrowing: "members who borrowed
+ * this also borrowed"
+ *
+ * Each new loan is paired with the member's last MEMBER_WINDOW loans, and
+ * the model counts how often two titles were borrowed by the same member.
+ * Titles get small numbers, and each title has one row of (title, count)
+ * entries in an int array. A row holds at most twice as many titles as are
+ * recommended: when it is full, the title with the lowest count makes way
+ * and the newcomer starts from that count plus one (the Space-Saving
+ * method), so titles often borrowed together stay in the row and a title
+ * never takes more than a few hundred bytes, however large the catalog.
+ * Each entry also keeps the count it inherited, and ranking uses only the
+ * loans it has seen for itself.
+ *
+ * recordBorrow() only puts the loan in a ring buffer, with one
+ * compare-and-set; when the ring is full the loan is dropped rather than
+ * making the borrower wait. A single worker thread wakes every few
+ * milliseconds, takes the loans waiting as one batch, updates the counts,
+ * and then ranks the row of every title the batch touched by cosine
+ * similarity, count / sqrt(loans of a * loans of b), so the most popular
+ * titles do not top every list, damped by count / (count + SHRINK) so two
+ * rare titles borrowed together once do not either. Each ranked list is an immutable array of
+ * ISBNs swapped into place, so recommend() is a hash lookup and an array
+ * read, without locks.
+ */
+public class Recommender implements Closeable {
+    public static final int DEFAULT_RESULTS = 10;
+    // Earlier loans of a member that a new loan is paired with
+    static final int MEMBER_WINDOW = 16;
+    private static final int RING_CAPACITY = 1 << 16;
+    // Damps the similarity of titles seen together only once or twice
+    private static final double SHRINK = 2;
+    private static final long BATCH_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // 4096 lists per page
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    // Ints per row entry
+    private static final int ENTRY = 3;
+
+    /**
+     * One loan waiting for the worker
+     */
+    private static final class Borrow {
+        private final String isbn;
+        private final String memberId;
+
+        Borrow(String isbn, String memberId) {
+            this.isbn = isbn;
+            this.memberId = memberId;
+        }
+    }
+
+    private final int results;
+    private final int rowLimit;
+    private final AtomicReferenceArray<Borrow> slots = new AtomicReferenceArray<>(RING_CAPACITY);
+    // Next sequence number a publisher will claim
+    private final AtomicLong claimed = new AtomicLong();
+    // Loans below this sequence have been taken off the ring
+    private volatile long consumed;
+    // Loans below this sequence are reflected in the published lists
+    private volatile long applied;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+    private final Thread worker;
+
+    // Title numbers and ranked lists, read by recommend(). Pages never
+    // move; the worker adds a page before handing out its numbers.
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile AtomicReferenceArray<String[]>[] lists = newPages(0);
+
+    // Everything below belongs to the worker thread
+    private int titleCount;
+    private String[] isbns = new String[1024];
+    private int[] loans = new int[1024];
+    // Row of title t: rowSizes[t] entries of (title, count, count inherited on entry)
+    private int[][] rows = new int[1024][];
+    private int[] rowSizes = new int[1024];
+    // Last loans by member: [0] is the number of loans, then a ring of titles
+    private final Map<String, int[]> recent = new HashMap<>();
+    // Titles whose list must be ranked again after this batch
+    private final BitSet touched = new BitSet();
+    // Scratch space for ranking one row
+    private final int[] order;
+    private final double[] scores;
+
+    /**
+     * Constructor to create a recommender keeping DEFAULT_RESULTS titles per title
+     */
+    public Recommender() {
+        this(DEFAULT_RESULTS);
+    }
+
+    /**
+     * Constructor to create a recommender
+     * @param results Titles recommended per title at most
+     */
+    public Recommender(int results) {
+        if (results < 1 || results > 1_000) {
+            throw new IllegalArgumentException("Results must be between 1 and 1000");
+        }
+        this.results = results;
+        this.rowLimit = results * 2;
+        this.order = new int[rowLimit];
+        this.scores = new double[rowLimit];
+        this.worker = new Thread(this::work, "library-recommender");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Count a loan towards the model
+     * Returns at once; the loan is applied with the next batch, or dropped
+     * if RING_CAPACITY loans are already waiting.
+     * @param isbn ISBN of the book borrowed
+     * @param memberId ID of the member who borrowed it
+     */
+    public void recordBorrow(String isbn, String memberId) {
+        offer(new Borrow(isbn, memberId), false);
+    }
+
+    /**
+     * Count every loan in a circulation history towards the model
+     * Waits for room in the ring instead of dropping loans, and returns once
+     * the recommendations include them. Call before recording new loans.
+     * @param history History to learn from
+     */
+    public void learn(CirculationHistory history) {
+        history.forEachBorrow((isbn, memberId) -> offer(new Borrow(isbn, memberId), true));
+        flush();
+    }
+
+    /**
+     * Find the titles most often borrowed by members who borrowed a title
+     * @param isbn ISBN of the title, as recorded
+     * @param limit Maximum number of titles
+     * @return ISBNs of the recommended titles, best first
+     */
+    public List<String> recommend(String isbn, int limit) {
+        Integer id = ids.get(isbn);
+        if (id == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        String[] list = lists[id >>> PAGE_BITS].get(id & (PAGE_SIZE - 1));
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(list).subList(0, Math.min(limit, list.length)));
+    }
+
+    /**
+     * Get the number of titles recommended per title at most
+     * @return Results given to the constructor
+     */
+    public int getMaxResults() {
+        return results;
+    }
+
+    /**
+     * Get the number of titles seen in loans
+     * @return Titles with a row in the model
+     */
+    public int getTitleCount() {
+        return ids.size();
+    }
+
+    /**
+     * Get the number of loans dropped because the ring was full
+     * @return Loans left out of the model
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Wait until every loan recorded so far is reflected in the recommendations
+     */
+    public void flush() {
+        long target = claimed.get();
+        while (applied < target && worker.isAlive()) {
+            LockSupport.unpark(worker);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    /**
+     * Apply the loans waiting and stop the worker
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(worker);
+        boolean interrupted = false;
+        while (worker.isAlive()) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void offer(Borrow borrow, boolean wait) {
+        if (closed) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            while (sequence - consumed >= RING_CAPACITY) {
+                if (!wait) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.unpark(worker);
+                LockSupport.parkNanos(10_000);
+                sequence = claimed.get();
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        slots.set((int) sequence & (RING_CAPACITY - 1), borrow);
+    }
+
+    // Worker
+
+    private void work() {
+        long next = 0;
+        while (true) {
+            int batch = 0;
+            while (true) {
+                int slot = (int) next & (RING_CAPACITY - 1);
+                Borrow borrow = slots.get(slot);
+                if (borrow == null) {
+                    break;
+                }
+                slots.lazySet(slot, null);
+                consumed = ++next;
+                apply(borrow);
+                batch++;
+            }
+            if (batch > 0) {
+                rank();
+                applied = next;
+            }
+            // A claimed slot is filled a moment after the claim; finish only when none is pending
+            if (closed && claimed.get() == next) {
+                return;
+            }
+            LockSupport.parkNanos(this, BATCH_PARK_NANOS);
+        }
+    }
+
+    private void apply(Borrow borrow) {
+        int title = idFor(borrow.isbn);
+        loans[title]++;
+        touched.set(title);
+        int[] window = recent.get(borrow.memberId);
+        if (window == null) {
+            window = new int[MEMBER_WINDOW + 1];
+            recent.put(borrow.memberId, window);
+        }
+        int filled = Math.min(window[0], MEMBER_WINDOW);
+        for (int i = 1; i <= filled; i++) {
+            // Borrowing a title again adds nothing new about it
+            if (window[i] == title) {
+                return;
+            }
+        }
+        for (int i = 1; i <= filled; i++) {
+            int other = window[i];
+            count(title, other);
+            count(other, title);
+            touched.set(other);
+        }
+        window[1 + window[0] % MEMBER_WINDOW] = title;
+        window[0]++;
+    }
+
+    private int idFor(String isbn) {
+        Integer id = ids.get(isbn);
+        if (id != null) {
+            return id;
+        }
+        int title = titleCount++;
+        if (title == isbns.length) {
+            isbns = Arrays.copyOf(isbns, title * 2);
+            loans = Arrays.copyOf(loans, title * 2);
+            rows = Arrays.copyOf(rows, title * 2);
+            rowSizes = Arrays.copyOf(rowSizes, title * 2);
+        }
+        AtomicReferenceArray<String[]>[] pages = lists;
+        if (title >>> PAGE_BITS == pages.length) {
+            pages = Arrays.copyOf(pages, pages.length + 1);
+            pages[pages.length - 1] = new AtomicReferenceArray<>(PAGE_SIZE);
+            lists = pages;
+        }
+        isbns[title] = isbn;
+        ids.put(isbn, title);
+        return title;
+    }
+
+    /**
+     * Add one to the count of other in title's row, making room if it is full
+     */
+    private void count(int title, int other) {
+        int[] row = rows[title];
+        int end = rowSizes[title] * ENTRY;
+        for (int i = 0; i < end; i += ENTRY) {
+            if (row[i] == other) {
+                row[i + 1]++;
+                return;
+            }
+        }
+        if (row == null || end == row.length) {
+            if (end < rowLimit * ENTRY) {
+                row = row == null ? new int[2 * ENTRY]
+                        : Arrays.copyOf(row, Math.min(row.length * 2, rowLimit * ENTRY));
+                rows[title] = row;
+            } else {
+                // Space-Saving: the newcomer takes the place and count of the rarest title,
+                // and remembers how much of that count it did not earn
+                int lowest = 0;
+                for (int i = ENTRY; i < end; i += ENTRY) {
+                    if (row[i + 1] < row[lowest + 1]) {
+                        lowest = i;
+                    }
+                }
+                row[lowest] = other;
+                row[lowest + 2] = row[lowest + 1];
+                row[lowest + 1]++;
+                return;
+            }
+        }
+        row[end] = other;
+        row[end + 1] = 1;
+        row[end + 2] = 0;
+        rowSizes[title]++;
+    }
+
+    /**
+     * Rank the rows touched by the batch and publish their lists
+     */
+    private void rank() {
+        AtomicReferenceArray<String[]>[] pages = lists;
+        for (int title = touched.nextSetBit(0); title >= 0; title = touched.nextSetBit(title + 1)) {
+            int size = rowSizes[title];
+            if (size == 0) {
+                continue;
+            }
+            int[] row = rows[title];
+            for (int i = 0; i < size; i++) {
+                // Rank by the loans together that are certain, not those inherited
+                int together = row[i * ENTRY + 1] - row[i * ENTRY + 2];
+                order[i] = i;
+                scores[i] = together / Math.sqrt((double) loans[title] * loans[row[i * ENTRY]])
+                        * together / (together + SHRINK);
+            }
+            // Selection sort: rows are short and only the first results places matter
+            int length = Math.min(size, results);
+            String[] list = new String[length];
+            for (int i = 0; i < length; i++) {
+                int best = i;
+                for (int j = i + 1; j < size; j++) {
+                    if (scores[order[j]] > scores[order[best]]) {
+                        best = j;
+                    }
+                }
+                int chosen = order[best];
+                order[best] = order[i];
+                order[i] = chosen;
+                list[i] = isbns[row[chosen * ENTRY]];
+            }
+            // Release ordering is enough: readers only need to see the list's contents
+            pages[title >>> PAGE_BITS].lazySet(title & (PAGE_SIZE - 1), list);
+        }
+        touched.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AtomicReferenceArray<String[]>[] newPages(int count) {
+        return (AtomicReferenceArray<String[]>[]) new AtomicReferenceArray<?>[count];
+    }
+}
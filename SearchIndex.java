@@ -0,0 +1,689 @@
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * SearchIndex is an in-memory inverted index over book titles and authors
+ *
+ * Text is lower-cased, stripped of accents and split into words. Each word
+ * keeps a postings list of the books containing it, sorted by document id.
+ * Queries match every word exactly, by prefix (so "tolk" finds "tolkien")
+ * and, for longer words, with one typo. Results are ranked with BM25, with
+ * title words counting twice as much as author words and approximate
+ * matches scoring below exact ones.
+ *
+ * Postings are kept in blocks that record the most any of their books can
+ * score, and a query only scores the books in blocks that can still beat
+ * its current top results, so even a word in every other title costs little
+ * more than a rare one.
+ *
+ * The index is updated as books are added and removed; nothing is rebuilt
+ * per query. Queries run in parallel under a read lock.
+ */
+public class SearchIndex {
+    // BM25 parameters
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+    private static final int TITLE_WEIGHT = 2;
+    private static final int AUTHOR_WEIGHT = 1;
+
+    private static final float PREFIX_FACTOR = 0.7f;
+    private static final float FUZZY_FACTOR = 0.5f;
+    private static final int MAX_PREFIX_EXPANSIONS = 64;
+    private static final int MIN_PREFIX_LENGTH = 2;
+    private static final int MIN_FUZZY_LENGTH = 4;
+    // Words in more than this share of books are skipped when the query has rarer words
+    private static final double COMMON_WORD_RATIO = 0.05;
+    // Postings per block of score bounds, and document numbers queries score at a time
+    private static final int BLOCK_SIZE = 128;
+    private static final int WINDOW_SIZE = 4096;
+
+    /**
+     * Documents containing one word, with weighted term frequencies
+     * Every BLOCK_SIZE postings also keep their highest frequency and
+     * shortest book, which bound what any of them can score.
+     */
+    private static final class Postings {
+        private int[] docs;
+        private int[] freqs;
+        private int size;
+        private int[] blockMaxFreqs;
+        private int[] blockMinLengths;
+
+        Postings() {
+            docs = new int[2];
+            freqs = new int[2];
+            blockMaxFreqs = new int[1];
+            blockMinLengths = new int[1];
+        }
+
+        Postings(int[] docs, int[] freqs) {
+            this.docs = docs;
+            this.freqs = freqs;
+            this.size = docs.length;
+            int blocks = Math.max((size + BLOCK_SIZE - 1) / BLOCK_SIZE, 1);
+            blockMaxFreqs = new int[blocks];
+            blockMinLengths = new int[blocks];
+        }
+
+        void add(int doc, int freq, int length) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            // Ids only grow, so appending keeps the list sorted
+            docs[size] = doc;
+            freqs[size] = freq;
+            int block = size / BLOCK_SIZE;
+            if (block == blockMaxFreqs.length) {
+                blockMaxFreqs = Arrays.copyOf(blockMaxFreqs, block * 2);
+                blockMinLengths = Arrays.copyOf(blockMinLengths, block * 2);
+            }
+            if (size % BLOCK_SIZE == 0 || freq > blockMaxFreqs[block]) {
+                blockMaxFreqs[block] = freq;
+            }
+            if (size % BLOCK_SIZE == 0 || length < blockMinLengths[block]) {
+                blockMinLengths[block] = length;
+            }
+            size++;
+        }
+
+        void remove(int doc, int[] docLengths) {
+            int index = Arrays.binarySearch(docs, 0, size, doc);
+            if (index >= 0) {
+                System.arraycopy(docs, index + 1, docs, index, size - index - 1);
+                System.arraycopy(freqs, index + 1, freqs, index, size - index - 1);
+                size--;
+                // Every later posting moved back one place, into a neighbouring block
+                summarizeBlocks(index / BLOCK_SIZE, docLengths);
+            }
+        }
+
+        /**
+         * Work out the bounds of every block from one onwards
+         */
+        void summarizeBlocks(int fromBlock, int[] docLengths) {
+            int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            for (int block = fromBlock; block < blocks; block++) {
+                int maxFreq = 0;
+                int minLength = Integer.MAX_VALUE;
+                for (int i = block * BLOCK_SIZE; i < Math.min(size, (block + 1) * BLOCK_SIZE); i++) {
+                    maxFreq = Math.max(maxFreq, freqs[i]);
+                    minLength = Math.min(minLength, docLengths[docs[i]]);
+                }
+                blockMaxFreqs[block] = maxFreq;
+                blockMinLengths[block] = minLength;
+            }
+        }
+    }
+
+    /**
+     * A query word's walk through the postings of one indexed word
+     */
+    private final class Cursor {
+        private final Postings list;
+        // Query word weight times the indexed word's IDF
+        private final float weight;
+        private final float averageLength;
+        // Most this word adds to any book's score
+        private final double upperBound;
+        private int index;
+
+        Cursor(Postings list, float weight, float averageLength) {
+            this.list = list;
+            this.weight = weight;
+            this.averageLength = averageLength;
+            double bound = 0;
+            for (int block = 0; block * BLOCK_SIZE < list.size; block++) {
+                bound = Math.max(bound, blockBound(block));
+            }
+            this.upperBound = bound;
+        }
+
+        int doc() {
+            return index < list.size ? list.docs[index] : Integer.MAX_VALUE;
+        }
+
+        float score() {
+            return weight * termScore(list.freqs[index], docLengths[list.docs[index]], averageLength);
+        }
+
+        void next() {
+            index++;
+        }
+
+        /**
+         * Move to the first posting at or after a document
+         */
+        void advanceTo(int doc) {
+            if (index >= list.size || list.docs[index] >= doc) {
+                return;
+            }
+            // Skip whole blocks first, then search the block the document would be in
+            int block = index / BLOCK_SIZE;
+            while ((block + 1) * BLOCK_SIZE < list.size && list.docs[(block + 1) * BLOCK_SIZE] <= doc) {
+                block++;
+            }
+            int from = Math.max(index, block * BLOCK_SIZE);
+            int to = Math.min(list.size, (block + 1) * BLOCK_SIZE);
+            int found = Arrays.binarySearch(list.docs, from, to, doc);
+            index = found >= 0 ? found : -found - 1;
+        }
+
+        /**
+         * Last document of the block the cursor is in
+         */
+        int blockLastDoc() {
+            if (index >= list.size) {
+                return Integer.MAX_VALUE;
+            }
+            return list.docs[Math.min(list.size, (index / BLOCK_SIZE + 1) * BLOCK_SIZE) - 1];
+        }
+
+        /**
+         * Most this word adds to the score of a book in the cursor's block
+         */
+        double blockBound() {
+            return blockBound(index / BLOCK_SIZE);
+        }
+
+        private double blockBound(int block) {
+            return weight * termScore(list.blockMaxFreqs[block], list.blockMinLengths[block], averageLength);
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> postings = new HashMap<>();
+    // Sorted view of the vocabulary for prefix expansion
+    private final TreeMap<String, Postings> vocabulary = new TreeMap<>();
+    // Single-deletion variants of each word, for one-typo matching
+    private final Map<String, List<String>> deletions = new HashMap<>();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    private Book[] docs = new Book[1024];
+    private int[] docLengths = new int[1024];
+    private int nextDoc;
+    private int liveDocs;
+    private long totalLength;
+
+    /**
+     * Index a book
+     * @param key Normalized ISBN the book is stored under
+     * @param book Book to index
+     */
+    public void add(String key, Book book) {
+        add(key, book, termFrequencies(book));
+    }
+
+    /**
+     * Index a book whose words were already found
+     * @param key Normalized ISBN the book is stored under
+     * @param book Book to index
+     * @param terms Words as returned by termFrequencies() for the book's title and author
+     */
+    void add(String key, Book book, Map<String, Integer> terms) {
+        lock.writeLock().lock();
+        try {
+            if (docIds.containsKey(key)) {
+                return;
+            }
+            int doc = nextDoc++;
+            if (doc == docs.length) {
+                docs = Arrays.copyOf(docs, doc * 2);
+                docLengths = Arrays.copyOf(docLengths, doc * 2);
+            }
+            docs[doc] = book;
+            docIds.put(key, doc);
+            int length = 0;
+            for (int freq : terms.values()) {
+                length += freq;
+            }
+            for (Map.Entry<String, Integer> term : terms.entrySet()) {
+                Postings list = postings.get(term.getKey());
+                if (list == null) {
+                    list = new Postings();
+                    postings.put(term.getKey(), list);
+                    vocabulary.put(term.getKey(), list);
+                    addDeletions(term.getKey());
+                }
+                list.add(doc, term.getValue(), length);
+            }
+            docLengths[doc] = length;
+            totalLength += length;
+            liveDocs++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Fill an empty index in one step from postings worked out in advance
+     * Used to load a catalog image: book i gets document number i and no
+     * title or author is tokenized. Call before the index is shared.
+     * @param keys Normalized ISBN of each book
+     * @param books Books by document number
+     * @param terms Indexed words, in ascending order
+     * @param termDocs Ascending document numbers of the books containing each word
+     * @param termFreqs Weighted frequency of each word in each of those books
+     */
+    void restore(String[] keys, Book[] books, String[] terms, int[][] termDocs, int[][] termFreqs) {
+        lock.writeLock().lock();
+        try {
+            if (nextDoc > 0) {
+                throw new IllegalStateException("Search index is not empty");
+            }
+            docs = Arrays.copyOf(books, Math.max(docs.length, books.length));
+            docLengths = new int[docs.length];
+            for (int doc = 0; doc < books.length; doc++) {
+                docIds.put(keys[doc], doc);
+            }
+            Postings[] lists = new Postings[terms.length];
+            for (int t = 0; t < terms.length; t++) {
+                Postings list = new Postings(termDocs[t], termFreqs[t]);
+                lists[t] = list;
+                postings.put(terms[t], list);
+                addDeletions(terms[t]);
+                for (int i = 0; i < list.size; i++) {
+                    docLengths[list.docs[i]] += list.freqs[i];
+                    totalLength += list.freqs[i];
+                }
+            }
+            for (Postings list : lists) {
+                list.summarizeBlocks(0, docLengths);
+            }
+            vocabulary.putAll(new CatalogImage.SortedEntries<>(terms, lists));
+            nextDoc = books.length;
+            liveDocs = books.length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a book from the index
+     * @param key Normalized ISBN the book was stored under
+     */
+    public void remove(String key) {
+        lock.writeLock().lock();
+        try {
+            Integer doc = docIds.remove(key);
+            if (doc == null) {
+                return;
+            }
+            for (String term : termFrequencies(docs[doc]).keySet()) {
+                Postings list = postings.get(term);
+                if (list == null) {
+                    continue;
+                }
+                list.remove(doc, docLengths);
+                if (list.size == 0) {
+                    postings.remove(term);
+                    vocabulary.remove(term);
+                    removeDeletions(term);
+                }
+            }
+            totalLength -= docLengths[doc];
+            docs[doc] = null;
+            liveDocs--;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Search titles and authors
+     * @param query Free-text query
+     * @param limit Maximum number of results
+     * @return Matching books, best match first
+     */
+    public List<Book> search(String query, int limit) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        lock.readLock().lock();
+        try {
+            if (liveDocs == 0) {
+                return new ArrayList<>();
+            }
+            // Expand every query word to the indexed words it can match
+            List<Map<String, Float>> expansions = new ArrayList<>();
+            boolean anyRare = false;
+            for (String word : words) {
+                Map<String, Float> matches = expand(word);
+                expansions.add(matches);
+                for (String term : matches.keySet()) {
+                    anyRare |= !isCommon(term);
+                }
+            }
+
+            List<Cursor> cursors = new ArrayList<>();
+            float averageLength = (float) totalLength / liveDocs;
+            for (Map<String, Float> matches : expansions) {
+                for (Map.Entry<String, Float> match : matches.entrySet()) {
+                    if (anyRare && isCommon(match.getKey())) {
+                        continue;
+                    }
+                    Postings list = postings.get(match.getKey());
+                    float idf = (float) Math.log(1 + (liveDocs - list.size + 0.5) / (list.size + 0.5));
+                    cursors.add(new Cursor(list, match.getValue() * idf, averageLength));
+                }
+            }
+            return topResults(cursors, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of indexed books
+     * @return Indexed book count
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveDocs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Split text into lower-case, accent-free words
+     * @param text Text to split (may be null)
+     * @return Words in order of appearance
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        // Decomposing splits accents off their letters; plain ASCII needs no work
+        String folded = isAscii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < folded.length(); i++) {
+            char c = folded.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (c == '\'') {
+                continue; // "Tolkien's" -> "tolkiens"
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Indexing helpers
+
+    private static Map<String, Integer> termFrequencies(Book book) {
+        return termFrequencies(book.getTitle(), book.getAuthor());
+    }
+
+    /**
+     * Find the words a book is indexed under
+     * @param title Book title
+     * @param author Book author
+     * @return Weighted frequency of each word, title words counting TITLE_WEIGHT times
+     */
+    static Map<String, Integer> termFrequencies(String title, String author) {
+        Map<String, Integer> terms = new LinkedHashMap<>();
+        for (String word : tokenize(title)) {
+            terms.merge(word, TITLE_WEIGHT, Integer::sum);
+        }
+        for (String word : tokenize(author)) {
+            terms.merge(word, AUTHOR_WEIGHT, Integer::sum);
+        }
+        return terms;
+    }
+
+    private void addDeletions(String term) {
+        if (!isFuzzyCandidate(term)) {
+            return;
+        }
+        for (String variant : deletionVariants(term)) {
+            deletions.computeIfAbsent(variant, v -> new ArrayList<>(1)).add(term);
+        }
+    }
+
+    private void removeDeletions(String term) {
+        if (!isFuzzyCandidate(term)) {
+            return;
+        }
+        for (String variant : deletionVariants(term)) {
+            List<String> terms = deletions.get(variant);
+            if (terms != null) {
+                terms.remove(term);
+                if (terms.isEmpty()) {
+                    deletions.remove(variant);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether typo matching applies to a word; numbers such as years and
+     * volume numbers only match exactly or by prefix
+     */
+    private static boolean isFuzzyCandidate(String term) {
+        if (term.length() < MIN_FUZZY_LENGTH - 1) {
+            return false;
+        }
+        for (int i = 0; i < term.length(); i++) {
+            if (!Character.isDigit(term.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The word itself plus every way of deleting one character from it.
+     * Two words within one edit share at least one variant.
+     */
+    private static List<String> deletionVariants(String term) {
+        List<String> variants = new ArrayList<>(term.length() + 1);
+        variants.add(term);
+        for (int i = 0; i < term.length(); i++) {
+            String variant = term.substring(0, i) + term.substring(i + 1);
+            if (!variants.contains(variant)) {
+                variants.add(variant);
+            }
+        }
+        return variants;
+    }
+
+    // Query helpers
+
+    private Map<String, Float> expand(String word) {
+        Map<String, Float> matches = new HashMap<>();
+        if (postings.containsKey(word)) {
+            matches.put(word, 1.0f);
+        }
+        if (word.length() >= MIN_PREFIX_LENGTH) {
+            int expanded = 0;
+            for (String term : vocabulary.subMap(word, false, word + Character.MAX_VALUE, false).keySet()) {
+                if (++expanded > MAX_PREFIX_EXPANSIONS) {
+                    break;
+                }
+                matches.putIfAbsent(term, PREFIX_FACTOR);
+            }
+        }
+        if (word.length() >= MIN_FUZZY_LENGTH && isFuzzyCandidate(word)) {
+            for (String variant : deletionVariants(word)) {
+                List<String> candidates = deletions.get(variant);
+                if (candidates == null) {
+                    continue;
+                }
+                for (String term : candidates) {
+                    if (!matches.containsKey(term) && withinOneEdit(word, term)) {
+                        matches.put(term, FUZZY_FACTOR);
+                    }
+                }
+            }
+        }
+        return matches;
+    }
+
+    private boolean isCommon(String term) {
+        Postings list = postings.get(term);
+        return list != null && list.size > liveDocs * COMMON_WORD_RATIO;
+    }
+
+    /**
+     * BM25 score of a word in a book, before weighting by the word's IDF
+     * It grows with the frequency and shrinks with the book's length, so the
+     * highest frequency and shortest book of a block bound the block's scores.
+     */
+    private static float termScore(int freq, int length, float averageLength) {
+        float norm = K1 * (1 - B + B * length / averageLength);
+        return freq * (K1 + 1) / (freq + norm);
+    }
+
+    /**
+     * Find the best books, a window of document numbers at a time
+     * Once there are enough results, the words that could not lift a book
+     * past the worst of them on their own are only looked up for books the
+     * others found (MaxScore). Windows end where a block of the others' postings
+     * does, and a window whose block bounds cannot make up the difference
+     * is skipped without scoring its books, so a common word costs a look at
+     * each block rather than at each book.
+     */
+    private List<Book> topResults(List<Cursor> words, int limit) {
+        // Words by their upper bound, lowest first; bounds[i] is the sum of the bounds before word i
+        Cursor[] cursors = words.toArray(new Cursor[0]);
+        Arrays.sort(cursors, (a, b) -> Double.compare(a.upperBound, b.upperBound));
+        double[] bounds = new double[cursors.length + 1];
+        for (int i = 0; i < cursors.length; i++) {
+            bounds[i + 1] = bounds[i] + cursors[i].upperBound;
+        }
+        double[] windowScores = new double[WINDOW_SIZE];
+        long[] found = new long[WINDOW_SIZE / 64];
+        // Min-heap of the best results so far; ties go to the older book, which is found first
+        PriorityQueue<double[]> best = new PriorityQueue<>(limit + 1, (a, b) -> {
+            int cmp = Double.compare(a[0], b[0]);
+            return cmp != 0 ? cmp : Double.compare(b[1], a[1]);
+        });
+        double threshold = -1;
+        // Words before this one only add to the scores of books the later ones find
+        int essential = 0;
+        for (int start = firstDoc(cursors, essential); start != Integer.MAX_VALUE;
+                start = firstDoc(cursors, essential)) {
+            int end = (int) Math.min((long) start + WINDOW_SIZE, Integer.MAX_VALUE);
+            for (int i = essential; i < cursors.length; i++) {
+                if (cursors[i].doc() < end) {
+                    end = Math.min(end, cursors[i].blockLastDoc() + 1);
+                }
+            }
+            // Each word with postings in the window has them all in one block
+            double bound = bounds[essential];
+            for (int i = essential; i < cursors.length; i++) {
+                if (cursors[i].doc() < end) {
+                    bound += cursors[i].blockBound();
+                }
+            }
+            if (bound <= threshold) {
+                for (int i = essential; i < cursors.length; i++) {
+                    cursors[i].advanceTo(end);
+                }
+                continue;
+            }
+
+            for (int i = essential; i < cursors.length; i++) {
+                Cursor cursor = cursors[i];
+                for (int doc = cursor.doc(); doc < end; doc = cursor.doc()) {
+                    windowScores[doc - start] += cursor.score();
+                    found[(doc - start) >>> 6] |= 1L << (doc - start);
+                    cursor.next();
+                }
+            }
+            for (int chunk = 0; chunk <= (end - start - 1) >>> 6; chunk++) {
+                for (long bits = found[chunk]; bits != 0; bits &= bits - 1) {
+                    int offset = chunk * 64 + Long.numberOfTrailingZeros(bits);
+                    int doc = start + offset;
+                    double score = windowScores[offset];
+                    windowScores[offset] = 0;
+                    for (int i = essential - 1; i >= 0 && score + bounds[i + 1] > threshold; i--) {
+                        cursors[i].advanceTo(doc);
+                        if (cursors[i].doc() == doc) {
+                            score += cursors[i].score();
+                        }
+                    }
+                    if (best.size() < limit || score > threshold) {
+                        best.add(new double[] {score, doc});
+                        if (best.size() > limit) {
+                            best.poll();
+                        }
+                        if (best.size() == limit) {
+                            threshold = best.peek()[0];
+                        }
+                    }
+                }
+                found[chunk] = 0;
+            }
+            while (essential < cursors.length && bounds[essential + 1] <= threshold) {
+                essential++;
+            }
+        }
+        Book[] results = new Book[best.size()];
+        for (int i = results.length - 1; i >= 0; i--) {
+            results[i] = docs[(int) best.poll()[1]];
+        }
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    private static int firstDoc(Cursor[] cursors, int from) {
+        int first = Integer.MAX_VALUE;
+        for (int i = from; i < cursors.length; i++) {
+            first = Math.min(first, cursors[i].doc());
+        }
+        return first;
+    }
+
+    /**
+     * Check for Levenshtein distance of at most one
+     */
+    private static boolean withinOneEdit(String a, String b) {
+        int lengthDiff = a.length() - b.length();
+        if (lengthDiff > 1 || lengthDiff < -1) {
+            return false;
+        }
+        if (a.length() < b.length()) {
+            String swap = a;
+            a = b;
+            b = swap;
+        }
+        int i = 0;
+        while (i < b.length() && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        if (a.length() == b.length()) {
+            // Substitution: the rest after the mismatch must agree
+            return i == b.length() || a.regionMatches(i + 1, b, i + 1, b.length() - i - 1);
+        }
+        // Deletion from the longer word
+        return a.regionMatches(i + 1, b, i, b.length() - i);
+    }
+}
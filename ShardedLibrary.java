@@ -0,0 +1,777 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * ShardedLibrary splits a consortium's books and members over several
+ * Library shards, one per branch, and routes each operation to the shard
+ * that owns it
+ *
+ * Every shard is a plain Library confined to its own thread: operations
+ * are queued to the shard's executor, so shards share nothing and never
+ * wait on each other's locks. Books and members are placed at a branch
+ * given by the caller, or by hashing the ISBN or member ID. A directory
+ * remembers where each ISBN and member ID lives; an ID keeps its branch
+ * even after it is removed, so adding it again goes back to the same one.
+ *
+ * Borrowing a book from another branch is an interlibrary loan, made with
+ * a two-phase protocol. In the first phase, run on both branches at once,
+ * the member's home branch checks the member and reserves a place under
+ * the loan limit, and the lending branch lends a copy to a proxy member
+ * standing in for the borrower. If both succeed the home branch records
+ * the loan; if either fails, whatever the other side reserved is undone.
+ * Returns run the same way in reverse. Statistics and searches ask every
+ * branch in parallel and combine the answers.
+ *
+ * An interlibrary loan is a real Library loan only at the lending branch,
+ * where the proxy holds it. The home branch keeps just a record of it for
+ * the router, so the home Library's own loan lists, overdue listings and
+ * due date sweep do not include it; getInterlibraryLoans() lists them.
+ * The lending branch's due date sweep may renew the proxy's loan, in which
+ * case the record keeps the due date agreed when the book was lent, and
+ * a fine on return is worked out from the lending branch's loan.
+ *
+ * Each branch runs its due date sweep and hold expiry on its own thread,
+ * between operations, as a concurrent Library does on its timer.
+ *
+ * Operations return futures that complete once the owning shards are
+ * done; they never block the caller or a shard thread. Books and members
+ * returned by lookups belong to their shard and should only be read.
+ * Shards are kept in memory only.
+ */
+public class ShardedLibrary implements AutoCloseable {
+    // Member IDs of the proxies that borrow on behalf of other branches' members
+    static final String PROXY_PREFIX = "ILL:";
+
+    private final Shard[] shards;
+    private final ConcurrentHashMap<String, Integer> bookBranches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> memberBranches = new ConcurrentHashMap<>();
+    private volatile EventSink events = new ConsoleEventSink(System.out);
+
+    /**
+     * Constructor to create a library with a number of empty branches
+     * @param branches Number of branches, each with its own shard and thread
+     */
+    public ShardedLibrary(int branches) {
+        if (branches < 1) {
+            throw new IllegalArgumentException("A library needs at least one branch: " + branches);
+        }
+        shards = new Shard[branches];
+        for (int i = 0; i < branches; i++) {
+            shards[i] = new Shard(i, events);
+        }
+    }
+
+    public int getBranchCount() {
+        return shards.length;
+    }
+
+    /**
+     * Set where operation events are published, for every branch
+     * @param events Sink for operation events, EventSink.NONE for none
+     */
+    public void setEventSink(EventSink events) {
+        this.events = events;
+        for (Shard shard : shards) {
+            shard.events = events;
+            shard.library.setEventSink(events);
+        }
+    }
+
+    /**
+     * Get the branch that holds a book
+     * @param isbn ISBN of the book
+     * @return Branch number, or -1 if the ISBN was never added
+     */
+    public int getBookBranch(String isbn) {
+        Integer branch = isbn == null ? null : bookBranches.get(Library.normalizeIsbn(isbn));
+        return branch == null ? -1 : branch;
+    }
+
+    /**
+     * Get a member's home branch
+     * @param memberId ID of the member
+     * @return Branch number, or -1 if the member ID was never added
+     */
+    public int getMemberBranch(String memberId) {
+        Integer branch = memberId == null ? null : memberBranches.get(Library.normalizeMemberId(memberId));
+        return branch == null ? -1 : branch;
+    }
+
+    /**
+     * Add a book at the branch its ISBN hashes to
+     * @param title Book title
+     * @param author Book author
+     * @param isbn Book ISBN
+     * @param copies Number of copies
+     * @return OK if the book was added, or why not
+     */
+    public CompletableFuture<LibraryResult> addBook(String title, String author, String isbn, int copies) {
+        return addBook(isbn == null ? 0 : hashBranch(Library.normalizeIsbn(isbn)), title, author, isbn, copies);
+    }
+
+    /**
+     * Add a book at a branch
+     * If the ISBN was added before, the book goes to the branch it was at.
+     * @param branch Branch to hold the book
+     * @param title Book title
+     * @param author Book author
+     * @param isbn Book ISBN
+     * @param copies Number of copies
+     * @return OK if the book was added, or why not
+     */
+    public CompletableFuture<LibraryResult> addBook(int branch, String title, String author, String isbn,
+            int copies) {
+        checkBranch(branch);
+        String error = Library.validateBook(title, author, isbn);
+        if (error == null) {
+            error = Library.validateCopies(copies);
+        }
+        if (error != null) {
+            return done(publish(LibraryResult.INVALID_INPUT, isbn, null, "Error: " + error));
+        }
+        Shard shard = shards[bookBranches.computeIfAbsent(Library.normalizeIsbn(isbn), key -> branch)];
+        return shard.call(() -> shard.library.addBook(title, author, isbn, copies));
+    }
+
+    /**
+     * Remove a book from its branch
+     * @param isbn ISBN of the book
+     * @return OK if the book was removed, or why not
+     */
+    public CompletableFuture<LibraryResult> removeBook(String isbn) {
+        Shard shard = bookShard(isbn);
+        if (shard == null) {
+            return done(bookNotFound(isbn, null));
+        }
+        return shard.call(() -> shard.library.removeBook(isbn));
+    }
+
+    /**
+     * Find a book by ISBN
+     * @param isbn ISBN to search for
+     * @return Book, or null if no branch has it
+     */
+    public CompletableFuture<Book> findBookByIsbn(String isbn) {
+        Shard shard = bookShard(isbn);
+        if (shard == null) {
+            return done(null);
+        }
+        return shard.call(() -> shard.library.findBookByIsbn(isbn));
+    }
+
+    /**
+     * Register a member at the branch the member ID hashes to
+     * @param name Member's name
+     * @param memberId Unique member ID
+     * @return OK if the member was added, or why not
+     */
+    public CompletableFuture<LibraryResult> addMember(String name, String memberId) {
+        return addMember(memberId == null ? 0 : hashBranch(Library.normalizeMemberId(memberId)), name, memberId);
+    }
+
+    /**
+     * Register a member at a home branch
+     * If the member ID was added before, the member goes back to that branch.
+     * @param branch Member's home branch
+     * @param name Member's name
+     * @param memberId Unique member ID
+     * @return OK if the member was added, or why not
+     */
+    public CompletableFuture<LibraryResult> addMember(int branch, String name, String memberId) {
+        checkBranch(branch);
+        String key = Library.normalizeMemberId(memberId);
+        if (key == null || key.isEmpty()) {
+            return done(publish(LibraryResult.INVALID_INPUT, null, memberId, "Error: Member ID is required!"));
+        }
+        // Leave room for the prefix of the member's proxy at other branches
+        if (key.length() > Library.MAX_ID_LENGTH - PROXY_PREFIX.length()) {
+            return done(publish(LibraryResult.INVALID_INPUT, null, memberId, "Error: Member ID cannot be longer than "
+                    + (Library.MAX_ID_LENGTH - PROXY_PREFIX.length()) + " characters!"));
+        }
+        if (key.startsWith(PROXY_PREFIX)) {
+            return done(publish(LibraryResult.INVALID_INPUT, null, memberId,
+                    "Error: Member IDs starting with " + PROXY_PREFIX + " are reserved for interlibrary loans."));
+        }
+        Shard shard = shards[memberBranches.computeIfAbsent(key, id -> branch)];
+        return shard.call(() -> shard.library.addMember(name, memberId));
+    }
+
+    /**
+     * Remove a member from their home branch
+     * Not possible while the member has books on loan from any branch.
+     * @param memberId ID of the member
+     * @return OK if the member was removed, or why not
+     */
+    public CompletableFuture<LibraryResult> removeMember(String memberId) {
+        Shard home = memberShard(memberId);
+        if (home == null) {
+            return done(memberNotFound(null, memberId));
+        }
+        return home.call(() -> {
+            if (home.interlibraryLoanCount(Library.normalizeMemberId(memberId)) > 0) {
+                return publish(LibraryResult.MEMBER_HAS_LOANS, null, memberId,
+                        "Error: Cannot remove member. They have borrowed books.");
+            }
+            return home.library.removeMember(memberId);
+        });
+    }
+
+    /**
+     * Borrow a book to a member, from another branch if the book is not at the member's home branch
+     * @param isbn ISBN of the book to borrow
+     * @param memberId ID of the member borrowing the book
+     * @return OK if the book was borrowed, or why not
+     */
+    public CompletableFuture<LibraryResult> borrowBook(String isbn, String memberId) {
+        Shard lender = bookShard(isbn);
+        Shard home = memberShard(memberId);
+        if (lender == null) {
+            return done(bookNotFound(isbn, memberId));
+        }
+        if (home == null) {
+            return done(memberNotFound(isbn, memberId));
+        }
+        if (lender != home) {
+            return lendBetweenBranches(isbn, memberId, lender, home);
+        }
+        return home.call(() -> {
+            // Loans from other branches count towards the limit as well
+            String memberKey = Library.normalizeMemberId(memberId);
+            int interlibrary = home.interlibraryLoanCount(memberKey);
+            Member member = home.library.findMemberById(memberId);
+            if (interlibrary > 0 && member != null
+                    && member.getLoanCount() + interlibrary >= home.library.loanLimit(member)) {
+                return loanLimitReached(isbn, memberId, home, member);
+            }
+            return home.library.borrowBook(isbn, memberId);
+        });
+    }
+
+    /**
+     * Return a book, to the branch it was borrowed from
+     * @param isbn ISBN of the book to return
+     * @param memberId ID of the member returning the book
+     * @return OK if the book was returned, or why not
+     */
+    public CompletableFuture<LibraryResult> returnBook(String isbn, String memberId) {
+        Shard lender = bookShard(isbn);
+        Shard home = memberShard(memberId);
+        if (lender == null) {
+            return done(bookNotFound(isbn, memberId));
+        }
+        if (home == null) {
+            return done(memberNotFound(isbn, memberId));
+        }
+        if (lender != home) {
+            return returnBetweenBranches(isbn, memberId, lender, home);
+        }
+        return home.call(() -> home.library.returnBook(isbn, memberId));
+    }
+
+    /**
+     * Get the books a member has on loan from other branches
+     * @param memberId ID of the member
+     * @return Interlibrary loans, oldest first; empty if none or the member is unknown
+     */
+    public CompletableFuture<List<InterlibraryLoan>> getInterlibraryLoans(String memberId) {
+        Shard home = memberShard(memberId);
+        if (home == null) {
+            return done(Collections.emptyList());
+        }
+        return home.call(() -> {
+            List<InterlibraryLoan> loans = new ArrayList<>();
+            Map<String, InterlibraryLoan> mine = home.inbound.get(Library.normalizeMemberId(memberId));
+            if (mine != null) {
+                for (InterlibraryLoan loan : mine.values()) {
+                    if (loan.getDueAt() > 0) {
+                        loans.add(loan);
+                    }
+                }
+            }
+            return loans;
+        });
+    }
+
+    /**
+     * Run any Library operation on one branch's thread
+     * For operations the router does not route itself, such as holds and renewals.
+     * @param branch Branch number
+     * @param action Operation to run on the branch's Library
+     * @return Result of the action
+     */
+    public <T> CompletableFuture<T> onBranch(int branch, Function<Library, T> action) {
+        checkBranch(branch);
+        Shard shard = shards[branch];
+        return shard.call(() -> action.apply(shard.library));
+    }
+
+    /**
+     * Add up the statistics of all branches, asking them in parallel
+     * Proxy members of interlibrary loans are not counted as members.
+     * @return Consortium-wide counts
+     */
+    public CompletableFuture<LibraryStats.Snapshot> getStatistics() {
+        List<CompletableFuture<LibraryStats.Snapshot>> parts = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            parts.add(shard.call(() -> {
+                LibraryStats.Snapshot s = shard.library.getStatistics();
+                return new LibraryStats.Snapshot(s.getTotalTitles(), s.getTotalBooks(), s.getAvailableBooks(),
+                        s.getTotalMembers() - shard.proxies, s.getTotalLoans());
+            }));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(all -> {
+            long titles = 0;
+            long books = 0;
+            long available = 0;
+            long members = 0;
+            long loans = 0;
+            for (CompletableFuture<LibraryStats.Snapshot> part : parts) {
+                LibraryStats.Snapshot s = part.join();
+                titles += s.getTotalTitles();
+                books += s.getTotalBooks();
+                available += s.getAvailableBooks();
+                members += s.getTotalMembers();
+                loans += s.getTotalLoans();
+            }
+            return new LibraryStats.Snapshot(titles, books, available, members, loans);
+        });
+    }
+
+    /**
+     * Search every branch in parallel
+     * Relevance scores of different branches are not comparable, so the
+     * results are merged by rank: each branch's best match, then each
+     * branch's second best, and so on.
+     * @param query Words to search for
+     * @param limit Maximum number of results
+     * @return Matching books, best matches first
+     */
+    public CompletableFuture<List<Book>> searchBooks(String query, int limit) {
+        List<CompletableFuture<List<Book>>> parts = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            parts.add(shard.call(() -> shard.library.searchBooks(query, limit)));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(all -> {
+            List<Book> merged = new ArrayList<>(limit);
+            for (int rank = 0; merged.size() < limit; rank++) {
+                boolean more = false;
+                for (CompletableFuture<List<Book>> part : parts) {
+                    List<Book> found = part.join();
+                    if (rank < found.size() && merged.size() < limit) {
+                        merged.add(found.get(rank));
+                        more = true;
+                    }
+                }
+                if (!more) {
+                    break;
+                }
+            }
+            return merged;
+        });
+    }
+
+    /**
+     * Stop the branch threads after the operations already queued
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.executor.shutdown();
+        }
+        try {
+            for (Shard shard : shards) {
+                shard.executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Interlibrary Loans
+
+    /**
+     * Lend a book from one branch to a member of another, in two phases
+     */
+    private CompletableFuture<LibraryResult> lendBetweenBranches(String isbn, String memberId, Shard lender,
+            Shard home) {
+        String bookKey = Library.normalizeIsbn(isbn);
+        String memberKey = Library.normalizeMemberId(memberId);
+        // Phase one, on both branches at once
+        CompletableFuture<Vote> reserved = home.call(() -> home.reserveLoan(bookKey, memberKey));
+        CompletableFuture<Vote> lent = lender.call(() -> lender.lendToProxy(isbn, memberKey));
+        return reserved.thenCombine(lent, (reservation, lending) -> {
+            if (reservation.result.isOk() && lending.result.isOk()) {
+                // Phase two: commit. The pending loan already counts against the limit,
+                // and the member cannot be removed while it exists, so this cannot fail.
+                return home.call(() -> {
+                    home.commitLoan(new InterlibraryLoan(isbn, memberId, lending.title, lender.branch, lending.dueAt));
+                    return publish(LibraryResult.OK, isbn, memberId, "Book '" + lending.title
+                            + "' borrowed successfully by " + reservation.name + " on interlibrary loan from branch "
+                            + lender.branch + ". Due back " + Library.formatDate(lending.dueAt));
+                });
+            }
+            // Phase two: abort whichever side said yes
+            CompletableFuture<Void> undone = CompletableFuture.completedFuture(null);
+            if (reservation.result.isOk()) {
+                undone = undone.thenCombine(home.call(() -> home.releaseLoan(bookKey, memberKey)), (a, b) -> null);
+            }
+            if (lending.result.isOk()) {
+                undone = undone.thenCombine(lender.call(() -> lender.takeBackFromProxy(isbn, memberKey)),
+                        (a, b) -> null);
+            }
+            Vote refusal = reservation.result.isOk() ? lending : reservation;
+            return undone.thenApply(v -> publish(refusal.result, isbn, memberId, refusal.message));
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Return a book borrowed from another branch, in two phases
+     */
+    private CompletableFuture<LibraryResult> returnBetweenBranches(String isbn, String memberId, Shard lender,
+            Shard home) {
+        String bookKey = Library.normalizeIsbn(isbn);
+        String memberKey = Library.normalizeMemberId(memberId);
+        // Phase one: the home branch marks the loan as being returned, so
+        // it cannot be returned twice or its member removed meanwhile
+        return home.call(() -> home.startReturn(bookKey, memberKey, isbn, memberId)).thenCompose(marked -> {
+            if (!marked.result.isOk()) {
+                return done(publish(marked.result, isbn, memberId, marked.message));
+            }
+            return lender.call(() -> lender.takeBackFromProxy(isbn, memberKey)).thenCompose(fine ->
+                    // Phase two: the home branch drops the loan and charges any fine,
+                    // or keeps the loan if the lending branch did not take the copy back
+                    home.call(() -> {
+                        if (fine < 0) {
+                            home.cancelReturn(bookKey, memberKey);
+                            return publish(LibraryResult.NOT_BORROWED, isbn, memberId,
+                                    "Error: Branch " + lender.branch + " has no loan of ISBN " + isbn
+                                    + " for member " + memberId + ".");
+                        }
+                        home.finishReturn(bookKey, memberKey, fine);
+                        String message = "Book '" + marked.title + "' returned successfully by " + marked.name
+                                + " to branch " + lender.branch;
+                        if (fine > 0) {
+                            message += ". Overdue, fine charged: " + Library.formatMoney(fine);
+                        }
+                        return publish(LibraryResult.OK, isbn, memberId, message);
+                    }));
+        });
+    }
+
+    /**
+     * A book lent by one branch to a member of another
+     */
+    public static final class InterlibraryLoan {
+        private final String isbn;
+        private final String memberId;
+        private final String title;
+        private final int lendingBranch;
+        private final long dueAt;
+        // Set while a return is between its two phases; only touched on the home branch's thread
+        private boolean returning;
+
+        InterlibraryLoan(String isbn, String memberId, String title, int lendingBranch, long dueAt) {
+            this.isbn = isbn;
+            this.memberId = memberId;
+            this.title = title;
+            this.lendingBranch = lendingBranch;
+            this.dueAt = dueAt;
+        }
+
+        public String getIsbn() {
+            return isbn;
+        }
+
+        public String getMemberId() {
+            return memberId;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public int getLendingBranch() {
+            return lendingBranch;
+        }
+
+        /**
+         * Get the time the book is due back at the lending branch
+         * @return Due time in milliseconds, or 0 while the loan is not yet committed
+         */
+        public long getDueAt() {
+            return dueAt;
+        }
+    }
+
+    /**
+     * One branch's answer in the first phase of a two-phase operation
+     */
+    private static final class Vote {
+        final LibraryResult result;
+        final String message;
+        final String name;
+        final String title;
+        final long dueAt;
+
+        Vote(LibraryResult result, String message, String name, String title, long dueAt) {
+            this.result = result;
+            this.message = message;
+            this.name = name;
+            this.title = title;
+            this.dueAt = dueAt;
+        }
+
+        static Vote no(LibraryResult result, String message) {
+            return new Vote(result, message, null, null, 0);
+        }
+    }
+
+    /**
+     * A branch: its Library, the thread it is confined to, and the loans
+     * its members have from other branches
+     */
+    private static final class Shard {
+        final int branch;
+        final Library library = new Library();
+        final ScheduledExecutorService executor;
+        // Member key -> ISBN key -> loan from another branch
+        final Map<String, Map<String, InterlibraryLoan>> inbound = new HashMap<>();
+        // Proxy members borrowing for other branches' members
+        int proxies;
+        volatile EventSink events;
+
+        Shard(int branch, EventSink events) {
+            this.branch = branch;
+            this.events = events;
+            this.library.setEventSink(events);
+            this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "library-branch-" + branch);
+                thread.setDaemon(true);
+                return thread;
+            });
+            // The shard's Library is not concurrent and starts no timer of its own
+            long tick = library.getHoldTickMillis();
+            executor.scheduleWithFixedDelay(() -> sweep("hold expiry", library::expireHolds),
+                    tick, tick, TimeUnit.MILLISECONDS);
+            executor.scheduleWithFixedDelay(() -> sweep("due date sweep", library::runDueDateSweep),
+                    Library.DUE_SWEEP_MILLIS, Library.DUE_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        <T> CompletableFuture<T> call(Supplier<T> task) {
+            return CompletableFuture.supplyAsync(task, executor);
+        }
+
+        private void sweep(String name, IntSupplier task) {
+            try {
+                task.getAsInt();
+            } catch (RuntimeException e) {
+                System.err.println("Warning: " + name + " failed at branch " + branch + ": " + e.getMessage());
+            }
+        }
+
+        int interlibraryLoanCount(String memberKey) {
+            Map<String, InterlibraryLoan> loans = inbound.get(memberKey);
+            return loans == null ? 0 : loans.size();
+        }
+
+        /**
+         * Phase one at the home branch: check the member and hold a place under the loan limit
+         */
+        Vote reserveLoan(String bookKey, String memberKey) {
+            Member member = library.findMemberById(memberKey);
+            if (member == null) {
+                return Vote.no(LibraryResult.MEMBER_NOT_FOUND, "Error: Member with ID " + memberKey + " not found!");
+            }
+            Map<String, InterlibraryLoan> loans = inbound.computeIfAbsent(memberKey, key -> new HashMap<>());
+            if (loans.containsKey(bookKey)) {
+                return Vote.no(LibraryResult.ALREADY_BORROWED,
+                        "Error: Member " + member.getName() + " has already borrowed this book.");
+            }
+            int limit = library.loanLimit(member);
+            if (member.getLoanCount() + loans.size() >= limit) {
+                dropIfEmpty(memberKey, loans);
+                return Vote.no(LibraryResult.LOAN_LIMIT_REACHED,
+                        "Error: Member " + member.getName() + " has reached the loan limit (" + limit + ").");
+            }
+            // A placeholder with no due date until the loan is committed
+            loans.put(bookKey, new InterlibraryLoan(bookKey, memberKey, null, -1, 0));
+            return new Vote(LibraryResult.OK, null, member.getName(), null, 0);
+        }
+
+        void commitLoan(InterlibraryLoan loan) {
+            inbound.get(Library.normalizeMemberId(loan.getMemberId())).put(Library.normalizeIsbn(loan.getIsbn()), loan);
+        }
+
+        Void releaseLoan(String bookKey, String memberKey) {
+            Map<String, InterlibraryLoan> loans = inbound.get(memberKey);
+            loans.remove(bookKey);
+            dropIfEmpty(memberKey, loans);
+            return null;
+        }
+
+        /**
+         * Phase one at the lending branch: lend a copy to the borrower's proxy member
+         */
+        Vote lendToProxy(String isbn, String memberKey) {
+            String proxyId = PROXY_PREFIX + memberKey;
+            return quietly(() -> {
+                if (library.findMemberById(proxyId) == null) {
+                    library.addMember("Interlibrary loan for " + memberKey, proxyId);
+                    proxies++;
+                }
+                LibraryResult result = library.borrowBook(isbn, proxyId);
+                Book book = library.findBookByIsbn(isbn);
+                if (result.isOk()) {
+                    Loan loan = library.findMemberById(proxyId).getLoan(book);
+                    return new Vote(result, null, null, book.getTitle(), loan.getDueAt());
+                }
+                dropProxy(proxyId);
+                switch (result) {
+                    case NOT_AVAILABLE:
+                        return Vote.no(result, "Error: Book is not available. All copies at branch " + branch
+                                + " are currently borrowed.");
+                    case ALREADY_BORROWED:
+                        return Vote.no(result, "Error: Member " + memberKey + " has already borrowed this book.");
+                    case BOOK_NOT_FOUND:
+                        return Vote.no(result, "Error: Book with ISBN " + isbn + " not found!");
+                    default:
+                        return Vote.no(result, "Error: Branch " + branch + " refused the interlibrary loan ("
+                                + result + ").");
+                }
+            });
+        }
+
+        /**
+         * Take a copy back from a proxy member
+         * @return Fine for the days overdue, or -1 if the proxy had no such loan
+         */
+        Long takeBackFromProxy(String isbn, String memberKey) {
+            String proxyId = PROXY_PREFIX + memberKey;
+            return quietly(() -> {
+                Member proxy = library.findMemberById(proxyId);
+                Loan loan = proxy == null ? null : proxy.getLoan(library.findBookByIsbn(isbn));
+                if (loan == null) {
+                    return -1L;
+                }
+                // The fine is charged to the member at the home branch, not to the proxy
+                long fine = library.getFine(loan);
+                library.returnBook(isbn, proxyId, 0);
+                dropProxy(proxyId);
+                return fine;
+            });
+        }
+
+        /**
+         * Phase one of a return at the home branch: mark the loan as being returned
+         */
+        Vote startReturn(String bookKey, String memberKey, String isbn, String memberId) {
+            Member member = library.findMemberById(memberKey);
+            if (member == null) {
+                return Vote.no(LibraryResult.MEMBER_NOT_FOUND, "Error: Member with ID " + memberId + " not found!");
+            }
+            Map<String, InterlibraryLoan> loans = inbound.get(memberKey);
+            InterlibraryLoan loan = loans == null ? null : loans.get(bookKey);
+            if (loan == null || loan.getDueAt() == 0 || loan.returning) {
+                return Vote.no(LibraryResult.NOT_BORROWED,
+                        "Error: Member " + member.getName() + " has not borrowed this book.");
+            }
+            loan.returning = true;
+            return new Vote(LibraryResult.OK, null, member.getName(), loan.getTitle(), loan.getDueAt());
+        }
+
+        Void cancelReturn(String bookKey, String memberKey) {
+            inbound.get(memberKey).get(bookKey).returning = false;
+            return null;
+        }
+
+        void finishReturn(String bookKey, String memberKey, long fine) {
+            releaseLoan(bookKey, memberKey);
+            if (fine > 0) {
+                library.findMemberById(memberKey).chargeFine(fine);
+            }
+        }
+
+        private void dropProxy(String proxyId) {
+            Member proxy = library.findMemberById(proxyId);
+            if (proxy != null && proxy.getLoanCount() == 0 && library.removeMember(proxyId).isOk()) {
+                proxies--;
+            }
+        }
+
+        private void dropIfEmpty(String memberKey, Map<String, InterlibraryLoan> loans) {
+            if (loans.isEmpty()) {
+                inbound.remove(memberKey);
+            }
+        }
+
+        // Proxy bookkeeping is not reported: the router publishes one event for the whole operation
+        private <T> T quietly(Supplier<T> action) {
+            library.setEventSink(EventSink.NONE);
+            try {
+                return action.get();
+            } finally {
+                library.setEventSink(events);
+            }
+        }
+    }
+
+    // Routing
+
+    private Shard bookShard(String isbn) {
+        Integer branch = isbn == null ? null : bookBranches.get(Library.normalizeIsbn(isbn));
+        return branch == null ? null : shards[branch];
+    }
+
+    private Shard memberShard(String memberId) {
+        Integer branch = memberId == null ? null : memberBranches.get(Library.normalizeMemberId(memberId));
+        return branch == null ? null : shards[branch];
+    }
+
+    private int hashBranch(String key) {
+        int h = key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    private void checkBranch(int branch) {
+        if (branch < 0 || branch >= shards.length) {
+            throw new IllegalArgumentException("No such branch: " + branch);
+        }
+    }
+
+    private LibraryResult bookNotFound(String isbn, String memberId) {
+        return publish(LibraryResult.BOOK_NOT_FOUND, isbn, memberId, "Error: Book with ISBN " + isbn + " not found!");
+    }
+
+    private LibraryResult memberNotFound(String isbn, String memberId) {
+        return publish(LibraryResult.MEMBER_NOT_FOUND, isbn, memberId,
+                "Error: Member with ID " + memberId + " not found!");
+    }
+
+    private LibraryResult loanLimitReached(String isbn, String memberId, Shard home, Member member) {
+        return publish(LibraryResult.LOAN_LIMIT_REACHED, isbn, memberId, "Error: Member " + member.getName()
+                + " has reached the loan limit (" + home.library.loanLimit(member) + ").");
+    }
+
+    private LibraryResult publish(LibraryResult result, String isbn, String memberId, String message) {
+        EventSink sink = events;
+        if (message != null && sink.isEnabled()) {
+            sink.publish(new LibraryEvent(result, isbn, memberId, message));
+        }
+        return result;
+    }
+
+    private static <T> CompletableFuture<T> done(T value) {
+        return CompletableFuture.completedFuture(value);
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SymbolTable keeps one copy of each distinct string
+ * Each Library interns its books' authors in a table of its own, so the
+ * thousands of books by one author point at a single String rather than
+ * each holding its own copy. Entries are never dropped while the library
+ * lives; an author stays after their last book is removed, which costs
+ * little next to the books the table saves on, and the table goes when
+ * the library does. Safe to share between threads.
+ */
+public class SymbolTable {
+    private final ConcurrentHashMap<String, String> symbols = new ConcurrentHashMap<>();
+
+    /**
+     * Get the table's copy of a string, adding it if it is new
+     * @param text String to look up
+     * @return Equal string held by the table, or null if text is null
+     */
+    public String intern(String text) {
+        if (text == null) {
+            return null;
+        }
+        String symbol = symbols.putIfAbsent(text, text);
+        return symbol == null ? text : symbol;
+    }
+
+    /**
+     * Get the number of distinct strings held
+     * @return Symbol count
+     */
+    public int size() {
+        return symbols.size();
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TimerWheel tracks deadlines in a ring of time slots
+ *
+ * Each slot covers one tick of time and the ring covers one revolution of
+ * ticks. An item is dropped into the slot of its deadline's tick, so
+ * scheduling is constant time. Advancing the wheel visits only the slots
+ * for the ticks that passed and the one it stops in; items in those slots
+ * whose deadline is later stay put, and are looked at again when the wheel
+ * next reaches or stops in their slot.
+ * Nothing ever scans all pending items. Cancelled items are not removed
+ * from their slot; callers skip them when they come due.
+ *
+ * @param <T> Item type
+ */
+public class TimerWheel<T> {
+    private final long tickMillis;
+    private final List<List<Entry<T>>> slots;
+    private long currentTick;
+    private int size;
+
+    /**
+     * A scheduled item and its deadline
+     */
+    private static final class Entry<T> {
+        private final T item;
+        private final long deadline;
+
+        Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Constructor to create a wheel
+     * @param tickMillis Length of one slot in milliseconds
+     * @param slotCount Number of slots in one revolution
+     * @param now Current time in milliseconds
+     */
+    public TimerWheel(long tickMillis, int slotCount, long now) {
+        if (tickMillis < 1 || slotCount < 1) {
+            throw new IllegalArgumentException("Tick length and slot count must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayList<>());
+        }
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedule an item
+     * Deadlines in the past are reported by the next advance().
+     * @param item Item to schedule
+     * @param deadline Time in milliseconds at which the item is due
+     */
+    public synchronized void schedule(T item, long deadline) {
+        long tick = Math.max(deadline / tickMillis, currentTick + 1);
+        slots.get(slotOf(tick)).add(new Entry<>(item, deadline));
+        size++;
+    }
+
+    /**
+     * Move the wheel forward and collect everything that is due
+     * @param now Current time in milliseconds
+     * @return Items whose deadline is at or before now, in no particular order
+     */
+    public synchronized List<T> advance(long now) {
+        List<T> due = new ArrayList<>();
+        long target = now / tickMillis;
+        if (target < currentTick) {
+            return due;
+        }
+        // The current tick is visited again: items due later in it were kept the last time.
+        // After a long pause every slot is visited once, not once per missed revolution.
+        long ticks = Math.min(target - currentTick + 1, slots.size());
+        for (long t = target - ticks + 1; t <= target; t++) {
+            List<Entry<T>> slot = slots.get(slotOf(t));
+            int kept = 0;
+            for (int i = 0; i < slot.size(); i++) {
+                Entry<T> entry = slot.get(i);
+                if (entry.deadline <= now) {
+                    due.add(entry.item);
+                } else {
+                    slot.set(kept++, entry);
+                }
+            }
+            slot.subList(kept, slot.size()).clear();
+        }
+        currentTick = target;
+        size -= due.size();
+        return due;
+    }
+
+    /**
+     * Get the number of scheduled items, including cancelled ones not yet due
+     * @return Pending item count
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the length of one tick
+     * @return Tick length in milliseconds
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    private int slotOf(long tick) {
+        return (int) Math.floorMod(tick, (long) slots.size());
+    }
+}
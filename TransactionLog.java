@@ -0,0 +1,493 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * TransactionLog is an append-only binary write-ahead log of library changes
+ *
+ * Records are appended to an in-memory buffer and written out by a single
+ * background flusher thread. Everything appended while one write + fsync is
+ * in progress goes out together in the next one (group commit), so many
+ * desks share the cost of each fsync.
+ *
+ * The log is split into segment files named wal-[first LSN].log. A record is
+ * [int length][long lsn][byte op][byte fieldCount][fields...][int crc32];
+ * a record with a bad length or checksum marks the torn tail of a segment.
+ */
+public class TransactionLog implements Closeable {
+    // Operation codes
+    public static final byte ADD_BOOK = 1;
+    public static final byte REMOVE_BOOK = 2;
+    public static final byte ADD_MEMBER = 3;
+    public static final byte REMOVE_MEMBER = 4;
+    public static final byte BORROW = 5;
+    public static final byte RETURN = 6;
+    public static final byte ADD_COPIES = 7;
+    public static final byte PLACE_HOLD = 8;
+    public static final byte CANCEL_HOLD = 9;
+    public static final byte FILL_HOLD = 10;
+    public static final byte RENEW = 11;
+    public static final byte SET_LOAN_LIMIT = 12;
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+    /**
+     * A single decoded log record
+     */
+    public static final class Record {
+        private final long lsn;
+        private final byte op;
+        private final String[] fields;
+        // Bytes the record takes in its segment, length and checksum included
+        private final int size;
+
+        Record(long lsn, byte op, String[] fields, int size) {
+            this.lsn = lsn;
+            this.op = op;
+            this.fields = fields;
+            this.size = size;
+        }
+
+        public long getLsn() {
+            return lsn;
+        }
+
+        public byte getOp() {
+            return op;
+        }
+
+        public String getField(int index) {
+            return fields[index];
+        }
+
+        public int getFieldCount() {
+            return fields.length;
+        }
+    }
+
+    /**
+     * Growable byte buffer the appenders fill and the flusher drains
+     */
+    private static final class Buffer {
+        private byte[] data = new byte[64 * 1024];
+        private int size;
+
+        void writeInt(int v) {
+            ensure(4);
+            data[size++] = (byte) (v >>> 24);
+            data[size++] = (byte) (v >>> 16);
+            data[size++] = (byte) (v >>> 8);
+            data[size++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void write(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > data.length) {
+                byte[] bigger = new byte[Math.max(data.length * 2, size + extra)];
+                System.arraycopy(data, 0, bigger, 0, size);
+                data = bigger;
+            }
+        }
+    }
+
+    private final Path directory;
+    private final boolean syncCommits;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    // Serializes channel writes and segment switches
+    private final Object ioLock = new Object();
+    private final Thread flusher;
+
+    private Buffer pending = new Buffer();
+    private Buffer spare = new Buffer();
+    private long lastLsn;
+    private long durableLsn;
+    private boolean closed;
+    private IOException failure;
+    private FileChannel channel;
+    private long segmentBytes;
+
+    /**
+     * Open the log for appending, starting a new segment
+     * @param directory Directory holding the segment files
+     * @param lastLsn Last sequence number already used (new records continue from it)
+     * @param syncCommits true to make sync() wait for fsync; false to let
+     *                    records reach disk in the background
+     * @throws IOException if the segment cannot be created
+     */
+    public TransactionLog(Path directory, long lastLsn, boolean syncCommits) throws IOException {
+        this.directory = directory;
+        this.syncCommits = syncCommits;
+        this.lastLsn = lastLsn;
+        this.durableLsn = lastLsn;
+        Files.createDirectories(directory);
+        this.channel = openSegment(lastLsn + 1);
+        this.flusher = new Thread(this::flushLoop, "transaction-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Append a record to the log
+     * The record is buffered; call sync() to wait until it is on disk.
+     * @param op Operation code
+     * @param fields Operation arguments (null values are allowed)
+     * @return Sequence number assigned to the record
+     */
+    public long append(byte op, String... fields) {
+        byte[] body = encode(op, fields);
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Transaction log is closed");
+            }
+            long lsn = ++lastLsn;
+            CRC32 crc = new CRC32();
+            crc.update(ByteBuffer.allocate(8).putLong(0, lsn));
+            crc.update(body);
+            pending.writeInt(8 + body.length);
+            pending.writeLong(lsn);
+            pending.write(body);
+            pending.writeInt((int) crc.getValue());
+            dataAvailable.signal();
+            return lsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a record is durable
+     * Returns immediately when the log was opened without sync commits.
+     * @param lsn Sequence number returned by append
+     */
+    public void sync(long lsn) {
+        if (!syncCommits) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (durableLsn < lsn && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Transaction log write failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the sequence number of the last appended record
+     * @return Last LSN
+     */
+    public long getLastLsn() {
+        lock.lock();
+        try {
+            return lastLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of bytes written to the current segment
+     * @return Segment size in bytes
+     */
+    public long getSegmentBytes() {
+        synchronized (ioLock) {
+            return segmentBytes;
+        }
+    }
+
+    /**
+     * Flush everything appended so far and start a new segment
+     * @throws IOException if the flush or the new segment fails
+     */
+    public void rotate() throws IOException {
+        synchronized (ioLock) {
+            flush();
+            long next;
+            lock.lock();
+            try {
+                next = durableLsn + 1;
+            } finally {
+                lock.unlock();
+            }
+            channel.close();
+            channel = openSegment(next);
+            segmentBytes = 0;
+        }
+    }
+
+    /**
+     * Delete segments that only hold records up to the given LSN
+     * The active segment is never deleted.
+     * @param lsn Records at or below this LSN are no longer needed
+     * @throws IOException if a segment cannot be deleted
+     */
+    public void deleteSegmentsThrough(long lsn) throws IOException {
+        synchronized (ioLock) {
+            List<Path> segments = listSegments(directory);
+            for (int i = 0; i + 1 < segments.size(); i++) {
+                // Segment i ends right before segment i + 1 starts
+                if (segmentStart(segments.get(i + 1)) <= lsn + 1) {
+                    Files.delete(segments.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush remaining records and close the log
+     * @throws IOException if the final flush fails
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            dataAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (ioLock) {
+            flush();
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Read back every intact record after a given LSN, oldest first
+     * A torn tail left by a crash is cut off its segment, so a log opened
+     * afterwards never appends records behind it where replay cannot reach
+     * them. Call before opening the log for writing.
+     * @param directory Directory holding the segment files
+     * @param afterLsn Records at or below this LSN are skipped
+     * @param consumer Callback for each record
+     * @return The highest LSN seen, or afterLsn if there were none
+     * @throws IOException if a segment cannot be read or truncated
+     */
+    public static long replay(Path directory, long afterLsn, Consumer<Record> consumer) throws IOException {
+        long last = afterLsn;
+        if (!Files.isDirectory(directory)) {
+            return last;
+        }
+        for (Path segment : listSegments(directory)) {
+            long intact = 0;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(segment), 1 << 16))) {
+                Record record;
+                while ((record = readRecord(in)) != null) {
+                    intact += record.size;
+                    if (record.lsn > afterLsn) {
+                        consumer.accept(record);
+                        last = Math.max(last, record.lsn);
+                    }
+                }
+            }
+            if (Files.size(segment) > intact) {
+                try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    channel.truncate(intact);
+                    channel.force(true);
+                }
+            }
+        }
+        return last;
+    }
+
+    // Background flushing
+
+    private void flushLoop() {
+        while (true) {
+            lock.lock();
+            try {
+                while (pending.size == 0 && !closed) {
+                    dataAvailable.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return; // close() does the final flush
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                synchronized (ioLock) {
+                    flush();
+                }
+            } catch (IOException e) {
+                return; // recorded in failure; waiting committers are released
+            }
+        }
+    }
+
+    /**
+     * Write and fsync everything buffered so far. Caller holds ioLock.
+     */
+    private void flush() throws IOException {
+        Buffer batch;
+        long target;
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            batch = pending;
+            pending = spare;
+            spare = null;
+            target = lastLsn;
+        } finally {
+            lock.unlock();
+        }
+
+        IOException error = null;
+        try {
+            if (batch.size > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.data, 0, batch.size);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                segmentBytes += batch.size;
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        lock.lock();
+        try {
+            batch.size = 0;
+            spare = batch;
+            if (error != null) {
+                failure = error;
+            } else {
+                durableLsn = target;
+            }
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Encoding helpers
+
+    private FileChannel openSegment(long firstLsn) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstLsn, SEGMENT_SUFFIX));
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private static byte[] encode(byte op, String[] fields) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(op);
+            out.writeByte(fields.length);
+            for (String field : fields) {
+                out.writeBoolean(field != null);
+                if (field != null) {
+                    out.writeUTF(field);
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Only writeUTF() can fail here, for a field over 64 KB; Library's validation keeps fields shorter
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read one record, or null at the end of the segment or its torn tail
+     */
+    private static Record readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 10 || length > MAX_RECORD_LENGTH) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            int storedCrc = in.readInt();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != storedCrc) {
+                return null;
+            }
+            DataInputStream body = new DataInputStream(new ByteArrayInputStream(payload));
+            long lsn = body.readLong();
+            byte op = body.readByte();
+            String[] fields = new String[body.readUnsignedByte()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = body.readBoolean() ? body.readUTF() : null;
+            }
+            return new Record(lsn, op, fields, 8 + length);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        // Zero-padded start LSNs sort correctly as text
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long segmentStart(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * BookHeapBenchmark reports the heap each book takes, on its own and in a
+ * Library with its indexes, and how fast books are found by equality
+ * Titles, authors and ISBNs are built fresh for every book, as they would
+ * be when read from a file, and every author has a few dozen books.
+ *
+ * Usage: java -Xmx4g BookHeapBenchmark [books] [rounds]
+ */
+public class BookHeapBenchmark {
+    private static final int WORDS = 5_000;
+    private static final int BOOKS_PER_AUTHOR = 40;
+    private static final int LOOKUPS = 5_000_000;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        String[] words = new String[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            words[i] = Integer.toString(i * 7_919 + 100_000, 36);
+        }
+
+        long heapBefore = usedHeap();
+        Book[] books = new Book[count];
+        // Shared as a Library shares them
+        SymbolTable authors = new SymbolTable();
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            books[i] = new Book(title(words, random), authors.intern("Author " + (i / BOOKS_PER_AUTHOR)), isbn(i));
+        }
+        long heapAfter = usedHeap();
+        System.out.printf("%,d books: %.1f bytes per book%n", count, (heapAfter - heapBefore) / (double) count);
+
+        Set<Book> set = new HashSet<>();
+        for (Book book : books) {
+            set.add(book);
+        }
+        for (int round = 1; round <= rounds; round++) {
+            long found = 0;
+            long begin = System.nanoTime();
+            for (int q = 0; q < LOOKUPS; q++) {
+                found += set.contains(books[random.nextInt(count)]) ? 1 : 0;
+            }
+            System.out.printf("Round %d: HashSet<Book>.contains %.0f ns per call (%,d found)%n", round,
+                    (System.nanoTime() - begin) / (double) LOOKUPS, found);
+        }
+        set = null;
+        books = null;
+
+        heapBefore = usedHeap();
+        Library library = new Library(true);
+        library.setEventSink(EventSink.NONE);
+        random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            library.addBook(title(words, random), "Author " + (i / BOOKS_PER_AUTHOR), isbn(i));
+        }
+        heapAfter = usedHeap();
+        System.out.printf("Library with %,d books: %.1f bytes per book, %,d authors interned%n",
+                library.getBookCount(), (heapAfter - heapBefore) / (double) count, library.getAuthorCount());
+    }
+
+    private static String title(String[] words, Random random) {
+        return words[random.nextInt(WORDS)] + " " + words[random.nextInt(WORDS)] + " " + words[random.nextInt(WORDS)];
+    }
+
+    // A hyphenated ISBN-13 with a correct check digit
+    private static String isbn(int i) {
+        String digits = String.format("978%09d", i);
+        digits += Isbn.checkDigit(digits);
+        return digits.substring(0, 3) + "-" + digits.charAt(3) + "-" + digits.substring(4, 7) + "-"
+                + digits.substring(7, 12) + "-" + digits.charAt(12);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.Random;
+
+/**
+ * CatalogBenchmark builds a synthetic ColumnarCatalog and measures how long
+ * a Library takes to open it, the heap it costs, and lookup speed.
+ *
+ * Usage: java -Xmx8g CatalogBenchmark [titles] [catalogFile]
+ * Building is the slow part; pass an existing file to only measure opening.
+ */
+public class CatalogBenchmark {
+    private static final int LOOKUPS = 1_000_000;
+    
+    public static void main(String[] args) throws IOException {
+        int titles = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path file = args.length > 1 ? Path.of(args[1]) : Files.createTempFile("catalog", ".lmsc");
+        
+        if (!Files.exists(file) || Files.size(file) == 0) {
+            long start = System.nanoTime();
+            // Books are generated as the writer asks for them
+            ColumnarCatalog.write(file, new AbstractList<Book>() {
+                @Override
+                public Book get(int index) {
+                    return new Book("Synthetic Title " + index, "Author " + (index % 50_000), isbn(index));
+                }
+                
+                @Override
+                public int size() {
+                    return titles;
+                }
+            });
+            System.out.printf("Built %d titles in %.1f s (%d MB on disk)%n", titles,
+                    (System.nanoTime() - start) / 1e9, Files.size(file) >> 20);
+        }
+        
+        System.gc();
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        ColumnarCatalog catalog = ColumnarCatalog.open(file);
+        Library library = new Library();
+        library.attachCatalog(catalog);
+        double openMillis = (System.nanoTime() - start) / 1e6;
+        System.gc();
+        long heapAfter = usedHeap();
+        System.out.printf("Opened %d titles in %.2f ms, heap delta %d KB%n",
+                library.getBookCount(), openMillis, (heapAfter - heapBefore) >> 10);
+        
+        Random random = new Random(7);
+        String[] probes = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            probes[i] = isbn(random.nextInt(titles));
+        }
+        int found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (library.findBookByIsbn(probes[i]) != null) {
+                found++;
+            }
+        }
+        System.out.printf("Lookup: %.0f ns/op (%d found)%n",
+                (System.nanoTime() - start) / (double) LOOKUPS, found);
+        catalog.close();
+    }
+    
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    private static String isbn(int n) {
+        return String.format("978-%09d-%d", n, n % 10);
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CirculationBenchmark compares one-call-at-a-time borrows and returns with
+ * the same work sent through a CirculationDesk
+ * Each kiosk thread lends a burst of books to its patrons and then takes
+ * them all back, either calling borrowBook()/returnBook() per book or
+ * submitting the burst to a shared desk and waiting for the futures. It
+ * runs in memory and with a store that syncs every commit; the first
+ * round warms up the JIT.
+ *
+ * Usage: java CirculationBenchmark [kiosks] [seconds] [burst] [rounds]
+ */
+public class CirculationBenchmark {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int kiosks = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int burst = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+        for (int round = 1; round <= rounds; round++) {
+            for (boolean durable : new boolean[] {false, true}) {
+                for (boolean desk : new boolean[] {false, true}) {
+                    run(round, kiosks, seconds, burst, durable, desk);
+                }
+            }
+        }
+    }
+
+    private static void run(int round, int kiosks, int seconds, int burst, boolean durable, boolean useDesk)
+            throws IOException, InterruptedException {
+        Library library = new Library(true);
+        library.setEventSink(EventSink.NONE);
+        Path dir = durable ? Files.createTempDirectory("library-desk-bench") : null;
+        LibraryStore store = durable ? LibraryStore.open(dir, library, true) : null;
+        CirculationDesk desk = useDesk ? new CirculationDesk(library) : null;
+        try {
+            for (int k = 0; k < kiosks; k++) {
+                for (int i = 0; i < burst; i++) {
+                    library.addMember("Patron " + k + "/" + i, "P" + k + "-" + i);
+                    library.addBook("Title " + k + "/" + i, "Author " + i, isbn(k, i));
+                }
+            }
+
+            LongAdder operations = new LongAdder();
+            CountDownLatch start = new CountDownLatch(1);
+            long deadline = System.nanoTime() + 1_000_000_000L * seconds + 100_000_000L;
+            Thread[] workers = new Thread[kiosks];
+            for (int k = 0; k < kiosks; k++) {
+                List<CirculationDesk.Request> borrows = new ArrayList<>();
+                List<CirculationDesk.Request> returns = new ArrayList<>();
+                for (int i = 0; i < burst; i++) {
+                    borrows.add(CirculationDesk.Request.borrow(isbn(k, i), "P" + k + "-" + i));
+                    returns.add(CirculationDesk.Request.returnBook(isbn(k, i), "P" + k + "-" + i));
+                }
+                workers[k] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (System.nanoTime() < deadline) {
+                        if (desk != null) {
+                            check(desk.submitAll(borrows));
+                            check(desk.submitAll(returns));
+                        } else {
+                            for (CirculationDesk.Request request : borrows) {
+                                check(library.borrowBook(request.getIsbn(), request.getMemberId()));
+                            }
+                            for (CirculationDesk.Request request : returns) {
+                                check(library.returnBook(request.getIsbn(), request.getMemberId()));
+                            }
+                        }
+                        operations.add(2L * burst);
+                    }
+                });
+                workers[k].start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            double elapsed = (System.nanoTime() - begin) / 1e9;
+            String batches = desk == null ? "" : String.format(" (%.0f requests per batch)",
+                    desk.getRequestCount() / (double) Math.max(1, desk.getBatchCount()));
+            System.out.printf("Round %d: %-9s %-8s %d kiosks, bursts of %d: %,.0f ops/s%s%n", round,
+                    durable ? "durable" : "in-memory", useDesk ? "desk" : "per-call", kiosks, burst,
+                    operations.sum() / elapsed, batches);
+        } finally {
+            if (desk != null) {
+                desk.close();
+            }
+            if (store != null) {
+                store.close();
+            }
+        }
+    }
+
+    // Fixed widths, since hyphens are dropped when ISBNs are compared
+    private static String isbn(int kiosk, int book) {
+        return String.format("978-%04d-%05d", kiosk, book);
+    }
+
+    private static void check(List<CompletableFuture<LibraryResult>> futures) {
+        for (CompletableFuture<LibraryResult> future : futures) {
+            check(future.join());
+        }
+    }
+
+    private static void check(LibraryResult result) {
+        if (!result.isOk()) {
+            throw new IllegalStateException("Unexpected result " + result);
+        }
+    }
+}
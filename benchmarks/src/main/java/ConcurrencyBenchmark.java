@@ -0,0 +1,88 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ConcurrencyBenchmark measures borrow/return throughput of a concurrent
+ * Library as threads are added. Each thread circulates its own set of
+ * books and its own member, so the only shared state is the library itself.
+ *
+ * Usage: java ConcurrencyBenchmark [maxThreads] [seconds]
+ */
+public class ConcurrencyBenchmark {
+    private static final int BOOKS_PER_THREAD = 1_000;
+    
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        
+        System.out.printf("%8s %16s %10s%n", "threads", "ops/s", "speedup");
+        double baseline = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double opsPerSecond = run(threads, seconds);
+            if (threads == 1) {
+                baseline = opsPerSecond;
+            }
+            System.out.printf("%8d %16.0f %10.2f%n", threads, opsPerSecond, opsPerSecond / baseline);
+        }
+    }
+    
+    /**
+     * Run borrow/return round trips on disjoint books
+     * @param threads Number of worker threads
+     * @param seconds Measurement time
+     * @return Operations per second across all threads
+     */
+    private static double run(int threads, int seconds) throws InterruptedException {
+        Library library = new Library(true);
+        // No events: a console sink would serialize every thread on its stream
+        library.setEventSink(EventSink.NONE);
+        for (int t = 0; t < threads; t++) {
+            library.addMember("Desk " + t, "D" + t);
+            for (int b = 0; b < BOOKS_PER_THREAD; b++) {
+                library.addBook("Title " + t + "/" + b, "Author", isbn(t, b));
+            }
+        }
+        
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            final int desk = t;
+            workers[t] = new Thread(() -> {
+                String memberId = "D" + desk;
+                String[] isbns = new String[BOOKS_PER_THREAD];
+                for (int b = 0; b < isbns.length; b++) {
+                    isbns[b] = isbn(desk, b);
+                }
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long done = 0;
+                int b = 0;
+                while (System.nanoTime() < deadline[0]) {
+                    library.borrowBook(isbns[b], memberId);
+                    library.returnBook(isbns[b], memberId);
+                    done += 2;
+                    b = (b + 1) % isbns.length;
+                }
+                operations.add(done);
+            });
+            workers[t].start();
+        }
+        
+        deadline[0] = System.nanoTime() + seconds * 1_000_000_000L;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() / (double) seconds;
+    }
+    
+    private static String isbn(int thread, int book) {
+        return "978-" + thread + "-" + book;
+    }
+}
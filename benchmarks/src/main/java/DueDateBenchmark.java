@@ -0,0 +1,73 @@
+import java.util.Random;
+
+/**
+ * DueDateBenchmark fills a DueDateIndex with active loans spread over the
+ * next loan period and times the overdue query as the clock moves forward.
+ * A scan over every member's loans, which is what finding overdue loans
+ * took before the index, is timed for comparison.
+ *
+ * Usage: java -Xmx4g DueDateBenchmark [loans]
+ */
+public class DueDateBenchmark {
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        long day = DueDateIndex.DAY_MILLIS;
+        long start = System.currentTimeMillis();
+        Random random = new Random(5);
+
+        Book[] books = new Book[10_000];
+        Member[] members = new Member[100_000];
+        int copies = (count + books.length - 1) / books.length;
+        for (int i = 0; i < books.length; i++) {
+            books[i] = new Book("Title " + i, "Author " + i, "978-" + i, copies);
+        }
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new Member("Member " + i, "M" + i);
+        }
+
+        Loan[] loans = new Loan[count];
+        DueDateIndex index = new DueDateIndex();
+        long begin = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            // Each member borrows a different title every time round
+            Member member = members[i % members.length];
+            Loan loan = member.borrowBook(books[(i + i / members.length) % books.length]);
+            // Due some time in the next 14 days
+            loan.setDueAt(start + (long) (random.nextDouble() * 14 * day));
+            index.add(loan);
+            loans[i] = loan;
+        }
+        System.out.printf("Indexed %,d loans in %.0f ms%n", count, (System.nanoTime() - begin) / 1e6);
+
+        for (long hours : new long[] {1, 6, 24}) {
+            long now = start + hours * 60 * 60 * 1000;
+            begin = System.nanoTime();
+            int overdue = index.overdue(now).size();
+            long indexed = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            int scanned = 0;
+            for (Member member : members) {
+                for (Loan loan : member.getLoans()) {
+                    if (loan.isOverdue(now)) {
+                        scanned++;
+                    }
+                }
+            }
+            long scan = System.nanoTime() - begin;
+            System.out.printf("After %2d hours: %,9d overdue | index %6.1f ms | full scan %6.1f ms%s%n",
+                    hours, overdue, indexed / 1e6, scan / 1e6, overdue == scanned ? "" : " (MISMATCH)");
+        }
+
+        // Renewing a loan moves it between buckets
+        begin = System.nanoTime();
+        int moves = Math.min(count, 1_000_000);
+        for (int i = 0; i < moves; i++) {
+            Loan loan = loans[i];
+            index.remove(loan, loan.getDueAt());
+            loan.renew(loan.getDueAt() + 14 * day);
+            index.add(loan);
+        }
+        System.out.printf("Moved %,d loans in %.0f ms%n", moves, (System.nanoTime() - begin) / 1e6);
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * EventBenchmark measures borrow/return throughput of a concurrent Library
+ * with each kind of event sink: printing every message on the calling
+ * thread, handing messages to an AsyncEventSink, and publishing nothing.
+ * Messages go to a file (/dev/null by default), so the cost measured is
+ * the formatting, the stream's lock and one write per flush.
+ *
+ * Usage: java EventBenchmark [threads] [seconds] [file]
+ */
+public class EventBenchmark {
+    private static final int BOOKS_PER_THREAD = 1_000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        String file = args.length > 2 ? args[2] : "/dev/null";
+
+        System.out.printf("%d threads, %d s per run, messages to %s%n", threads, seconds, file);
+        for (int round = 0; round < 2; round++) {
+            try (PrintStream stream = open(file)) {
+                report("console (synchronous)", run(new ConsoleEventSink(stream), threads, seconds));
+            }
+            try (PrintStream stream = open(file);
+                 AsyncEventSink async = new AsyncEventSink(new ConsoleEventSink(stream, false))) {
+                report("async ring buffer", run(async, threads, seconds));
+            }
+            report("none", run(EventSink.NONE, threads, seconds));
+        }
+    }
+
+    private static PrintStream open(String file) throws FileNotFoundException {
+        // Autoflush, like the console
+        return new PrintStream(new FileOutputStream(file), true);
+    }
+
+    private static void report(String name, double opsPerSecond) {
+        System.out.printf("  %-24s %,12.0f ops/s%n", name, opsPerSecond);
+    }
+
+    private static double run(EventSink events, int threads, int seconds) throws InterruptedException {
+        Library library = new Library(true);
+        library.setOutput(new PrintStream(OutputStream.nullOutputStream()));
+        library.setEventSink(EventSink.NONE);
+        for (int t = 0; t < threads; t++) {
+            library.addMember("Desk " + t, "D" + t);
+            for (int b = 0; b < BOOKS_PER_THREAD; b++) {
+                library.addBook("Title " + t + "/" + b, "Author", t + "-" + b);
+            }
+        }
+        library.setEventSink(events);
+
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + 1_000_000_000L * seconds;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int desk = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                String memberId = "D" + desk;
+                int b = 0;
+                while (System.nanoTime() < deadline) {
+                    String isbn = desk + "-" + b;
+                    library.borrowBook(isbn, memberId);
+                    library.returnBook(isbn, memberId);
+                    operations.add(2);
+                    b = (b + 1) % BOOKS_PER_THREAD;
+                }
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        // Queued events count: the run is over when the sink has caught up
+        events.flush();
+        return operations.sum() / ((System.nanoTime() - begin) / 1e9);
+    }
+}
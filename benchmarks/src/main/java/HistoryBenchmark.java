@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * HistoryBenchmark records a year of loans and returns into a
+ * CirculationHistory, compacts it, and times the reports: the most
+ * borrowed titles of every month, and the loans of every member.
+ * Borrowing is skewed, a few titles taking most of the loans.
+ *
+ * Usage: java -Xmx6g HistoryBenchmark [events] [books] [members] [rounds]
+ */
+public class HistoryBenchmark {
+    private static final int YEAR = 2025;
+
+    public static void main(String[] args) throws IOException {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 50_000_000;
+        int bookCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int memberCount = args.length > 2 ? Integer.parseInt(args[2]) : 500_000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        String[] isbns = new String[bookCount];
+        String[] titles = new String[bookCount];
+        for (int i = 0; i < bookCount; i++) {
+            isbns[i] = "978-" + i;
+            titles[i] = "Title " + i;
+        }
+        String[] members = new String[memberCount];
+        for (int i = 0; i < memberCount; i++) {
+            members[i] = "M" + i;
+        }
+
+        CirculationHistory history = new CirculationHistory();
+        Random random = new Random(42);
+        long start = LocalDate.of(YEAR, 1, 1).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+        long span = LocalDate.of(YEAR + 1, 1, 1).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli() - start;
+        long begin = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            long time = start + span * i / events;
+            // Squaring a uniform number favours low book numbers
+            double u = random.nextDouble();
+            int book = (int) (u * u * bookCount);
+            String member = members[random.nextInt(memberCount)];
+            if ((i & 1) == 0) {
+                history.recordBorrow(isbns[book], titles[book], member, time);
+            } else {
+                history.recordReturn(isbns[book], titles[book], member, time);
+            }
+        }
+        long recorded = System.nanoTime();
+        System.out.printf("%,d events, %,d books, %,d members: %.0f ns per event, %.2f bytes per event%n",
+                events, bookCount, memberCount, (recorded - begin) / (double) events,
+                history.getByteCount() / (double) history.getEventCount());
+        begin = System.nanoTime();
+        history.compact();
+        System.out.printf("Compaction: %.0f ms, %.2f bytes per event%n", (System.nanoTime() - begin) / 1e6,
+                history.getByteCount() / (double) history.getEventCount());
+
+        for (int round = 1; round <= rounds; round++) {
+            begin = System.nanoTime();
+            Map<YearMonth, List<CirculationHistory.BookCount>> top = history.topBorrowedByMonth(YEAR, 10);
+            long topTime = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            Map<String, Integer> loans = history.loansPerMember(YEAR);
+            long memberTime = System.nanoTime() - begin;
+            System.out.printf("Round %d: top 10 per month %.0f ms (%d months, January #1: %s), "
+                    + "loans per member %.0f ms (%,d members)%n", round, topTime / 1e6, top.size(),
+                    top.get(YearMonth.of(YEAR, 1)).get(0), memberTime / 1e6, loans.size());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HoldBenchmark measures the hold queues at scale: placing holds, handing
+ * returned copies to the next member in line, and expiring lapsed holds.
+ *
+ * Every title has one copy, out on loan, and the same number of holds.
+ * The hand-off phase returns each copy until its queue is empty, so every
+ * return serves a hold. The expiry phase fills the queues again and moves
+ * the clock past the expiry time.
+ *
+ * Usage: java -Xmx4g HoldBenchmark [holds] [titles]
+ */
+public class HoldBenchmark {
+    public static void main(String[] args) {
+        int holds = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int titles = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int perTitle = holds / titles;
+        int members = Math.max(perTitle, 100_000);
+        AtomicLong now = new AtomicLong(System.currentTimeMillis());
+
+        Library library = new Library();
+        library.setClock(now::get);
+        library.setEventSink(EventSink.NONE);
+        for (int t = 0; t < titles; t++) {
+            library.addBook("Title " + t, "Author " + (t % 1_000), "978-" + t);
+            library.addMember("Lender " + t, "L" + t);
+            library.borrowBook("978-" + t, "L" + t);
+        }
+        for (int m = 0; m < members; m++) {
+            library.addMember("Member " + m, "M" + m);
+        }
+        System.out.printf("%d titles, %d members, %d holds per title%n", titles, members, perTitle);
+
+        long placed = placeAll(library, titles, perTitle, members);
+
+        // Hand-off: each return lends the copy to the next member in the queue
+        long start = System.nanoTime();
+        for (int t = 0; t < titles; t++) {
+            String isbn = "978-" + t;
+            library.returnBook(isbn, "L" + t);
+            for (int k = 0; k < perTitle; k++) {
+                library.returnBook(isbn, memberId(t, k, perTitle, members));
+            }
+        }
+        report("Returns served to holds", placed, System.nanoTime() - start);
+
+        // Expiry: queue again behind the lenders, then let every hold lapse
+        for (int t = 0; t < titles; t++) {
+            library.borrowBook("978-" + t, "L" + t);
+        }
+        placed = placeAll(library, titles, perTitle, members);
+        now.addAndGet(Library.HOLD_EXPIRY_MILLIS + 60_000);
+        start = System.nanoTime();
+        int expired = library.expireHolds();
+        report("Holds expired", expired, System.nanoTime() - start);
+        if (expired != placed) {
+            System.out.println("Warning: " + (placed - expired) + " holds did not expire");
+        }
+    }
+
+    private static long placeAll(Library library, int titles, int perTitle, int members) {
+        long placed = 0;
+        long start = System.nanoTime();
+        for (int k = 0; k < perTitle; k++) {
+            for (int t = 0; t < titles; t++) {
+                if (library.placeHold("978-" + t, memberId(t, k, perTitle, members)).isOk()) {
+                    placed++;
+                }
+            }
+        }
+        report("Holds placed", placed, System.nanoTime() - start);
+        return placed;
+    }
+
+    // The k-th member in line for title t; distinct for each k of one title
+    private static String memberId(int t, int k, int perTitle, int members) {
+        return "M" + (((long) t * perTitle + k) % members);
+    }
+
+    private static void report(String label, long count, long nanos) {
+        System.out.printf("%-24s %,10d in %7.1f ms (%,.0f ops/s)%n",
+                label + ":", count, nanos / 1e6, count / (nanos / 1e9));
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IndexBenchmark compares answering "available books by this author" and
+ * "available titles starting with ..." from the sorted author/title
+ * indexes and availability bitmap against a full scan of the catalog,
+ * and times the bitmap update that borrowBook and returnBook now pay.
+ *
+ * Usage: java -Xmx4g IndexBenchmark [books] [rounds]
+ */
+public class IndexBenchmark {
+    private static final int AUTHORS = 10_000;
+    private static final int QUERIES = 200;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Library library = new Library();
+        library.setEventSink(EventSink.NONE);
+        for (int i = 0; i < count; i++) {
+            library.addBook("Title " + Integer.toString(i, 36), "Author " + (i % AUTHORS), "978-" + i);
+        }
+        // Half the books are out
+        int members = count / 20;
+        for (int m = 0; m < members; m++) {
+            library.addMember("Member " + m, "M" + m);
+        }
+        for (int i = 0; i < count; i += 2) {
+            library.borrowBook("978-" + i, "M" + (i / 2 % members));
+        }
+        System.out.printf("%,d books by %,d authors, half of them on loan%n", count, AUTHORS);
+
+        for (int round = 1; round <= rounds; round++) {
+            System.out.printf("Round %d%n", round);
+            long found = 0;
+            long begin = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                found += library.findBooksByAuthor("Author " + (q * 37 % AUTHORS), true, Integer.MAX_VALUE).size();
+            }
+            report("author + available, index", begin, found);
+
+            found = 0;
+            begin = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                found += scan(library, "Author " + (q * 37 % AUTHORS), null).size();
+            }
+            report("author + available, scan", begin, found);
+
+            found = 0;
+            begin = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                found += library.findBooksByTitlePrefix("Title " + Integer.toString(q * 37 % 1296, 36), true,
+                        Integer.MAX_VALUE).size();
+            }
+            report("title prefix + available, index", begin, found);
+
+            found = 0;
+            begin = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                found += scan(library, null, "title " + Integer.toString(q * 37 % 1296, 36)).size();
+            }
+            report("title prefix + available, scan", begin, found);
+        }
+
+        // The bitmap update borrowBook and returnBook pay, on its own
+        BookIndex index = new BookIndex();
+        Book[] books = new Book[1 << 16];
+        for (int i = 0; i < books.length; i++) {
+            books[i] = new Book("Title " + i, "Author " + (i % AUTHORS), "978-" + i);
+            index.add(books[i]);
+        }
+        for (int round = 1; round <= rounds; round++) {
+            long begin = System.nanoTime();
+            int updates = 20_000_000;
+            for (int i = 0; i < updates; i++) {
+                Book book = books[i & (books.length - 1)];
+                book.setAvailable((i & books.length) == 0);
+                index.updateAvailability(book);
+            }
+            long setOnly = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                books[i & (books.length - 1)].setAvailable((i & books.length) == 0);
+            }
+            long end = System.nanoTime();
+            System.out.printf("Round %d: bitmap update %.1f ns per borrow/return%n", round,
+                    ((setOnly - begin) - (end - setOnly)) / (double) updates);
+        }
+    }
+
+    /**
+     * Find available books the old way, by walking every book
+     * @param library Library to scan
+     * @param author Author to match, or null
+     * @param titlePrefix Lower-case title prefix to match, or null
+     * @return Matching available books
+     */
+    private static List<Book> scan(Library library, String author, String titlePrefix) {
+        List<Book> found = new ArrayList<>();
+        for (Book book : library.allBooks()) {
+            if (book.isAvailable()
+                    && (author == null || book.getAuthor().equalsIgnoreCase(author))
+                    && (titlePrefix == null || book.getTitle().toLowerCase().startsWith(titlePrefix))) {
+                found.add(book);
+            }
+        }
+        return found;
+    }
+
+    private static void report(String name, long begin, long found) {
+        double micros = (System.nanoTime() - begin) / 1e3 / QUERIES;
+        System.out.printf("  %-34s %12.1f us/query %10d found%n", name, micros, found);
+    }
+}
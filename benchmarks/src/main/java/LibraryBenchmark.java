@@ -0,0 +1,119 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * LibraryBenchmark compares the old linear-scan lookups against the
+ * hash-indexed lookups in Library at several catalog sizes.
+ *
+ * Usage: java -Xmx8g LibraryBenchmark [size,size,...]
+ * Default sizes are 10000, 1000000 and 5000000 entries.
+ */
+public class LibraryBenchmark {
+    private static final int INDEXED_LOOKUPS = 1_000_000;
+    private static final int LINEAR_LOOKUPS = 200;
+    private static final int INSERTS = 200;
+
+    public static void main(String[] args) {
+        int[] sizes = {10_000, 1_000_000, 5_000_000};
+        if (args.length > 0) {
+            String[] parts = args[0].split(",");
+            sizes = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                sizes[i] = Integer.parseInt(parts[i].trim());
+            }
+        }
+
+        PrintStream console = System.out;
+        console.println("Lookup/insert cost per operation (ns/op)");
+        console.printf("%10s %16s %16s %16s %16s%n",
+                "entries", "scan lookup", "index lookup", "scan insert", "index insert");
+        for (int size : sizes) {
+            runSize(console, size);
+        }
+    }
+
+    /**
+     * Measure both strategies for a single catalog size
+     * @param console Stream to report results on
+     * @param size Number of books and members to load
+     */
+    private static void runSize(PrintStream console, int size) {
+        Random random = new Random(42);
+        String[] probes = new String[INDEXED_LOOKUPS];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = isbn(random.nextInt(size));
+        }
+
+        // Before: the ArrayList + linear scan layout Library used to have
+        List<Book> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(new Book("Title " + i, "Author " + (i % 1000), isbn(i)));
+        }
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < LINEAR_LOOKUPS; i++) {
+            String isbn = probes[i];
+            for (Book book : list) {
+                if (book.getIsbn().equals(isbn)) {
+                    found++;
+                    break;
+                }
+            }
+        }
+        double scanLookup = (System.nanoTime() - start) / (double) LINEAR_LOOKUPS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < INSERTS; i++) {
+            String isbn = isbn(size + i);
+            boolean duplicate = false;
+            for (Book book : list) {
+                if (book.getIsbn().equals(isbn)) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                list.add(new Book("Title", "Author", isbn));
+            }
+        }
+        double scanInsert = (System.nanoTime() - start) / (double) INSERTS;
+        list = null;
+
+        // After: the hash-indexed Library
+        Library library = new Library();
+        library.setEventSink(EventSink.NONE);
+        for (int i = 0; i < size; i++) {
+            library.addBook("Title " + i, "Author " + (i % 1000), isbn(i));
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < INDEXED_LOOKUPS; i++) {
+            if (library.findBookByIsbn(probes[i]) != null) {
+                found++;
+            }
+        }
+        double indexLookup = (System.nanoTime() - start) / (double) INDEXED_LOOKUPS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < INSERTS; i++) {
+            library.addBook("Title", "Author", isbn(size + i));
+        }
+        double indexInsert = (System.nanoTime() - start) / (double) INSERTS;
+
+        console.printf("%10d %16.1f %16.1f %16.1f %16.1f%n",
+                size, scanLookup, indexLookup, scanInsert, indexInsert);
+        if (found == 0) {
+            console.println("(no lookups matched)");
+        }
+    }
+
+    /**
+     * Build a synthetic ISBN-13 style identifier for entry n
+     * @param n Entry number
+     * @return Hyphenated ISBN string
+     */
+    private static String isbn(int n) {
+        return String.format("978-0-%05d-%03d-%d", n / 1000, n % 1000, n % 10);
+    }
+}
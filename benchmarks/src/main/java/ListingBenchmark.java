@@ -0,0 +1,70 @@
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * ListingBenchmark times a full catalog and member listing written the
+ * old way, one String.format'ed toString() per row through println, and
+ * through a ListingWriter. Output goes to a null stream so only the
+ * formatting and buffering are measured; bytes allocated per row are
+ * read from the JVM's per-thread allocation counter.
+ *
+ * Usage: java -Xmx4g ListingBenchmark [books] [rounds]
+ */
+public class ListingBenchmark {
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        Library library = new Library();
+        library.setEventSink(EventSink.NONE);
+        for (int i = 0; i < count; i++) {
+            library.addBook("Title " + i, "Author " + (i % 10_000), "978-" + i, 1 + i % 3);
+        }
+        int members = count / 10;
+        for (int i = 0; i < members; i++) {
+            library.addMember("Member " + i, "M" + i);
+            library.borrowBook("978-" + i, "M" + i);
+            library.borrowBook("978-" + (i + members), "M" + i);
+        }
+        System.out.printf("%,d books, %,d members with 2 loans each%n", count, members);
+
+        for (int round = 1; round <= rounds; round++) {
+            System.out.printf("Round %d%n", round);
+            report("books, println(toString)", count, () -> {
+                int i = 0;
+                for (Book book : library.allBooks()) {
+                    sink.println((++i) + ". " + book);
+                }
+            });
+            report("books, ListingWriter", count, () -> {
+                ListingWriter writer = new ListingWriter(new OutputStreamWriter(sink), ListingWriter.Format.TEXT);
+                writer.setNumbering(1);
+                library.writeBooks(writer, false, 0, Integer.MAX_VALUE);
+            });
+            report("members, println(toString)", members, () -> {
+                int[] i = {0};
+                library.forEachMember(member -> sink.println((++i[0]) + ". " + member));
+            });
+            report("members, ListingWriter", members, () -> {
+                ListingWriter writer = new ListingWriter(new OutputStreamWriter(sink), ListingWriter.Format.TEXT);
+                writer.setNumbering(1);
+                library.writeMembers(writer, 0, Integer.MAX_VALUE);
+            });
+        }
+    }
+
+    private static void report(String name, int rows, Runnable listing) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        listing.run();
+        long elapsed = System.nanoTime() - start;
+        bytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+        System.out.printf("  %-28s %7.0f ms | %,12.0f rows/s | %6.1f bytes/row%n",
+                name, elapsed / 1e6, rows / (elapsed / 1e9), (double) bytes / rows);
+    }
+}
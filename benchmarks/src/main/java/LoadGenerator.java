@@ -0,0 +1,244 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * LoadGenerator drives a LibraryServer with keep-alive HTTP/1.1 connections
+ * and reports throughput and latency percentiles.
+ *
+ * With no host it starts a server in this JVM on a free port and fills it
+ * with synthetic books and members, so it needs no network access. The
+ * request mix is 70% book lookups, 10% searches, 10% borrows and 10% returns.
+ * Each connection sends one request at a time and waits for the answer.
+ *
+ * Usage: java LoadGenerator [connections] [seconds] [host:port]
+ */
+public class LoadGenerator {
+    private static final int BOOKS = 100_000;
+    private static final int MEMBERS = 10_000;
+    private static final int MAX_SAMPLES = 1_000_000;
+
+    /**
+     * Per-connection results
+     */
+    private static final class Worker extends Thread {
+        private final String host;
+        private final int port;
+        private final Random random;
+        private final AtomicBoolean running;
+        private final long[] latencies = new long[MAX_SAMPLES];
+        private long requests;
+        private long errors;
+        private IOException failure;
+
+        Worker(String host, int port, long seed, AtomicBoolean running) {
+            super("load-" + seed);
+            this.host = host;
+            this.port = port;
+            this.random = new Random(seed);
+            this.running = running;
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 4096);
+                InputStream in = new BufferedInputStream(socket.getInputStream(), 16384);
+                while (running.get()) {
+                    byte[] request = nextRequest();
+                    long begin = System.nanoTime();
+                    out.write(request);
+                    out.flush();
+                    int status = readResponse(in);
+                    long elapsed = System.nanoTime() - begin;
+                    if (requests < MAX_SAMPLES) {
+                        latencies[(int) requests] = elapsed;
+                    }
+                    requests++;
+                    // 404 and 409 are expected for random borrows and returns
+                    if (status >= 500 || status == 400) {
+                        errors++;
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private byte[] nextRequest() {
+            int pick = random.nextInt(100);
+            String isbn = "978-" + random.nextInt(BOOKS);
+            String member = "M" + random.nextInt(MEMBERS);
+            String head;
+            if (pick < 70) {
+                head = "GET /books/" + isbn;
+            } else if (pick < 80) {
+                head = "GET /search?q=" + WORDS[random.nextInt(WORDS.length)] + "&limit=10";
+            } else if (pick < 90) {
+                head = "POST /books/" + isbn + "/borrow?memberId=" + member;
+            } else {
+                head = "POST /books/" + isbn + "/return?memberId=" + member;
+            }
+            return (head + " HTTP/1.1\r\nHost: " + host + "\r\nContent-Length: 0\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    // Title vocabulary shared by the sample library and the search queries
+    private static final String[] WORDS = randomWords(new Random(3), 20_000);
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String host = "localhost";
+        int port;
+        LibraryServer server = null;
+        if (args.length > 2) {
+            int colon = args[2].lastIndexOf(':');
+            host = args[2].substring(0, colon);
+            port = Integer.parseInt(args[2].substring(colon + 1));
+        } else {
+            server = new LibraryServer(sampleLibrary(), 0);
+            server.start();
+            port = server.getPort();
+            System.out.println("Started server on port " + port + " with " + BOOKS + " books and "
+                    + MEMBERS + " members");
+        }
+
+        try {
+            // Warm up the server and the client before measuring
+            run(host, port, connections, Math.min(5, seconds));
+            Worker[] workers = run(host, port, connections, seconds);
+            report(workers, seconds);
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    private static Worker[] run(String host, int port, int connections, int seconds) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        Worker[] workers = new Worker[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new Worker(host, port, i + 1, running);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        return workers;
+    }
+
+    private static void report(Worker[] workers, int seconds) {
+        long requests = 0;
+        long errors = 0;
+        int samples = 0;
+        for (Worker worker : workers) {
+            requests += worker.requests;
+            errors += worker.errors;
+            samples += (int) Math.min(worker.requests, MAX_SAMPLES);
+            if (worker.failure != null) {
+                System.out.println("Connection failed: " + worker.failure.getMessage());
+            }
+        }
+        long[] latencies = new long[samples];
+        int next = 0;
+        for (Worker worker : workers) {
+            int count = (int) Math.min(worker.requests, MAX_SAMPLES);
+            System.arraycopy(worker.latencies, 0, latencies, next, count);
+            next += count;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("Connections: %d | Requests: %d | Errors: %d | %.0f req/s%n",
+                workers.length, requests, errors, requests / (double) seconds);
+        if (samples > 0) {
+            System.out.printf("p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    latencies[samples / 2] / 1e6, latencies[(int) (samples * 0.9)] / 1e6,
+                    latencies[(int) (samples * 0.99)] / 1e6, latencies[samples - 1] / 1e6);
+        }
+    }
+
+    /**
+     * Read one response and discard its body
+     * @return HTTP status code
+     */
+    private static int readResponse(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int status = -1;
+        long length = 0;
+        while (true) {
+            readLine(in, line);
+            if (line.length() == 0) {
+                break;
+            }
+            if (status < 0) {
+                status = Integer.parseInt(line.substring(9, 12));
+            } else if (line.length() > 15 && line.substring(0, 15).equalsIgnoreCase("Content-Length:")) {
+                length = Long.parseLong(line.substring(15).trim());
+            }
+        }
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Connection closed mid-response");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+        return status;
+    }
+
+    private static void readLine(InputStream in, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+    }
+
+    private static String[] randomWords(Random random, int count) {
+        String[] words = new String[count];
+        for (int i = 0; i < count; i++) {
+            char[] word = new char[4 + random.nextInt(7)];
+            for (int c = 0; c < word.length; c++) {
+                word[c] = (char) ('a' + random.nextInt(26));
+            }
+            words[i] = new String(word);
+        }
+        return words;
+    }
+
+    private static Library sampleLibrary() {
+        Library library = new Library(true);
+        library.setEventSink(EventSink.NONE);
+        Random random = new Random(7);
+        for (int i = 0; i < BOOKS; i++) {
+            String title = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]
+                    + " " + i;
+            library.addBook(title, "Author " + random.nextInt(5_000), "978-" + i);
+        }
+        for (int i = 0; i < MEMBERS; i++) {
+            library.addMember("Member " + i, "M" + i);
+        }
+        return library;
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * MetricsBenchmark measures what LibraryMetrics adds to each operation.
+ * The same lookups and borrow/return pairs are timed on a concurrent
+ * Library with metrics switched off and on; the difference per operation
+ * is the cost of counting the call, plus reading the clock twice and
+ * recording the latency for the calls that are timed. Time per operation
+ * is thread time: elapsed time times threads over operations.
+ *
+ * Usage: java MetricsBenchmark [threads] [operations per thread] [sample every]
+ */
+public class MetricsBenchmark {
+    private static final int BOOKS_PER_THREAD = 1_000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+        int sampleEvery = args.length > 2 ? Integer.parseInt(args[2]) : LibraryMetrics.DEFAULT_SAMPLE_EVERY;
+
+        Library library = new Library(true);
+        library.setEventSink(EventSink.NONE);
+        String[][] isbns = new String[threads][BOOKS_PER_THREAD];
+        for (int t = 0; t < threads; t++) {
+            library.addMember("Desk " + t, "D" + t);
+            for (int b = 0; b < BOOKS_PER_THREAD; b++) {
+                isbns[t][b] = t + "-" + b;
+                library.addBook("Title " + t + "/" + b, "Author", isbns[t][b]);
+            }
+        }
+
+        System.out.printf("%d threads, %,d operations per thread, timing 1 call in %d%n",
+                threads, operations, sampleEvery);
+        LibraryMetrics metrics = new LibraryMetrics(sampleEvery);
+        for (int round = 0; round < 3; round++) {
+            library.setMetrics(null);
+            double findOff = run(library, isbns, operations, false);
+            double circulateOff = run(library, isbns, operations, true);
+            library.setMetrics(metrics);
+            double findOn = run(library, isbns, operations, false);
+            double circulateOn = run(library, isbns, operations, true);
+            System.out.printf("Round %d%n", round + 1);
+            report("findBookByIsbn", findOff, findOn);
+            report("borrowBook/returnBook", circulateOff, circulateOn);
+        }
+        System.out.println();
+        System.out.print(metrics.dump());
+    }
+
+    private static void report(String name, double off, double on) {
+        System.out.printf("  %-22s off %7.1f ns/op | on %7.1f ns/op | overhead %6.1f ns/op%n",
+                name, off, on, on - off);
+    }
+
+    private static double run(Library library, String[][] isbns, int operations, boolean circulate)
+            throws InterruptedException {
+        int threads = isbns.length;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final String[] mine = isbns[t];
+            final String memberId = "D" + t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                int b = 0;
+                for (int i = 0; i < operations; i += circulate ? 2 : 1) {
+                    String isbn = mine[b];
+                    if (circulate) {
+                        library.borrowBook(isbn, memberId);
+                        library.returnBook(isbn, memberId);
+                    } else if (library.findBookByIsbn(isbn) == null) {
+                        throw new IllegalStateException("Book " + isbn + " went missing");
+                    }
+                    b = b + 1 == BOOKS_PER_THREAD ? 0 : b + 1;
+                }
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (System.nanoTime() - begin) / (double) operations;
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.List;
+import java.util.Random;
+
+/**
+ * RecommendBenchmark feeds a Recommender loans for a large catalog and
+ * reports what recordBorrow() adds to each loan, how fast the worker
+ * applies the loans, the heap the model takes, and the time to answer
+ * recommend(). Members mostly borrow from one favourite genre, and within
+ * a genre a few titles take most of the loans.
+ *
+ * Usage: java -Xmx4g RecommendBenchmark [loans] [titles] [members] [rounds]
+ */
+public class RecommendBenchmark {
+    private static final int GENRES = 1_000;
+    // Loans fed before waiting for the worker, well below the ring size
+    private static final int CHUNK = 16_384;
+    private static final int QUERIES = 1_000_000;
+
+    public static void main(String[] args) {
+        int loanCount = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int titleCount = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+        int memberCount = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        String[] isbns = new String[titleCount];
+        for (int i = 0; i < titleCount; i++) {
+            isbns[i] = "978-" + i;
+        }
+        String[] members = new String[memberCount];
+        for (int i = 0; i < memberCount; i++) {
+            members[i] = "M" + i;
+        }
+        long heapBefore = usedHeap();
+
+        Recommender recommender = new Recommender();
+        Random random = new Random(42);
+        int perGenre = titleCount / GENRES;
+        long recordNanos = 0;
+        long begin = System.nanoTime();
+        for (int fed = 0; fed < loanCount; fed += CHUNK) {
+            int count = Math.min(CHUNK, loanCount - fed);
+            String[] chunkIsbns = new String[count];
+            String[] chunkMembers = new String[count];
+            for (int i = 0; i < count; i++) {
+                int member = random.nextInt(memberCount);
+                int genre = random.nextInt(10) < 8 ? member % GENRES : random.nextInt(GENRES);
+                // Squaring a uniform number favours low title numbers
+                double u = random.nextDouble();
+                chunkIsbns[i] = isbns[(int) (u * u * perGenre) * GENRES + genre];
+                chunkMembers[i] = members[member];
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                recommender.recordBorrow(chunkIsbns[i], chunkMembers[i]);
+            }
+            recordNanos += System.nanoTime() - start;
+            recommender.flush();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        long heapAfter = usedHeap();
+        System.out.printf("%,d loans of %,d titles by %,d members: recordBorrow %.0f ns per loan, "
+                + "applied %.0f loans/s, %,d dropped%n", loanCount, recommender.getTitleCount(), memberCount,
+                recordNanos / (double) loanCount, loanCount / seconds, recommender.getDroppedCount());
+        System.out.printf("Model heap: %,d MB (%.0f bytes per title seen)%n", (heapAfter - heapBefore) >> 20,
+                (heapAfter - heapBefore) / (double) recommender.getTitleCount());
+
+        List<String> sample = recommender.recommend(isbns[GENRES + 7], 5);
+        System.out.println("Recommended with " + isbns[GENRES + 7] + " (genre 7): " + sample);
+        for (int round = 1; round <= rounds; round++) {
+            long found = 0;
+            begin = System.nanoTime();
+            for (int q = 0; q < QUERIES; q++) {
+                found += recommender.recommend(isbns[random.nextInt(titleCount)], Recommender.DEFAULT_RESULTS)
+                        .size();
+            }
+            System.out.printf("Round %d: recommend %.0f ns per call (%.1f titles on average)%n", round,
+                    (System.nanoTime() - begin) / (double) QUERIES, found / (double) QUERIES);
+        }
+        recommender.close();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * SearchBenchmark loads synthetic titles into a Library and reports search
+ * latency percentiles for exact, prefix and misspelled queries.
+ * The queries are run once untimed to warm up before they are measured.
+ *
+ * Usage: java -Xmx8g SearchBenchmark [titles] [queries]
+ */
+public class SearchBenchmark {
+    public static void main(String[] args) {
+        int titles = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        Random random = new Random(11);
+        String[] words = new String[50_000];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = randomWord(random);
+        }
+        
+        PrintStream console = System.out;
+        Library library = new Library();
+        library.setEventSink(EventSink.NONE);
+        long start = System.nanoTime();
+        for (int i = 0; i < titles; i++) {
+            StringBuilder title = new StringBuilder();
+            int length = 2 + random.nextInt(5);
+            for (int w = 0; w < length; w++) {
+                title.append(w == 0 ? "" : " ").append(zipf(random, words));
+            }
+            String author = zipf(random, words) + " " + zipf(random, words);
+            library.addBook(title.toString(), author, "978-" + i);
+        }
+        console.printf("Indexed %d titles in %.1f s%n", titles, (System.nanoTime() - start) / 1e9);
+        
+        String[] queryTexts = new String[queries];
+        for (int q = 0; q < queries; q++) {
+            String query = zipf(random, words);
+            switch (q % 3) {
+                case 1:
+                    query = query.substring(0, Math.max(2, query.length() - 2)); // prefix
+                    break;
+                case 2:
+                    query = typo(random, query) + " " + zipf(random, words); // misspelled
+                    break;
+                default:
+                    break;
+            }
+            queryTexts[q] = query;
+        }
+        
+        // An untimed pass first, so the percentiles are not those of the JIT compiler,
+        // and a collection so the garbage left by loading is not charged to a query
+        for (String query : queryTexts) {
+            library.searchBooks(query, 10);
+        }
+        System.gc();
+        long[] latencies = new long[queries];
+        int hits = 0;
+        for (int q = 0; q < queries; q++) {
+            long begin = System.nanoTime();
+            hits += library.searchBooks(queryTexts[q], 10).size();
+            latencies[q] = System.nanoTime() - begin;
+        }
+        Arrays.sort(latencies);
+        console.printf("Queries: %d, results: %d%n", queries, hits);
+        console.printf("p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                latencies[queries / 2] / 1e6, latencies[queries * 9 / 10] / 1e6,
+                latencies[queries * 99 / 100] / 1e6, latencies[queries - 1] / 1e6);
+    }
+    
+    private static String randomWord(Random random) {
+        char[] word = new char[4 + random.nextInt(7)];
+        for (int i = 0; i < word.length; i++) {
+            word[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(word);
+    }
+    
+    // Skewed pick: low indexes are much more frequent, like real title words
+    private static String zipf(Random random, String[] words) {
+        double u = random.nextDouble();
+        return words[(int) (Math.pow(u, 3) * words.length)];
+    }
+    
+    private static String typo(Random random, String word) {
+        char[] chars = word.toCharArray();
+        chars[random.nextInt(chars.length)] = (char) ('a' + random.nextInt(26));
+        return new String(chars);
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ShardBenchmark measures borrow/return throughput of a ShardedLibrary as
+ * branches are added. Two clients per branch each circulate their own
+ * books through the router, keeping a window of round trips in flight.
+ * A share of the loans can be interlibrary loans, of books held at the
+ * next branch, which take the two-phase path.
+ *
+ * Usage: java ShardBenchmark [maxBranches] [seconds] [interlibraryPercent]
+ */
+public class ShardBenchmark {
+    private static final int CLIENTS_PER_BRANCH = 2;
+    private static final int BOOKS_PER_CLIENT = 1_000;
+    private static final int WINDOW = 64;
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxBranches = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int interlibrary = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        System.out.printf("%d%% interlibrary loans, %d clients per branch, %d round trips in flight each%n",
+                interlibrary, CLIENTS_PER_BRANCH, WINDOW);
+        // Warm up the router and the shards before the baseline is taken
+        run(Math.min(2, maxBranches), 1, interlibrary);
+        System.out.printf("%8s %16s %10s%n", "branches", "ops/s", "speedup");
+        double baseline = 0;
+        for (int branches = 1; branches <= maxBranches; branches *= 2) {
+            double opsPerSecond = run(branches, seconds, branches > 1 ? interlibrary : 0);
+            if (branches == 1) {
+                baseline = opsPerSecond;
+            }
+            System.out.printf("%8d %16.0f %10.2f%n", branches, opsPerSecond, opsPerSecond / baseline);
+        }
+    }
+
+    /**
+     * Run borrow/return round trips on disjoint books
+     * @param branches Number of branches
+     * @param seconds Measurement time
+     * @param interlibrary Percentage of loans taken from the next branch
+     * @return Operations per second across all clients
+     */
+    private static double run(int branches, int seconds, int interlibrary) throws InterruptedException {
+        ShardedLibrary library = new ShardedLibrary(branches);
+        library.setEventSink(EventSink.NONE);
+        int clients = branches * CLIENTS_PER_BRANCH;
+        String[][] local = new String[clients][BOOKS_PER_CLIENT];
+        String[][] remote = new String[clients][BOOKS_PER_CLIENT];
+        for (int c = 0; c < clients; c++) {
+            int home = c % branches;
+            library.addMember(home, "Client " + c, "C" + c).join();
+            for (int b = 0; b < BOOKS_PER_CLIENT; b++) {
+                local[c][b] = "L" + c + "-" + b;
+                remote[c][b] = "R" + c + "-" + b;
+                library.addBook(home, "Local " + c + "/" + b, "Author", local[c][b], 1).join();
+                library.addBook((home + 1) % branches, "Remote " + c + "/" + b, "Author", remote[c][b], 1).join();
+            }
+        }
+
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + 1_000_000_000L * seconds;
+        Thread[] workers = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            final String memberId = "C" + c;
+            final String[] mine = local[c];
+            final String[] theirs = remote[c];
+            workers[c] = new Thread(() -> {
+                Semaphore window = new Semaphore(WINDOW);
+                try {
+                    start.await();
+                    int b = 0;
+                    while (System.nanoTime() < deadline) {
+                        window.acquire();
+                        // One copy per book; a book comes round again only after 1,000 newer round trips
+                        String isbn = b % 100 < interlibrary ? theirs[b] : mine[b];
+                        library.borrowBook(isbn, memberId)
+                                .thenCompose(borrowed -> library.returnBook(isbn, memberId))
+                                .whenComplete((returned, failure) -> {
+                                    operations.add(2);
+                                    window.release();
+                                });
+                        b = b + 1 == BOOKS_PER_CLIENT ? 0 : b + 1;
+                    }
+                    window.acquire(WINDOW);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers[c].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double opsPerSecond = operations.sum() / ((System.nanoTime() - begin) / 1e9);
+        library.close();
+        return opsPerSecond;
+    }
+}
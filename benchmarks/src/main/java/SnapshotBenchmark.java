@@ -0,0 +1,155 @@
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * SnapshotBenchmark walks the whole book list over and over while writer
+ * threads add and remove books, and compares walking the library's
+ * catalog snapshot with walking a ConcurrentLinkedMap, which is how the
+ * list was kept before. Each walk counts the books it sees and a
+ * snapshot walk also checks it saw exactly snapshot.size() of them.
+ *
+ * Usage: java -Xmx2g SnapshotBenchmark [books] [seconds] [writers]
+ */
+public class SnapshotBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int maxWriters = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        System.out.printf("%,d books, one reader%n", count);
+        System.out.printf("%-22s %8s %14s %16s%n", "list", "writers", "walks/s", "writes/s");
+        for (int writers = 0; writers <= maxWriters; writers = writers == 0 ? 1 : writers * 2) {
+            run("CatalogSnapshot", snapshotList(count), writers, seconds);
+            run("ConcurrentLinkedMap", linkedMapList(count), writers, seconds);
+        }
+    }
+
+    /**
+     * A book list under test: walk it, or add and remove book i
+     */
+    private interface BookList {
+        long walk();
+
+        void add(int i);
+
+        void remove(int i);
+    }
+
+    private static BookList snapshotList(int count) {
+        Library library = new Library(true);
+        library.setEventSink(EventSink.NONE);
+        for (int i = 0; i < count; i++) {
+            library.addBook("Title " + i, "Author " + (i % 1_000), "978-" + i, 1);
+        }
+        return new BookList() {
+            @Override
+            public long walk() {
+                CatalogSnapshot snapshot = library.getCatalogSnapshot();
+                long seen = 0;
+                for (Book book : snapshot) {
+                    seen += book.getCopyCount();
+                }
+                if (seen != snapshot.size()) {
+                    throw new IllegalStateException("Walk saw " + seen + " of " + snapshot.size() + " books");
+                }
+                return seen;
+            }
+
+            @Override
+            public void add(int i) {
+                library.addBook("Title " + i, "Author " + (i % 1_000), "978-" + i, 1);
+            }
+
+            @Override
+            public void remove(int i) {
+                library.removeBook("978-" + i);
+            }
+        };
+    }
+
+    private static BookList linkedMapList(int count) {
+        Map<String, Book> books = new ConcurrentLinkedMap<>();
+        for (int i = 0; i < count; i++) {
+            books.put("978" + i, new Book("Title " + i, "Author " + (i % 1_000), "978-" + i, 1));
+        }
+        return new BookList() {
+            @Override
+            public long walk() {
+                long seen = 0;
+                for (Book book : books.values()) {
+                    seen += book.getCopyCount();
+                }
+                return seen;
+            }
+
+            @Override
+            public void add(int i) {
+                books.put("978" + i, new Book("Title " + i, "Author " + (i % 1_000), "978-" + i, 1));
+            }
+
+            @Override
+            public void remove(int i) {
+                books.remove("978" + i);
+            }
+        };
+    }
+
+    /**
+     * Walk the list with one thread while writers replace its books
+     * @param name Row label
+     * @param list List under test
+     * @param writers Number of writer threads
+     * @param seconds Measurement time
+     */
+    private static void run(String name, BookList list, int writers, int seconds) throws InterruptedException {
+        // Warm up the walk before timing it
+        for (int i = 0; i < 20; i++) {
+            list.walk();
+        }
+        LongAdder walks = new LongAdder();
+        LongAdder writes = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + 1_000_000_000L * seconds;
+        Thread[] threads = new Thread[writers + 1];
+        threads[0] = worker(start, deadline, n -> {
+            list.walk();
+            walks.increment();
+        });
+        for (int w = 1; w <= writers; w++) {
+            // Each writer cycles through its own range: remove an old book, add a new one
+            final int base = w * 100_000_000;
+            threads[w] = worker(start, deadline, n -> {
+                list.add(base + n);
+                if (n >= 1_000) {
+                    list.remove(base + n - 1_000);
+                }
+                writes.add(2);
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        System.out.printf("%-22s %8d %14.1f %16.0f%n", name, writers, walks.sum() / elapsed, writes.sum() / elapsed);
+    }
+
+    private static Thread worker(CountDownLatch start, long deadline, Consumer<Integer> step) {
+        Thread thread = new Thread(() -> {
+            try {
+                start.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            for (int n = 0; System.nanoTime() < deadline; n++) {
+                step.accept(n);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * StoreBenchmark measures durable write throughput of a logged Library
+ * Each thread borrows and returns its own books with sync commits, so every
+ * operation waits for its log record to be fsynced; group commit lets the
+ * threads share those fsyncs.
+ *
+ * Usage: java StoreBenchmark [threads] [seconds] [dataDir]
+ */
+public class StoreBenchmark {
+    private static final int BOOKS_PER_THREAD = 1_000;
+    
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Path dir = args.length > 2 ? Path.of(args[2]) : Files.createTempDirectory("library-store-bench");
+        
+        Library library = new Library(true);
+        library.setEventSink(EventSink.NONE);
+        LibraryStore store = LibraryStore.open(dir, library, true);
+        try {
+            for (int t = 0; t < threads; t++) {
+                library.addMember("Desk " + t, "D" + t);
+                for (int b = 0; b < BOOKS_PER_THREAD; b++) {
+                    library.addBook("Title " + t + "/" + b, "Author", "978-" + t + "-" + b);
+                }
+            }
+            
+            LongAdder operations = new LongAdder();
+            CountDownLatch start = new CountDownLatch(1);
+            long deadline = System.nanoTime() + 1_000_000_000L * seconds + 100_000_000L;
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int desk = t;
+                workers[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    String memberId = "D" + desk;
+                    int b = 0;
+                    while (System.nanoTime() < deadline) {
+                        String isbn = "978-" + desk + "-" + b;
+                        library.borrowBook(isbn, memberId);
+                        library.returnBook(isbn, memberId);
+                        operations.add(2);
+                        b = (b + 1) % BOOKS_PER_THREAD;
+                    }
+                });
+                workers[t].start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            double elapsed = (System.nanoTime() - begin) / 1e9;
+            System.out.printf("%d threads: %.0f durable ops/s (%s)%n",
+                    threads, operations.sum() / elapsed, dir);
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of Library.addBook (including its duplicate check) and displayStatistics
+ *
+ * Adding a new book is paired with removing it again so the catalog stays
+ * at the parameterized size for the whole run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CatalogChangeBenchmark {
+
+    @Benchmark
+    public boolean addBookDuplicate(LibraryState.Plain state, LibraryState.Cursor cursor) {
+        return LibraryApi.addBook(state.library, "Duplicate", "Author", state.isbns[cursor.next()]);
+    }
+
+    @Benchmark
+    public boolean addBookNew(LibraryState.Plain state, LibraryState.Cursor cursor) {
+        String isbn = state.missingIsbns[cursor.next()];
+        boolean added = LibraryApi.addBook(state.library, "New Title", "New Author", isbn);
+        return LibraryApi.removeBook(state.library, isbn) & added;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean addBookDuplicateContended(LibraryState.Shared state, LibraryState.Cursor cursor) {
+        return LibraryApi.addBook(state.library, "Duplicate", "Author", state.isbns[cursor.next()]);
+    }
+
+    @Benchmark
+    public void displayStatistics(LibraryState.Plain state) {
+        LibraryApi.displayStatistics(state.library);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void displayStatisticsContended(LibraryState.Shared state) {
+        LibraryApi.displayStatistics(state.library);
+    }
+}
@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a borrowBook + returnBook round trip
+ *
+ * The contended variants run four threads against one concurrent library,
+ * either all over the catalog or on a small set of popular books, where
+ * threads regularly find a book already out and wait on the same locks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CirculationBenchmark {
+    private static final int POPULAR_BOOKS = 16;
+
+    @Benchmark
+    public boolean borrowAndReturn(LibraryState.Plain state, LibraryState.Cursor cursor) {
+        int i = cursor.next();
+        return roundTrip(state, state.isbns[i], state.memberIds[i]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean borrowAndReturnContended(LibraryState.Shared state, LibraryState.Cursor cursor) {
+        int i = cursor.next();
+        return roundTrip(state, state.isbns[i], state.memberIds[i]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean borrowAndReturnPopular(LibraryState.Shared state, LibraryState.Cursor cursor) {
+        int i = cursor.next();
+        return roundTrip(state, state.isbns[i & (POPULAR_BOOKS - 1)], state.memberIds[i]);
+    }
+
+    private static boolean roundTrip(LibraryState.Plain state, String isbn, String memberId) {
+        boolean borrowed = LibraryApi.borrowBook(state.library, isbn, memberId);
+        return LibraryApi.returnBook(state.library, isbn, memberId) & borrowed;
+    }
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time for a BulkLoader to import a book file into an empty library, by
+ * number of worker threads
+ *
+ * The file is built in memory once, so only parsing, preparing and
+ * inserting are timed. Rows per second is rows divided by the time per op.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ImportBenchmark {
+    private static final int WORDS = 5_000;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    @Param({"200000"})
+    public int rows;
+
+    private String file;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String[] words = new String[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            words[i] = Integer.toString(i * 7_919 + 100_000, 36);
+        }
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder("title,author,isbn\n");
+        for (int i = 0; i < rows; i++) {
+            int length = 2 + random.nextInt(5);
+            for (int w = 0; w < length; w++) {
+                text.append(w == 0 ? "" : " ").append(words[random.nextInt(WORDS)]);
+            }
+            text.append(",Author ").append(i % 5_000).append(',').append(LibraryApi.isbn(i)).append('\n');
+        }
+        file = text.toString();
+    }
+
+    @Benchmark
+    public long importBooks() {
+        Object loader = LibraryApi.newBulkLoader(LibraryApi.newLibrary(true), ',', threads, 8_192);
+        return LibraryApi.importBooks(loader, new StringReader(file), Writer.nullWriter());
+    }
+}
@@ -0,0 +1,277 @@
+package benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Calls into the application classes, which live in the unnamed package
+ *
+ * Java code in a named package cannot refer to classes in the unnamed
+ * package, and JMH requires benchmarks to be in a named package, so the
+ * benchmarks reach Library, Book and Member through method handles. The
+ * handles are static finals called with invokeExact, which the JIT
+ * inlines like a direct call, so they add nothing measurable to the
+ * operations being timed.
+ */
+final class LibraryApi {
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    private static final MethodHandle NEW_LIBRARY;
+    private static final MethodHandle SET_OUTPUT;
+    private static final MethodHandle SET_EVENT_SINK;
+    private static final Object NO_EVENTS;
+    private static final MethodHandle ADD_BOOK;
+    private static final MethodHandle REMOVE_BOOK;
+    private static final MethodHandle ADD_MEMBER;
+    private static final MethodHandle FIND_BOOK;
+    private static final MethodHandle FIND_MEMBER;
+    private static final MethodHandle BORROW;
+    private static final MethodHandle RETURN;
+    private static final MethodHandle DISPLAY_STATISTICS;
+    private static final MethodHandle NEW_BOOK;
+    private static final MethodHandle NEW_MEMBER;
+    private static final MethodHandle MEMBER_BORROW;
+    private static final MethodHandle MEMBER_RETURN;
+    private static final MethodHandle NEW_LOADER;
+    private static final MethodHandle IMPORT_BOOKS;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> library = Class.forName("Library");
+            Class<?> book = Class.forName("Book");
+            Class<?> member = Class.forName("Member");
+            Class<?> eventSink = Class.forName("EventSink");
+            // Operations return a LibraryResult; the benchmarks only need success or failure
+            Class<?> result = Class.forName("LibraryResult");
+            MethodHandle isOk = lookup.findVirtual(result, "isOk", MethodType.methodType(boolean.class));
+            NEW_LIBRARY = generic(lookup.findConstructor(library, MethodType.methodType(void.class, boolean.class)));
+            SET_OUTPUT = generic(lookup.findVirtual(library, "setOutput",
+                    MethodType.methodType(void.class, PrintStream.class)));
+            SET_EVENT_SINK = generic(lookup.findVirtual(library, "setEventSink",
+                    MethodType.methodType(void.class, eventSink)));
+            NO_EVENTS = lookup.findStaticGetter(eventSink, "NONE", eventSink).invoke();
+            ADD_BOOK = generic(MethodHandles.filterReturnValue(lookup.findVirtual(library, "addBook",
+                    MethodType.methodType(result, String.class, String.class, String.class)), isOk));
+            REMOVE_BOOK = generic(MethodHandles.filterReturnValue(lookup.findVirtual(library, "removeBook",
+                    MethodType.methodType(result, String.class)), isOk));
+            ADD_MEMBER = generic(MethodHandles.filterReturnValue(lookup.findVirtual(library, "addMember",
+                    MethodType.methodType(result, String.class, String.class)), isOk));
+            FIND_BOOK = generic(lookup.findVirtual(library, "findBookByIsbn",
+                    MethodType.methodType(book, String.class)));
+            FIND_MEMBER = generic(lookup.findVirtual(library, "findMemberById",
+                    MethodType.methodType(member, String.class)));
+            BORROW = generic(MethodHandles.filterReturnValue(lookup.findVirtual(library, "borrowBook",
+                    MethodType.methodType(result, String.class, String.class)), isOk));
+            RETURN = generic(MethodHandles.filterReturnValue(lookup.findVirtual(library, "returnBook",
+                    MethodType.methodType(result, String.class, String.class)), isOk));
+            DISPLAY_STATISTICS = generic(lookup.findVirtual(library, "displayStatistics",
+                    MethodType.methodType(void.class)));
+            NEW_BOOK = generic(lookup.findConstructor(book,
+                    MethodType.methodType(void.class, String.class, String.class, String.class)));
+            NEW_MEMBER = generic(lookup.findConstructor(member,
+                    MethodType.methodType(void.class, String.class, String.class)));
+            MEMBER_BORROW = generic(lookup.findVirtual(member, "borrowBook",
+                    MethodType.methodType(Class.forName("Loan"), book)));
+            MEMBER_RETURN = generic(lookup.findVirtual(member, "returnBook",
+                    MethodType.methodType(boolean.class, book)));
+            Class<?> loader = Class.forName("BulkLoader");
+            Class<?> report = Class.forName("BulkLoader$Report");
+            NEW_LOADER = generic(lookup.findConstructor(loader,
+                    MethodType.methodType(void.class, library, char.class, int.class, int.class)));
+            IMPORT_BOOKS = generic(MethodHandles.filterReturnValue(lookup.findVirtual(loader, "importBooks",
+                    MethodType.methodType(report, Reader.class, Writer.class)),
+                    lookup.findVirtual(report, "getImported", MethodType.methodType(long.class))));
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private LibraryApi() {
+    }
+
+    /**
+     * Replace application class types with Object so call sites can use invokeExact
+     */
+    private static MethodHandle generic(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (!type.parameterType(i).isPrimitive() && type.parameterType(i).getPackageName().isEmpty()) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (!type.returnType().isPrimitive() && type.returnType().getPackageName().isEmpty()) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    /**
+     * Create a library that publishes no events and prints listings nowhere
+     */
+    static Object newLibrary(boolean concurrent) {
+        try {
+            Object library = (Object) NEW_LIBRARY.invokeExact(concurrent);
+            SET_OUTPUT.invokeExact(library, DISCARD);
+            SET_EVENT_SINK.invokeExact(library, NO_EVENTS);
+            return library;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean addBook(Object library, String title, String author, String isbn) {
+        try {
+            return (boolean) ADD_BOOK.invokeExact(library, title, author, isbn);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean removeBook(Object library, String isbn) {
+        try {
+            return (boolean) REMOVE_BOOK.invokeExact(library, isbn);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean addMember(Object library, String name, String memberId) {
+        try {
+            return (boolean) ADD_MEMBER.invokeExact(library, name, memberId);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object findBookByIsbn(Object library, String isbn) {
+        try {
+            return (Object) FIND_BOOK.invokeExact(library, isbn);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object findMemberById(Object library, String memberId) {
+        try {
+            return (Object) FIND_MEMBER.invokeExact(library, memberId);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean borrowBook(Object library, String isbn, String memberId) {
+        try {
+            return (boolean) BORROW.invokeExact(library, isbn, memberId);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean returnBook(Object library, String isbn, String memberId) {
+        try {
+            return (boolean) RETURN.invokeExact(library, isbn, memberId);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void displayStatistics(Object library) {
+        try {
+            DISPLAY_STATISTICS.invokeExact(library);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newBook(String title, String author, String isbn) {
+        try {
+            return (Object) NEW_BOOK.invokeExact(title, author, isbn);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newMember(String name, String memberId) {
+        try {
+            return (Object) NEW_MEMBER.invokeExact(name, memberId);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object memberBorrow(Object member, Object book) {
+        try {
+            return (Object) MEMBER_BORROW.invokeExact(member, book);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean memberReturn(Object member, Object book) {
+        try {
+            return (boolean) MEMBER_RETURN.invokeExact(member, book);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object newBulkLoader(Object library, char delimiter, int threads, int chunkLines) {
+        try {
+            return (Object) NEW_LOADER.invokeExact(library, delimiter, threads, chunkLines);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Import book rows with a BulkLoader
+     * @return Number of books imported
+     */
+    static long importBooks(Object loader, Reader in, Writer errors) {
+        try {
+            return (long) IMPORT_BOOKS.invokeExact(loader, in, errors);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+    // Synthetic data shared by the benchmarks
+
+    static String isbn(int i) {
+        return "978-" + i;
+    }
+
+    static String memberId(int i) {
+        return "M" + i;
+    }
+
+    /**
+     * Create a library holding the given numbers of books and members
+     */
+    static Object populate(boolean concurrent, int books, int members) {
+        Object library = newLibrary(concurrent);
+        for (int i = 0; i < books; i++) {
+            addBook(library, "Title " + i, "Author " + (i % 1_000), isbn(i));
+        }
+        for (int i = 0; i < members; i++) {
+            addMember(library, "Member " + i, memberId(i));
+        }
+        return library;
+    }
+}
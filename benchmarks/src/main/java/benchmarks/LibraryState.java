@@ -0,0 +1,94 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH states shared by the Library benchmarks
+ *
+ * Single-threaded benchmarks use a library in the default mode, the one
+ * the console menu runs; contended benchmarks use a concurrent library.
+ * Both hold {@code books} books and one member per ten books.
+ */
+public final class LibraryState {
+    // Keys are drawn from precomputed arrays so string building stays out of the timings
+    static final int KEYS = 4_096;
+
+    private LibraryState() {
+    }
+
+    /**
+     * Library in the default (single-threaded) mode
+     */
+    @State(Scope.Benchmark)
+    public static class Plain {
+        @Param({"1000", "100000", "1000000"})
+        public int books;
+
+        Object library;
+        String[] isbns;
+        String[] memberIds;
+        String[] missingIsbns;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            library = LibraryApi.populate(concurrent(), books, members(books));
+            Random random = new Random(42);
+            isbns = new String[KEYS];
+            memberIds = new String[KEYS];
+            missingIsbns = new String[KEYS];
+            for (int i = 0; i < KEYS; i++) {
+                isbns[i] = LibraryApi.isbn(random.nextInt(books));
+                memberIds[i] = LibraryApi.memberId(random.nextInt(members(books)));
+                missingIsbns[i] = LibraryApi.isbn(books + random.nextInt(books));
+            }
+        }
+
+        boolean concurrent() {
+            return false;
+        }
+    }
+
+    /**
+     * Library in concurrent mode, shared by all benchmark threads
+     */
+    @State(Scope.Benchmark)
+    public static class Shared extends Plain {
+        @Override
+        boolean concurrent() {
+            return true;
+        }
+    }
+
+    /**
+     * Per-thread cursor into the key arrays and a member of the thread's own
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        int next;
+        int threadIndex;
+        Random random;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            threadIndex = THREADS.getAndIncrement();
+            next = threadIndex * 997;
+            random = new Random(threadIndex);
+        }
+
+        int next() {
+            return next++ & (KEYS - 1);
+        }
+    }
+
+    static int members(int books) {
+        return Math.max(1, books / 10);
+    }
+}
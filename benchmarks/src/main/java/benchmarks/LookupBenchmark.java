@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of Library.findBookByIsbn and findMemberById as the catalog grows
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LookupBenchmark {
+
+    @Benchmark
+    public Object findBookByIsbn(LibraryState.Plain state, LibraryState.Cursor cursor) {
+        return LibraryApi.findBookByIsbn(state.library, state.isbns[cursor.next()]);
+    }
+
+    @Benchmark
+    public Object findBookByIsbnMissing(LibraryState.Plain state, LibraryState.Cursor cursor) {
+        return LibraryApi.findBookByIsbn(state.library, state.missingIsbns[cursor.next()]);
+    }
+
+    @Benchmark
+    public Object findMemberById(LibraryState.Plain state, LibraryState.Cursor cursor) {
+        return LibraryApi.findMemberById(state.library, state.memberIds[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object findBookByIsbnContended(LibraryState.Shared state, LibraryState.Cursor cursor) {
+        return LibraryApi.findBookByIsbn(state.library, state.isbns[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object findMemberByIdContended(LibraryState.Shared state, LibraryState.Cursor cursor) {
+        return LibraryApi.findMemberById(state.library, state.memberIds[cursor.next()]);
+    }
+}
@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of Member.returnBook for members holding different numbers of books,
+ * up to an institutional member with thousands of loans
+ *
+ * Each call returns a randomly chosen loan and borrows it again, so the
+ * member's loan count stays constant.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MemberBenchmark {
+    @Param({"1", "10", "50", "5000"})
+    public int loans;
+
+    private Object member;
+    private Object[] books;
+    private int[] order;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        member = LibraryApi.newMember("Member", "M1");
+        books = new Object[loans];
+        for (int i = 0; i < loans; i++) {
+            books[i] = LibraryApi.newBook("Title " + i, "Author", LibraryApi.isbn(i));
+            LibraryApi.memberBorrow(member, books[i]);
+        }
+        Random random = new Random(42);
+        order = new int[LibraryState.KEYS];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = random.nextInt(loans);
+        }
+    }
+
+    @Benchmark
+    public boolean returnBook() {
+        Object book = books[order[next++ & (LibraryState.KEYS - 1)]];
+        boolean returned = LibraryApi.memberReturn(member, book);
+        LibraryApi.memberBorrow(member, book);
+        return returned;
+    }
+}
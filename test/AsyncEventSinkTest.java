@@ -0,0 +1,133 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Delivery through the AsyncEventSink ring: order, wrap-around, flush,
+ * close, and publishers outliving a worker stopped by an Error
+ */
+class AsyncEventSinkTest {
+    @Test
+    void deliversEveryEventInOrderAcrossWrapArounds() {
+        RecordingSink downstream = new RecordingSink();
+        try (AsyncEventSink sink = new AsyncEventSink(downstream, 4)) {
+            for (int i = 0; i < 1_000; i++) {
+                sink.publish(event(i));
+            }
+            sink.flush();
+            assertEquals(0, sink.getBacklog());
+            assertEquals(numbers(0, 1_000), downstream.messages());
+            assertTrue(downstream.flushes.get() > 0);
+        }
+    }
+
+    @Test
+    void keepsEachPublishersOrderWhenThreadsShareTheRing() throws Exception {
+        RecordingSink downstream = new RecordingSink();
+        try (AsyncEventSink sink = new AsyncEventSink(downstream, 8)) {
+            List<CompletableFuture<Void>> publishers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int first = t * 10_000;
+                publishers.add(CompletableFuture.runAsync(() -> {
+                    for (int i = first; i < first + 500; i++) {
+                        sink.publish(event(i));
+                    }
+                }));
+            }
+            CompletableFuture.allOf(publishers.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+            sink.flush();
+            List<String> seen = downstream.messages();
+            assertEquals(2_000, seen.size());
+            for (int t = 0; t < 4; t++) {
+                List<String> mine = new ArrayList<>();
+                for (String message : seen) {
+                    if (Integer.parseInt(message) / 10_000 == t) {
+                        mine.add(message);
+                    }
+                }
+                assertEquals(numbers(t * 10_000, t * 10_000 + 500), mine);
+            }
+        }
+    }
+
+    @Test
+    void closeDeliversWhatIsQueuedAndLaterEventsGoStraightThrough() {
+        RecordingSink downstream = new RecordingSink();
+        AsyncEventSink sink = new AsyncEventSink(downstream, 16);
+        for (int i = 0; i < 10; i++) {
+            sink.publish(event(i));
+        }
+        sink.close();
+        assertEquals(numbers(0, 10), downstream.messages());
+
+        sink.publish(event(10));
+        assertEquals(numbers(0, 11), downstream.messages());
+    }
+
+    @Test
+    void publishersDoNotWaitOnAWorkerStoppedByAnError() throws Exception {
+        RecordingSink downstream = new RecordingSink() {
+            @Override
+            public void publish(LibraryEvent event) {
+                if (event.getMessage().equals("0")) {
+                    throw new AssertionError("sink crashed");
+                }
+                super.publish(event);
+            }
+        };
+        AsyncEventSink sink = new AsyncEventSink(downstream, 2);
+        // More events than the ring holds: without the fallback the publisher would wait forever
+        CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 100; i++) {
+                sink.publish(event(i));
+            }
+            sink.flush();
+        }).get(10, TimeUnit.SECONDS);
+        sink.close();
+
+        List<String> seen = downstream.messages();
+        assertTrue(seen.contains("99"));
+        sink.publish(event(100));
+        assertEquals("100", downstream.messages().get(seen.size()));
+    }
+
+    private static LibraryEvent event(int i) {
+        return new LibraryEvent(LibraryResult.OK, null, null, Integer.toString(i));
+    }
+
+    private static List<String> numbers(int from, int to) {
+        List<String> numbers = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            numbers.add(Integer.toString(i));
+        }
+        return numbers;
+    }
+
+    private static class RecordingSink implements EventSink {
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger flushes = new AtomicInteger();
+
+        @Override
+        public void publish(LibraryEvent event) {
+            messages.add(event.getMessage());
+        }
+
+        @Override
+        public void flush() {
+            flushes.incrementAndGet();
+        }
+
+        List<String> messages() {
+            synchronized (messages) {
+                return new ArrayList<>(messages);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntFunction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Lock-free claims on a Book's copy bitmap: racing threads never get the
+ * same copy, and the available count agrees with the bitmap once they stop
+ */
+class BookCopiesTest {
+    private static final int THREADS = 8;
+    // Spans the first word of the bitmap and three more
+    private static final int COPIES = 200;
+
+    private final ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+
+    @AfterEach
+    void stopThreads() {
+        threads.shutdownNow();
+    }
+
+    @Test
+    void handsOutEveryCopyExactlyOnce() throws Exception {
+        Book book = new Book("Dune", "Frank Herbert", "978-1", COPIES);
+        List<List<Integer>> claimed = race(t -> {
+            List<Integer> mine = new ArrayList<>();
+            int copy;
+            while ((copy = book.claimCopy()) != 0) {
+                mine.add(copy);
+            }
+            return mine;
+        });
+
+        boolean[] seen = new boolean[COPIES + 1];
+        int total = 0;
+        for (List<Integer> mine : claimed) {
+            for (int copy : mine) {
+                assertFalse(seen[copy], "copy " + copy + " handed out twice");
+                seen[copy] = true;
+                total++;
+            }
+        }
+        assertEquals(COPIES, total);
+        assertEquals(0, book.getAvailableCopies());
+        assertEquals(0, book.claimCopy());
+        for (int copy = 1; copy <= COPIES; copy++) {
+            assertFalse(book.isCopyAvailable(copy));
+        }
+    }
+
+    @Test
+    void keepsTheCountInStepWithTheBitmapUnderChurn() throws Exception {
+        Book book = new Book("Dune", "Frank Herbert", "978-1", COPIES);
+        // Thread + 1 holding each copy, or 0 while it is on the shelf
+        AtomicIntegerArray holder = new AtomicIntegerArray(COPIES + 1);
+        AtomicInteger clashes = new AtomicInteger();
+        race(t -> {
+            Random random = new Random(t);
+            List<Integer> mine = new ArrayList<>();
+            for (int n = 0; n < 50_000; n++) {
+                int available = book.getAvailableCopies();
+                if (available < 0 || available > COPIES) {
+                    clashes.incrementAndGet();
+                }
+                if (mine.isEmpty() || random.nextInt(3) > 0) {
+                    int copy = random.nextBoolean() ? book.claimCopy() : claimSpecific(book, random);
+                    if (copy != 0) {
+                        if (!holder.compareAndSet(copy, 0, t + 1)) {
+                            clashes.incrementAndGet();
+                        }
+                        mine.add(copy);
+                    }
+                } else {
+                    int copy = mine.remove(random.nextInt(mine.size()));
+                    holder.set(copy, 0);
+                    assertTrue(book.releaseCopy(copy));
+                }
+            }
+            for (int copy : mine) {
+                holder.set(copy, 0);
+                assertTrue(book.releaseCopy(copy));
+            }
+            return mine;
+        });
+
+        assertEquals(0, clashes.get());
+        assertEquals(COPIES, book.getAvailableCopies());
+        for (int copy = 1; copy <= COPIES; copy++) {
+            assertTrue(book.isCopyAvailable(copy));
+            assertFalse(book.releaseCopy(copy));
+        }
+    }
+
+    @Test
+    void letsOneThreadClaimASpecificCopy() throws Exception {
+        for (int round = 0; round < 100; round++) {
+            Book book = new Book("Dune", "Frank Herbert", "978-1", COPIES);
+            int copy = 1 + round * 7 % COPIES;
+            AtomicInteger winners = new AtomicInteger();
+            race(t -> {
+                if (book.claimCopy(copy)) {
+                    winners.incrementAndGet();
+                }
+                return null;
+            });
+            assertEquals(1, winners.get());
+            assertEquals(COPIES - 1, book.getAvailableCopies());
+            assertFalse(book.isCopyAvailable(copy));
+        }
+    }
+
+    private static int claimSpecific(Book book, Random random) {
+        int copy = 1 + random.nextInt(COPIES);
+        return book.claimCopy(copy) ? copy : 0;
+    }
+
+    /**
+     * Run a task on every thread at once and collect what each returns
+     */
+    private <T> List<T> race(IntFunction<T> task) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<T>> runs = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            runs.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return task.apply(thread);
+            }, threads));
+        }
+        start.countDown();
+        List<T> results = new ArrayList<>();
+        for (CompletableFuture<T> run : runs) {
+            results.add(run.get(60, TimeUnit.SECONDS));
+        }
+        return results;
+    }
+}
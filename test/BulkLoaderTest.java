@@ -0,0 +1,52 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Importing book files with several workers: file order decides between
+ * duplicates, and imported books are indexed as if added one by one
+ */
+class BulkLoaderTest {
+    @Test
+    void importsInFileOrderAndIndexesBooks() throws IOException {
+        Library library = new Library(true);
+        library.setEventSink(EventSink.NONE);
+        StringBuilder file = new StringBuilder("title,author,isbn,copies\n");
+        for (int i = 0; i < 1_000; i++) {
+            file.append("Volume ").append(i).append(",Ann Author,978-").append(i).append('\n');
+        }
+        file.append("\"Émile, or On Education\",Jean-Jacques Rousseau,978-2000,2\n");
+        file.append("Second Copy,Someone Else,978-7\n");
+        file.append("No ISBN,Someone Else,\n");
+        StringWriter errors = new StringWriter();
+
+        BulkLoader.Report report = new BulkLoader(library, ',', 4, 64).importBooks(new StringReader(file.toString()),
+                errors);
+
+        assertEquals(1_003, report.getRows());
+        assertEquals(1_001, report.getImported());
+        assertEquals(2, report.getRejected());
+        assertTrue(errors.toString().contains("line 1003: Book with ISBN 978-7 already exists!"), errors.toString());
+        assertEquals("Volume 7", library.findBookByIsbn("978-7").getTitle());
+        assertEquals(2, library.findBookByIsbn("978-2000").getCopyCount());
+
+        assertEquals(List.of("978-2000"), isbns(library.searchBooks("emile rousseau", 5)));
+        assertEquals(List.of("978-2000"), isbns(library.findBooksByTitlePrefix("emile", false, 5)));
+        assertEquals(List.of("978-2000"), isbns(library.findBooksByAuthor("jean-jacques rousseau", false, 5)));
+        assertEquals(1_000, library.findBooksByAuthor("Ann Author", false, 2_000).size());
+    }
+
+    private static List<String> isbns(List<Book> books) {
+        List<String> isbns = new ArrayList<>();
+        for (Book book : books) {
+            isbns.add(book.getIsbn());
+        }
+        return isbns;
+    }
+}
@@ -0,0 +1,166 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A library loaded from a snapshot's catalog image, with its prebuilt
+ * indexes, lists, finds and counts exactly what the library it was taken
+ * from did
+ */
+class CatalogImageTest {
+    private static final String[] WORDS = {"river", "night", "garden", "storm", "glass", "winter", "crown", "salt",
+        "harbor", "ember", "orchard", "silver"};
+    private static final String[] AUTHORS = {"Ann Archer", "Bo Brandt", "Chidi Okafor", "Dana Ólafsdóttir",
+        "Eli Ekström", "Farah Haddad"};
+    private static final int BOOKS = 300;
+    private static final int MEMBERS = 20;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reloadsListingsIndexesAndStatsAsWritten() throws IOException {
+        Library original = newLibrary();
+        LibraryStore store = LibraryStore.open(dir, original, true);
+        fill(original);
+        store.snapshot();
+        // Drop the library without the final snapshot close() writes, so the reload comes from the image
+        original.setTransactionLog(null);
+
+        Library reloaded = newLibrary();
+        LibraryStore.open(dir, reloaded, true);
+
+        assertEquals(display(original, Library::displayAllBooks), display(reloaded, Library::displayAllBooks));
+        assertEquals(display(original, Library::displayAvailableBooks),
+                display(reloaded, Library::displayAvailableBooks));
+        assertEquals(display(original, Library::displayAllMembers), display(reloaded, Library::displayAllMembers));
+        for (String author : AUTHORS) {
+            assertEquals(isbns(original.findBooksByAuthor(author, false, 1_000)),
+                    isbns(reloaded.findBooksByAuthor(author, false, 1_000)), author);
+            assertEquals(isbns(original.findBooksByAuthor(author.toUpperCase(), true, 1_000)),
+                    isbns(reloaded.findBooksByAuthor(author.toUpperCase(), true, 1_000)), author);
+        }
+        for (String word : WORDS) {
+            assertEquals(isbns(original.findBooksByTitlePrefix(word, false, 1_000)),
+                    isbns(reloaded.findBooksByTitlePrefix(word, false, 1_000)), word);
+            assertEquals(isbns(original.findBooksByTitlePrefix(word.substring(0, 2), true, 1_000)),
+                    isbns(reloaded.findBooksByTitlePrefix(word.substring(0, 2), true, 1_000)), word);
+            assertEquals(isbns(original.searchBooks(word, 50)), isbns(reloaded.searchBooks(word, 50)), word);
+            assertEquals(isbns(original.searchBooks(word + " salt", 50)),
+                    isbns(reloaded.searchBooks(word + " salt", 50)), word);
+        }
+        assertEquals(isbns(original.findBooksByTitleRange("g", "s", false, 1_000)),
+                isbns(reloaded.findBooksByTitleRange("g", "s", false, 1_000)));
+        assertEquals(isbns(original.searchBooks("okafor", 1_000)), isbns(reloaded.searchBooks("okafor", 1_000)));
+
+        LibraryStats.Snapshot before = original.getStatistics();
+        LibraryStats.Snapshot after = reloaded.getStatistics();
+        assertEquals(before.getTotalTitles(), after.getTotalTitles());
+        assertEquals(before.getTotalBooks(), after.getTotalBooks());
+        assertEquals(before.getAvailableBooks(), after.getAvailableBooks());
+        assertEquals(before.getTotalMembers(), after.getTotalMembers());
+        assertEquals(original.getBookCount(), reloaded.getBookCount());
+        for (int i = 0; i < BOOKS; i++) {
+            Book book = original.findBookByIsbn(isbn(i));
+            Book copy = reloaded.findBookByIsbn(isbn(i));
+            assertEquals(String.valueOf(book), String.valueOf(copy));
+            assertEquals(holders(original, isbn(i)), holders(reloaded, isbn(i)));
+        }
+        for (int m = 0; m < MEMBERS; m++) {
+            assertEquals(loans(original.findMemberById("M" + m)), loans(reloaded.findMemberById("M" + m)));
+            assertEquals(original.getMemberLoanCount("M" + m), reloaded.getMemberLoanCount("M" + m));
+        }
+
+        // The restored indexes take new books like ones built a book at a time
+        for (Library library : new Library[] {original, reloaded}) {
+            assertEquals(LibraryResult.OK, library.addBook("Garden of Salt", "Zed Zimmer", "979-1"));
+        }
+        assertEquals(isbns(original.findBooksByTitlePrefix("garden", false, 1_000)),
+                isbns(reloaded.findBooksByTitlePrefix("garden", false, 1_000)));
+        assertEquals(isbns(original.searchBooks("garden salt", 50)), isbns(reloaded.searchBooks("garden salt", 50)));
+        assertEquals(List.of("979-1"), isbns(reloaded.findBooksByAuthor("zed zimmer", false, 10)));
+    }
+
+    private static Library newLibrary() {
+        Library library = new Library(true);
+        library.setEventSink(EventSink.NONE);
+        return library;
+    }
+
+    private static void fill(Library library) {
+        Random random = new Random(7);
+        for (int i = 0; i < BOOKS; i++) {
+            String title = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]
+                    + (i % 7 == 0 ? "" : " " + i);
+            int copies = i % 10 == 0 ? 3 : 1;
+            assertEquals(LibraryResult.OK, library.addBook(title, AUTHORS[i % AUTHORS.length], isbn(i), copies));
+        }
+        for (int m = 0; m < MEMBERS; m++) {
+            assertEquals(LibraryResult.OK, library.addMember("Member " + m, "M" + m));
+        }
+        // Removals leave gaps in the listing order
+        for (int i = 5; i < BOOKS; i += 37) {
+            assertEquals(LibraryResult.OK, library.removeBook(isbn(i)));
+        }
+        for (int n = 0; n < 120; n++) {
+            library.borrowBook(isbn(random.nextInt(BOOKS)), "M" + random.nextInt(MEMBERS));
+        }
+        int holds = 0;
+        for (int i = 0; i < BOOKS && holds < 10; i++) {
+            Book book = library.findBookByIsbn(isbn(i));
+            if (book != null && !book.isAvailable()) {
+                for (int m = 0; m < 3; m++) {
+                    library.placeHold(isbn(i), "M" + ((i + m) % MEMBERS), m);
+                }
+                holds++;
+            }
+        }
+        assertTrue(holds > 0);
+    }
+
+    private static String display(Library library, Consumer<Library> listing) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        library.setOutput(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        listing.accept(library);
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> isbns(List<Book> books) {
+        List<String> isbns = new ArrayList<>();
+        for (Book book : books) {
+            isbns.add(book.getIsbn());
+        }
+        return isbns;
+    }
+
+    private static List<String> holders(Library library, String isbn) {
+        List<String> holders = new ArrayList<>();
+        for (HoldQueues.Hold hold : library.getHolds(isbn)) {
+            holders.add(hold.getMemberId() + "/" + hold.getPriority());
+        }
+        return holders;
+    }
+
+    private static List<String> loans(Member member) {
+        List<String> loans = new ArrayList<>();
+        for (Loan loan : member.getLoans()) {
+            loans.add(loan.getBarcode() + " due " + loan.getDueAt() + " renewed " + loan.getRenewals());
+        }
+        return loans;
+    }
+
+    private static String isbn(int i) {
+        return "978-0-" + (1000 + i);
+    }
+}
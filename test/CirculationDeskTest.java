@@ -0,0 +1,59 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A CirculationDesk whose worker is stopped by an Error: no caller may be
+ * left waiting on it
+ */
+class CirculationDeskTest {
+    @Test
+    void failsQueuedAndLaterRequestsAfterAnError() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AssertionError crash = new AssertionError("library crashed");
+        Library library = new Library(true) {
+            @Override
+            public List<LibraryResult> circulate(List<CirculationDesk.Request> batch) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw crash;
+            }
+        };
+        library.setEventSink(EventSink.NONE);
+        CirculationDesk desk = new CirculationDesk(library, 2, 1);
+
+        CompletableFuture<LibraryResult> first = desk.borrowBook("978-1", "M1");
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        CompletableFuture<LibraryResult> queued = desk.borrowBook("978-2", "M1");
+        // The queue is full now; this submission waits for room until the worker dies
+        CompletableFuture<CompletableFuture<LibraryResult>> blocked =
+                CompletableFuture.supplyAsync(() -> desk.borrowBook("978-3", "M1"));
+        release.countDown();
+
+        ExecutionException failed = assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+        assertSame(crash, failed.getCause());
+        failed = assertThrows(ExecutionException.class, () -> queued.get(5, TimeUnit.SECONDS));
+        assertSame(crash, failed.getCause().getCause());
+        failed = assertThrows(ExecutionException.class,
+                () -> blocked.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+        assertEquals(IllegalStateException.class, failed.getCause().getClass());
+        IllegalStateException closed = assertThrows(IllegalStateException.class,
+                () -> desk.returnBook("978-1", "M1"));
+        assertSame(crash, closed.getCause());
+        desk.close();
+        assertEquals(0, desk.getQueuedCount());
+    }
+}
@@ -0,0 +1,126 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A CirculationHistory saved to a directory and opened again answers its
+ * reports as it did before, whether the events were compacted, sealed in
+ * chunks or still open when it was closed
+ */
+class CirculationHistoryTest {
+    private static final int YEAR = 2025;
+    private static final int BOOKS = 8;
+    private static final int MEMBERS = 5;
+    // Enough loans of one book in March to seal a chunk and keep a second one open
+    private static final int MARCH_EXTRA = CirculationHistory.CHUNK_EVENTS + 1_000;
+
+    @TempDir
+    Path dir;
+
+    private final Map<YearMonth, Map<String, Integer>> bookLoans = new TreeMap<>();
+    private final Map<String, Integer> memberLoans = new HashMap<>();
+
+    @Test
+    void reportsTheSameAfterCompactCloseAndReopen() throws IOException {
+        CirculationHistory history = CirculationHistory.open(dir);
+        for (int month = 1; month <= 4; month++) {
+            recordMonth(history, month);
+        }
+        history.compact();
+        // Later loans go into months already compacted, and into new ones
+        recordMonth(history, 2);
+        recordMonth(history, 5);
+        recordMonth(history, 6);
+        history.recordBorrow("978-2025-12", "Last of the year", "M-LATE", time(12, 31));
+        count(YearMonth.of(YEAR, 12), "978-2025-12", "M-LATE");
+        Map<YearMonth, List<CirculationHistory.BookCount>> top = history.topBorrowedByMonth(YEAR, 3);
+        Map<String, Integer> perMember = history.loansPerMember(YEAR);
+        long events = history.getEventCount();
+        assertReports(history);
+        history.close();
+
+        CirculationHistory reopened = CirculationHistory.open(dir);
+        assertEquals(events, reopened.getEventCount());
+        assertEquals(describe(top), describe(reopened.topBorrowedByMonth(YEAR, 3)));
+        assertEquals(perMember, reopened.loansPerMember(YEAR));
+        assertReports(reopened);
+
+        // Books and members new to the saved dictionary survive a second reopen too
+        reopened.recordBorrow("978-NEW", "Added after reopening", "M-NEW", time(7, 1));
+        count(YearMonth.of(YEAR, 7), "978-NEW", "M-NEW");
+        reopened.close();
+        CirculationHistory again = CirculationHistory.open(dir);
+        assertReports(again);
+        assertEquals(Map.of(), again.topBorrowedByMonth(YEAR + 1, 3));
+        again.close();
+    }
+
+    private void recordMonth(CirculationHistory history, int month) {
+        YearMonth key = YearMonth.of(YEAR, month);
+        for (int book = 0; book < BOOKS; book++) {
+            // A different count for every book, so the top lists have no ties
+            int loans = (book + 1) * (month + 2) + (month == 3 && book == BOOKS - 1 ? MARCH_EXTRA : 0);
+            for (int n = 0; n < loans; n++) {
+                String isbn = isbn(book);
+                String memberId = "M" + (n % MEMBERS);
+                long at = time(month, 1 + n % 28);
+                history.recordBorrow(isbn, "Title " + book, memberId, at);
+                history.recordReturn(isbn, "Title " + book, memberId, at + 1_000);
+                count(key, isbn, memberId);
+            }
+        }
+    }
+
+    private void count(YearMonth month, String isbn, String memberId) {
+        bookLoans.computeIfAbsent(month, m -> new HashMap<>()).merge(isbn, 1, Integer::sum);
+        memberLoans.merge(memberId, 1, Integer::sum);
+    }
+
+    private void assertReports(CirculationHistory history) {
+        Map<YearMonth, List<CirculationHistory.BookCount>> top = history.topBorrowedByMonth(YEAR, BOOKS + 1);
+        assertEquals(bookLoans.keySet(), top.keySet());
+        for (Map.Entry<YearMonth, Map<String, Integer>> month : bookLoans.entrySet()) {
+            Map<String, Integer> found = new HashMap<>();
+            int previous = Integer.MAX_VALUE;
+            for (CirculationHistory.BookCount count : top.get(month.getKey())) {
+                found.put(count.getIsbn(), count.getLoans());
+                assertTrue(count.getLoans() <= previous, "most borrowed first");
+                previous = count.getLoans();
+            }
+            assertEquals(month.getValue(), found, month.getKey().toString());
+            assertEquals(describe(Map.of(month.getKey(), top.get(month.getKey()))),
+                    describe(Map.of(month.getKey(), history.topBorrowed(month.getKey(), BOOKS + 1))));
+        }
+        assertEquals(memberLoans, history.loansPerMember(YEAR));
+    }
+
+    private static List<String> describe(Map<YearMonth, List<CirculationHistory.BookCount>> top) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<YearMonth, List<CirculationHistory.BookCount>> month : new TreeMap<>(top).entrySet()) {
+            for (CirculationHistory.BookCount count : month.getValue()) {
+                lines.add(month.getKey() + " " + count.getIsbn() + " " + count.getTitle() + " " + count.getLoans());
+            }
+        }
+        return lines;
+    }
+
+    private static String isbn(int book) {
+        return "978-" + book;
+    }
+
+    private static long time(int month, int day) {
+        return LocalDateTime.of(YEAR, month, day, 12, 0).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+}
@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compact book and member fields: packed ISBNs and member IDs round-trip
+ * to the text they came from, check digits match published ISBNs, and
+ * authors are shared within one library
+ */
+class CompactFieldsTest {
+    @Test
+    void packedIsbnsFormatBackAsWritten() {
+        for (String isbn : new String[] {"978-0-441-17271-9", "9780441172719", "0-306-40615-2", "1", "978-1",
+                "9999999999999", "0000000000001", "9-7-8-0-4-4-1-1-7-2-7-1-9"}) {
+            long packed = Isbn.pack(isbn);
+            assertTrue(packed >= 0, isbn);
+            assertEquals(isbn, Isbn.format(packed));
+            assertEquals(Library.normalizeIsbn(isbn), Isbn.digits(packed));
+            char[] chars = new char[30];
+            int length = Isbn.getChars(packed, true, chars, 2);
+            assertEquals(isbn, new String(chars, 2, length));
+        }
+    }
+
+    @Test
+    void keepsHyphensAndLeadingZerosApart() {
+        assertNotEquals(Isbn.pack("978-0441172719"), Isbn.pack("9780-441172719"));
+        assertNotEquals(Isbn.pack("0441172719"), Isbn.pack("441172719"));
+        assertEquals(Isbn.pack("978-0-441-17271-9"), Isbn.pack("978-0-441-17271-9"));
+    }
+
+    @Test
+    void leavesWhatDoesNotPackAsText() {
+        for (String isbn : new String[] {null, "", "080442957X", "978 0 441", "-978", "978-", "978--1",
+                "97804411727190", "ISBN 978"}) {
+            assertEquals(Isbn.NONE, Isbn.pack(isbn), isbn);
+        }
+        Book book = new Book("Dune", "Frank Herbert", "080442957X");
+        assertEquals(Isbn.NONE, book.getPackedIsbn());
+        assertEquals("080442957X", book.getIsbn());
+    }
+
+    @Test
+    void checksPublishedIsbns() {
+        assertTrue(Isbn.isValid("978-0-306-40615-7"));
+        assertTrue(Isbn.isValid("0-306-40615-2"));
+        assertTrue(Isbn.isValid("080442957X"));
+        assertTrue(Isbn.isValid("080442957x"));
+        assertFalse(Isbn.isValid("978-0-306-40615-8"));
+        assertFalse(Isbn.isValid("0-306-40615-3"));
+        assertFalse(Isbn.isValid("978030640615"));
+        assertFalse(Isbn.isValid("X80442957X"));
+        assertFalse(Isbn.isValid(null));
+
+        assertEquals('7', Isbn.checkDigit("978030640615"));
+        assertEquals('2', Isbn.checkDigit("030640615"));
+        assertEquals('X', Isbn.checkDigit("080442957"));
+        assertThrows(IllegalArgumentException.class, () -> Isbn.checkDigit("97803064061"));
+        assertThrows(IllegalArgumentException.class, () -> Isbn.checkDigit("97803064061X"));
+    }
+
+    @Test
+    void checkDigitCompletesEveryPrefixToAValidIsbn() {
+        for (long n = 0; n < 100_000; n += 97) {
+            String isbn13 = String.format("978%09d", n * 7);
+            assertTrue(Isbn.isValid(isbn13 + Isbn.checkDigit(isbn13)), isbn13);
+            String isbn10 = String.format("%09d", n * 11);
+            assertTrue(Isbn.isValid(isbn10 + Isbn.checkDigit(isbn10)), isbn10);
+        }
+    }
+
+    @Test
+    void packedMemberIdsRoundTrip() {
+        for (String id : new String[] {"M1", "0", "ABCDEFGHIJ", "zzzzzzzzzz", "a-b_c", "__________"}) {
+            long packed = Member.packId(id);
+            assertNotEquals(Member.NO_PACKED_ID, packed, id);
+            assertEquals(id, new Member("Ann", id).getMemberId());
+        }
+        assertNotEquals(Member.packId("M1"), Member.packId("M10"));
+        assertNotEquals(Member.packId("0"), Member.packId("00"));
+        assertNotEquals(Member.packId("m1"), Member.packId("M1"));
+    }
+
+    @Test
+    void keepsOtherMemberIdsAsText() {
+        for (String id : new String[] {"", "ABCDEFGHIJK", "M.1", "M 1", "M\u00e9"}) {
+            assertEquals(Member.NO_PACKED_ID, Member.packId(id), id);
+            assertEquals(id, new Member("Ann", id).getMemberId());
+            assertEquals(-1, new Member("Ann", id).getMemberIdChars(new char[10], 0));
+        }
+        assertEquals(Member.NO_PACKED_ID, Member.packId(null));
+    }
+
+    @Test
+    void booksShareAuthorsOnlyWithinTheirLibrary() {
+        Library first = new Library(true);
+        first.setEventSink(EventSink.NONE);
+        first.addBook("Dune", new String("Frank Herbert"), "978-1");
+        first.addBook("Dune Messiah", new String("Frank Herbert"), "978-2");
+        assertSame(first.findBookByIsbn("978-1").getAuthor(), first.findBookByIsbn("978-2").getAuthor());
+        assertEquals(1, first.getAuthorCount());
+
+        Library second = new Library(true);
+        second.setEventSink(EventSink.NONE);
+        assertEquals(0, second.getAuthorCount());
+    }
+}
@@ -0,0 +1,122 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A concurrent Library under borrows, returns and removals from several
+ * threads: availability never goes out of range, and the running
+ * statistics match the books and loans left when the threads are done
+ */
+class ConcurrentLibraryTest {
+    private static final int BOOKS = 48;
+    private static final int COPIES = 3;
+    private static final int MEMBERS = 24;
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 20_000;
+
+    @Test
+    void keepsCountsAndAvailabilityConsistent() throws Exception {
+        Library library = new Library(true);
+        library.setEventSink(EventSink.NONE);
+        for (int i = 0; i < BOOKS; i++) {
+            assertEquals(LibraryResult.OK, library.addBook("Title " + i, "Author " + i % 5, isbn(i), COPIES));
+        }
+        for (int i = 0; i < MEMBERS; i++) {
+            assertEquals(LibraryResult.OK, library.addMember("Member " + i, memberId(i)));
+        }
+
+        AtomicLong borrowed = new AtomicLong();
+        AtomicLong returned = new AtomicLong();
+        AtomicBoolean done = new AtomicBoolean();
+        // One thread each, so the checker runs alongside the workers
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS + 1);
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(t);
+            workers.add(CompletableFuture.runAsync(() -> {
+                for (int n = 0; n < OPERATIONS; n++) {
+                    String isbn = isbn(random.nextInt(BOOKS));
+                    String memberId = memberId(random.nextInt(MEMBERS));
+                    int op = random.nextInt(100);
+                    if (op < 48) {
+                        if (library.borrowBook(isbn, memberId).isOk()) {
+                            borrowed.incrementAndGet();
+                        }
+                    } else if (op < 96) {
+                        if (library.returnBook(isbn, memberId).isOk()) {
+                            returned.incrementAndGet();
+                        }
+                    } else if (library.removeBook(isbn).isOk()) {
+                        // Only succeeds with every copy on the shelf; put the title back for later rounds
+                        library.addBook("Title " + isbn, "Author", isbn, COPIES);
+                    }
+                }
+            }, threads));
+        }
+        CompletableFuture<Void> checker = CompletableFuture.runAsync(() -> {
+            // Statistics may be a moment apart while writes are in flight; each book's count never is
+            while (!done.get()) {
+                for (int i = 0; i < BOOKS; i++) {
+                    Book book = library.findBookByIsbn(isbn(i));
+                    if (book != null) {
+                        int available = book.getAvailableCopies();
+                        assertTrue(available >= 0 && available <= book.getCopyCount(), book.getIsbn());
+                    }
+                }
+            }
+        }, threads);
+        CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+        done.set(true);
+        checker.get(10, TimeUnit.SECONDS);
+        threads.shutdown();
+
+        long copies = 0;
+        long available = 0;
+        int titles = 0;
+        for (int i = 0; i < BOOKS; i++) {
+            Book book = library.findBookByIsbn(isbn(i));
+            if (book != null) {
+                titles++;
+                copies += book.getCopyCount();
+                available += book.getAvailableCopies();
+            }
+        }
+        long loans = 0;
+        for (int i = 0; i < MEMBERS; i++) {
+            Member member = library.findMemberById(memberId(i));
+            for (Loan loan : member.getLoans()) {
+                // A book on loan can never have been removed
+                assertSame(loan.getBook(), library.findBookByIsbn(loan.getBook().getIsbn()));
+                loans++;
+            }
+        }
+        LibraryStats.Snapshot stats = library.getStatistics();
+        assertEquals(BOOKS, titles);
+        assertEquals(titles, stats.getTotalTitles());
+        assertEquals(copies, stats.getTotalBooks());
+        assertEquals(available, stats.getAvailableBooks());
+        assertEquals(MEMBERS, stats.getTotalMembers());
+        assertEquals(borrowed.get(), stats.getTotalLoans());
+        assertEquals(borrowed.get() - returned.get(), loans);
+        assertEquals(copies - available, loans);
+    }
+
+    private static String isbn(int i) {
+        return "978-" + i;
+    }
+
+    private static String memberId(int i) {
+        return "M" + i;
+    }
+}
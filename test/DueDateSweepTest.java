@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Renewal of loans by the due date sweep, which follows the same rules as
+ * renewBook(), and the order overdue loans are listed in
+ */
+class DueDateSweepTest {
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long START = 1_000 * DueDateIndex.DAY_MILLIS;
+
+    private final long[] now = {START};
+    private Library library;
+
+    @BeforeEach
+    void openLibrary() {
+        library = new Library(false);
+        library.setEventSink(EventSink.NONE);
+        library.setClock(() -> now[0]);
+        library.addMember("Ann", "M1");
+    }
+
+    @Test
+    void renewsLoansAboutToComeDue() {
+        borrow("978-1");
+        now[0] = START + Library.LOAN_PERIOD_MILLIS - 30 * MINUTE;
+
+        assertEquals(1, library.runDueDateSweep());
+        assertEquals(1, loan("978-1").getRenewals());
+        assertEquals(START + 2 * Library.LOAN_PERIOD_MILLIS, loan("978-1").getDueAt());
+        assertEquals(0, library.runDueDateSweep());
+    }
+
+    @Test
+    void leavesOverdueLoansOverdueAfterALateSweep() {
+        borrow("978-1");
+        now[0] = START + Library.LOAN_PERIOD_MILLIS + 4 * HOUR;
+
+        assertEquals(0, library.runDueDateSweep());
+        assertEquals(0, loan("978-1").getRenewals());
+        assertEquals(LibraryResult.OVERDUE, library.renewBook("978-1", "M1"));
+        assertEquals(1, library.getOverdueLoans().size());
+    }
+
+    @Test
+    void listingOverdueLoansRenewsNothing() {
+        borrow("978-1");
+        now[0] = START + Library.LOAN_PERIOD_MILLIS - 30 * MINUTE;
+        library.setOutput(new PrintStream(new ByteArrayOutputStream()));
+
+        library.displayOverdueLoans();
+        assertEquals(0, loan("978-1").getRenewals());
+    }
+
+    @Test
+    void listsLongestOverdueFirstWithinAnHour() {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            now[0] = START + (59 - i) * MINUTE;
+            borrow("978-" + i);
+            expected.add(0, "978-" + i);
+        }
+        now[0] = START + Library.LOAN_PERIOD_MILLIS + 2 * HOUR;
+
+        List<String> overdue = new ArrayList<>();
+        for (Loan loan : library.getOverdueLoans()) {
+            overdue.add(loan.getBook().getIsbn());
+        }
+        assertEquals(expected, overdue);
+    }
+
+    private void borrow(String isbn) {
+        assertEquals(LibraryResult.OK, library.addBook("Title " + isbn, "Ann Author", isbn));
+        assertEquals(LibraryResult.OK, library.borrowBook(isbn, "M1"));
+    }
+
+    private Loan loan(String isbn) {
+        return library.findMemberById("M1").getLoan(library.findBookByIsbn(isbn));
+    }
+}
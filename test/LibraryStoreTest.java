@@ -0,0 +1,293 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Recovery of a Library from its snapshots and transaction log
+ * A crash is simulated by dropping a store without closing it: every
+ * change was synced before its operation returned, and nothing else is
+ * written, as if the process had died.
+ */
+class LibraryStoreTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysLogAfterCrash() throws IOException {
+        Library library = open();
+        addSampleData(library);
+        crash(library);
+
+        assertSampleData(open());
+    }
+
+    @Test
+    void reopensFromSnapshotAndLaterLog() throws IOException {
+        Library library = newLibrary();
+        LibraryStore store = openStore(library);
+        addSampleData(library);
+        store.snapshot();
+        assertEquals(LibraryResult.OK, library.addBook("Emma", "Jane Austen", "978-0-14-143958-7"));
+        assertEquals(LibraryResult.OK, library.returnBook("978-0-452-28423-4", "M2"));
+        crash(library);
+
+        Library reopened = open();
+        assertEquals(4, reopened.getBookCount());
+        assertNotNull(reopened.findBookByIsbn("9780141439587"));
+        assertEquals(4, reopened.findBookByIsbn("978-0-452-28423-4").getAvailableCopies());
+        assertEquals(0, reopened.findMemberById("M2").getLoanCount());
+    }
+
+    @Test
+    void closeWritesSnapshotThatReopens() throws IOException {
+        Library library = newLibrary();
+        LibraryStore store = openStore(library);
+        addSampleData(library);
+        store.close();
+        assertTrue(segments().size() <= 1, "Segments covered by the final snapshot are deleted");
+
+        assertSampleData(open());
+    }
+
+    @Test
+    void ignoresTornTailAndKeepsLaterRecords() throws IOException {
+        Library library = open();
+        addSampleData(library);
+        crash(library);
+        appendGarbage(newestSegment());
+
+        // A crash part way through the first record of a fresh segment
+        Library second = open();
+        assertSampleData(second);
+        crash(second);
+        appendGarbage(newestSegment());
+
+        Library third = open();
+        assertSampleData(third);
+        assertEquals(LibraryResult.OK, third.addBook("Emma", "Jane Austen", "978-0-14-143958-7"));
+        assertEquals(LibraryResult.OK, third.removeMember("M3"));
+        crash(third);
+
+        Library fourth = open();
+        assertNotNull(fourth.findBookByIsbn("978-0-14-143958-7"));
+        assertNull(fourth.findMemberById("M3"));
+        assertEquals(4, fourth.getBookCount());
+    }
+
+    @Test
+    void keepsCatalogRemovalsAndLoansAcrossSnapshots() throws IOException {
+        Path file = dir.resolve("catalog.lmsc");
+        ColumnarCatalog.write(file, Arrays.asList(new Book("Emma", "Jane Austen", "978-0-14-143958-7"),
+                new Book("Dune", "Frank Herbert", "978-0-441-17271-9")));
+        try (ColumnarCatalog catalog = ColumnarCatalog.open(file)) {
+            Library library = newLibrary();
+            library.attachCatalog(catalog);
+            LibraryStore store = openStore(library);
+            assertEquals(LibraryResult.OK, library.removeBook("978-0-14-143958-7"));
+            assertEquals(LibraryResult.OK, library.addMember("Ann", "M1"));
+            assertEquals(LibraryResult.OK, library.borrowBook("978-0-441-17271-9", "M1"));
+            store.close();
+        }
+        assertTrue(segments().size() <= 1, "The removal is no longer in the log");
+
+        try (ColumnarCatalog catalog = ColumnarCatalog.open(file)) {
+            Library reopened = newLibrary();
+            reopened.attachCatalog(catalog);
+            openStore(reopened);
+            assertEquals(1, reopened.getBookCount());
+            assertNull(reopened.findBookByIsbn("978-0-14-143958-7"));
+            assertFalse(reopened.findBookByIsbn("978-0-441-17271-9").isAvailable());
+            assertEquals(1, reopened.findMemberById("M1").getLoanCount());
+            assertEquals(0, catalog.availableCount());
+        }
+    }
+
+    @Test
+    void refusesFieldsTooLongToLogBeforeChangingAnything() throws IOException {
+        Library library = open();
+        String huge = "x".repeat(70_000);
+        assertEquals(LibraryResult.INVALID_INPUT, library.addBook(huge, "A", "123"));
+        assertNull(library.findBookByIsbn("123"));
+        assertEquals(LibraryResult.INVALID_INPUT, library.addMember(huge, "M1"));
+        assertEquals(LibraryResult.INVALID_INPUT, library.addMember("Ann", "M".repeat(Library.MAX_ID_LENGTH + 1)));
+        assertEquals(0, library.getMemberCount());
+
+        // An ISBN padded out by the caller still finds the book, and is logged as its key
+        assertEquals(LibraryResult.OK, library.addBook("Dune", "Frank Herbert", "978-0-441-17271-9"));
+        assertEquals(LibraryResult.OK, library.addMember("Ann", "M1"));
+        assertEquals(LibraryResult.OK, library.borrowBook("978-0-441-17271-9" + " ".repeat(70_000), "M1"));
+        crash(library);
+
+        Library reopened = open();
+        assertFalse(reopened.findBookByIsbn("978-0-441-17271-9").isAvailable());
+        assertEquals(1, reopened.findMemberById("M1").getLoanCount());
+    }
+
+    @Test
+    void copiesStateAsOfTheCutWhileChangesGoOn() {
+        Library library = newLibrary();
+        addSampleData(library);
+        Library.Cut cut = library.beginCut(() -> 42);
+
+        assertEquals(LibraryResult.OK, library.addCopies("978-0-452-28423-4", 5));
+        assertEquals(LibraryResult.OK, library.returnBook("978-0-452-28423-4", "M2"));
+        assertEquals(LibraryResult.OK, library.returnBook("978-0-441-17271-9", "M1"));
+        assertEquals(LibraryResult.OK, library.removeMember("M1"));
+        assertEquals(LibraryResult.OK, library.addMember("Dee", "M4"));
+        assertEquals(LibraryResult.OK, library.addBook("Emma", "Jane Austen", "978-0-14-143958-7"));
+        assertEquals(LibraryResult.OK, library.setLoanLimit("M3", 5));
+
+        Map<String, Integer> copies = new HashMap<>();
+        Map<String, Library.MemberState> members = new HashMap<>();
+        Map<String, Integer> holds = new HashMap<>();
+        library.copyCut(cut, (book, count) -> copies.put(book.getIsbn(), count),
+                state -> members.put(state.member.getMemberId(), state),
+                (isbn, queue) -> holds.put(isbn, queue.size()));
+        library.endCut(cut);
+
+        assertEquals(42, cut.lsn);
+        assertEquals(3, copies.size());
+        assertEquals(4, (int) copies.get("978-0-452-28423-4"));
+        assertEquals(Arrays.asList("M1", "M2", "M3"), sorted(members.keySet()));
+        assertEquals(1, members.get("M1").loanBooks.length);
+        assertEquals(1, members.get("M2").loanBooks.length);
+        assertEquals(1, members.get("M3").loanLimit);
+        // The return of Dune served M2's hold after the cut
+        assertEquals(Collections.singletonMap("9780441172719", 1), holds);
+    }
+
+    @Test
+    void recoversSnapshotTakenWhileBooksCirculate() throws Exception {
+        Library library = newLibrary();
+        LibraryStore store = openStore(library);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(LibraryResult.OK, library.addBook("Title " + i, "Author", "978-" + i, 2));
+            assertEquals(LibraryResult.OK, library.addMember("Member " + i, "M" + i));
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread desk = new Thread(() -> {
+            Random random = new Random(1);
+            while (!stop.get()) {
+                String isbn = "978-" + random.nextInt(50);
+                String memberId = "M" + random.nextInt(50);
+                if (library.borrowBook(isbn, memberId) != LibraryResult.OK) {
+                    library.returnBook(isbn, memberId);
+                }
+            }
+        });
+        desk.start();
+        for (int i = 0; i < 20; i++) {
+            store.snapshot();
+        }
+        stop.set(true);
+        desk.join();
+        crash(library);
+
+        Library reopened = open();
+        for (int i = 0; i < 50; i++) {
+            assertEquals(library.findBookByIsbn("978-" + i).getAvailableCopies(),
+                    reopened.findBookByIsbn("978-" + i).getAvailableCopies());
+            assertEquals(library.findMemberById("M" + i).getLoanCount(),
+                    reopened.findMemberById("M" + i).getLoanCount());
+        }
+    }
+
+    private static List<String> sorted(Collection<String> values) {
+        List<String> list = new ArrayList<>(values);
+        Collections.sort(list);
+        return list;
+    }
+
+    private void addSampleData(Library library) {
+        assertEquals(LibraryResult.OK, library.addBook("The Great Gatsby", "F. Scott Fitzgerald",
+                "978-0-7432-7356-5"));
+        assertEquals(LibraryResult.OK, library.addBook("1984", "George Orwell", "978-0-452-28423-4", 2));
+        assertEquals(LibraryResult.OK, library.addBook("Dune", "Frank Herbert", "978-0-441-17271-9"));
+        assertEquals(LibraryResult.OK, library.addCopies("978-0-452-28423-4", 2));
+        assertEquals(LibraryResult.OK, library.addMember("Ann", "M1"));
+        assertEquals(LibraryResult.OK, library.addMember("Bob", "M2"));
+        assertEquals(LibraryResult.OK, library.addMember("Cy", "M3"));
+        assertEquals(LibraryResult.OK, library.borrowBook("978-0-441-17271-9", "M1"));
+        assertEquals(LibraryResult.OK, library.borrowBook("978-0-452-28423-4", "M2"));
+        assertEquals(LibraryResult.OK, library.placeHold("978-0-441-17271-9", "M2"));
+        assertEquals(LibraryResult.OK, library.borrowBook("978-0-7432-7356-5", "M3"));
+        assertEquals(LibraryResult.OK, library.returnBook("978-0-7432-7356-5", "M3"));
+        assertEquals(LibraryResult.OK, library.setLoanLimit("M3", 1));
+    }
+
+    private void assertSampleData(Library library) {
+        assertEquals(3, library.getBookCount());
+        assertEquals(3, library.getMemberCount());
+        Book orwell = library.findBookByIsbn("9780452284234");
+        assertEquals(4, orwell.getCopyCount());
+        assertEquals(3, orwell.getAvailableCopies());
+        assertFalse(library.findBookByIsbn("978-0-441-17271-9").isAvailable());
+        assertTrue(library.findBookByIsbn("978-0-7432-7356-5").isAvailable());
+        assertEquals(1, library.findMemberById("M1").getLoanCount());
+        assertEquals(1, library.findMemberById("M2").getLoanCount());
+        assertEquals(0, library.findMemberById("M3").getLoanCount());
+        assertEquals(1, library.findMemberById("M3").getLoanLimit());
+        assertEquals(1, library.getHoldCount("978-0-441-17271-9"));
+    }
+
+    private Library open() throws IOException {
+        Library library = newLibrary();
+        openStore(library);
+        return library;
+    }
+
+    private static Library newLibrary() {
+        Library library = new Library(true);
+        library.setEventSink(EventSink.NONE);
+        return library;
+    }
+
+    private LibraryStore openStore(Library library) throws IOException {
+        return LibraryStore.open(dir, library, true);
+    }
+
+    // Stop logging without the final snapshot and flush that close() does
+    private static void crash(Library library) {
+        library.setTransactionLog(null);
+    }
+
+    private static void appendGarbage(Path segment) throws IOException {
+        // A length that promises more than follows, as a write cut short leaves it
+        Files.write(segment, new byte[] {0, 0, 0, 40, 0, 0, 0}, StandardOpenOption.APPEND);
+    }
+
+    private Path newestSegment() throws IOException {
+        List<Path> segments = segments();
+        return segments.get(segments.size() - 1);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+}
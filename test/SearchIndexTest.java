@@ -0,0 +1,73 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Ranking of SearchIndex results when a query word is in thousands of books,
+ * so that most of its postings are skipped rather than scored
+ */
+class SearchIndexTest {
+    private static final int BOOKS = 20_000;
+
+    private SearchIndex index;
+
+    @BeforeEach
+    void fillIndex() {
+        index = new SearchIndex();
+        for (int i = 0; i < BOOKS; i++) {
+            String title;
+            if (i == 7_000 || i == 15_000 || i == 18_000) {
+                title = "River River";
+            } else if (i == 12_000) {
+                title = "River of Stars";
+            } else {
+                title = "River Walk Number " + i;
+            }
+            index.add(isbn(i), new Book(title, "Ann Author", isbn(i)));
+        }
+    }
+
+    @Test
+    void findsBestBooksOfACommonWordInOrder() {
+        assertEquals(List.of(isbn(7_000), isbn(15_000), isbn(18_000), isbn(12_000)),
+                isbns(index.search("river", 4)));
+    }
+
+    @Test
+    void breaksTiesByAge() {
+        assertEquals(List.of(isbn(0), isbn(1), isbn(2)), isbns(index.search("walk", 3)));
+    }
+
+    @Test
+    void addsEveryMatchingWordToTheScore() {
+        assertEquals(List.of(isbn(12_000), isbn(19_999)), isbns(index.search("19999 stars of", 5)));
+    }
+
+    @Test
+    void matchesPrefixesAndTypos() {
+        assertEquals(List.of(isbn(12_000)), isbns(index.search("sta", 5)));
+        assertEquals(List.of(isbn(12_000)), isbns(index.search("starz", 5)));
+    }
+
+    @Test
+    void skipsRemovedBooks() {
+        index.remove(isbn(7_000));
+        index.remove(isbn(15_000));
+        assertEquals(List.of(isbn(18_000), isbn(12_000), isbn(0)), isbns(index.search("river", 3)));
+    }
+
+    private static String isbn(int i) {
+        return "978" + i;
+    }
+
+    private static List<String> isbns(List<Book> books) {
+        List<String> isbns = new ArrayList<>();
+        for (Book book : books) {
+            isbns.add(book.getIsbn());
+        }
+        return isbns;
+    }
+}
@@ -0,0 +1,110 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Interlibrary loans between two branches: the two-phase borrow and
+ * return, both ways a borrow is aborted, and cleanup of the proxy member
+ */
+class ShardedLibraryTest {
+    private static final int HOME = 0;
+    private static final int LENDER = 1;
+    private static final String PROXY = ShardedLibrary.PROXY_PREFIX + "M1";
+
+    private ShardedLibrary library;
+
+    @BeforeEach
+    void openLibrary() {
+        library = new ShardedLibrary(2);
+        library.setEventSink(EventSink.NONE);
+        assertEquals(LibraryResult.OK, library.addMember(HOME, "Ann", "M1").join());
+        assertEquals(LibraryResult.OK, library.addBook(LENDER, "Dune", "Frank Herbert", "978-1", 1).join());
+    }
+
+    @AfterEach
+    void closeLibrary() {
+        library.close();
+    }
+
+    @Test
+    void lendsAndTakesBackBetweenBranches() {
+        assertEquals(LibraryResult.OK, library.borrowBook("978-1", "M1").join());
+
+        List<ShardedLibrary.InterlibraryLoan> loans = library.getInterlibraryLoans("M1").join();
+        assertEquals(1, loans.size());
+        assertEquals("Dune", loans.get(0).getTitle());
+        assertEquals(LENDER, loans.get(0).getLendingBranch());
+        assertEquals(loans.get(0).getDueAt(), proxyLoanDueAt());
+        assertEquals(0, availableCopies());
+        assertEquals(LibraryResult.ALREADY_BORROWED, library.borrowBook("978-1", "M1").join());
+        assertEquals(LibraryResult.MEMBER_HAS_LOANS, library.removeMember("M1").join());
+        LibraryStats.Snapshot stats = library.getStatistics().join();
+        assertEquals(1, stats.getTotalMembers());
+        assertEquals(1, stats.getTotalLoans());
+
+        assertEquals(LibraryResult.OK, library.returnBook("978-1", "M1").join());
+        assertTrue(library.getInterlibraryLoans("M1").join().isEmpty());
+        assertEquals(1, availableCopies());
+        assertNull(proxy());
+        assertEquals(LibraryResult.NOT_BORROWED, library.returnBook("978-1", "M1").join());
+        assertEquals(LibraryResult.OK, library.removeMember("M1").join());
+    }
+
+    @Test
+    void releasesTheReservationWhenTheLenderRefuses() {
+        assertEquals(LibraryResult.OK, library.addMember(LENDER, "Bob", "M2").join());
+        assertEquals(LibraryResult.OK, library.borrowBook("978-1", "M2").join());
+
+        assertEquals(LibraryResult.NOT_AVAILABLE, library.borrowBook("978-1", "M1").join());
+        assertTrue(library.getInterlibraryLoans("M1").join().isEmpty());
+        assertNull(proxy());
+        // Nothing is left reserved at the home branch
+        assertEquals(LibraryResult.OK, library.removeMember("M1").join());
+    }
+
+    @Test
+    void takesTheCopyBackWhenTheHomeBranchRefuses() {
+        assertEquals(LibraryResult.OK, library.addBook(HOME, "Emma", "Jane Austen", "978-2", 1).join());
+        assertEquals(LibraryResult.OK, library.onBranch(HOME, home -> home.setLoanLimit("M1", 1)).join());
+        assertEquals(LibraryResult.OK, library.borrowBook("978-2", "M1").join());
+
+        assertEquals(LibraryResult.LOAN_LIMIT_REACHED, library.borrowBook("978-1", "M1").join());
+        assertTrue(library.getInterlibraryLoans("M1").join().isEmpty());
+        assertEquals(1, availableCopies());
+        assertNull(proxy());
+        assertEquals(1, library.getStatistics().join().getAvailableBooks());
+    }
+
+    @Test
+    void sharesOneProxyBetweenLoansAndDropsItAfterTheLast() {
+        assertEquals(LibraryResult.OK, library.addBook(LENDER, "Emma", "Jane Austen", "978-2", 1).join());
+        assertEquals(LibraryResult.OK, library.borrowBook("978-1", "M1").join());
+        assertEquals(LibraryResult.OK, library.borrowBook("978-2", "M1").join());
+        assertEquals(2, proxy().getLoanCount());
+        assertEquals(1, library.getStatistics().join().getTotalMembers());
+
+        assertEquals(LibraryResult.OK, library.returnBook("978-1", "M1").join());
+        assertEquals(1, proxy().getLoanCount());
+        assertEquals(LibraryResult.OK, library.returnBook("978-2", "M1").join());
+        assertNull(proxy());
+        assertEquals(1, library.getStatistics().join().getTotalMembers());
+    }
+
+    private Member proxy() {
+        return library.onBranch(LENDER, lender -> lender.findMemberById(PROXY)).join();
+    }
+
+    private long proxyLoanDueAt() {
+        return library.onBranch(LENDER,
+                lender -> lender.findMemberById(PROXY).getLoan(lender.findBookByIsbn("978-1")).getDueAt()).join();
+    }
+
+    private int availableCopies() {
+        return library.findBookByIsbn("978-1").join().getAvailableCopies();
+    }
+}
@@ -0,0 +1,66 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Deadlines coming due as a TimerWheel advances
+ * The wheel has a minute a slot and a day a revolution, as HoldQueues uses it.
+ */
+class TimerWheelTest {
+    private static final long SECOND = 1000L;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long DAY = 24 * 60 * MINUTE;
+
+    @Test
+    void reportsItemDueLaterInTheTickItStoppedIn() {
+        TimerWheel<String> wheel = new TimerWheel<>(MINUTE, 1440, 0);
+        wheel.schedule("x", 10 * MINUTE + 30 * SECOND);
+
+        assertEquals(Collections.emptyList(), wheel.advance(10 * MINUTE + 10 * SECOND));
+        assertEquals(Collections.singletonList("x"), wheel.advance(11 * MINUTE + 10 * SECOND));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void reportsItemOnTimeWithinTheSameTick() {
+        TimerWheel<String> wheel = new TimerWheel<>(MINUTE, 1440, 0);
+        wheel.schedule("x", 10 * MINUTE + 30 * SECOND);
+
+        assertEquals(Collections.emptyList(), wheel.advance(10 * MINUTE + 10 * SECOND));
+        assertEquals(Collections.singletonList("x"), wheel.advance(10 * MINUTE + 40 * SECOND));
+    }
+
+    @Test
+    void keepsItemsDueInALaterRevolution() {
+        TimerWheel<String> wheel = new TimerWheel<>(MINUTE, 1440, 0);
+        wheel.schedule("tomorrow", DAY + 10 * MINUTE);
+        wheel.schedule("today", 10 * MINUTE);
+
+        assertEquals(Collections.singletonList("today"), wheel.advance(12 * 60 * MINUTE));
+        assertEquals(Collections.emptyList(), wheel.advance(DAY));
+        assertEquals(Collections.singletonList("tomorrow"), wheel.advance(DAY + 10 * MINUTE));
+    }
+
+    @Test
+    void reportsEverythingDueAfterALongPause() {
+        TimerWheel<String> wheel = new TimerWheel<>(MINUTE, 1440, 0);
+        wheel.schedule("a", 5 * MINUTE);
+        wheel.schedule("b", DAY + 5 * MINUTE);
+        wheel.schedule("c", 3 * DAY);
+
+        List<String> due = wheel.advance(3 * DAY + MINUTE);
+        Collections.sort(due);
+        assertEquals(Arrays.asList("a", "b", "c"), due);
+    }
+
+    @Test
+    void reportsPastDeadlinesOnTheNextAdvance() {
+        TimerWheel<String> wheel = new TimerWheel<>(MINUTE, 1440, 20 * MINUTE);
+        wheel.schedule("late", 5 * MINUTE);
+
+        assertEquals(Collections.singletonList("late"), wheel.advance(21 * MINUTE));
+    }
+}